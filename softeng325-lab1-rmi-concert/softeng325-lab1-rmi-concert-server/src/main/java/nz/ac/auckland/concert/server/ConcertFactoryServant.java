@@ -1,5 +1,6 @@
 package nz.ac.auckland.concert.server;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -14,25 +15,62 @@ public class ConcertFactoryServant implements ConcertFactory{
 	private Map<Long, Concert> _concerts;
 	private Long numberOfConcerts = (long) 0;
 	
+	// Log of changes, or null if Concerts are only kept in memory. Changes
+	// are made and appended to the log while holding _lock, and committed
+	// after releasing it so that concurrent commits can be grouped.
+	private ConcertLog _log;
+	private final Object _lock = new Object();
+	
 	
 	public ConcertFactoryServant() throws RemoteException {
 		super();
 		_concerts = new HashMap<Long, Concert>();
 	}
 	
+	/**
+	 * Creates a servant whose Concerts are restored from, and whose changes
+	 * are recorded in, log.
+	 */
+	public ConcertFactoryServant(ConcertLog log) throws RemoteException {
+		this();
+		try {
+			numberOfConcerts = log.replay(_concerts);
+		} catch (IOException e) {
+			throw new RemoteException("Unable to replay the concert log", e);
+		}
+		_log = log;
+	}
+	
 	
 	@Override
 	public Concert createConcert(Concert concert) throws RemoteException {
-		Concert newConcert = new ConcertServant(numberOfConcerts, concert.getTitle(), concert.getDate());
-		_concerts.put(numberOfConcerts, newConcert);
-		numberOfConcerts++;
-		return newConcert;
+		try {
+			Concert newConcert;
+			long sequence = 0;
+			synchronized (_lock) {
+				newConcert = new ConcertServant(numberOfConcerts, concert.getTitle(), concert.getDate());
+				if (_log != null) {
+					sequence = _log.appendCreate(numberOfConcerts, concert.getTitle(), concert.getDate());
+				}
+				_concerts.put(numberOfConcerts, newConcert);
+				numberOfConcerts++;
+			}
+			commit(sequence);
+			return newConcert;
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new RemoteException("Unable to log change", e);
+		}
 	}
 
 	@Override
 	public Concert getConcert(Long id) throws RemoteException {
 		Long uid = id;
-		Concert concert = _concerts.get(uid);
+		Concert concert;
+		synchronized (_lock) {
+			concert = _concerts.get(uid);
+		}
 		if (concert == null) {
 			throw new RemoteException();
 		}
@@ -41,40 +79,81 @@ public class ConcertFactoryServant implements ConcertFactory{
 
 	@Override
 	public boolean updateConcert(Concert concert) throws RemoteException {
-		
-		if (!_concerts.containsKey(concert.getId())) {
-			return false;
-		} else {
-			_concerts.put(concert.getId(), concert);
+		try {
+			long sequence = 0;
+			synchronized (_lock) {
+				if (!_concerts.containsKey(concert.getId())) {
+					return false;
+				}
+				if (_log != null) {
+					sequence = _log.appendUpdate(concert.getId(), concert.getTitle(), concert.getDate());
+				}
+				_concerts.put(concert.getId(), concert);
+			}
+			commit(sequence);
 			return true;
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new RemoteException("Unable to log change", e);
 		}
-		
 	}
 
 	@Override
 	public boolean deleteConcert(Long id) throws RemoteException {
 		Long uid = id;
 
-		Concert concert = _concerts.get(uid);
-		if (concert == null) {
-			return false;
-		} else {
-			_concerts.remove(uid);
+		try {
+			long sequence = 0;
+			synchronized (_lock) {
+				if (!_concerts.containsKey(uid)) {
+					return false;
+				}
+				if (_log != null) {
+					sequence = _log.appendDelete(uid);
+				}
+				_concerts.remove(uid);
+			}
+			commit(sequence);
 			return true;
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new RemoteException("Unable to log change", e);
 		}
-		
 	}
 
 	@Override
 	public List<Concert> getAllConcerts() throws RemoteException {
-		List<Concert> concertList = new ArrayList<Concert>(
-				_concerts.values());
-		return concertList;
+		synchronized (_lock) {
+			List<Concert> concertList = new ArrayList<Concert>(
+					_concerts.values());
+			return concertList;
+		}
 	}
 
 	@Override
 	public void clear() throws RemoteException {
-		_concerts.clear();
+		try {
+			long sequence = 0;
+			synchronized (_lock) {
+				if (_log != null) {
+					sequence = _log.appendClear();
+				}
+				_concerts.clear();
+			}
+			commit(sequence);
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new RemoteException("Unable to log change", e);
+		}
+	}
+
+	private void commit(long sequence) throws IOException {
+		if (_log != null) {
+			_log.commit(sequence);
+		}
 	}
 
 }
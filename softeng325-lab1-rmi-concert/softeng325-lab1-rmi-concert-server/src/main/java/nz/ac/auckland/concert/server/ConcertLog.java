@@ -0,0 +1,320 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import nz.ac.auckland.concert.common.Concert;
+
+/**
+ * Append-only log of the changes made by ConcertFactoryServant, which is
+ * replayed when the server restarts.
+ *
+ * Each record is framed by its length and a CRC32 checksum. A record that was
+ * only partly written when the server stopped is truncated by replay(). Only
+ * the last record can be torn like that, so if a damaged record is followed
+ * by a valid one, replay() throws rather than discard the later changes.
+ *
+ * Records are appended to a buffer while the servant holds its lock, and
+ * commit() then writes them through a FileChannel. Commits use group commit:
+ * one thread writes and forces every record appended so far, while others
+ * wait behind it and usually find their records already written. The
+ * FsyncPolicy determines whether commit() forces the file to disk (Always),
+ * leaves that to a background thread (Interval) or never forces it (Never).
+ *
+ */
+public class ConcertLog {
+	public enum FsyncPolicy {Always, Interval, Never}
+
+	// Default time (ms) between forces in Interval mode.
+	public static final long DEFAULT_FSYNC_INTERVAL = 10;
+
+	private static final byte CREATE = 1;
+	private static final byte UPDATE = 2;
+	private static final byte DELETE = 3;
+	private static final byte CLEAR = 4;
+
+	private final File _file;
+	private final FileChannel _channel;
+	private final FsyncPolicy _policy;
+
+	// Records appended but not yet written. Guarded by _appendLock.
+	private final Object _appendLock = new Object();
+	private ByteArrayOutputStream _pending = new ByteArrayOutputStream();
+	private long _appended;
+
+	// Serialises writing, which is done by one committing thread at a time.
+	private final Object _writeLock = new Object();
+	private volatile long _written;
+	private volatile long _durable;
+	private volatile IOException _failure;
+
+	// Forces the log periodically in Interval mode. It's stopped by setting
+	// _closing rather than by interrupting it, as interrupting a thread that's
+	// using the FileChannel closes the channel.
+	private Thread _syncer;
+	private volatile boolean _closing;
+
+	public ConcertLog(File file, FsyncPolicy policy, final long fsyncInterval) throws IOException {
+		_file = file;
+		_channel = new RandomAccessFile(file, "rw").getChannel();
+		_policy = policy;
+
+		if (policy == FsyncPolicy.Interval) {
+			_syncer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (!_closing) {
+							Thread.sleep(fsyncInterval);
+							sync(getAppended(), true);
+						}
+					} catch (InterruptedException e) {
+						// Stop forcing.
+					} catch (IOException e) {
+						// Recorded in _failure, and reported by commit().
+					}
+				}
+			}, "concert-log-sync");
+			_syncer.setDaemon(true);
+			_syncer.start();
+		}
+	}
+
+	/**
+	 * Reads the logged changes, and applies them to concerts (which maps
+	 * ids to Concerts, and should be empty). Returns the id to give the next
+	 * Concert that's created.
+	 *
+	 * @throws IOException if a damaged record is followed by a valid one.
+	 */
+	public long replay(Map<Long, Concert> concerts) throws IOException {
+		long size = _channel.size();
+		long position = 0;
+		long nextId = 0;
+		ByteBuffer header = ByteBuffer.allocate(8);
+		CRC32 crc = new CRC32();
+
+		while (position + 8 <= size) {
+			header.clear();
+			readFully(header, position);
+			header.flip();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			if (length < 1 || position + 8 + length > size) {
+				break;
+			}
+			ByteBuffer record = ByteBuffer.allocate(length);
+			readFully(record, position + 8);
+			crc.reset();
+			crc.update(record.array(), 0, length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array()));
+			byte type = in.readByte();
+			if (type == CREATE || type == UPDATE) {
+				long id = in.readLong();
+				String title = in.readBoolean() ? in.readUTF() : null;
+				DateTime date = null;
+				if (in.readBoolean()) {
+					long millis = in.readLong();
+					date = new DateTime(millis, DateTimeZone.forID(in.readUTF()));
+				}
+				concerts.put(id, new ConcertServant(id, title, date));
+				nextId = Math.max(nextId, id + 1);
+			} else if (type == DELETE) {
+				concerts.remove(in.readLong());
+			} else if (type == CLEAR) {
+				concerts.clear();
+			} else {
+				throw new IOException("Unknown record type " + type + " in " + _file);
+			}
+			position += 8 + length;
+		}
+
+		if (position < size) {
+			long next = findRecord(position + 1, size);
+			if (next >= 0) {
+				throw new IOException("Damaged record at offset " + position + " of " + _file
+						+ " is followed by a valid record at offset " + next);
+			}
+			_channel.truncate(position);
+		}
+		_channel.position(position);
+		return nextId;
+	}
+
+	public long appendCreate(long id, String title, DateTime date) throws IOException {
+		return append(CREATE, id, title, date);
+	}
+
+	public long appendUpdate(long id, String title, DateTime date) throws IOException {
+		return append(UPDATE, id, title, date);
+	}
+
+	public long appendDelete(long id) throws IOException {
+		return append(DELETE, id, null, null);
+	}
+
+	public long appendClear() throws IOException {
+		return append(CLEAR, 0, null, null);
+	}
+
+	/**
+	 * Waits, as required by the FsyncPolicy, for the record with the given
+	 * sequence number to be written.
+	 */
+	public void commit(long sequence) throws IOException {
+		if (_policy == FsyncPolicy.Interval) {
+			checkFailure();
+		} else {
+			sync(sequence, _policy == FsyncPolicy.Always);
+		}
+	}
+
+	public void close() throws IOException {
+		_closing = true;
+		if (_syncer != null) {
+			try {
+				_syncer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			if (_failure == null) {
+				sync(getAppended(), _policy != FsyncPolicy.Never);
+			}
+		} finally {
+			_channel.close();
+		}
+	}
+
+	private long append(byte type, long id, String title, DateTime date) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		if (type != CLEAR) {
+			out.writeLong(id);
+		}
+		if (type == CREATE || type == UPDATE) {
+			out.writeBoolean(title != null);
+			if (title != null) {
+				out.writeUTF(title);
+			}
+			out.writeBoolean(date != null);
+			if (date != null) {
+				out.writeLong(date.getMillis());
+				out.writeUTF(date.getZone().getID());
+			}
+		}
+		byte[] record = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(record);
+
+		synchronized (_appendLock) {
+			checkFailure();
+			DataOutputStream pending = new DataOutputStream(_pending);
+			pending.writeInt(record.length);
+			pending.writeInt((int) crc.getValue());
+			pending.write(record);
+			return ++_appended;
+		}
+	}
+
+	private long getAppended() {
+		synchronized (_appendLock) {
+			return _appended;
+		}
+	}
+
+	private void sync(long sequence, boolean force) throws IOException {
+		synchronized (_writeLock) {
+			checkFailure();
+			if ((force ? _durable : _written) >= sequence) {
+				return;
+			}
+			byte[] batch;
+			long last;
+			synchronized (_appendLock) {
+				batch = _pending.toByteArray();
+				_pending.reset();
+				last = _appended;
+			}
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(batch);
+				while (buffer.hasRemaining()) {
+					_channel.write(buffer);
+				}
+				_written = last;
+				if (force) {
+					_channel.force(false);
+					_durable = last;
+				}
+			} catch (IOException e) {
+				_failure = e;
+				throw e;
+			}
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (_failure != null) {
+			IOException failure = new IOException("Log " + _file + " has failed");
+			failure.initCause(_failure);
+			throw failure;
+		}
+	}
+
+	/**
+	 * Returns the position of the first valid record that starts at or after
+	 * from, or -1 if there isn't one. Every position is tried, so the part of
+	 * the file that's searched is mapped rather than read a header at a time.
+	 */
+	private long findRecord(long from, long size) throws IOException {
+		if (from + 8 >= size) {
+			return -1;
+		}
+		MappedByteBuffer bytes = _channel.map(MapMode.READ_ONLY, from,
+				Math.min(size - from, Integer.MAX_VALUE));
+		CRC32 crc = new CRC32();
+		for (int offset = 0; offset + 8 < bytes.limit(); offset++) {
+			int length = bytes.getInt(offset);
+			if (length < 1 || length > bytes.limit() - offset - 8) {
+				continue;
+			}
+			byte[] record = new byte[length];
+			ByteBuffer body = bytes.duplicate();
+			body.position(offset + 8);
+			body.get(record);
+			crc.reset();
+			crc.update(record);
+			if ((int) crc.getValue() == bytes.getInt(offset + 4)) {
+				return from + offset;
+			}
+		}
+		return -1;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (_channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of " + _file);
+			}
+		}
+	}
+}
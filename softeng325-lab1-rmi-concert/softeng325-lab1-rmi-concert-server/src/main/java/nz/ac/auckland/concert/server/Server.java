@@ -1,6 +1,8 @@
 package nz.ac.auckland.concert.server;
 
 import java.io.Console;
+import java.io.File;
+import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -12,14 +14,45 @@ import nz.ac.auckland.concert.server.ConcertFactoryServant;
 
 public class Server {
 	
+	private static final String USAGE =
+			"Usage: Server [log-file [always|interval|never [fsync-interval-ms]]]";
+
+	/**
+	 * Starts the server. Concerts are only kept in memory, unless a log file
+	 * is given as the first argument, optionally followed by an fsync policy
+	 * (always, interval or never; default always) and an fsync interval in
+	 * ms (for the interval policy). Other arguments are rejected with a usage
+	 * message.
+	 */
 	public static void main(String[] args) {
+		ConcertLog log = null;
 		try {
+			if (args.length > 0) {
+				ConcertLog.FsyncPolicy policy = ConcertLog.FsyncPolicy.Always;
+				if (args.length > 1) {
+					policy = parsePolicy(args[1]);
+				}
+				long interval = ConcertLog.DEFAULT_FSYNC_INTERVAL;
+				try {
+					if (args.length > 2) {
+						interval = Long.parseLong(args[2]);
+					}
+				} catch(NumberFormatException e) {
+					interval = -1;
+				}
+				if (policy == null || interval < 1 || args.length > 3) {
+					System.out.println(USAGE);
+					return;
+				}
+				log = new ConcertLog(new File(args[0]), policy, interval);
+			}
 			
 			// Create the Registry on the localhost.
 			Registry lookupService = LocateRegistry.createRegistry(Config.REGISTRY_PORT);
 					
 			// Instantiate ShapeFactoryServant.
-			ConcertFactory service = new ConcertFactoryServant();
+			ConcertFactory service = log == null ? new ConcertFactoryServant()
+					: new ConcertFactoryServant(log);
 					
 			// Advertise the ShapeFactory service using the Registry.
 			lookupService.rebind(Config.SERVICE_NAME, service);
@@ -37,6 +70,30 @@ public class Server {
 			e.printStackTrace();
 		} catch(NotBoundException e) {
 			System.out.println("Unable to remove proxy from the  RMI Registry");
+		} catch(IOException e) {
+			System.out.println("Unable to open the concert log");
+			e.printStackTrace();
+		} finally {
+			if (log != null) {
+				try {
+					log.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the FsyncPolicy named by name, ignoring case, or null if
+	 * there isn't one.
+	 */
+	private static ConcertLog.FsyncPolicy parsePolicy(String name) {
+		for (ConcertLog.FsyncPolicy policy : ConcertLog.FsyncPolicy.values()) {
+			if (policy.name().equalsIgnoreCase(name)) {
+				return policy;
+			}
 		}
+		return null;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,30 @@
+package nz.ac.auckland.concert.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks, always with the GC profiler, so that every result
+ * reports the allocation rate (gc.alloc.rate.norm is bytes allocated per
+ * operation) alongside throughput.
+ *
+ * Build with "mvn package" and run with "java -jar target/benchmarks.jar",
+ * followed by any of JMH's usual options - for example, a regular expression
+ * selecting benchmarks, or "-p entries=1000" to choose parameter values.
+ * ConcertStoreBenchmark with 10M entries needs a larger heap, which can be
+ * given with "-jvmArgsAppend -Xmx8g".
+ *
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,193 @@
+package nz.ac.auckland.concert.benchmark;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nz.ac.auckland.concert.common.BinaryCodec;
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.common.RequestMessage;
+import nz.ac.auckland.concert.common.ResponseMessage;
+
+/**
+ * Round trips (encode then decode) of a Create request and of a List
+ * response, in three encodings:
+ * - Java serialisation of the message objects, as SerializationCodec does.
+ * - Java serialisation of a hand-written Externalizable, which writes the
+ *   same fields with BinaryCodec's primitives.
+ * - BinaryCodec's frames, written through DataOutput with no serialisation.
+ *
+ * Each encoding uses a long-lived stream pair, as a session does. The object
+ * streams are reset after every message, as otherwise later writes of the
+ * same message would only be back-references to it.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+	private static final DateTime DATE = new DateTime(2017, 3, 1, 20, 0,
+			DateTimeZone.forID("Pacific/Auckland"));
+
+	/**
+	 * Writers and readers of each encoding, connected by LoopbackBuffers.
+	 */
+	@State(Scope.Thread)
+	public static class Codecs {
+		private final LoopbackBuffer _objectBuffer = new LoopbackBuffer();
+		private ObjectOutputStream _objectOut;
+		private ObjectInputStream _objectIn;
+
+		private final LoopbackBuffer _binaryBuffer = new LoopbackBuffer();
+		private BinaryCodec _binary;
+
+		private final RequestMessage _create = RequestMessage.makeCreate(
+				new Concert("The Beatles", DATE));
+		private final ExternalizableCreate _externalizableCreate =
+				new ExternalizableCreate(new Concert("The Beatles", DATE));
+
+		@Setup
+		public void open() throws IOException {
+			_objectOut = new ObjectOutputStream(_objectBuffer.getOutputStream());
+			_objectOut.flush();
+			_objectIn = new ObjectInputStream(_objectBuffer.getInputStream());
+			_binary = new BinaryCodec(_binaryBuffer.getInputStream(),
+					_binaryBuffer.getOutputStream());
+		}
+
+		Object roundTrip(Object message) throws IOException, ClassNotFoundException {
+			_objectOut.writeObject(message);
+			_objectOut.reset();
+			_objectOut.flush();
+			return _objectIn.readObject();
+		}
+	}
+
+	/**
+	 * A List response with a given number of Concerts.
+	 */
+	@State(Scope.Benchmark)
+	public static class ListResponse {
+		@Param({"1", "100", "10000"})
+		public int concerts;
+
+		private ResponseMessage _response;
+		private ExternalizableList _externalizable;
+
+		@Setup
+		public void create() {
+			List<Concert> list = new ArrayList<Concert>(concerts);
+			for (int i = 0; i < concerts; i++) {
+				list.add(new Concert((long) i + 1, "Concert " + i, DATE.plusHours(i)));
+			}
+			_response = ResponseMessage.makeListResponse(list);
+			_externalizable = new ExternalizableList(list);
+		}
+	}
+
+	@Benchmark
+	public Object createRequestSerialization(Codecs codecs) throws Exception {
+		return codecs.roundTrip(codecs._create);
+	}
+
+	@Benchmark
+	public Object createRequestExternalizable(Codecs codecs) throws Exception {
+		return codecs.roundTrip(codecs._externalizableCreate);
+	}
+
+	@Benchmark
+	public Object createRequestBinary(Codecs codecs) throws IOException {
+		codecs._binary.writeRequest(codecs._create);
+		return codecs._binary.readRequest();
+	}
+
+	@Benchmark
+	public Object listResponseSerialization(Codecs codecs, ListResponse list) throws Exception {
+		return codecs.roundTrip(list._response);
+	}
+
+	@Benchmark
+	public Object listResponseExternalizable(Codecs codecs, ListResponse list) throws Exception {
+		return codecs.roundTrip(list._externalizable);
+	}
+
+	@Benchmark
+	public Object listResponseBinary(Codecs codecs, ListResponse list) throws IOException {
+		codecs._binary.writeResponse(list._response);
+		return codecs._binary.readResponse();
+	}
+
+	/**
+	 * A Create request that writes its Concert by hand.
+	 */
+	public static class ExternalizableCreate implements Externalizable {
+		private static final long serialVersionUID = 1L;
+
+		private Concert _concert;
+
+		public ExternalizableCreate() {
+		}
+
+		ExternalizableCreate(Concert concert) {
+			_concert = concert;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			BinaryCodec.writeConcert(out, _concert);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException {
+			_concert = BinaryCodec.readConcert(in);
+		}
+	}
+
+	/**
+	 * A List response that writes its Concerts by hand.
+	 */
+	public static class ExternalizableList implements Externalizable {
+		private static final long serialVersionUID = 1L;
+
+		private List<Concert> _concerts;
+
+		public ExternalizableList() {
+		}
+
+		ExternalizableList(List<Concert> concerts) {
+			_concerts = concerts;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			BinaryCodec.writeConcerts(out, _concerts);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException {
+			_concerts = BinaryCodec.readConcerts(in);
+		}
+	}
+}
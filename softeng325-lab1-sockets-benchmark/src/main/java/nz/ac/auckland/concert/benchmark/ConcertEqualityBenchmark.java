@@ -0,0 +1,71 @@
+package nz.ac.auckland.concert.benchmark;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nz.ac.auckland.concert.common.Concert;
+
+/**
+ * Concert.hashCode() and equals(), which are implemented with commons-lang
+ * builders, and a HashSet lookup that uses both.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConcertEqualityBenchmark {
+	private Concert _concert;
+	private Concert _equal;
+	private Concert _different;
+	private Set<Concert> _set;
+
+	@Setup
+	public void create() {
+		DateTime date = new DateTime(0);
+		_concert = new Concert(42L, "The Beatles", date);
+		_equal = new Concert(42L, "The Beatles", date);
+		_different = new Concert(42L, "The Rolling Stones", date);
+
+		_set = new HashSet<Concert>();
+		for (long id = 0; id < 1000; id++) {
+			_set.add(new Concert(id, "Concert " + id, date));
+		}
+		_set.add(_concert);
+	}
+
+	@Benchmark
+	public int hashCodeOf() {
+		return _concert.hashCode();
+	}
+
+	@Benchmark
+	public boolean equalsEqual() {
+		return _concert.equals(_equal);
+	}
+
+	@Benchmark
+	public boolean equalsDifferent() {
+		return _concert.equals(_different);
+	}
+
+	@Benchmark
+	public boolean hashSetContains() {
+		return _set.contains(_equal);
+	}
+}
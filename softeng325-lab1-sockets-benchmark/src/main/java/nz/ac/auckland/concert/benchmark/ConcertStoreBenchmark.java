@@ -0,0 +1,123 @@
+package nz.ac.auckland.concert.benchmark;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.server.ConcertStore;
+
+/**
+ * Operations on a ConcertStore (without a log) holding a given number of
+ * Concerts, one hour apart, with titles made from a small vocabulary so that
+ * title searches have many matches.
+ *
+ * The store is filled once per fork. With 10M entries that takes a while,
+ * and needs a heap of several gigabytes (see Benchmarks).
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcertStoreBenchmark {
+	private static final String[] WORDS = {"Live", "Symphony", "Jazz", "Night",
+			"Orchestra", "Rock", "Festival", "Blues", "Opera", "Tour"};
+	private static final long START = new DateTime(2018, 1, 1, 0, 0).getMillis();
+	private static final long HOUR = 60 * 60 * 1000;
+
+	@Param({"1000", "1000000", "10000000"})
+	public int entries;
+
+	private ConcertStore _store;
+
+	@Setup
+	public void fill() {
+		_store = new ConcertStore();
+		SplittableRandom random = new SplittableRandom(325);
+		for (int i = 0; i < entries; i++) {
+			_store.create(new Concert(title(random, i), date(i)));
+		}
+	}
+
+	/**
+	 * Each thread's source of random ids and dates.
+	 */
+	@State(Scope.Thread)
+	public static class Chooser {
+		private final SplittableRandom _random = new SplittableRandom();
+
+		long id(ConcertStoreBenchmark benchmark) {
+			return 1 + _random.nextInt(benchmark.entries);
+		}
+	}
+
+	@Benchmark
+	public Concert get(Chooser chooser) {
+		return _store.get(chooser.id(this));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Concert getContended(Chooser chooser) {
+		return _store.get(chooser.id(this));
+	}
+
+	@Benchmark
+	public boolean update(Chooser chooser) {
+		long id = chooser.id(this);
+		return _store.update(new Concert(id, title(chooser._random, id), date(id)));
+	}
+
+	/**
+	 * Creates a Concert and deletes it again, so that the store's size is
+	 * unchanged.
+	 */
+	@Benchmark
+	public boolean createAndDelete(Chooser chooser) {
+		Concert concert = _store.create(new Concert(title(chooser._random, entries),
+				date(entries)));
+		return _store.delete(concert.getId());
+	}
+
+	@Benchmark
+	public List<Concert> scanPage(Chooser chooser) {
+		return _store.scan(chooser.id(this), 100);
+	}
+
+	@Benchmark
+	public List<Concert> rangeByDate(Chooser chooser) {
+		long from = START + chooser.id(this) * HOUR;
+		return _store.rangeByDate(from, from + 24 * HOUR, 100);
+	}
+
+	@Benchmark
+	public List<Concert> searchTitles(Chooser chooser) {
+		return _store.searchTitles(WORDS[chooser._random.nextInt(WORDS.length)].substring(0, 3), 10);
+	}
+
+	private static String title(SplittableRandom random, long index) {
+		return WORDS[random.nextInt(WORDS.length)] + " "
+				+ WORDS[random.nextInt(WORDS.length)] + " " + index;
+	}
+
+	private static DateTime date(long index) {
+		return new DateTime(START + index * HOUR);
+	}
+}
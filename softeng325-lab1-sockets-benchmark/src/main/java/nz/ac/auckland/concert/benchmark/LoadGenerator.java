@@ -0,0 +1,440 @@
+package nz.ac.auckland.concert.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import org.joda.time.DateTime;
+
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.common.Connection;
+import nz.ac.auckland.concert.common.LatencyHistogram;
+import nz.ac.auckland.concert.common.RequestMessage;
+import nz.ac.auckland.concert.common.RequestMessage.MessageType;
+import nz.ac.auckland.concert.common.ResponseMessage;
+import nz.ac.auckland.concert.common.SessionFeature;
+
+/**
+ * Open-loop load generator for a running Server. Each of a number of
+ * sessions sends requests, drawn from a weighted mix of Create, Retrieve,
+ * Update, Delete and List, on a fixed schedule - whether or not its earlier
+ * requests have been answered - so that together they offer the requested
+ * rate.
+ *
+ * Latency is measured from the time each request was due to be sent, not
+ * the time it actually was. When the server (or the generator) falls behind,
+ * requests queue up and their wait counts towards their latency, as it would
+ * for real clients arriving independently. Measuring from the actual send
+ * time would hide exactly the stalls that matter ("coordinated omission").
+ *
+ * Results are printed as a table of percentiles for each MessageType, and
+ * optionally written as JSON. Run with:
+ *   java -cp target/benchmarks.jar nz.ac.auckland.concert.benchmark.LoadGenerator [options]
+ * where the options are described in LoadOptions.
+ *
+ */
+public class LoadGenerator {
+	private static final int PRELOAD_BATCH_SIZE = 1000;
+	private static final long DRAIN_TIMEOUT = TimeUnit.SECONDS.toNanos(30);
+
+	private final LoadOptions _options;
+	private final MessageType[] _types;
+	private final int[] _cumulativeWeights;
+
+	// Ids of the preloaded Concerts, which Retrieves and Updates choose from.
+	private long _firstId;
+	private long _lastId;
+
+	private final AtomicLong _outstanding = new AtomicLong();
+
+	// Time from the end of the warmup to the last measured response, which
+	// exceeds the duration when the server couldn't keep up.
+	private final AtomicLong _lastMeasuredResponse = new AtomicLong();
+	private double _elapsedSeconds;
+
+	public static void main(String[] args) throws Exception {
+		LoadOptions options = LoadOptions.parse(args);
+		LoadGenerator generator = new LoadGenerator(options);
+		Map<MessageType, Result> results = generator.run();
+
+		generator.print(results);
+		if (options.getOutput() != null) {
+			generator.write(results, options.getOutput());
+			System.out.println("Results written to " + options.getOutput());
+		}
+	}
+
+	public LoadGenerator(LoadOptions options) {
+		_options = options;
+
+		Map<MessageType, Integer> mix = options.getMix();
+		_types = mix.keySet().toArray(new MessageType[mix.size()]);
+		_cumulativeWeights = new int[_types.length];
+		int total = 0;
+		for (int i = 0; i < _types.length; i++) {
+			total += mix.get(_types[i]);
+			_cumulativeWeights[i] = total;
+		}
+	}
+
+	/**
+	 * Preloads the server, offers load for the warmup period and then the
+	 * measured period, and waits for outstanding responses.
+	 *
+	 * @return the measured results for each type of request in the mix.
+	 */
+	public Map<MessageType, Result> run() throws IOException, InterruptedException {
+		InetAddress host = InetAddress.getByName(_options.getHost());
+		preload(host);
+
+		List<SessionFeature> features = new ArrayList<SessionFeature>();
+		features.add(SessionFeature.OutOfOrderResponses);
+		if (_options.getCompression() != null) {
+			features.add(_options.getCompression());
+		}
+
+		List<Session> sessions = new ArrayList<Session>();
+		try {
+			for (int i = 0; i < _options.getSessions(); i++) {
+				sessions.add(new Session(i, Connection.open(host, _options.getPort(),
+						_options.getWireFormat(), features.toArray(new SessionFeature[features.size()]))));
+			}
+
+			// Each session offers an equal share of the rate, and their
+			// schedules are staggered so that requests are evenly spread.
+			long interval = TimeUnit.SECONDS.toNanos(1) * _options.getSessions() / _options.getRate();
+			long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+			long measureFrom = start + TimeUnit.SECONDS.toNanos(_options.getWarmup());
+			long end = measureFrom + TimeUnit.SECONDS.toNanos(_options.getDuration());
+
+			List<Thread> threads = new ArrayList<Thread>();
+			for (Session session : sessions) {
+				session.schedule(start + interval * session._index / sessions.size(),
+						interval, measureFrom, end);
+				Thread thread = new Thread(session, "load-session-" + session._index);
+				thread.start();
+				threads.add(thread);
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+
+			long deadline = System.nanoTime() + DRAIN_TIMEOUT;
+			while (_outstanding.get() > 0 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			if (_outstanding.get() > 0) {
+				System.out.println(_outstanding.get() + " requests still outstanding after "
+						+ TimeUnit.NANOSECONDS.toSeconds(DRAIN_TIMEOUT) + "s");
+			}
+			_elapsedSeconds = Math.max(_lastMeasuredResponse.get() - measureFrom, end - measureFrom) / 1e9;
+		} finally {
+			for (Session session : sessions) {
+				try {
+					session._connection.close();
+				} catch (IOException e) {
+					// The session's failure has already been counted.
+				}
+			}
+		}
+
+		Map<MessageType, Result> results = new EnumMap<MessageType, Result>(MessageType.class);
+		for (MessageType type : _types) {
+			results.put(type, new Result());
+		}
+		for (Session session : sessions) {
+			synchronized (session) {
+				for (Map.Entry<MessageType, Result> entry : session._results.entrySet()) {
+					results.get(entry.getKey()).add(entry.getValue());
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Creates the configured number of Concerts, in batches, and records the
+	 * range of their ids.
+	 */
+	private void preload(InetAddress host) throws IOException {
+		int remaining = Math.max(_options.getPreload(), 1);
+		Connection connection = Connection.open(host, _options.getPort(), _options.getWireFormat());
+		try {
+			SplittableRandom random = new SplittableRandom(325);
+			_firstId = Long.MAX_VALUE;
+			while (remaining > 0) {
+				List<Concert> concerts = new ArrayList<Concert>();
+				for (int i = 0; i < Math.min(remaining, PRELOAD_BATCH_SIZE); i++) {
+					concerts.add(makeConcert(null, random));
+				}
+				ResponseMessage response = connection.send(RequestMessage.makeBatchCreate(concerts));
+				if (response.getStatus() != ResponseMessage.Status.Success) {
+					throw new IOException("Preload failed: " + response.getFailureMessage());
+				}
+				for (Concert concert : response.getConcerts()) {
+					_firstId = Math.min(_firstId, concert.getId());
+					_lastId = Math.max(_lastId, concert.getId());
+				}
+				remaining -= concerts.size();
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static Concert makeConcert(Long id, SplittableRandom random) {
+		return new Concert(id, "Concert " + random.nextInt(1000000),
+				new DateTime(2018, 1, 1, 0, 0).plusHours(random.nextInt(24 * 365 * 5)));
+	}
+
+	/**
+	 * One connection, with its own schedule of requests and its own results.
+	 * Results are recorded on the connection's reader thread (or the
+	 * session's thread, if a request can't be sent), so are guarded by the
+	 * Session's lock.
+	 */
+	private class Session implements Runnable {
+		private final int _index;
+		private final Connection _connection;
+		private final SplittableRandom _random;
+		private final Map<MessageType, Result> _results = new EnumMap<MessageType, Result>(MessageType.class);
+
+		// Concerts this session has created, which its Deletes remove first.
+		private final ConcurrentLinkedQueue<Long> _created = new ConcurrentLinkedQueue<Long>();
+
+		private long _first;
+		private long _interval;
+		private long _measureFrom;
+		private long _end;
+
+		Session(int index, Connection connection) {
+			_index = index;
+			_connection = connection;
+			_random = new SplittableRandom(index);
+			for (MessageType type : _types) {
+				_results.put(type, new Result());
+			}
+		}
+
+		void schedule(long first, long interval, long measureFrom, long end) {
+			_first = first;
+			_interval = interval;
+			_measureFrom = measureFrom;
+			_end = end;
+		}
+
+		@Override
+		public void run() {
+			for (long intended = _first; intended < _end; intended += _interval) {
+				long now;
+				while ((now = System.nanoTime()) < intended) {
+					LockSupport.parkNanos(intended - now);
+				}
+				// When behind schedule, requests are sent back to back until
+				// the session catches up; their latency still starts at the
+				// intended time.
+				send(chooseType(), intended);
+			}
+		}
+
+		private MessageType chooseType() {
+			int choice = _random.nextInt(_cumulativeWeights[_cumulativeWeights.length - 1]);
+			for (int i = 0; ; i++) {
+				if (choice < _cumulativeWeights[i]) {
+					return _types[i];
+				}
+			}
+		}
+
+		private void send(final MessageType type, final long intended) {
+			RequestMessage request = makeRequest(type);
+			_outstanding.incrementAndGet();
+			_connection.submit(request).whenComplete(new BiConsumer<ResponseMessage, Throwable>() {
+				@Override
+				public void accept(ResponseMessage response, Throwable failure) {
+					long now = System.nanoTime();
+					long latency = now - intended;
+					if (response != null && type == MessageType.Create
+							&& response.getStatus() == ResponseMessage.Status.Success) {
+						_created.add(response.getId());
+					}
+					if (intended >= _measureFrom) {
+						synchronized (Session.this) {
+							_results.get(type).record(latency, response, failure);
+						}
+						long last;
+						while ((last = _lastMeasuredResponse.get()) < now
+								&& !_lastMeasuredResponse.compareAndSet(last, now)) {
+						}
+					}
+					_outstanding.decrementAndGet();
+				}
+			});
+		}
+
+		private RequestMessage makeRequest(MessageType type) {
+			switch (type) {
+			case Create:
+				return RequestMessage.makeCreate(makeConcert(null, _random));
+			case Retrieve:
+				return RequestMessage.makeRetrieve(chooseId());
+			case Update:
+				return RequestMessage.makeUpdate(makeConcert(chooseId(), _random));
+			case Delete:
+				Long id = _created.poll();
+				return RequestMessage.makeDelete(id != null ? id : chooseId());
+			default:
+				return _options.getListPageSize() > 0
+						? RequestMessage.makeList(_options.getListPageSize(), null)
+						: RequestMessage.makeList();
+			}
+		}
+
+		private long chooseId() {
+			return _firstId + _random.nextLong(_lastId - _firstId + 1);
+		}
+	}
+
+	/**
+	 * Measurements for one type of request: a latency histogram, in
+	 * nanoseconds, of every request that the server processed, and counts of
+	 * unsuccessful responses, of requests that the server shed with an
+	 * Overloaded response, and of requests that failed outright (e.g.
+	 * because the connection was lost). Shed requests are answered without
+	 * being processed, so they're kept out of the histogram.
+	 */
+	public static class Result {
+		private final LatencyHistogram _latency = new LatencyHistogram();
+		private long _unsuccessful;
+		private long _overloaded;
+		private long _errors;
+
+		void record(long latency, ResponseMessage response, Throwable failure) {
+			if (failure != null) {
+				_errors++;
+				return;
+			}
+			if (response.getStatus() == ResponseMessage.Status.Overloaded) {
+				_overloaded++;
+				return;
+			}
+			_latency.record(latency);
+			if (response.getStatus() != ResponseMessage.Status.Success) {
+				_unsuccessful++;
+			}
+		}
+
+		void add(Result other) {
+			_latency.add(other._latency);
+			_unsuccessful += other._unsuccessful;
+			_overloaded += other._overloaded;
+			_errors += other._errors;
+		}
+
+		public LatencyHistogram getLatency() {
+			return _latency;
+		}
+
+		public long getUnsuccessful() {
+			return _unsuccessful;
+		}
+
+		public long getOverloaded() {
+			return _overloaded;
+		}
+
+		public long getErrors() {
+			return _errors;
+		}
+	}
+
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+	private void print(Map<MessageType, Result> results) {
+		System.out.println(String.format(Locale.ROOT, "%d sessions offering %d requests/s for %ds, after %ds warmup;"
+				+ " responses took %.1fs", _options.getSessions(), _options.getRate(), _options.getDuration(),
+				_options.getWarmup(), _elapsedSeconds));
+		System.out.println(String.format(Locale.ROOT, "%-10s %10s %10s %8s %8s %10s %10s %10s %10s %10s %10s",
+				"Type", "Count", "Rate/s", "Failed", "Shed", "Mean(us)", "p50(us)", "p90(us)", "p99(us)",
+				"p99.9(us)", "Max(us)"));
+
+		Result total = new Result();
+		for (Map.Entry<MessageType, Result> entry : results.entrySet()) {
+			printRow(entry.getKey().name(), entry.getValue());
+			total.add(entry.getValue());
+		}
+		printRow("All", total);
+	}
+
+	private void printRow(String name, Result result) {
+		LatencyHistogram latency = result._latency;
+		StringBuilder row = new StringBuilder(String.format(Locale.ROOT, "%-10s %10d %10.1f %8d %8d %10.1f",
+				name, latency.getCount(), latency.getCount() / _elapsedSeconds,
+				result._unsuccessful + result._errors, result._overloaded, latency.getMean() / 1000));
+		for (double percentile : PERCENTILES) {
+			row.append(String.format(Locale.ROOT, " %10.1f", latency.getValueAtPercentile(percentile) / 1000.0));
+		}
+		row.append(String.format(Locale.ROOT, " %10.1f", latency.getMax() / 1000.0));
+		System.out.println(row);
+	}
+
+	/**
+	 * Writes the results as a JSON object, with latencies in microseconds.
+	 */
+	private void write(Map<MessageType, Result> results, File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("{");
+			out.println(String.format(Locale.ROOT, "  \"sessions\": %d,", _options.getSessions()));
+			out.println(String.format(Locale.ROOT, "  \"offeredRate\": %d,", _options.getRate()));
+			out.println(String.format(Locale.ROOT, "  \"durationSeconds\": %d,", _options.getDuration()));
+			out.println(String.format(Locale.ROOT, "  \"warmupSeconds\": %d,", _options.getWarmup()));
+			out.println(String.format(Locale.ROOT, "  \"elapsedSeconds\": %.3f,", _elapsedSeconds));
+			out.println(String.format(Locale.ROOT, "  \"wireFormat\": \"%s\",", _options.getWireFormat()));
+			out.println(String.format(Locale.ROOT, "  \"compression\": \"%s\",",
+					_options.getCompression() == null ? "none" : _options.getCompression()));
+			out.println("  \"latencyUnit\": \"us\",");
+			out.println("  \"types\": {");
+			int remaining = results.size();
+			for (Map.Entry<MessageType, Result> entry : results.entrySet()) {
+				Result result = entry.getValue();
+				LatencyHistogram latency = result._latency;
+				out.print(String.format(Locale.ROOT, "    \"%s\": {\"count\": %d, \"achievedRate\": %.1f, "
+						+ "\"unsuccessful\": %d, \"overloaded\": %d, \"errors\": %d, \"mean\": %.1f",
+						entry.getKey().name(), latency.getCount(),
+						latency.getCount() / _elapsedSeconds,
+						result._unsuccessful, result._overloaded, result._errors, latency.getMean() / 1000));
+				for (double percentile : PERCENTILES) {
+					out.print(String.format(Locale.ROOT, ", \"p%s\": %.1f",
+							formatPercentile(percentile), latency.getValueAtPercentile(percentile) / 1000.0));
+				}
+				out.print(String.format(Locale.ROOT, ", \"max\": %.1f}", latency.getMax() / 1000.0));
+				out.println(--remaining > 0 ? "," : "");
+			}
+			out.println("  }");
+			out.println("}");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String formatPercentile(double percentile) {
+		// 99.9 becomes "99_9", so that keys are usable as identifiers.
+		return percentile == Math.rint(percentile)
+				? Long.toString((long) percentile)
+				: Double.toString(percentile).replace('.', '_');
+	}
+}
@@ -0,0 +1,233 @@
+package nz.ac.auckland.concert.benchmark;
+
+import java.io.File;
+import java.util.EnumMap;
+import java.util.Map;
+
+import nz.ac.auckland.concert.common.Config;
+import nz.ac.auckland.concert.common.RequestMessage.MessageType;
+import nz.ac.auckland.concert.common.SessionFeature;
+import nz.ac.auckland.concert.common.WireFormat;
+
+/**
+ * Settings for a LoadGenerator run, typically parsed from the command line.
+ *
+ * Each option is written as --name=value, e.g. --rate=5000.
+ *
+ */
+public class LoadOptions {
+	private String _host = "localhost";
+	private int _port = Config.SERVER_PORT;
+	private WireFormat _wireFormat = WireFormat.Binary;
+
+	// Compression that the load sessions ask for, or null for none.
+	private SessionFeature _compression;
+
+	// Load shape. The rate is the total for all sessions, in requests per
+	// second; requests are sent on schedule whether or not earlier ones have
+	// been answered.
+	private int _sessions = 10;
+	private int _rate = 1000;
+	private int _duration = 30;
+	private int _warmup = 5;
+
+	// Relative weights of each type of request.
+	private Map<MessageType, Integer> _mix = parseMix("create:20,retrieve:50,update:15,delete:5,list:10");
+
+	// Concerts created before the run starts, for Retrieves and Updates to
+	// hit, and the page size of Lists (0 to list every concert).
+	private int _preload = 10000;
+	private int _listPageSize = 100;
+
+	private File _output;
+
+	/**
+	 * Parses command line arguments, where recognised options are:
+	 *   --host=NAME  (default localhost)
+	 *   --port=N     (default Config.SERVER_PORT)
+	 *   --wire-format=binary|serialization  (default binary)
+	 *   --compression=none|deflate|lz  (of large binary frames; default none)
+	 *   --sessions=N (concurrent connections; default 10)
+	 *   --rate=N     (total requests per second; default 1000)
+	 *   --duration=S (seconds of measured load; default 30)
+	 *   --warmup=S   (seconds of unmeasured load beforehand; default 5)
+	 *   --mix=TYPE:WEIGHT,...  (of create, retrieve, update, delete and list;
+	 *                default create:20,retrieve:50,update:15,delete:5,list:10)
+	 *   --preload=N  (concerts created before the run; default 10000)
+	 *   --list-page=N  (concerts per List, 0 for all; default 100)
+	 *   --output=FILE  (where to write JSON results; default none)
+	 */
+	public static LoadOptions parse(String[] args) {
+		LoadOptions options = new LoadOptions();
+
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (!arg.startsWith("--") || separator < 0) {
+				System.out.println("Ignoring unrecognised argument: " + arg);
+				continue;
+			}
+			String name = arg.substring(2, separator);
+			String value = arg.substring(separator + 1);
+
+			if (name.equals("host")) {
+				options.setHost(value);
+			} else if (name.equals("port")) {
+				options.setPort(Integer.parseInt(value));
+			} else if (name.equals("wire-format")) {
+				options.setWireFormat(value.equalsIgnoreCase("serialization")
+						? WireFormat.Serialization : WireFormat.Binary);
+			} else if (name.equals("compression")) {
+				options.setCompression(value.equalsIgnoreCase("deflate") ? SessionFeature.DeflateCompression
+						: value.equalsIgnoreCase("lz") ? SessionFeature.LzCompression : null);
+			} else if (name.equals("sessions")) {
+				options.setSessions(Integer.parseInt(value));
+			} else if (name.equals("rate")) {
+				options.setRate(Integer.parseInt(value));
+			} else if (name.equals("duration")) {
+				options.setDuration(Integer.parseInt(value));
+			} else if (name.equals("warmup")) {
+				options.setWarmup(Integer.parseInt(value));
+			} else if (name.equals("mix")) {
+				options.setMix(parseMix(value));
+			} else if (name.equals("preload")) {
+				options.setPreload(Integer.parseInt(value));
+			} else if (name.equals("list-page")) {
+				options.setListPageSize(Integer.parseInt(value));
+			} else if (name.equals("output")) {
+				options.setOutput(new File(value));
+			} else {
+				System.out.println("Ignoring unrecognised argument: " + arg);
+			}
+		}
+		return options;
+	}
+
+	private static Map<MessageType, Integer> parseMix(String value) {
+		Map<MessageType, Integer> mix = new EnumMap<MessageType, Integer>(MessageType.class);
+		for (String entry : value.split(",")) {
+			String[] parts = entry.split(":");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("Expected TYPE:WEIGHT in mix, not " + entry);
+			}
+			MessageType type = parseType(parts[0].trim());
+			int weight = Integer.parseInt(parts[1].trim());
+			if (weight > 0) {
+				mix.put(type, weight);
+			}
+		}
+		if (mix.isEmpty()) {
+			throw new IllegalArgumentException("Mix has no request types: " + value);
+		}
+		return mix;
+	}
+
+	private static MessageType parseType(String value) {
+		for (MessageType type : new MessageType[] {MessageType.Create,
+				MessageType.Retrieve, MessageType.Update, MessageType.Delete, MessageType.List}) {
+			if (type.name().equalsIgnoreCase(value)) {
+				return type;
+			}
+		}
+		throw new IllegalArgumentException("Unsupported request type in mix: " + value);
+	}
+
+	public String getHost() {
+		return _host;
+	}
+
+	public void setHost(String host) {
+		_host = host;
+	}
+
+	public int getPort() {
+		return _port;
+	}
+
+	public void setPort(int port) {
+		_port = port;
+	}
+
+	public WireFormat getWireFormat() {
+		return _wireFormat;
+	}
+
+	public void setWireFormat(WireFormat wireFormat) {
+		_wireFormat = wireFormat;
+	}
+
+	/**
+	 * Returns the compression feature that sessions ask for, or null if they
+	 * don't ask for any.
+	 */
+	public SessionFeature getCompression() {
+		return _compression;
+	}
+
+	public void setCompression(SessionFeature compression) {
+		_compression = compression;
+	}
+
+	public int getSessions() {
+		return _sessions;
+	}
+
+	public void setSessions(int sessions) {
+		_sessions = sessions;
+	}
+
+	public int getRate() {
+		return _rate;
+	}
+
+	public void setRate(int rate) {
+		_rate = rate;
+	}
+
+	public int getDuration() {
+		return _duration;
+	}
+
+	public void setDuration(int duration) {
+		_duration = duration;
+	}
+
+	public int getWarmup() {
+		return _warmup;
+	}
+
+	public void setWarmup(int warmup) {
+		_warmup = warmup;
+	}
+
+	public Map<MessageType, Integer> getMix() {
+		return _mix;
+	}
+
+	public void setMix(Map<MessageType, Integer> mix) {
+		_mix = mix;
+	}
+
+	public int getPreload() {
+		return _preload;
+	}
+
+	public void setPreload(int preload) {
+		_preload = preload;
+	}
+
+	public int getListPageSize() {
+		return _listPageSize;
+	}
+
+	public void setListPageSize(int listPageSize) {
+		_listPageSize = listPageSize;
+	}
+
+	public File getOutput() {
+		return _output;
+	}
+
+	public void setOutput(File output) {
+		_output = output;
+	}
+}
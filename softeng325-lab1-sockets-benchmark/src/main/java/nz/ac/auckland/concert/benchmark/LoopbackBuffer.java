@@ -0,0 +1,97 @@
+package nz.ac.auckland.concert.benchmark;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * In-memory byte queue with an OutputStream that appends to it and an
+ * InputStream that consumes from it, so that a codec's writer and reader can
+ * be connected without a socket. The buffer is reused, so round trips
+ * through it don't allocate once it has grown to fit the largest message.
+ *
+ * Reading past the end of the written bytes returns end of stream, as the
+ * benchmarks always write a whole message before reading it.
+ *
+ */
+public class LoopbackBuffer {
+	private byte[] _bytes = new byte[4096];
+	private int _readPosition;
+	private int _writePosition;
+
+	private final OutputStream _output = new OutputStream() {
+		@Override
+		public void write(int b) {
+			ensureCapacity(1);
+			_bytes[_writePosition++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			ensureCapacity(length);
+			System.arraycopy(bytes, offset, _bytes, _writePosition, length);
+			_writePosition += length;
+		}
+	};
+
+	private final InputStream _input = new InputStream() {
+		@Override
+		public int read() {
+			if (_readPosition == _writePosition) {
+				return -1;
+			}
+			int b = _bytes[_readPosition++] & 0xFF;
+			compact();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (length == 0) {
+				return 0;
+			}
+			int count = Math.min(length, _writePosition - _readPosition);
+			if (count == 0) {
+				return -1;
+			}
+			System.arraycopy(_bytes, _readPosition, bytes, offset, count);
+			_readPosition += count;
+			compact();
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return _writePosition - _readPosition;
+		}
+	};
+
+	public OutputStream getOutputStream() {
+		return _output;
+	}
+
+	public InputStream getInputStream() {
+		return _input;
+	}
+
+	/**
+	 * Returns the number of bytes written but not yet read.
+	 */
+	public int size() {
+		return _writePosition - _readPosition;
+	}
+
+	private void ensureCapacity(int length) {
+		if (_writePosition + length > _bytes.length) {
+			_bytes = Arrays.copyOf(_bytes, Math.max(_writePosition + length, 2 * _bytes.length));
+		}
+	}
+
+	// Once everything written has been read, start again from the beginning.
+	private void compact() {
+		if (_readPosition == _writePosition) {
+			_readPosition = 0;
+			_writePosition = 0;
+		}
+	}
+}
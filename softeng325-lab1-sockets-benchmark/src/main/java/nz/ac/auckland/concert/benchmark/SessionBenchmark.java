@@ -0,0 +1,131 @@
+package nz.ac.auckland.concert.benchmark;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.common.Config;
+import nz.ac.auckland.concert.common.Connection;
+import nz.ac.auckland.concert.common.RequestMessage;
+import nz.ac.auckland.concert.common.ResponseMessage;
+import nz.ac.auckland.concert.common.WireFormat;
+import nz.ac.auckland.concert.server.Server;
+import nz.ac.auckland.concert.server.ServerOptions;
+
+/**
+ * Request/response round trips over a loopback connection to a server
+ * running in the same JVM, in each of the server's non-blocking modes and
+ * with each WireFormat. The allocation rate includes both the client's and
+ * the server's allocations.
+ *
+ * The server listens on Config.SERVER_PORT, which must be free.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionBenchmark {
+	@Param({"Selector", "ThreadPerSession"})
+	public Server.Mode mode;
+
+	@Param({"Serialization", "Binary"})
+	public WireFormat wireFormat;
+
+	private Server _server;
+	private Thread _serverThread;
+	private long _id;
+
+	@Setup
+	public void startServer() throws IOException, InterruptedException {
+		ServerOptions options = new ServerOptions();
+		options.setMode(mode);
+		_server = new Server(options);
+
+		// start() returns once the server has been shut down.
+		_serverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					_server.start();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "concert-server");
+		_serverThread.setDaemon(true);
+		_serverThread.start();
+
+		Connection connection = null;
+		for (int attempt = 0; connection == null; attempt++) {
+			try {
+				connection = connect();
+			} catch (ConnectException e) {
+				if (attempt == 100) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+		_id = connection.send(RequestMessage.makeCreate(
+				new Concert("The Beatles", new DateTime(0)))).getId();
+		connection.close();
+	}
+
+	@TearDown
+	public void stopServer() throws InterruptedException {
+		_server.shutdown();
+		_serverThread.join();
+	}
+
+	/**
+	 * Each thread's connection to the server.
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+		private Connection _connection;
+
+		@Setup
+		public void open(SessionBenchmark benchmark) throws IOException {
+			_connection = benchmark.connect();
+		}
+
+		@TearDown
+		public void close() throws IOException {
+			_connection.close();
+		}
+	}
+
+	@Benchmark
+	public ResponseMessage retrieve(Client client) throws IOException {
+		return client._connection.send(RequestMessage.makeRetrieve(_id));
+	}
+
+	@Benchmark
+	public ResponseMessage update(Client client) throws IOException {
+		return client._connection.send(RequestMessage.makeUpdate(
+				new Concert(_id, "The Beatles", new DateTime(0))));
+	}
+
+	private Connection connect() throws IOException {
+		return Connection.open(InetAddress.getLoopbackAddress(), Config.SERVER_PORT, wireFormat);
+	}
+}
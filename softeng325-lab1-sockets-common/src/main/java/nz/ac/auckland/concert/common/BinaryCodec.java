@@ -0,0 +1,513 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * MessageCodec that exchanges messages as compact, length-prefixed binary
+ * frames instead of Java serialisation.
+ * 
+ * Each frame is a 4-byte big-endian length followed by the encoded message.
+ * Messages start with a one-byte type tag (the ordinal of the message's type
+ * or status - so new enum constants must only ever be appended), followed by
+ * a varint bitmask of the fields that are present and then the fields
+ * themselves. Ids are zig-zag varints, strings are varint-length-prefixed
+ * UTF-8, and dates are encoded as epoch milliseconds plus a time zone id.
+ * Lists of Concerts share a table of time zone ids, as they're typically
+ * all in the same zone.
+ * 
+ * Incoming frames are decoded through a single, reused ByteBufferInput. If
+ * the input stream is a FrameSource, each frame is decoded where it was
+ * received; otherwise it's first read into a reused array.
+ * 
+ * Once a session has negotiated a FrameCompression, frames of at least the
+ * compression threshold are sent compressed if that makes them smaller. The
+ * top bit of a compressed frame's length is set, and the frame holds the
+ * varint length of the message followed by the compressed message; smaller
+ * frames are sent exactly as before.
+ * 
+ * This class also provides the primitive encodings used by RequestMessage and
+ * ResponseMessage to write and read their fields.
+ *
+ */
+public class BinaryCodec extends MessageCodec {
+	// Upper bound on a frame's length, guarding against corrupt input.
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+	
+	// Largest initial capacity given to a collection whose size is read from
+	// a stream that isn't a frame, and so can't be checked against the bytes
+	// left; larger collections grow as their items are read.
+	private static final int MAX_PRESIZE = 4096;
+	
+	// Bounds on the number of bytes that a message can expand to when
+	// decompressed, per compressed byte - over deflate's limit of 1032.
+	private static final int MAX_EXPANSION = 1100;
+	
+	// Minimum encoded sizes of items in a collection.
+	private static final int MIN_STRING_SIZE = 1;
+	private static final int MIN_CONCERT_SIZE = 1;
+	private static final int MIN_ID_SIZE = 1;
+	private static final int MIN_TAG_SIZE = 1;
+	
+	// Set in the length of a compressed frame.
+	private static final int COMPRESSED = 0x80000000;
+	
+	// Flags for the optional fields of an encoded Concert.
+	private static final int CONCERT_ID = 1;
+	private static final int CONCERT_TITLE = 2;
+	private static final int CONCERT_DATE = 4;
+	
+	private final DataInputStream _in;
+	private final DataOutputStream _out;
+	
+	// Set if frames can be decoded in place.
+	private final FrameSource _source;
+	
+	// Buffer that each outgoing message is encoded into, so that its length
+	// is known before it's written.
+	private final FrameBuffer _frame = new FrameBuffer();
+	private final DataOutputStream _frameOut = new DataOutputStream(_frame);
+	
+	// Buffer that incoming frames are read into, unless they come from a
+	// FrameSource; grown as needed.
+	private ByteBuffer _readBuffer = ByteBuffer.allocate(256);
+	private final ByteBufferInput _frameIn = new ByteBufferInput();
+	
+	// Compression of frames, or null if the session hasn't negotiated any.
+	private FrameCompression _compression;
+	private int _threshold;
+	
+	// Buffers that frames are compressed and decompressed into; grown as
+	// needed.
+	private byte[] _compressed = new byte[0];
+	private ByteBuffer _decompressed = ByteBuffer.allocate(0);
+	
+	/**
+	 * ByteArrayOutputStream whose array can be read without copying it.
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		FrameBuffer() {
+			super(256);
+		}
+		
+		byte[] array() {
+			return buf;
+		}
+	}
+	
+	public BinaryCodec(InputStream in, OutputStream out) {
+		_in = new DataInputStream(in);
+		_out = new DataOutputStream(out);
+		_source = in instanceof FrameSource ? (FrameSource) in : null;
+	}
+
+	@Override
+	public WireFormat getWireFormat() {
+		return WireFormat.Binary;
+	}
+	
+	/**
+	 * Compresses outgoing frames of at least threshold bytes, and accepts
+	 * compressed incoming frames. Both ends of a session must enable the
+	 * same compression, once it's been negotiated.
+	 */
+	public void setCompression(FrameCompression compression, int threshold) {
+		_compression = compression;
+		_threshold = threshold;
+	}
+	
+	/**
+	 * Returns the compression in use, or null if frames aren't compressed.
+	 */
+	public FrameCompression getCompression() {
+		return _compression;
+	}
+
+	@Override
+	public void writeRequest(RequestMessage request) throws IOException {
+		_frame.reset();
+		request.writeTo(_frameOut);
+		writeFrame();
+	}
+
+	@Override
+	public RequestMessage readRequest() throws IOException {
+		return RequestMessage.readFrom(readFrame());
+	}
+
+	@Override
+	public void writeResponse(ResponseMessage response) throws IOException {
+		_frame.reset();
+		response.writeTo(_frameOut);
+		writeFrame();
+	}
+
+	@Override
+	public ResponseMessage readResponse() throws IOException {
+		return ResponseMessage.readFrom(readFrame());
+	}
+	
+	private void writeFrame() throws IOException {
+		int size = _frame.size();
+		if (_compression != null && size >= _threshold) {
+			if (size > _compressed.length) {
+				_compressed = new byte[Math.max(size, 2 * _compressed.length)];
+			}
+			// Compressed output that doesn't fit into the size of the frame
+			// isn't worth sending.
+			int length = _compression.compress(_frame.array(), size, _compressed);
+			int prefix = varLongSize(size);
+			if (length >= 0 && length + prefix < size) {
+				_out.writeInt(COMPRESSED | (length + prefix));
+				writeVarLong(_out, size);
+				_out.write(_compressed, 0, length);
+				_out.flush();
+				return;
+			}
+		}
+		_out.writeInt(size);
+		_frame.writeTo(_out);
+		_out.flush();
+	}
+	
+	private DataInput readFrame() throws IOException {
+		int length = _in.readInt();
+		boolean compressed = _compression != null && (length & COMPRESSED) != 0;
+		if (compressed) {
+			length &= ~COMPRESSED;
+		}
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Invalid frame length: " + length);
+		}
+		
+		ByteBuffer frame;
+		if (_source != null) {
+			frame = _source.readFrame(length);
+		} else {
+			if (length > _readBuffer.capacity()) {
+				_readBuffer = ByteBuffer.allocate(Math.max(length, 2 * _readBuffer.capacity()));
+			}
+			_in.readFully(_readBuffer.array(), 0, length);
+			_readBuffer.clear();
+			_readBuffer.limit(length);
+			frame = _readBuffer;
+		}
+		_frameIn.setBuffer(frame);
+		if (compressed) {
+			int size = readLength(_frameIn);
+			if ((long) size > (long) _frameIn.remaining() * MAX_EXPANSION) {
+				throw new StreamCorruptedException("Invalid decompressed length: " + size);
+			}
+			if (size > _decompressed.capacity()) {
+				_decompressed = ByteBuffer.allocate(Math.max(size, 2 * _decompressed.capacity()));
+			}
+			_compression.decompress(frame, _decompressed.array(), size);
+			_decompressed.clear();
+			_decompressed.limit(size);
+			_frameIn.setBuffer(_decompressed);
+		}
+		return _frameIn;
+	}
+	
+	/**
+	 * Returns the number of bytes that writeVarLong() writes for value.
+	 */
+	private static int varLongSize(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+	
+	/**
+	 * Writes an unsigned variable-length integer, 7 bits per byte.
+	 */
+	public static void writeVarLong(DataOutput out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+	
+	public static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Malformed varint");
+	}
+	
+	/**
+	 * Writes a signed value as a zig-zag varint, so that small negative values
+	 * are as compact as small positive ones.
+	 */
+	public static void writeSignedVarLong(DataOutput out, long value) throws IOException {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+	
+	public static long readSignedVarLong(DataInput in) throws IOException {
+		long value = readVarLong(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	public static void writeString(DataOutput out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+	
+	public static String readString(DataInput in) throws IOException {
+		int length = readCount(in, 1);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Reads a varint that's used as the length of a string or collection.
+	 */
+	public static int readLength(DataInput in) throws IOException {
+		long length = readVarLong(in);
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Invalid length: " + length);
+		}
+		return (int) length;
+	}
+	
+	/**
+	 * Reads the number of items in a string or collection, where each item
+	 * takes at least minSize bytes to encode. When reading a frame, the
+	 * count is checked against the bytes left in it, so that a corrupt count
+	 * can't make the reader allocate more than the frame could hold.
+	 */
+	public static int readCount(DataInput in, int minSize) throws IOException {
+		int count = readLength(in);
+		if (in instanceof ByteBufferInput
+				&& (long) count * minSize > ((ByteBufferInput) in).remaining()) {
+			throw new StreamCorruptedException("Invalid count: " + count);
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns the initial capacity for a collection of count items read from
+	 * in, by which point count has been checked if in is a frame.
+	 */
+	static int presize(DataInput in, int count) {
+		return in instanceof ByteBufferInput ? count : Math.min(count, MAX_PRESIZE);
+	}
+	
+	public static void writeConcert(DataOutput out, Concert concert) throws IOException {
+		writeConcert(out, concert, null);
+	}
+	
+	public static Concert readConcert(DataInput in) throws IOException {
+		return readConcert(in, null);
+	}
+	
+	/**
+	 * Writes a list of Concerts. Time zone ids are written once, in a table
+	 * that precedes the Concerts, which then refer to their zone by index.
+	 */
+	public static void writeConcerts(DataOutput out, List<Concert> concerts) throws IOException {
+		// Maps each zone id to its index in the table.
+		Map<String, Integer> zones = new LinkedHashMap<String, Integer>();
+		for (Concert concert : concerts) {
+			if (concert.getDate() != null) {
+				String zone = concert.getDate().getZone().getID();
+				if (!zones.containsKey(zone)) {
+					zones.put(zone, zones.size());
+				}
+			}
+		}
+		
+		writeVarLong(out, zones.size());
+		for (String zone : zones.keySet()) {
+			writeString(out, zone);
+		}
+		writeVarLong(out, concerts.size());
+		for (Concert concert : concerts) {
+			writeConcert(out, concert, zones);
+		}
+	}
+	
+	public static List<Concert> readConcerts(DataInput in) throws IOException {
+		int zoneCount = readCount(in, MIN_STRING_SIZE);
+		List<DateTimeZone> zones = new ArrayList<DateTimeZone>(presize(in, zoneCount));
+		for (int i = 0; i < zoneCount; i++) {
+			zones.add(DateTimeZone.forID(readString(in)));
+		}
+		
+		int size = readCount(in, MIN_CONCERT_SIZE);
+		List<Concert> concerts = new ArrayList<Concert>(presize(in, size));
+		for (int i = 0; i < size; i++) {
+			concerts.add(readConcert(in, zones));
+		}
+		return concerts;
+	}
+	
+	/**
+	 * Writes a Concert, with its date's time zone written either inline or,
+	 * when zones is non-null, as an index into the zone table.
+	 */
+	private static void writeConcert(DataOutput out, Concert concert, Map<String, Integer> zones) throws IOException {
+		int flags = 0;
+		if (concert.getId() != null) {
+			flags |= CONCERT_ID;
+		}
+		if (concert.getTitle() != null) {
+			flags |= CONCERT_TITLE;
+		}
+		if (concert.getDate() != null) {
+			flags |= CONCERT_DATE;
+		}
+		out.writeByte(flags);
+		
+		if (concert.getId() != null) {
+			writeSignedVarLong(out, concert.getId());
+		}
+		if (concert.getTitle() != null) {
+			writeString(out, concert.getTitle());
+		}
+		if (concert.getDate() != null) {
+			writeSignedVarLong(out, concert.getDate().getMillis());
+			String zone = concert.getDate().getZone().getID();
+			if (zones == null) {
+				writeString(out, zone);
+			} else {
+				writeVarLong(out, zones.get(zone));
+			}
+		}
+	}
+	
+	private static Concert readConcert(DataInput in, List<DateTimeZone> zones) throws IOException {
+		int flags = in.readUnsignedByte();
+		Long id = null;
+		String title = null;
+		DateTime date = null;
+		
+		if ((flags & CONCERT_ID) != 0) {
+			id = readSignedVarLong(in);
+		}
+		if ((flags & CONCERT_TITLE) != 0) {
+			title = readString(in);
+		}
+		if ((flags & CONCERT_DATE) != 0) {
+			long millis = readSignedVarLong(in);
+			DateTimeZone zone;
+			if (zones == null) {
+				zone = DateTimeZone.forID(readString(in));
+			} else {
+				int index = readLength(in);
+				if (index >= zones.size()) {
+					throw new StreamCorruptedException("Invalid zone index: " + index);
+				}
+				zone = zones.get(index);
+			}
+			date = new DateTime(millis, zone);
+		}
+		return new Concert(id, title, date);
+	}
+	
+	/**
+	 * Writes an array of ids. Each id is written as the zig-zag varint
+	 * difference from its predecessor, so runs of consecutive ids take one
+	 * byte each.
+	 */
+	public static void writeIds(DataOutput out, long[] ids) throws IOException {
+		writeVarLong(out, ids.length);
+		long previous = 0;
+		for (long id : ids) {
+			writeSignedVarLong(out, id - previous);
+			previous = id;
+		}
+	}
+	
+	public static long[] readIds(DataInput in) throws IOException {
+		int count = readCount(in, MIN_ID_SIZE);
+		long[] ids = new long[presize(in, count)];
+		long previous = 0;
+		for (int i = 0; i < count; i++) {
+			if (i == ids.length) {
+				ids = Arrays.copyOf(ids, Math.min(2 * ids.length, count));
+			}
+			ids[i] = previous + readSignedVarLong(in);
+			previous = ids[i];
+		}
+		return ids;
+	}
+	
+	/**
+	 * Writes a set of features as a varint bitmask of their ordinals.
+	 */
+	public static void writeFeatures(DataOutput out, Set<SessionFeature> features) throws IOException {
+		long mask = 0;
+		for (SessionFeature feature : features) {
+			mask |= 1L << feature.ordinal();
+		}
+		writeVarLong(out, mask);
+	}
+	
+	/**
+	 * Reads a set of features, ignoring any that are unknown to this version.
+	 */
+	public static EnumSet<SessionFeature> readFeatures(DataInput in) throws IOException {
+		long mask = readVarLong(in);
+		EnumSet<SessionFeature> features = EnumSet.noneOf(SessionFeature.class);
+		for (SessionFeature feature : SessionFeature.values()) {
+			if ((mask & (1L << feature.ordinal())) != 0) {
+				features.add(feature);
+			}
+		}
+		return features;
+	}
+	
+	/**
+	 * Reads a list of one-byte enum tags, preceded by their count.
+	 */
+	static <E extends Enum<E>> List<E> readTags(DataInput in, E[] values) throws IOException {
+		int size = readCount(in, MIN_TAG_SIZE);
+		List<E> tags = new ArrayList<E>(presize(in, size));
+		for (int i = 0; i < size; i++) {
+			tags.add(readTag(in, values));
+		}
+		return tags;
+	}
+	
+	/**
+	 * Reads a one-byte enum tag, as written for a message type or status.
+	 */
+	static <E extends Enum<E>> E readTag(DataInput in, E[] values) throws IOException {
+		int tag = in.readUnsignedByte();
+		if (tag >= values.length) {
+			throw new StreamCorruptedException("Unknown tag: " + tag);
+		}
+		return values[tag];
+	}
+}
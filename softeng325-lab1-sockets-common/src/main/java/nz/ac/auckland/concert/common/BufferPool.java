@@ -0,0 +1,78 @@
+package nz.ac.auckland.concert.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of equally sized direct ByteBuffers, shared by the sessions that read
+ * and write through them.
+ *
+ * Direct buffers can be passed to a channel without the JDK first copying
+ * them into a temporary direct buffer of its own, but they're expensive to
+ * allocate and are only freed by the garbage collector. Pooling them lets a
+ * server send and receive messages without allocating any buffers once the
+ * pool has warmed up.
+ *
+ * A buffer that's released while the pool is already holding maxPooled
+ * buffers is dropped, and left to the garbage collector.
+ *
+ */
+public class BufferPool {
+	private final int _bufferSize;
+	private final BlockingQueue<ByteBuffer> _buffers;
+
+	// Buffers allocated because the pool was empty.
+	private final LongAdder _allocations = new LongAdder();
+
+	public BufferPool(int bufferSize, int maxPooled) throws IllegalArgumentException {
+		if(bufferSize < 1 || maxPooled < 1) {
+			throw new IllegalArgumentException("Buffer size and pool size must be positive");
+		}
+		_bufferSize = bufferSize;
+		_buffers = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+	}
+
+	public int getBufferSize() {
+		return _bufferSize;
+	}
+
+	/**
+	 * Returns a cleared buffer of getBufferSize() bytes.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = _buffers.poll();
+		if (buffer == null) {
+			_allocations.increment();
+			return ByteBuffer.allocateDirect(_bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not use the buffer, or
+	 * any view of it, afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.isDirect() && buffer.capacity() == _bufferSize) {
+			_buffers.offer(buffer);
+		}
+	}
+
+	/**
+	 * Returns the number of buffers that have been allocated, rather than
+	 * taken from the pool.
+	 */
+	public long getAllocations() {
+		return _allocations.sum();
+	}
+
+	/**
+	 * Returns the number of buffers currently held by the pool.
+	 */
+	public int getPooled() {
+		return _buffers.size();
+	}
+}
@@ -0,0 +1,132 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * DataInput that reads from a ByteBuffer, advancing its position. Reading
+ * past the buffer's limit throws an EOFException, as reading past the end
+ * of a frame from a DataInputStream would.
+ *
+ * A ByteBufferInput can be pointed at a new buffer for each frame, so that
+ * decoding doesn't allocate any streams.
+ *
+ */
+public class ByteBufferInput implements DataInput {
+	private ByteBuffer _buffer;
+
+	public ByteBufferInput() {
+	}
+
+	public ByteBufferInput(ByteBuffer buffer) {
+		_buffer = buffer;
+	}
+
+	public void setBuffer(ByteBuffer buffer) {
+		_buffer = buffer;
+	}
+
+	/**
+	 * Returns the number of bytes left to read.
+	 */
+	public int remaining() {
+		return _buffer.remaining();
+	}
+
+	@Override
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+
+	@Override
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		require(len);
+		_buffer.get(b, off, len);
+	}
+
+	@Override
+	public int skipBytes(int n) {
+		int count = Math.max(0, Math.min(n, _buffer.remaining()));
+		_buffer.position(_buffer.position() + count);
+		return count;
+	}
+
+	@Override
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		require(1);
+		return _buffer.get();
+	}
+
+	@Override
+	public int readUnsignedByte() throws IOException {
+		return readByte() & 0xFF;
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		require(2);
+		return _buffer.getShort();
+	}
+
+	@Override
+	public int readUnsignedShort() throws IOException {
+		return readShort() & 0xFFFF;
+	}
+
+	@Override
+	public char readChar() throws IOException {
+		require(2);
+		return _buffer.getChar();
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		require(4);
+		return _buffer.getInt();
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		require(8);
+		return _buffer.getLong();
+	}
+
+	@Override
+	public float readFloat() throws IOException {
+		require(4);
+		return _buffer.getFloat();
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		require(8);
+		return _buffer.getDouble();
+	}
+
+	/**
+	 * Not supported, as messages never contain lines of text.
+	 */
+	@Override
+	public String readLine() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public String readUTF() throws IOException {
+		return DataInputStream.readUTF(this);
+	}
+
+	private void require(int count) throws EOFException {
+		if (_buffer.remaining() < count) {
+			throw new EOFException();
+		}
+	}
+}
@@ -0,0 +1,407 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Asynchronous client of the Concert server, which spreads requests over a
+ * pool of Connections.
+ *
+ * The connections are opened, and their Hello exchanges made, when the
+ * client is opened, so requests don't pay for setting up a session. Each
+ * request is sent on whichever open connection has the fewest requests
+ * awaiting a response, and its result is returned as a CompletableFuture, so
+ * the calling thread never waits on the server. Futures are completed on the
+ * connections' reader threads; dependent actions that block should be run
+ * asynchronously.
+ *
+ * A connection that fails is replaced in the background when it's next
+ * needed. Requests that were awaiting a response on it fail with an
+ * IOException, apart from Retrieves and Lists, which are safe to repeat and
+ * are sent again - up to once per connection, as the others may have failed
+ * at the same time without it being noticed yet. While no connection is
+ * open, requests wait for one to be reopened; if that fails, they fail too,
+ * and a connection isn't tried again until a delay has passed, which doubles
+ * with each failure.
+ *
+ * A request that the server is too busy to take fails with an
+ * OverloadedException, and is worth retrying after a pause.
+ *
+ */
+public class ConcertClient implements Closeable {
+	// Delays before another attempt to open a connection that failed to
+	// open, in milliseconds.
+	private static final long MIN_RETRY_DELAY = 100;
+	private static final long MAX_RETRY_DELAY = 5000;
+
+	// Maps a response to whether the server made the requested change.
+	private static final Function<ResponseMessage, Boolean> SUCCEEDED = new Function<ResponseMessage, Boolean>() {
+		@Override
+		public Boolean apply(ResponseMessage response) {
+			return isSuccessful(response);
+		}
+	};
+
+	private final InetAddress _host;
+	private final int _port;
+	private final WireFormat _wireFormat;
+	private final SessionFeature[] _features;
+
+	private final Slot[] _slots;
+
+	// Where the search for the least busy connection starts, rotated so that
+	// idle connections share the load.
+	private final AtomicInteger _next = new AtomicInteger();
+
+	// Opens replacement connections.
+	private final ExecutorService _connector = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "concert-client-connector");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private volatile boolean _closed;
+
+	private ConcertClient(InetAddress host, int port, int connections, WireFormat wireFormat,
+			SessionFeature[] features) {
+		_host = host;
+		_port = port;
+		_wireFormat = wireFormat;
+
+		// Responses are matched to requests by correlation id, so the server
+		// can always send them as they complete.
+		List<SessionFeature> requested = new ArrayList<SessionFeature>(Arrays.asList(features));
+		if (!requested.contains(SessionFeature.OutOfOrderResponses)) {
+			requested.add(SessionFeature.OutOfOrderResponses);
+		}
+		_features = requested.toArray(new SessionFeature[requested.size()]);
+
+		_slots = new Slot[connections];
+		for (int i = 0; i < connections; i++) {
+			_slots[i] = new Slot();
+		}
+	}
+
+	/**
+	 * Opens a client with the specified number of connections to the server,
+	 * each asking for the specified WireFormat and features.
+	 *
+	 * @throws IllegalArgumentException if connections isn't positive.
+	 * @throws IOException if any of the connections can't be opened.
+	 */
+	public static ConcertClient open(InetAddress host, int port, int connections,
+			WireFormat wireFormat, SessionFeature... features) throws IllegalArgumentException, IOException {
+		if (connections < 1) {
+			throw new IllegalArgumentException("A client needs at least one connection");
+		}
+
+		ConcertClient client = new ConcertClient(host, port, connections, wireFormat, features);
+		try {
+			for (Slot slot : client._slots) {
+				slot._connection.complete(client.connect());
+			}
+		} catch (IOException e) {
+			client.close();
+			throw e;
+		}
+		return client;
+	}
+
+	/**
+	 * Creates a Concert, completing with the Concert as stored by the
+	 * server - including its id.
+	 */
+	public CompletableFuture<Concert> create(Concert concert) {
+		return submit(RequestMessage.makeCreate(concert), false).thenApply(new Function<ResponseMessage, Concert>() {
+			@Override
+			public Concert apply(ResponseMessage response) {
+				checkSucceeded(response);
+				return response.getConcert();
+			}
+		});
+	}
+
+	/**
+	 * Retrieves a Concert, completing with null if there's no Concert with
+	 * the given id.
+	 */
+	public CompletableFuture<Concert> retrieve(long id) {
+		return submit(RequestMessage.makeRetrieve(id), true).thenApply(new Function<ResponseMessage, Concert>() {
+			@Override
+			public Concert apply(ResponseMessage response) {
+				return isSuccessful(response) ? response.getConcert() : null;
+			}
+		});
+	}
+
+	/**
+	 * Updates a Concert, completing with false if the server didn't make the
+	 * change - because there's no Concert with its id, or the change
+	 * couldn't be stored.
+	 */
+	public CompletableFuture<Boolean> update(Concert concert) {
+		return submit(RequestMessage.makeUpdate(concert), false).thenApply(SUCCEEDED);
+	}
+
+	/**
+	 * Deletes a Concert, completing with false if the server didn't make the
+	 * change.
+	 */
+	public CompletableFuture<Boolean> delete(long id) {
+		return submit(RequestMessage.makeDelete(id), false).thenApply(SUCCEEDED);
+	}
+
+	/**
+	 * Lists all Concerts, in id order.
+	 */
+	public CompletableFuture<List<Concert>> list() {
+		return submit(RequestMessage.makeList(), true).thenApply(new Function<ResponseMessage, List<Concert>>() {
+			@Override
+			public List<Concert> apply(ResponseMessage response) {
+				checkSucceeded(response);
+				return response.getConcerts();
+			}
+		});
+	}
+
+	/**
+	 * Deletes all Concerts, completing with false if the server didn't make
+	 * the change.
+	 */
+	public CompletableFuture<Boolean> clear() {
+		return submit(RequestMessage.makeClear(), false).thenApply(SUCCEEDED);
+	}
+
+	/**
+	 * Sends any other request on one of the pool's connections, completing
+	 * with its response. The request isn't repeated if the connection fails.
+	 */
+	public CompletableFuture<ResponseMessage> submit(RequestMessage request) {
+		return submit(request, false);
+	}
+
+	/**
+	 * Returns the number of the pool's connections that are currently open.
+	 */
+	public int getOpenCount() {
+		int open = 0;
+		for (Slot slot : _slots) {
+			if (slot.getOpen() != null) {
+				open++;
+			}
+		}
+		return open;
+	}
+
+	/**
+	 * Ends the session on each open connection, and closes it. Requests
+	 * still awaiting a response fail.
+	 */
+	@Override
+	public void close() {
+		_closed = true;
+		_connector.shutdownNow();
+		for (Slot slot : _slots) {
+			Connection connection = slot.getOpen();
+			if (connection != null) {
+				try {
+					connection.close();
+				} catch (IOException e) {
+					// Already failed.
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the server processed a request successfully.
+	 *
+	 * @throws CompletionException holding an OverloadedException if the
+	 * server turned the request away.
+	 */
+	private static boolean isSuccessful(ResponseMessage response) throws CompletionException {
+		if (response.getStatus() == ResponseMessage.Status.Overloaded) {
+			throw new CompletionException(new OverloadedException(
+					"Server overloaded: " + response.getFailureMessage()));
+		}
+		return response.getStatus() == ResponseMessage.Status.Success;
+	}
+
+	private static void checkSucceeded(ResponseMessage response) throws CompletionException {
+		if (!isSuccessful(response)) {
+			throw new CompletionException(new IOException(
+					"Request failed: " + response.getFailureMessage()));
+		}
+	}
+
+	/**
+	 * Sends a request on the least busy connection. A request that's
+	 * repeatable is sent again if its connection fails before it's answered.
+	 */
+	private CompletableFuture<ResponseMessage> submit(RequestMessage request, boolean repeatable) {
+		return submit(request, repeatable ? _slots.length : 0);
+	}
+
+	private CompletableFuture<ResponseMessage> submit(final RequestMessage request, final int repeats) {
+		CompletableFuture<ResponseMessage> response = send(request);
+		if (repeats == 0) {
+			return response;
+		}
+		return response.handle(new BiFunction<ResponseMessage, Throwable, CompletionStage<ResponseMessage>>() {
+			@Override
+			public CompletionStage<ResponseMessage> apply(ResponseMessage response, Throwable failure) {
+				if (failure == null) {
+					return CompletableFuture.completedFuture(response);
+				}
+				Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+				if (!(cause instanceof IOException) || _closed) {
+					return failed(cause);
+				}
+				return submit(request, repeats - 1);
+			}
+		}).thenCompose(new Function<CompletionStage<ResponseMessage>, CompletionStage<ResponseMessage>>() {
+			@Override
+			public CompletionStage<ResponseMessage> apply(CompletionStage<ResponseMessage> response) {
+				return response;
+			}
+		});
+	}
+
+	private CompletableFuture<ResponseMessage> send(final RequestMessage request) {
+		return connection().thenCompose(new Function<Connection, CompletionStage<ResponseMessage>>() {
+			@Override
+			public CompletionStage<ResponseMessage> apply(Connection connection) {
+				return connection.submit(request);
+			}
+		});
+	}
+
+	/**
+	 * Returns the open connection with the fewest requests awaiting a
+	 * response or, if none are open, a connection that's being reopened.
+	 */
+	private CompletableFuture<Connection> connection() {
+		if (_closed) {
+			return failed(new IOException("Client closed"));
+		}
+
+		int start = _next.getAndIncrement();
+		Connection best = null;
+		CompletableFuture<Connection> reopening = null;
+		for (int i = 0; i < _slots.length; i++) {
+			Slot slot = _slots[Math.floorMod(start + i, _slots.length)];
+			Connection connection = slot.getOpen();
+			if (connection != null) {
+				if (best == null || connection.getPendingCount() < best.getPendingCount()) {
+					best = connection;
+				}
+			} else if (reopening == null) {
+				reopening = slot.reopen();
+			} else {
+				slot.reopen();
+			}
+		}
+		return best != null ? CompletableFuture.completedFuture(best) : reopening;
+	}
+
+	private Connection connect() throws IOException {
+		return Connection.open(_host, _port, _wireFormat, _features);
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable failure) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(failure);
+		return future;
+	}
+
+	/**
+	 * One of the pool's connections, which is replaced when it fails.
+	 */
+	private class Slot {
+		// The connection, or the attempt to open it.
+		private volatile CompletableFuture<Connection> _connection = new CompletableFuture<Connection>();
+
+		// When the connection can next be tried, after failing to open.
+		private long _retryAt;
+		private long _retryDelay = MIN_RETRY_DELAY;
+		private IOException _lastFailure;
+
+		/**
+		 * Returns the connection if it's open, otherwise null.
+		 */
+		Connection getOpen() {
+			CompletableFuture<Connection> future = _connection;
+			if (!future.isDone() || future.isCompletedExceptionally()) {
+				return null;
+			}
+			Connection connection = future.join();
+			return connection.isOpen() ? connection : null;
+		}
+
+		/**
+		 * Starts opening a replacement connection, unless one is already
+		 * being opened. Returns the attempt, or a failure if it's too soon
+		 * to try again.
+		 */
+		synchronized CompletableFuture<Connection> reopen() {
+			if (!_connection.isDone() || getOpen() != null) {
+				return _connection;
+			}
+			if (System.currentTimeMillis() < _retryAt) {
+				return failed(_lastFailure);
+			}
+
+			final CompletableFuture<Connection> attempt = new CompletableFuture<Connection>();
+			_connection = attempt;
+			try {
+				_connector.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							Connection connection = connect();
+							opened();
+							attempt.complete(connection);
+							if (_closed) {
+								connection.close();
+							}
+						} catch (IOException e) {
+							failedToOpen(e);
+							attempt.completeExceptionally(e);
+						}
+					}
+				});
+			} catch (RuntimeException e) {
+				// The client has been closed.
+				attempt.completeExceptionally(new IOException("Client closed"));
+			}
+			return attempt;
+		}
+
+		private synchronized void opened() {
+			_retryDelay = MIN_RETRY_DELAY;
+			_retryAt = 0;
+		}
+
+		private synchronized void failedToOpen(IOException failure) {
+			_lastFailure = failure;
+			_retryAt = System.currentTimeMillis() + _retryDelay;
+			_retryDelay = Math.min(2 * _retryDelay, MAX_RETRY_DELAY);
+		}
+	}
+}
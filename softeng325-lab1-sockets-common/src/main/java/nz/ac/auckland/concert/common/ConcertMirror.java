@@ -0,0 +1,99 @@
+package nz.ac.auckland.concert.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+/**
+ * Client-side copy of the server's Concerts, kept current by the events
+ * pushed to a subscribed Connection. Pass the mirror as the handler of a
+ * Subscribe request:
+ *
+ *   connection.submit(mirror.makeSubscribe(), mirror);
+ *
+ * The mirror remembers the position of the last event it applied, so after
+ * reconnecting, makeSubscribe() asks the server to resume from there - only
+ * the changes that were missed are sent, unless the server no longer has
+ * them.
+ *
+ * Events are applied on the Connection's reader thread; the mirror can be
+ * read from any thread.
+ *
+ */
+public class ConcertMirror implements Consumer<ResponseMessage> {
+	private final ConcurrentSkipListMap<Long, Concert> _concerts =
+			new ConcurrentSkipListMap<Long, Concert>();
+
+	// Position of the last event applied, or null before the first snapshot.
+	private volatile Long _epoch;
+	private volatile long _sequence;
+
+	/**
+	 * Makes a Subscribe request that resumes from the last event applied, or
+	 * starts a new subscription if no snapshot has been received yet.
+	 */
+	public RequestMessage makeSubscribe() {
+		Long epoch = _epoch;
+		return epoch == null ? RequestMessage.makeSubscribe()
+				: RequestMessage.makeSubscribe(epoch, _sequence);
+	}
+
+	@Override
+	public void accept(ResponseMessage event) {
+		if (event.getChange() == null) {
+			// The subscription's final response, or a failure.
+			return;
+		}
+
+		switch (event.getChange()) {
+		case Snapshot: {
+			_concerts.clear();
+			for (Concert concert : event.getConcerts()) {
+				_concerts.put(concert.getId(), concert);
+			}
+			_epoch = event.getEpoch();
+			break;
+		}
+		case Created:
+		case Updated: {
+			_concerts.put(event.getConcert().getId(), event.getConcert());
+			break;
+		}
+		case Deleted: {
+			_concerts.remove(event.getId());
+			break;
+		}
+		case Cleared: {
+			_concerts.clear();
+			break;
+		}
+		}
+		_sequence = event.getSequence();
+	}
+
+	/**
+	 * Returns the Concert with the given id, or null if there isn't one.
+	 */
+	public Concert get(long id) {
+		return _concerts.get(id);
+	}
+
+	/**
+	 * Returns all Concerts, in id order.
+	 */
+	public List<Concert> list() {
+		return new ArrayList<Concert>(_concerts.values());
+	}
+
+	public int size() {
+		return _concerts.size();
+	}
+
+	/**
+	 * Returns the sequence number of the last event applied.
+	 */
+	public long getSequence() {
+		return _sequence;
+	}
+}
@@ -0,0 +1,218 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Comparator;
+
+import org.joda.time.DateTime;
+
+/**
+ * Describes a subset of Concerts for a List request to return: those whose
+ * title contains some text (ignoring case) and whose date is in a range,
+ * sorted by a key and limited to a number of Concerts.
+ *
+ * A query with no conditions matches every Concert. Concerts without a date
+ * don't match a query with a date range, and Concerts without a title don't
+ * match a query with title text. When sorting by date or title, Concerts
+ * without one come last; ties are broken by id.
+ *
+ */
+public class ConcertQuery implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// Key by which the matching Concerts are sorted.
+	public enum SortKey {Id, Date, Title}
+
+	// Conditions, each of which is ignored if it's null.
+	private String _titleContains;
+	private Long _from;
+	private Long _to;
+
+	private SortKey _sortKey = SortKey.Id;
+	private boolean _descending;
+	private int _limit;
+
+	// Flags identifying the fields present in a binary-encoded ConcertQuery.
+	private static final int FIELD_TITLE_CONTAINS = 1;
+	private static final int FIELD_FROM = 2;
+	private static final int FIELD_TO = 4;
+	private static final int FIELD_DESCENDING = 8;
+
+	/**
+	 * @param limit the maximum number of Concerts to return.
+	 */
+	public ConcertQuery(int limit) throws IllegalArgumentException {
+		if(limit < 1) {
+			throw new IllegalArgumentException("limit must be positive");
+		}
+		_limit = limit;
+	}
+
+	/**
+	 * Only matches Concerts whose title contains text, ignoring case.
+	 */
+	public void setTitleContains(String text) {
+		_titleContains = text;
+	}
+
+	/**
+	 * Only matches Concerts dated at or after from (if it's not null) and
+	 * before to (if it's not null).
+	 */
+	public void setDateRange(DateTime from, DateTime to) {
+		_from = from == null ? null : from.getMillis();
+		_to = to == null ? null : to.getMillis();
+	}
+
+	public void setSortKey(SortKey sortKey, boolean descending) {
+		_sortKey = sortKey == null ? SortKey.Id : sortKey;
+		_descending = descending;
+	}
+
+	public String getTitleContains() {
+		return _titleContains;
+	}
+
+	/**
+	 * Returns the start (inclusive) of the date range in epoch milliseconds,
+	 * or null if it's unbounded.
+	 */
+	public Long getFrom() {
+		return _from;
+	}
+
+	/**
+	 * Returns the end (exclusive) of the date range in epoch milliseconds, or
+	 * null if it's unbounded.
+	 */
+	public Long getTo() {
+		return _to;
+	}
+
+	public SortKey getSortKey() {
+		return _sortKey;
+	}
+
+	public boolean isDescending() {
+		return _descending;
+	}
+
+	public int getLimit() {
+		return _limit;
+	}
+
+	/**
+	 * Returns true if concert satisfies the query's conditions.
+	 */
+	public boolean matches(Concert concert) {
+		if (_from != null || _to != null) {
+			if (concert.getDate() == null) {
+				return false;
+			}
+			long millis = concert.getDate().getMillis();
+			if ((_from != null && millis < _from) || (_to != null && millis >= _to)) {
+				return false;
+			}
+		}
+		if (_titleContains != null) {
+			String title = concert.getTitle();
+			if (title == null || !containsIgnoreCase(title, _titleContains)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a Comparator that orders Concerts as the query sorts them.
+	 */
+	public Comparator<Concert> getComparator() {
+		final SortKey sortKey = _sortKey;
+		final int direction = _descending ? -1 : 1;
+		return new Comparator<Concert>() {
+			@Override
+			public int compare(Concert first, Concert second) {
+				int result = 0;
+				if (sortKey == SortKey.Date) {
+					result = compareNullsLast(first.getDate(), second.getDate(), direction);
+				} else if (sortKey == SortKey.Title) {
+					result = compareNullsLast(first.getTitle(), second.getTitle(), direction);
+				}
+				return result != 0 ? result
+						: direction * first.getId().compareTo(second.getId());
+			}
+		};
+	}
+
+	private static <T extends Comparable<? super T>> int compareNullsLast(T first, T second, int direction) {
+		if (first == null || second == null) {
+			return first == second ? 0 : (first == null ? 1 : -1);
+		}
+		return direction * first.compareTo(second);
+	}
+
+	private static boolean containsIgnoreCase(String text, String part) {
+		for (int i = 0; i + part.length() <= text.length(); i++) {
+			if (text.regionMatches(true, i, part, 0, part.length())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes this query in the binary form used by BinaryCodec.
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		int fields = 0;
+		if (_titleContains != null) {
+			fields |= FIELD_TITLE_CONTAINS;
+		}
+		if (_from != null) {
+			fields |= FIELD_FROM;
+		}
+		if (_to != null) {
+			fields |= FIELD_TO;
+		}
+		if (_descending) {
+			fields |= FIELD_DESCENDING;
+		}
+
+		BinaryCodec.writeVarLong(out, fields);
+		out.writeByte(_sortKey.ordinal());
+		BinaryCodec.writeVarLong(out, _limit);
+		if (_titleContains != null) {
+			BinaryCodec.writeString(out, _titleContains);
+		}
+		if (_from != null) {
+			BinaryCodec.writeSignedVarLong(out, _from);
+		}
+		if (_to != null) {
+			BinaryCodec.writeSignedVarLong(out, _to);
+		}
+	}
+
+	/**
+	 * Reads a query written by writeTo().
+	 */
+	static ConcertQuery readFrom(DataInput in) throws IOException {
+		long fields = BinaryCodec.readVarLong(in);
+		SortKey sortKey = BinaryCodec.readTag(in, SortKey.values());
+		ConcertQuery query = new ConcertQuery(Math.max(BinaryCodec.readLength(in), 1));
+		query._sortKey = sortKey;
+		query._descending = (fields & FIELD_DESCENDING) != 0;
+		if ((fields & FIELD_TITLE_CONTAINS) != 0) {
+			query._titleContains = BinaryCodec.readString(in);
+		}
+		if ((fields & FIELD_FROM) != 0) {
+			query._from = BinaryCodec.readSignedVarLong(in);
+		}
+		if ((fields & FIELD_TO) != 0) {
+			query._to = BinaryCodec.readSignedVarLong(in);
+		}
+		return query;
+	}
+}
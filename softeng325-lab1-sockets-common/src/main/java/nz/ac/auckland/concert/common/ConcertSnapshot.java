@@ -0,0 +1,66 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable list of all Concerts as of one version of the server's store.
+ * Each change to the store produces a new version, so two snapshots with the
+ * same version hold the same Concerts.
+ *
+ * A snapshot caches its binary encoding the first time it's needed, so that a
+ * List response built from a snapshot that's still current is written by
+ * copying bytes rather than encoding every Concert again.
+ *
+ */
+public class ConcertSnapshot {
+	private final long _version;
+	private final List<Concert> _concerts;
+
+	// Binary encoding of _concerts, as written by BinaryCodec.writeConcerts(),
+	// or null until it's first needed. Racing threads may each encode the
+	// Concerts, but they produce the same bytes.
+	private volatile byte[] _encoded;
+
+	/**
+	 * Creates a snapshot of concerts, which mustn't be changed afterwards.
+	 */
+	public ConcertSnapshot(long version, List<Concert> concerts) {
+		_version = version;
+		_concerts = Collections.unmodifiableList(concerts);
+	}
+
+	public long getVersion() {
+		return _version;
+	}
+
+	/**
+	 * Returns the Concerts, in id order, as an unmodifiable list.
+	 */
+	public List<Concert> getConcerts() {
+		return _concerts;
+	}
+
+	/**
+	 * Returns the Concerts encoded by BinaryCodec.writeConcerts().
+	 */
+	byte[] getEncoded() {
+		byte[] encoded = _encoded;
+		if (encoded == null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try {
+				BinaryCodec.writeConcerts(new DataOutputStream(bytes), _concerts);
+			} catch (IOException e) {
+				// Writing to memory doesn't fail.
+				throw new UncheckedIOException(e);
+			}
+			encoded = bytes.toByteArray();
+			_encoded = encoded;
+		}
+		return encoded;
+	}
+}
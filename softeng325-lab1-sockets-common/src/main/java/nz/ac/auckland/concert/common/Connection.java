@@ -0,0 +1,305 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Client-side connection to the Server.
+ * 
+ * Opening a Connection performs the Hello exchange, negotiating the
+ * WireFormat and SessionFeatures to use for the rest of the session.
+ * 
+ * Requests are pipelined: submit() sends a request without waiting for the
+ * response, so many requests can be in flight at once. Each request is given
+ * a correlation id, which the server echoes on its response, and a reader
+ * thread completes the request's future when the response arrives - in
+ * whatever order the server sends responses. send() submits a request and
+ * waits for its response.
+ * 
+ * Requests that are answered with a series of partial responses, such as
+ * StreamedList, can be submitted with a handler that's called for each
+ * response as it arrives.
+ * 
+ * A server under load may answer a request with an Overloaded status rather
+ * than process it, in which case the request can be retried later.
+ *
+ */
+public class Connection implements Closeable {
+	private final Socket _socket;
+	private MessageCodec _codec;
+	private Set<SessionFeature> _features;
+	
+	// Source of correlation ids.
+	private final AtomicLong _nextCorrelationId = new AtomicLong(1);
+	
+	// Requests awaiting a response, keyed (and so ordered) by correlation id.
+	private final ConcurrentSkipListMap<Long, Pending> _pending = 
+			new ConcurrentSkipListMap<Long, Pending>();
+	
+	// Set once the connection has failed or been closed.
+	private volatile IOException _failure;
+	private volatile boolean _closing;
+	
+	private Connection(Socket socket) {
+		_socket = socket;
+	}
+	
+	/**
+	 * Connects to the server and sends a Hello message asking for the
+	 * specified WireFormat and features. If the server doesn't support that
+	 * format, the session continues using Java serialisation; features that
+	 * aren't supported are left disabled.
+	 * 
+	 * @throws OverloadedException if the server is too busy to take another
+	 * session.
+	 * @throws IOException if the connection can't be made or the server
+	 * rejects the Hello message.
+	 */
+	public static Connection open(InetAddress host, int port, WireFormat wireFormat, 
+			SessionFeature... features) throws IOException {
+		Socket socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		Connection connection = new Connection(socket);
+		
+		try {
+			// The buffered streams are shared by both WireFormats, so that no
+			// buffered input is lost when switching formats.
+			InputStream input = new BufferedInputStream(socket.getInputStream());
+			OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+			ObjectOutputStream out = new TrackingObjectOutputStream(output);
+			out.flush();
+			ObjectInputStream in = new ObjectInputStream(input);
+			// Concerts are mutable, so the stream is reset before every
+			// request that carries them; otherwise a Concert that's changed
+			// and sent again would reach the server in its old state.
+			MessageCodec codec = new SerializationCodec(in, out, ResetPolicy.CLIENT);
+			
+			RequestMessage request = wireFormat == WireFormat.Serialization && features.length == 0
+					? RequestMessage.makeHello()
+					: RequestMessage.makeHello(wireFormat, features);
+			codec.writeRequest(request);
+			ResponseMessage response = codec.readResponse();
+			if (response.getStatus() == ResponseMessage.Status.Overloaded) {
+				throw new OverloadedException("Server overloaded: " + response.getFailureMessage());
+			} else if (response.getStatus() != ResponseMessage.Status.Success) {
+				throw new IOException("Hello rejected: " + response.getFailureMessage());
+			}
+			
+			if (response.getWireFormat() == WireFormat.Binary) {
+				BinaryCodec binary = new BinaryCodec(input, output);
+				FrameCompression compression = FrameCompression.choose(response.getFeatures());
+				if (compression != null) {
+					binary.setCompression(compression, FrameCompression.DEFAULT_THRESHOLD);
+				}
+				codec = binary;
+			}
+			connection._codec = codec;
+			connection._features = response.getFeatures();
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		} catch (ClassNotFoundException e) {
+			socket.close();
+			throw new IOException(e);
+		}
+		
+		connection.startReader();
+		return connection;
+	}
+	
+	/**
+	 * Returns the WireFormat negotiated for this connection.
+	 */
+	public WireFormat getWireFormat() {
+		return _codec.getWireFormat();
+	}
+	
+	/**
+	 * Returns the features accepted by the server for this connection.
+	 */
+	public Set<SessionFeature> getFeatures() {
+		return _features;
+	}
+	
+	/**
+	 * Returns whether requests can still be sent, i.e. the connection hasn't
+	 * failed or been closed.
+	 */
+	public boolean isOpen() {
+		return _failure == null && !_closing;
+	}
+	
+	/**
+	 * Returns the number of requests awaiting a response.
+	 */
+	public int getPendingCount() {
+		return _pending.size();
+	}
+	
+	/**
+	 * Sends a request without waiting for its response. The request's
+	 * correlation id is assigned by this method.
+	 * 
+	 * @return a future that's completed with the server's response, or
+	 * completed exceptionally with an IOException if the connection fails.
+	 */
+	public CompletableFuture<ResponseMessage> submit(RequestMessage request) {
+		return submit(request, null);
+	}
+	
+	/**
+	 * Sends a request whose response may arrive as a series of partial
+	 * responses, without waiting for them.
+	 * 
+	 * @param handler called, on the connection's reader thread, with each
+	 * response received for the request - including the final one. May be
+	 * null.
+	 * @return a future that's completed with the final response.
+	 */
+	public CompletableFuture<ResponseMessage> submit(RequestMessage request, Consumer<ResponseMessage> handler) {
+		long correlationId = _nextCorrelationId.getAndIncrement();
+		request.setCorrelationId(correlationId);
+		
+		Pending pending = new Pending(handler);
+		_pending.put(correlationId, pending);
+		try {
+			synchronized (_codec) {
+				if (_failure != null) {
+					throw _failure;
+				}
+				_codec.writeRequest(request);
+			}
+		} catch (IOException e) {
+			_pending.remove(correlationId);
+			pending._future.completeExceptionally(e);
+		}
+		return pending._future;
+	}
+	
+	/**
+	 * Sends a request and waits for the server's response.
+	 */
+	public ResponseMessage send(RequestMessage request) throws IOException {
+		try {
+			return submit(request).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while awaiting a response");
+		}
+	}
+	
+	/**
+	 * Ends the session with a Goodbye message, and closes the connection.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (_failure == null) {
+				send(RequestMessage.makeGoodbye());
+			}
+		} finally {
+			_closing = true;
+			_socket.close();
+		}
+	}
+	
+	private void startReader() {
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readResponses();
+			}
+		}, "concert-connection-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
+	/**
+	 * Reads responses and completes the corresponding futures, until the
+	 * connection is closed.
+	 */
+	private void readResponses() {
+		try {
+			while (true) {
+				ResponseMessage response = _codec.readResponse();
+				Long key = response.getCorrelationId();
+				if (key == null) {
+					// The server doesn't echo correlation ids, so it responds 
+					// in request order.
+					Map.Entry<Long, Pending> oldest = _pending.firstEntry();
+					key = oldest == null ? null : oldest.getKey();
+				}
+				Pending pending = key == null ? null : _pending.get(key);
+				if (pending == null) {
+					continue;
+				}
+				
+				if (pending._handler != null) {
+					try {
+						pending._handler.accept(response);
+					} catch (RuntimeException e) {
+						_pending.remove(key);
+						pending._future.completeExceptionally(e);
+						continue;
+					}
+				}
+				if (!response.isPartial()) {
+					_pending.remove(key);
+					pending._future.complete(response);
+				}
+			}
+		} catch (IOException e) {
+			fail(_closing ? new IOException("Connection closed") : e);
+		} catch (ClassNotFoundException e) {
+			fail(new IOException(e));
+		}
+	}
+	
+	private void fail(IOException e) {
+		_failure = e;
+		for (Long correlationId : _pending.keySet()) {
+			Pending pending = _pending.remove(correlationId);
+			if (pending != null) {
+				pending._future.completeExceptionally(e);
+			}
+		}
+		try {
+			_socket.close();
+		} catch (IOException closeFailure) {
+			// Already failed.
+		}
+	}
+	
+	/**
+	 * A request awaiting its (final) response.
+	 */
+	private static class Pending {
+		final CompletableFuture<ResponseMessage> _future = new CompletableFuture<ResponseMessage>();
+		final Consumer<ResponseMessage> _handler;
+		
+		Pending(Consumer<ResponseMessage> handler) {
+			_handler = handler;
+		}
+	}
+}
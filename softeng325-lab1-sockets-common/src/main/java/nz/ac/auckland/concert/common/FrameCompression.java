@@ -0,0 +1,59 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * Algorithm used by a BinaryCodec to compress large frames, negotiated as a
+ * SessionFeature in the Hello exchange.
+ *
+ * Only frames of at least the codec's threshold are compressed, and only if
+ * that makes them smaller, so that small requests and responses - most of a
+ * session's traffic - cost nothing extra to send.
+ *
+ * Implementations are stateless and shared by every codec; any state that
+ * compressing a frame needs is pooled, rather than held by each session.
+ *
+ */
+public abstract class FrameCompression {
+	// Frames smaller than this aren't worth compressing.
+	public static final int DEFAULT_THRESHOLD = 1024;
+
+	public static final FrameCompression DEFLATE = new DeflateCompression();
+	public static final FrameCompression LZ = new LzCompression();
+
+	/**
+	 * Returns the compression to use when a client has asked for features,
+	 * or null if it hasn't asked for any. Deflate is chosen over LZ if both
+	 * are asked for.
+	 */
+	public static FrameCompression choose(Set<SessionFeature> features) {
+		if (features.contains(SessionFeature.DeflateCompression)) {
+			return DEFLATE;
+		} else if (features.contains(SessionFeature.LzCompression)) {
+			return LZ;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the SessionFeature that enables this compression.
+	 */
+	public abstract SessionFeature getFeature();
+
+	/**
+	 * Compresses the first length bytes of input into output, returning the
+	 * compressed length, or -1 if the result doesn't fit into output.
+	 */
+	public abstract int compress(byte[] input, int length, byte[] output);
+
+	/**
+	 * Decompresses the remaining bytes of input into the first length bytes
+	 * of output.
+	 *
+	 * @throws IOException if input isn't a valid compression of length
+	 * bytes.
+	 */
+	public abstract void decompress(ByteBuffer input, byte[] output, int length) throws IOException;
+}
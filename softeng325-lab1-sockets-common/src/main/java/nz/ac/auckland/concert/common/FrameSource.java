@@ -0,0 +1,21 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream that can hand out a received frame in place, rather than
+ * having it copied into a separate array. BinaryCodec decodes frames from a
+ * FrameSource directly.
+ *
+ */
+public interface FrameSource {
+
+	/**
+	 * Returns the next length bytes of input as a buffer, positioned at the
+	 * first of them and limited to the last, blocking until they have all
+	 * been received. The buffer is only valid until the next read from the
+	 * source.
+	 */
+	ByteBuffer readFrame(int length) throws IOException;
+}
@@ -0,0 +1,138 @@
+package nz.ac.auckland.concert.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies (or any non-negative long values), in the style of
+ * HdrHistogram: buckets are linear below 128, and above that each power of
+ * two is split into 64 equal sub-buckets. Recorded values are therefore kept
+ * to within 1/64 (about 1.6%) of their true value, across the whole range of
+ * long, in a fixed array of a few thousand counts. Recording is constant time
+ * and doesn't allocate.
+ *
+ * The histogram is lock-free: any number of threads may record values while
+ * others read it. A reader that races with recording threads sees a
+ * consistent-enough view for reporting, but not an atomic snapshot.
+ *
+ */
+public class LatencyHistogram {
+	// Sub-buckets per power of two are 2^(SUB_BUCKET_BITS - 1).
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(bucketIndex(Long.MAX_VALUE) + 1);
+	private final LongAdder _count = new LongAdder();
+	private final LongAdder _sum = new LongAdder();
+	private final AtomicLong _min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong _max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative value: " + value);
+		}
+		_counts.incrementAndGet(bucketIndex(value));
+		_count.increment();
+		_sum.add(value);
+		lowerTo(_min, value);
+		raiseTo(_max, value);
+	}
+
+	/**
+	 * Adds the values recorded by other to this histogram.
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < _counts.length(); i++) {
+			long count = other._counts.get(i);
+			if (count != 0) {
+				_counts.addAndGet(i, count);
+			}
+		}
+		_count.add(other._count.sum());
+		_sum.add(other._sum.sum());
+		lowerTo(_min, other._min.get());
+		raiseTo(_max, other._max.get());
+	}
+
+	public long getCount() {
+		return _count.sum();
+	}
+
+	public long getMin() {
+		long min = _min.get();
+		return min == Long.MAX_VALUE ? 0 : min;
+	}
+
+	public long getMax() {
+		return _max.get();
+	}
+
+	public double getMean() {
+		long count = _count.sum();
+		return count == 0 ? 0 : (double) _sum.sum() / count;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of recorded values
+	 * fall, rounded up to the top of its bucket (but no more than the
+	 * maximum recorded value).
+	 */
+	public long getValueAtPercentile(double percentile) {
+		// Work from a copy of the counts, so that the rank is consistent with
+		// the buckets even while values are being recorded.
+		long[] counts = new long[_counts.length()];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = _counts.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(percentile / 100 * total);
+		rank = Math.min(Math.max(rank, 1), total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValueIn(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	private static void lowerTo(AtomicLong bound, long value) {
+		long current;
+		while (value < (current = bound.get()) && !bound.compareAndSet(current, value)) {
+		}
+	}
+
+	private static void raiseTo(AtomicLong bound, long value) {
+		long current;
+		while (value > (current = bound.get()) && !bound.compareAndSet(current, value)) {
+		}
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		// Shift the value so that it falls in the upper half of the
+		// sub-buckets; each further power of two adds SUB_BUCKET_HALF buckets.
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+		return (shift + 1) * SUB_BUCKET_HALF + (int) (value >>> shift) - SUB_BUCKET_HALF;
+	}
+
+	static long highestValueIn(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = index / SUB_BUCKET_HALF - 1;
+		long subBucket = index % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+		long highest = ((subBucket + 1) << shift) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+}
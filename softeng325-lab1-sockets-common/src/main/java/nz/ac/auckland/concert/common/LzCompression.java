@@ -0,0 +1,192 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * FrameCompression using a simple LZ77 block format, in the style of LZ4,
+ * which compresses less than DeflateCompression but is several times
+ * faster - particularly to decompress.
+ *
+ * A block is a series of sequences, each of which is a token byte, a run of
+ * literal bytes, a 2-byte little-endian offset and a match length. The
+ * token's high 4 bits are the number of literals and its low 4 bits the
+ * match length less 4; a value of 15 is continued by bytes that are added to
+ * it, up to and including the first that's not 255. The match copies that
+ * many bytes from offset bytes back in the output. The last sequence is only
+ * literals, and ends at the block's known decompressed length.
+ *
+ * Matches are found through a hash table of the positions of recent 4-byte
+ * sequences. The tables are pooled, as they're too large for every session
+ * to keep one.
+ *
+ */
+public class LzCompression extends FrameCompression {
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 0xFFFF;
+
+	// The last bytes of a block are always literals, so that matching never
+	// reads past the end of the input.
+	private static final int LAST_LITERALS = 5;
+
+	private static final int HASH_BITS = 12;
+
+	// Number of idle hash tables that are kept.
+	private static final int MAX_POOLED = 64;
+
+	private final BlockingQueue<int[]> _tables = new ArrayBlockingQueue<int[]>(MAX_POOLED);
+
+	LzCompression() {
+	}
+
+	@Override
+	public SessionFeature getFeature() {
+		return SessionFeature.LzCompression;
+	}
+
+	@Override
+	public int compress(byte[] input, int length, byte[] output) {
+		int[] table = _tables.poll();
+		if (table == null) {
+			table = new int[1 << HASH_BITS];
+		} else {
+			Arrays.fill(table, 0);
+		}
+
+		try {
+			int out = 0;
+			int anchor = 0;
+			int position = 0;
+			int limit = length - LAST_LITERALS - MIN_MATCH;
+			while (position <= limit) {
+				int sequence = readInt(input, position);
+				int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+				// Positions are stored plus one, so that 0 is an empty slot.
+				int candidate = table[hash] - 1;
+				table[hash] = position + 1;
+
+				if (candidate < 0 || position - candidate > MAX_OFFSET
+						|| readInt(input, candidate) != sequence) {
+					position++;
+					continue;
+				}
+
+				int matchLength = MIN_MATCH;
+				int matchLimit = length - LAST_LITERALS;
+				while (position + matchLength < matchLimit
+						&& input[candidate + matchLength] == input[position + matchLength]) {
+					matchLength++;
+				}
+
+				int literals = position - anchor;
+				int extra = matchLength - MIN_MATCH;
+				if (out + 1 + lengthBytes(literals) + literals + 2 + lengthBytes(extra) > output.length) {
+					return -1;
+				}
+				output[out++] = (byte) (Math.min(literals, 15) << 4 | Math.min(extra, 15));
+				out = writeLiterals(input, anchor, literals, output, out);
+				int offset = position - candidate;
+				output[out++] = (byte) offset;
+				output[out++] = (byte) (offset >>> 8);
+				out = writeLength(extra, output, out);
+
+				position += matchLength;
+				anchor = position;
+			}
+
+			int literals = length - anchor;
+			if (out + 1 + lengthBytes(literals) + literals > output.length) {
+				return -1;
+			}
+			output[out++] = (byte) (Math.min(literals, 15) << 4);
+			return writeLiterals(input, anchor, literals, output, out);
+		} finally {
+			_tables.offer(table);
+		}
+	}
+
+	@Override
+	public void decompress(ByteBuffer input, byte[] output, int length) throws IOException {
+		try {
+			int out = 0;
+			while (true) {
+				int token = input.get() & 0xFF;
+				int literals = readLength(token >>> 4, input);
+				if (literals > length - out) {
+					throw new StreamCorruptedException("Compressed frame overruns its length");
+				}
+				input.get(output, out, literals);
+				out += literals;
+				if (out == length) {
+					return;
+				}
+
+				int offset = (input.get() & 0xFF) | (input.get() & 0xFF) << 8;
+				int matchLength = readLength(token & 0x0F, input) + MIN_MATCH;
+				if (offset == 0 || offset > out || matchLength > length - out) {
+					throw new StreamCorruptedException("Invalid match in compressed frame");
+				}
+				// Matches may overlap the bytes they produce, so are copied a
+				// byte at a time.
+				for (int i = 0; i < matchLength; i++, out++) {
+					output[out] = output[out - offset];
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new StreamCorruptedException("Compressed frame is truncated");
+		}
+	}
+
+	/**
+	 * Writes the rest of a sequence's literal count, which the caller has
+	 * checked will fit, followed by the literals.
+	 */
+	private static int writeLiterals(byte[] input, int start, int literals, byte[] output, int out) {
+		out = writeLength(literals, output, out);
+		System.arraycopy(input, start, output, out, literals);
+		return out + literals;
+	}
+
+	/**
+	 * Returns the number of bytes that continue a length in the token.
+	 */
+	private static int lengthBytes(int length) {
+		return length < 15 ? 0 : (length - 15) / 255 + 1;
+	}
+
+	private static int writeLength(int length, byte[] output, int out) {
+		if (length >= 15) {
+			int remaining = length - 15;
+			while (remaining >= 255) {
+				output[out++] = (byte) 255;
+				remaining -= 255;
+			}
+			output[out++] = (byte) remaining;
+		}
+		return out;
+	}
+
+	private static int readLength(int length, ByteBuffer input) throws IOException {
+		if (length == 15) {
+			int b;
+			do {
+				b = input.get() & 0xFF;
+				length += b;
+				if (length > BinaryCodec.MAX_FRAME_LENGTH) {
+					throw new StreamCorruptedException("Invalid length in compressed frame");
+				}
+			} while (b == 255);
+		}
+		return length;
+	}
+
+	private static int readInt(byte[] bytes, int index) {
+		return (bytes[index] & 0xFF) | (bytes[index + 1] & 0xFF) << 8
+				| (bytes[index + 2] & 0xFF) << 16 | (bytes[index + 3] & 0xFF) << 24;
+	}
+}
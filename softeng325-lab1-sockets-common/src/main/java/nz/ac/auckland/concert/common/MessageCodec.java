@@ -0,0 +1,24 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.IOException;
+
+/**
+ * Reads and writes RequestMessages and ResponseMessages over a connection,
+ * in a particular WireFormat.
+ * 
+ * Clients write requests and read responses; the server reads requests and
+ * writes responses. A codec is used by one thread at a time.
+ *
+ */
+public abstract class MessageCodec {
+	
+	public abstract WireFormat getWireFormat();
+	
+	public abstract void writeRequest(RequestMessage request) throws IOException;
+	
+	public abstract RequestMessage readRequest() throws IOException, ClassNotFoundException;
+	
+	public abstract void writeResponse(ResponseMessage response) throws IOException;
+	
+	public abstract ResponseMessage readResponse() throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,18 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server turns away a new session, or a ConcertClient's
+ * request, because it has reached one of its limits. Unlike other failures,
+ * it's worth retrying after a pause.
+ *
+ */
+public class OverloadedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public OverloadedException(String message) {
+		super(message);
+	}
+}
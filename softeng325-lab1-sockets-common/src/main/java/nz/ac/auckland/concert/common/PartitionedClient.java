@@ -0,0 +1,194 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Asynchronous client of a cluster of Concert servers, each holding one
+ * partition of the Concerts (see Partitioner), which routes each request to
+ * the servers it concerns.
+ *
+ * The client has a ConcertClient for each server, given in partition order.
+ * A request about one Concert is sent to the server whose partition holds
+ * its id. Creates can be served by any server, as each allocates ids from
+ * its own partition, so they're spread over the servers in turn. Lists and
+ * Clears are sent to every server, and their results combined: a List
+ * merges the servers' Concerts into id order, and a Clear only succeeds if
+ * every server's does. The servers are listed independently, so a List
+ * isn't a snapshot of the whole cluster at one moment.
+ *
+ * Every client of a cluster must be given its servers in the same order,
+ * matching the partition that each server was started with.
+ *
+ */
+public class PartitionedClient implements Closeable {
+	private static final Comparator<Concert> ID_ORDER = new Comparator<Concert>() {
+		@Override
+		public int compare(Concert first, Concert second) {
+			return first.getId().compareTo(second.getId());
+		}
+	};
+
+	private final Partitioner _partitioner;
+	private final ConcertClient[] _clients;
+
+	// Server that the next Create is sent to.
+	private final AtomicInteger _next = new AtomicInteger();
+
+	private PartitionedClient(ConcertClient[] clients) {
+		_partitioner = new Partitioner(clients.length);
+		_clients = clients;
+	}
+
+	/**
+	 * Opens a client of the cluster of servers, where the server holding
+	 * partition i is servers.get(i), with the specified number of
+	 * connections to each server.
+	 *
+	 * @throws IllegalArgumentException if there are no servers, or
+	 * connections isn't positive.
+	 * @throws IOException if any of the connections can't be opened.
+	 */
+	public static PartitionedClient open(List<InetSocketAddress> servers, int connections,
+			WireFormat wireFormat, SessionFeature... features) throws IllegalArgumentException, IOException {
+		if (servers.isEmpty()) {
+			throw new IllegalArgumentException("A cluster needs at least one server");
+		}
+
+		ConcertClient[] clients = new ConcertClient[servers.size()];
+		try {
+			for (int i = 0; i < clients.length; i++) {
+				InetSocketAddress server = servers.get(i);
+				clients[i] = ConcertClient.open(server.getAddress(), server.getPort(), connections,
+						wireFormat, features);
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			for (ConcertClient client : clients) {
+				if (client != null) {
+					client.close();
+				}
+			}
+			throw e;
+		}
+		return new PartitionedClient(clients);
+	}
+
+	public Partitioner getPartitioner() {
+		return _partitioner;
+	}
+
+	/**
+	 * Returns the client of the server holding the given partition, e.g. to
+	 * send it a Stats request.
+	 */
+	public ConcertClient getClient(int partition) {
+		return _clients[partition];
+	}
+
+	/**
+	 * Creates a Concert on the next server in turn, completing with the
+	 * Concert as stored by the server - including its id.
+	 */
+	public CompletableFuture<Concert> create(Concert concert) {
+		return _clients[Math.floorMod(_next.getAndIncrement(), _clients.length)].create(concert);
+	}
+
+	/**
+	 * Retrieves a Concert, completing with null if there's no Concert with
+	 * the given id.
+	 */
+	public CompletableFuture<Concert> retrieve(long id) {
+		return clientFor(id).retrieve(id);
+	}
+
+	/**
+	 * Updates a Concert, completing with false if the server didn't make the
+	 * change.
+	 */
+	public CompletableFuture<Boolean> update(Concert concert) {
+		return clientFor(concert.getId()).update(concert);
+	}
+
+	/**
+	 * Deletes a Concert, completing with false if the server didn't make the
+	 * change.
+	 */
+	public CompletableFuture<Boolean> delete(long id) {
+		return clientFor(id).delete(id);
+	}
+
+	/**
+	 * Lists all Concerts, in id order, failing if any server's List fails.
+	 */
+	public CompletableFuture<List<Concert>> list() {
+		final List<CompletableFuture<List<Concert>>> lists = new ArrayList<CompletableFuture<List<Concert>>>();
+		for (ConcertClient client : _clients) {
+			lists.add(client.list());
+		}
+		return allOf(lists).thenApply(new Function<Void, List<Concert>>() {
+			@Override
+			public List<Concert> apply(Void ignored) {
+				int size = 0;
+				for (CompletableFuture<List<Concert>> list : lists) {
+					size += list.join().size();
+				}
+				List<Concert> concerts = new ArrayList<Concert>(size);
+				for (CompletableFuture<List<Concert>> list : lists) {
+					concerts.addAll(list.join());
+				}
+				// Each server's Concerts are already in id order, and the
+				// sort merges such runs rather than sorting from scratch.
+				Collections.sort(concerts, ID_ORDER);
+				return concerts;
+			}
+		});
+	}
+
+	/**
+	 * Deletes all Concerts, completing with false if any server didn't make
+	 * the change.
+	 */
+	public CompletableFuture<Boolean> clear() {
+		final List<CompletableFuture<Boolean>> cleared = new ArrayList<CompletableFuture<Boolean>>();
+		for (ConcertClient client : _clients) {
+			cleared.add(client.clear());
+		}
+		return allOf(cleared).thenApply(new Function<Void, Boolean>() {
+			@Override
+			public Boolean apply(Void ignored) {
+				for (CompletableFuture<Boolean> result : cleared) {
+					if (!result.join()) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Closes the client of every server.
+	 */
+	@Override
+	public void close() {
+		for (ConcertClient client : _clients) {
+			client.close();
+		}
+	}
+
+	private ConcertClient clientFor(long id) {
+		return _clients[_partitioner.partitionOf(id)];
+	}
+
+	private static CompletableFuture<Void> allOf(List<? extends CompletableFuture<?>> futures) {
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+}
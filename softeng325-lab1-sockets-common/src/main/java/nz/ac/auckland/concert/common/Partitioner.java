@@ -0,0 +1,75 @@
+package nz.ac.auckland.concert.common;
+
+/**
+ * Assigns each Concert id to one of a fixed number of partitions, so that
+ * Concerts can be spread over several servers, each storing one partition.
+ *
+ * Ids are assigned by jump consistent hashing (Lamping and Veach, "A Fast,
+ * Minimal Memory, Consistent Hash Algorithm"), which needs no state beyond
+ * the number of partitions, so clients and servers agree on where every id
+ * belongs without coordinating. Going from n to n + 1 partitions moves only
+ * the ids that the new partition takes, about 1 in n + 1 of them. Ids are
+ * mixed before they're hashed, as consecutive ids would otherwise follow
+ * each other from partition to partition.
+ *
+ * A partitioned server allocates new ids from those in its own partition
+ * (see nextId()), so creating a Concert needs no coordination between
+ * servers.
+ *
+ */
+public class Partitioner {
+	private final int _partitions;
+
+	/**
+	 * @throws IllegalArgumentException if partitions isn't positive.
+	 */
+	public Partitioner(int partitions) throws IllegalArgumentException {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("At least one partition is required");
+		}
+		_partitions = partitions;
+	}
+
+	public int getPartitionCount() {
+		return _partitions;
+	}
+
+	/**
+	 * Returns the partition, from 0 to getPartitionCount() - 1, that the
+	 * Concert with the given id belongs to.
+	 */
+	public int partitionOf(long id) {
+		long key = mix(id);
+		long bucket = -1;
+		long next = 0;
+		while (next < _partitions) {
+			bucket = next;
+			key = key * 2862933555777941757L + 1;
+			next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+		}
+		return (int) bucket;
+	}
+
+	/**
+	 * Returns the smallest id, at least id, that belongs to the given
+	 * partition. Ids in a partition are on average getPartitionCount()
+	 * apart.
+	 */
+	public long nextId(long id, int partition) {
+		if (partition < 0 || partition >= _partitions) {
+			throw new IllegalArgumentException("No partition " + partition + " of " + _partitions);
+		}
+		while (partitionOf(id) != partition) {
+			id++;
+		}
+		return id;
+	}
+
+	// SplitMix64's finaliser.
+	private static long mix(long id) {
+		long z = id;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -1,6 +1,15 @@
 package nz.ac.auckland.concert.common;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.joda.time.DateTime;
 
 /**
  * Class to represent a request message, sent from the Client to the Server.
@@ -14,13 +23,68 @@ public class RequestMessage implements Serializable {
 	private static final long serialVersionUID = 1L;
 
 	// Type of RequestMessage.
-	public enum MessageType {Hello, Goodbye, Create, Retrieve, Update, Delete, List, Clear}
+	public enum MessageType {Hello, Goodbye, Create, Retrieve, Update, Delete, List, Clear,
+		BatchCreate, BatchRetrieve, BatchUpdate, BatchDelete, StreamedList, RangeByDate,
+		SearchByTitlePrefix, Stats, Subscribe, Promote}
 	
 	// Fields of a RequestMessage - the type determines which fields will be filled.
 	private MessageType _type;
 	private Concert _concert;
 	private Long _id;
 	
+	// Items of a batch request.
+	private List<Concert> _concerts;
+	private long[] _ids;
+	
+	// Paging of List and StreamedList requests.
+	private Integer _pageSize;
+	private String _cursor;
+	
+	// Date range (in epoch milliseconds) of a RangeByDate request, the
+	// prefix of a SearchByTitlePrefix request, and the limit of either.
+	private Long _from;
+	private Long _to;
+	private String _prefix;
+	private Integer _limit;
+	
+	// Conditions, order and limit of a List request.
+	private ConcertQuery _query;
+	
+	// Position in the server's change feed that a Subscribe request resumes
+	// from: the feed's epoch, and the sequence number of the last change the
+	// client has seen.
+	private Long _epoch;
+	private Long _sequence;
+	
+	// Format and optional features that a Hello message asks to use for the
+	// rest of the session.
+	private WireFormat _wireFormat;
+	private EnumSet<SessionFeature> _features;
+	
+	// Client-assigned id, echoed by the server on the corresponding response.
+	private Long _correlationId;
+	
+	// Flags identifying the fields present in a binary-encoded RequestMessage.
+	private static final int FIELD_CONCERT = 1;
+	private static final int FIELD_ID = 2;
+	private static final int FIELD_WIRE_FORMAT = 4;
+	private static final int FIELD_FEATURES = 8;
+	private static final int FIELD_CORRELATION_ID = 16;
+	private static final int FIELD_CONCERTS = 32;
+	private static final int FIELD_IDS = 64;
+	private static final int FIELD_PAGE_SIZE = 128;
+	private static final int FIELD_CURSOR = 256;
+	private static final int FIELD_FROM = 512;
+	private static final int FIELD_TO = 1024;
+	private static final int FIELD_LIMIT = 2048;
+	private static final int FIELD_PREFIX = 4096;
+	private static final int FIELD_QUERY = 8192;
+	private static final int FIELD_EPOCH = 16384;
+	private static final int FIELD_SEQUENCE = 32768;
+	
+	// values() returns a new array on every call.
+	private static final MessageType[] TYPES = MessageType.values();
+	
 	private RequestMessage(MessageType type, Concert concert, Long id) {
 		_type = type;
 		_concert = concert;
@@ -32,6 +96,21 @@ public class RequestMessage implements Serializable {
 		return request;
 	}
 	
+	/**
+	 * Makes a Hello message that asks the server to switch to the specified
+	 * WireFormat once the Hello message has been acknowledged, and to enable
+	 * the specified features.
+	 */
+	public static RequestMessage makeHello(WireFormat wireFormat, SessionFeature... features) {
+		RequestMessage request = new RequestMessage(MessageType.Hello, null, null);
+		request._wireFormat = wireFormat;
+		if (features.length > 0) {
+			request._features = EnumSet.noneOf(SessionFeature.class);
+			Collections.addAll(request._features, features);
+		}
+		return request;
+	}
+	
 	public static RequestMessage makeGoodbye() {
 		RequestMessage request = new RequestMessage(MessageType.Goodbye, null, null);
 		return request;
@@ -65,20 +144,216 @@ public class RequestMessage implements Serializable {
 		if(id == null) {
 			throw new IllegalArgumentException("id must be non null");
 		}
-		RequestMessage request = new RequestMessage(MessageType.Retrieve, null, id);
+		RequestMessage request = new RequestMessage(MessageType.Delete, null, id);
+		return request;
+	}
+	
+	/**
+	 * Makes a request to create several Concerts at once. The server's 
+	 * response lists the new Concerts, in the same order.
+	 */
+	public static RequestMessage makeBatchCreate(List<Concert> concerts) throws IllegalArgumentException {
+		checkConcerts(concerts);
+		for (Concert concert : concerts) {
+			if(concert.getId() != null) {
+				throw new IllegalArgumentException("Concert already has an id");
+			}
+		}
+		RequestMessage request = new RequestMessage(MessageType.BatchCreate, null, null);
+		request._concerts = concerts;
 		return request;
 	}
 	
+	/**
+	 * Makes a request to retrieve several Concerts at once. The server's 
+	 * response has a status for each id, and lists the Concerts that were
+	 * found.
+	 */
+	public static RequestMessage makeBatchRetrieve(long[] ids) throws IllegalArgumentException {
+		checkIds(ids);
+		RequestMessage request = new RequestMessage(MessageType.BatchRetrieve, null, null);
+		request._ids = ids;
+		return request;
+	}
+	
+	/**
+	 * Makes a request to update several Concerts at once. The server's 
+	 * response has a status for each Concert.
+	 */
+	public static RequestMessage makeBatchUpdate(List<Concert> concerts) throws IllegalArgumentException {
+		checkConcerts(concerts);
+		for (Concert concert : concerts) {
+			if(concert.getId() == null) {
+				throw new IllegalArgumentException("Concert must have a non-null id value");
+			}
+		}
+		RequestMessage request = new RequestMessage(MessageType.BatchUpdate, null, null);
+		request._concerts = concerts;
+		return request;
+	}
+	
+	/**
+	 * Makes a request to delete several Concerts at once. The server's 
+	 * response has a status for each id.
+	 */
+	public static RequestMessage makeBatchDelete(long[] ids) throws IllegalArgumentException {
+		checkIds(ids);
+		RequestMessage request = new RequestMessage(MessageType.BatchDelete, null, null);
+		request._ids = ids;
+		return request;
+	}
+	
+	private static void checkConcerts(List<Concert> concerts) throws IllegalArgumentException {
+		if(concerts == null || concerts.isEmpty()) {
+			throw new IllegalArgumentException("concerts must be non null and non empty");
+		}
+		for (Concert concert : concerts) {
+			if(concert == null) {
+				throw new IllegalArgumentException("concerts must not contain null");
+			}
+		}
+	}
+	
+	private static void checkIds(long[] ids) throws IllegalArgumentException {
+		if(ids == null || ids.length == 0) {
+			throw new IllegalArgumentException("ids must be non null and non empty");
+		}
+	}
+	
 	public static RequestMessage makeList() throws IllegalArgumentException {
 		RequestMessage request = new RequestMessage(MessageType.List, null, null);
 		return request;
 	}
 	
+	/**
+	 * Makes a request for one page of the server's Concerts.
+	 * 
+	 * @param pageSize the maximum number of Concerts to return.
+	 * @param cursor null for the first page, or the cursor returned with the
+	 * previous page.
+	 */
+	public static RequestMessage makeList(int pageSize, String cursor) throws IllegalArgumentException {
+		if(pageSize < 1) {
+			throw new IllegalArgumentException("pageSize must be positive");
+		}
+		RequestMessage request = new RequestMessage(MessageType.List, null, null);
+		request._pageSize = pageSize;
+		request._cursor = cursor;
+		return request;
+	}
+	
+	/**
+	 * Makes a request for the Concerts that match query, which the server
+	 * sorts and limits before responding.
+	 */
+	public static RequestMessage makeList(ConcertQuery query) throws IllegalArgumentException {
+		if(query == null) {
+			throw new IllegalArgumentException("query must be non null");
+		}
+		RequestMessage request = new RequestMessage(MessageType.List, null, null);
+		request._query = query;
+		return request;
+	}
+	
+	/**
+	 * Makes a request for all of the server's Concerts, to be sent as a
+	 * series of responses of at most chunkSize Concerts each. Every response
+	 * but the last is marked as partial.
+	 */
+	public static RequestMessage makeStreamedList(int chunkSize) throws IllegalArgumentException {
+		if(chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize must be positive");
+		}
+		RequestMessage request = new RequestMessage(MessageType.StreamedList, null, null);
+		request._pageSize = chunkSize;
+		return request;
+	}
+	
+	/**
+	 * Makes a request for up to limit Concerts whose dates are at or after
+	 * from and before to. The Concerts are returned in date order.
+	 */
+	public static RequestMessage makeRangeByDate(DateTime from, DateTime to, int limit) throws IllegalArgumentException {
+		if(from == null || to == null) {
+			throw new IllegalArgumentException("from and to must be non null");
+		}
+		if(limit < 1) {
+			throw new IllegalArgumentException("limit must be positive");
+		}
+		RequestMessage request = new RequestMessage(MessageType.RangeByDate, null, null);
+		request._from = from.getMillis();
+		request._to = to.getMillis();
+		request._limit = limit;
+		return request;
+	}
+	
+	/**
+	 * Makes a request for the best limit Concerts with a word in their title
+	 * that starts with prefix, ignoring case, accents and punctuation.
+	 */
+	public static RequestMessage makeSearchByTitlePrefix(String prefix, int limit) throws IllegalArgumentException {
+		if(prefix == null) {
+			throw new IllegalArgumentException("prefix must be non null");
+		}
+		if(limit < 1) {
+			throw new IllegalArgumentException("limit must be positive");
+		}
+		RequestMessage request = new RequestMessage(MessageType.SearchByTitlePrefix, null, null);
+		request._prefix = prefix;
+		request._limit = limit;
+		return request;
+	}
+	
 	public static RequestMessage makeClear() throws IllegalArgumentException {
 		RequestMessage request = new RequestMessage(MessageType.Clear, null, null);
 		return request;
 	}
 	
+	/**
+	 * Makes a request for the server's statistics, which are returned as a
+	 * ServerStats object.
+	 */
+	public static RequestMessage makeStats() {
+		RequestMessage request = new RequestMessage(MessageType.Stats, null, null);
+		return request;
+	}
+	
+	/**
+	 * Makes a Subscribe request, which switches the session into push mode:
+	 * the server sends a snapshot of all Concerts, and then an event for
+	 * every later change (see ResponseMessage.Change). The responses carry
+	 * the Subscribe request's correlation id, and are all partial until the
+	 * session's Goodbye message ends the subscription.
+	 */
+	public static RequestMessage makeSubscribe() {
+		RequestMessage request = new RequestMessage(MessageType.Subscribe, null, null);
+		return request;
+	}
+	
+	/**
+	 * Makes a Subscribe request that resumes a subscription after the change
+	 * with the given epoch and sequence number, which a reconnecting client
+	 * takes from the last event it received. If the server still has the
+	 * changes that followed, only they are sent; otherwise the subscription
+	 * starts with a snapshot, as for makeSubscribe().
+	 */
+	public static RequestMessage makeSubscribe(long epoch, long sequence) {
+		RequestMessage request = new RequestMessage(MessageType.Subscribe, null, null);
+		request._epoch = epoch;
+		request._sequence = sequence;
+		return request;
+	}
+	
+	/**
+	 * Makes a request that promotes a Follower server to a primary: it stops
+	 * replicating its primary's changes, and starts accepting changes of its
+	 * own. Promoting a server that's already a primary has no effect.
+	 */
+	public static RequestMessage makePromote() {
+		RequestMessage request = new RequestMessage(MessageType.Promote, null, null);
+		return request;
+	}
+	
 	public MessageType getType() {
 		return _type;
 	}
@@ -90,4 +365,283 @@ public class RequestMessage implements Serializable {
 	public Long getId() {
 		return _id;
 	}
+	
+	/**
+	 * Returns the Concerts of a BatchCreate or BatchUpdate request.
+	 */
+	public List<Concert> getConcerts() {
+		return _concerts;
+	}
+	
+	/**
+	 * Returns the ids of a BatchRetrieve or BatchDelete request.
+	 */
+	public long[] getIds() {
+		return _ids;
+	}
+	
+	/**
+	 * Returns the page or chunk size of a List or StreamedList request, or
+	 * null if all Concerts should be returned at once.
+	 */
+	public Integer getPageSize() {
+		return _pageSize;
+	}
+	
+	/**
+	 * Returns the cursor of a paged List request.
+	 */
+	public String getCursor() {
+		return _cursor;
+	}
+	
+	/**
+	 * Returns the start (inclusive) of a RangeByDate request's range, in
+	 * epoch milliseconds.
+	 */
+	public Long getFrom() {
+		return _from;
+	}
+	
+	/**
+	 * Returns the end (exclusive) of a RangeByDate request's range, in epoch
+	 * milliseconds.
+	 */
+	public Long getTo() {
+		return _to;
+	}
+	
+	/**
+	 * Returns the title prefix of a SearchByTitlePrefix request.
+	 */
+	public String getPrefix() {
+		return _prefix;
+	}
+	
+	/**
+	 * Returns the maximum number of Concerts to return for a RangeByDate or
+	 * SearchByTitlePrefix request.
+	 */
+	public Integer getLimit() {
+		return _limit;
+	}
+	
+	/**
+	 * Returns the query of a List request, or null if it's for all Concerts.
+	 */
+	public ConcertQuery getQuery() {
+		return _query;
+	}
+	
+	/**
+	 * Returns the epoch of the change feed that a Subscribe request resumes,
+	 * or null if it doesn't resume a subscription.
+	 */
+	public Long getEpoch() {
+		return _epoch;
+	}
+	
+	/**
+	 * Returns the sequence number of the last change seen by a client that
+	 * resumes a subscription, or null if it doesn't resume one.
+	 */
+	public Long getSequence() {
+		return _sequence;
+	}
+	
+	/**
+	 * Returns the WireFormat requested by a Hello message. Clients that don't
+	 * request a format use Java serialisation.
+	 */
+	public WireFormat getWireFormat() {
+		return _wireFormat == null ? WireFormat.Serialization : _wireFormat;
+	}
+	
+	/**
+	 * Returns the features requested by a Hello message.
+	 */
+	public Set<SessionFeature> getFeatures() {
+		return _features == null ? EnumSet.noneOf(SessionFeature.class) : EnumSet.copyOf(_features);
+	}
+	
+	/**
+	 * Returns the id assigned to this request by the client, or null if the
+	 * client doesn't use correlation ids.
+	 */
+	public Long getCorrelationId() {
+		return _correlationId;
+	}
+	
+	/**
+	 * Sets the id that the server will echo on the response to this request,
+	 * allowing clients to have several requests in flight at once.
+	 */
+	public void setCorrelationId(Long correlationId) {
+		_correlationId = correlationId;
+	}
+	
+	/**
+	 * Writes this message in the binary form used by BinaryCodec.
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		int fields = 0;
+		if (_concert != null) {
+			fields |= FIELD_CONCERT;
+		}
+		if (_id != null) {
+			fields |= FIELD_ID;
+		}
+		if (_wireFormat != null) {
+			fields |= FIELD_WIRE_FORMAT;
+		}
+		if (_features != null) {
+			fields |= FIELD_FEATURES;
+		}
+		if (_correlationId != null) {
+			fields |= FIELD_CORRELATION_ID;
+		}
+		if (_concerts != null) {
+			fields |= FIELD_CONCERTS;
+		}
+		if (_ids != null) {
+			fields |= FIELD_IDS;
+		}
+		if (_pageSize != null) {
+			fields |= FIELD_PAGE_SIZE;
+		}
+		if (_cursor != null) {
+			fields |= FIELD_CURSOR;
+		}
+		if (_from != null) {
+			fields |= FIELD_FROM;
+		}
+		if (_to != null) {
+			fields |= FIELD_TO;
+		}
+		if (_limit != null) {
+			fields |= FIELD_LIMIT;
+		}
+		if (_prefix != null) {
+			fields |= FIELD_PREFIX;
+		}
+		if (_query != null) {
+			fields |= FIELD_QUERY;
+		}
+		if (_epoch != null) {
+			fields |= FIELD_EPOCH;
+		}
+		if (_sequence != null) {
+			fields |= FIELD_SEQUENCE;
+		}
+		
+		out.writeByte(_type.ordinal());
+		BinaryCodec.writeVarLong(out, fields);
+		if (_concert != null) {
+			BinaryCodec.writeConcert(out, _concert);
+		}
+		if (_id != null) {
+			BinaryCodec.writeSignedVarLong(out, _id);
+		}
+		if (_wireFormat != null) {
+			out.writeByte(_wireFormat.ordinal());
+		}
+		if (_features != null) {
+			BinaryCodec.writeFeatures(out, _features);
+		}
+		if (_correlationId != null) {
+			BinaryCodec.writeVarLong(out, _correlationId);
+		}
+		if (_concerts != null) {
+			BinaryCodec.writeConcerts(out, _concerts);
+		}
+		if (_ids != null) {
+			BinaryCodec.writeIds(out, _ids);
+		}
+		if (_pageSize != null) {
+			BinaryCodec.writeVarLong(out, _pageSize);
+		}
+		if (_cursor != null) {
+			BinaryCodec.writeString(out, _cursor);
+		}
+		if (_from != null) {
+			BinaryCodec.writeSignedVarLong(out, _from);
+		}
+		if (_to != null) {
+			BinaryCodec.writeSignedVarLong(out, _to);
+		}
+		if (_limit != null) {
+			BinaryCodec.writeVarLong(out, _limit);
+		}
+		if (_prefix != null) {
+			BinaryCodec.writeString(out, _prefix);
+		}
+		if (_query != null) {
+			_query.writeTo(out);
+		}
+		if (_epoch != null) {
+			out.writeLong(_epoch);
+		}
+		if (_sequence != null) {
+			BinaryCodec.writeVarLong(out, _sequence);
+		}
+	}
+	
+	/**
+	 * Reads a message written by writeTo().
+	 */
+	static RequestMessage readFrom(DataInput in) throws IOException {
+		MessageType type = BinaryCodec.readTag(in, TYPES);
+		long fields = BinaryCodec.readVarLong(in);
+		
+		RequestMessage request = new RequestMessage(type, null, null);
+		if ((fields & FIELD_CONCERT) != 0) {
+			request._concert = BinaryCodec.readConcert(in);
+		}
+		if ((fields & FIELD_ID) != 0) {
+			request._id = BinaryCodec.readSignedVarLong(in);
+		}
+		if ((fields & FIELD_WIRE_FORMAT) != 0) {
+			request._wireFormat = BinaryCodec.readTag(in, WireFormat.values());
+		}
+		if ((fields & FIELD_FEATURES) != 0) {
+			request._features = BinaryCodec.readFeatures(in);
+		}
+		if ((fields & FIELD_CORRELATION_ID) != 0) {
+			request._correlationId = BinaryCodec.readVarLong(in);
+		}
+		if ((fields & FIELD_CONCERTS) != 0) {
+			request._concerts = BinaryCodec.readConcerts(in);
+		}
+		if ((fields & FIELD_IDS) != 0) {
+			request._ids = BinaryCodec.readIds(in);
+		}
+		if ((fields & FIELD_PAGE_SIZE) != 0) {
+			request._pageSize = BinaryCodec.readLength(in);
+		}
+		if ((fields & FIELD_CURSOR) != 0) {
+			request._cursor = BinaryCodec.readString(in);
+		}
+		if ((fields & FIELD_FROM) != 0) {
+			request._from = BinaryCodec.readSignedVarLong(in);
+		}
+		if ((fields & FIELD_TO) != 0) {
+			request._to = BinaryCodec.readSignedVarLong(in);
+		}
+		if ((fields & FIELD_LIMIT) != 0) {
+			request._limit = BinaryCodec.readLength(in);
+		}
+		if ((fields & FIELD_PREFIX) != 0) {
+			request._prefix = BinaryCodec.readString(in);
+		}
+		if ((fields & FIELD_QUERY) != 0) {
+			request._query = ConcertQuery.readFrom(in);
+		}
+		if ((fields & FIELD_EPOCH) != 0) {
+			request._epoch = in.readLong();
+		}
+		if ((fields & FIELD_SEQUENCE) != 0) {
+			request._sequence = BinaryCodec.readVarLong(in);
+		}
+		return request;
+	}
 }
@@ -0,0 +1,83 @@
+package nz.ac.auckland.concert.common;
+
+/**
+ * When a SerializationCodec resets its ObjectOutputStream.
+ *
+ * An ObjectOutputStream remembers every object it has written, so that a
+ * later reference to the same object is sent as a back-reference. Until the
+ * stream is reset, every such object stays reachable - on both ends of the
+ * connection - and an object that has changed since it was first written is
+ * received in its old state. Resetting clears both ends' tables, at the cost
+ * of resending class descriptors in the next message.
+ *
+ * A policy resets the stream after a number of messages, or once a number of
+ * bytes have been written since the last reset, whichever comes first. A
+ * limit of 0 disables that condition. A policy can also reset the stream
+ * before every request that carries Concerts, which a client needs when its
+ * application may change a Concert and send it again.
+ *
+ */
+public class ResetPolicy {
+	// Never resets: the handle table grows for the life of the session.
+	public static final ResetPolicy NEVER = new ResetPolicy(0, 0);
+
+	// Resets after every message, so that no objects are shared between
+	// messages.
+	public static final ResetPolicy EVERY_MESSAGE = new ResetPolicy(1, 0);
+
+	// Bounds a session's handle tables to 1000 messages or 1MB.
+	public static final ResetPolicy DEFAULT = new ResetPolicy(1000, 1024 * 1024);
+
+	// As DEFAULT, but also resets before requests carrying Concerts, which
+	// are mutable.
+	public static final ResetPolicy CLIENT = new ResetPolicy(1000, 1024 * 1024, true);
+
+	private final int _maxMessages;
+	private final long _maxBytes;
+	private final boolean _beforeConcerts;
+
+	public ResetPolicy(int maxMessages, long maxBytes) throws IllegalArgumentException {
+		this(maxMessages, maxBytes, false);
+	}
+
+	public ResetPolicy(int maxMessages, long maxBytes, boolean beforeConcerts)
+			throws IllegalArgumentException {
+		if(maxMessages < 0 || maxBytes < 0) {
+			throw new IllegalArgumentException("Limits must not be negative");
+		}
+		_maxMessages = maxMessages;
+		_maxBytes = maxBytes;
+		_beforeConcerts = beforeConcerts;
+	}
+
+	public int getMaxMessages() {
+		return _maxMessages;
+	}
+
+	public long getMaxBytes() {
+		return _maxBytes;
+	}
+
+	/**
+	 * Returns true if the stream is reset before every request that carries
+	 * one or more Concerts.
+	 */
+	public boolean isResetBeforeConcerts() {
+		return _beforeConcerts;
+	}
+
+	/**
+	 * Returns true if a stream that has written messages, totalling bytes,
+	 * since it was last reset should now be reset.
+	 */
+	public boolean shouldReset(int messages, long bytes) {
+		return (_maxMessages > 0 && messages >= _maxMessages)
+				|| (_maxBytes > 0 && bytes >= _maxBytes);
+	}
+
+	@Override
+	public String toString() {
+		return "ResetPolicy(messages=" + _maxMessages + ", bytes=" + _maxBytes
+				+ (_beforeConcerts ? ", before Concerts" : "") + ")";
+	}
+}
@@ -1,7 +1,12 @@
 package nz.ac.auckland.concert.common;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Class to represent a response message, sent from the Server to a Client.
@@ -14,8 +19,16 @@ public class ResponseMessage implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
-	// Message type.
-	public enum Status {Success, Failure}
+	// Message type. Overloaded means the server turned the request (or, in
+	// reply to a Hello message, the session) away without processing it, and
+	// that it may succeed if retried later.
+	public enum Status {Success, Failure, Overloaded}
+	
+	// Kinds of change pushed to a subscribed session. Created and Updated
+	// events carry the Concert, Deleted events its id, and Snapshot events
+	// all Concerts as of the event's sequence number - replacing whatever
+	// the client held.
+	public enum Change {Created, Updated, Deleted, Cleared, Snapshot}
 	
 	// Field values.
 	private Status _status;
@@ -23,6 +36,50 @@ public class ResponseMessage implements Serializable {
 	private Long _id;
 	private Concert _concert;
 	private List<Concert> _concerts;
+	private WireFormat _wireFormat;
+	private EnumSet<SessionFeature> _features;
+	private Long _correlationId;
+	
+	// Status of each item of a batch request.
+	private List<Status> _statuses;
+	
+	// Paging of List responses: the cursor of the next page, and whether
+	// further chunks of a streamed List follow this one.
+	private String _cursor;
+	private boolean _partial;
+	
+	// The server's statistics, in response to a Stats request.
+	private ServerStats _stats;
+	
+	// A change pushed to a subscribed session, its position in the change
+	// feed, and (for Snapshot events) the feed's epoch.
+	private Change _change;
+	private Long _sequence;
+	private Long _epoch;
+	
+	// Snapshot that _concerts came from, whose cached encoding is written in
+	// place of encoding _concerts. Only used by the server.
+	private transient ConcertSnapshot _snapshot;
+	
+	// Flags identifying the fields present in a binary-encoded ResponseMessage.
+	private static final int FIELD_FAILURE_MESSAGE = 1;
+	private static final int FIELD_ID = 2;
+	private static final int FIELD_CONCERT = 4;
+	private static final int FIELD_CONCERTS = 8;
+	private static final int FIELD_WIRE_FORMAT = 16;
+	private static final int FIELD_FEATURES = 32;
+	private static final int FIELD_CORRELATION_ID = 64;
+	private static final int FIELD_STATUSES = 128;
+	private static final int FIELD_CURSOR = 256;
+	private static final int FIELD_PARTIAL = 512;
+	private static final int FIELD_STATS = 1024;
+	private static final int FIELD_CHANGE = 2048;
+	private static final int FIELD_SEQUENCE = 4096;
+	private static final int FIELD_EPOCH = 8192;
+	
+	// values() returns a new array on every call.
+	private static final Status[] STATUSES = Status.values();
+	private static final Change[] CHANGES = Change.values();
 	
 	private ResponseMessage() {	
 	}
@@ -34,6 +91,25 @@ public class ResponseMessage implements Serializable {
 		return replyMessage;
 	}
 	
+	/**
+	 * Makes the response to a Hello message, stating the WireFormat to be used
+	 * for the rest of the session and the features that have been accepted.
+	 * The format and features are left out when they're the defaults, so that
+	 * clients that predate them can still deserialise the response.
+	 */
+	public static ResponseMessage makeSuccessfulHelloResponse(WireFormat wireFormat, Set<SessionFeature> features) {
+		ResponseMessage replyMessage = new ResponseMessage();
+		replyMessage._status = Status.Success;
+		if (wireFormat != WireFormat.Serialization) {
+			replyMessage._wireFormat = wireFormat;
+		}
+		if (!features.isEmpty()) {
+			replyMessage._features = EnumSet.copyOf(features);
+		}
+		
+		return replyMessage;
+	}
+	
 	public static ResponseMessage makeSuccessfulCreateResponse(Concert concert) {
 		ResponseMessage replyMessage = new ResponseMessage();
 		replyMessage._status = Status.Success;
@@ -83,6 +159,152 @@ public class ResponseMessage implements Serializable {
 		return replyMessage;
 	}
 	
+	/**
+	 * Makes a List response carrying all of the Concerts in snapshot. When
+	 * the response is written by a BinaryCodec, the snapshot's cached
+	 * encoding is copied.
+	 */
+	public static ResponseMessage makeListResponse(ConcertSnapshot snapshot) {
+		ResponseMessage replyMessage = makeListResponse(snapshot.getConcerts());
+		replyMessage._snapshot = snapshot;
+		
+		return replyMessage;
+	}
+	
+	/**
+	 * Makes the response to a paged List request.
+	 * 
+	 * @param cursor the cursor to request the next page with, or null if
+	 * this is the last page.
+	 */
+	public static ResponseMessage makeListPageResponse(List<Concert> concerts, String cursor) {
+		ResponseMessage replyMessage = new ResponseMessage();
+		replyMessage._status = Status.Success;
+		replyMessage._concerts = concerts;
+		replyMessage._cursor = cursor;
+		
+		return replyMessage;
+	}
+	
+	/**
+	 * Makes one chunk of the response to a StreamedList request.
+	 * 
+	 * @param partial true if further chunks follow this one.
+	 */
+	public static ResponseMessage makeListChunkResponse(List<Concert> concerts, boolean partial) {
+		ResponseMessage replyMessage = new ResponseMessage();
+		replyMessage._status = Status.Success;
+		replyMessage._concerts = concerts;
+		replyMessage._partial = partial;
+		
+		return replyMessage;
+	}
+	
+	public static ResponseMessage makeInvalidCursorResponse() {
+		ResponseMessage replyMessage = new ResponseMessage();
+		replyMessage._status = Status.Failure;
+		replyMessage._failureMessage = "Invalid cursor";
+		
+		return replyMessage;
+	}
+	
+	/**
+	 * Makes the response to a batch request.
+	 * 
+	 * @param statuses the status of each item of the request, in order.
+	 * @param concerts the Concerts created or retrieved for the items whose
+	 * status is Success, in order. Null for BatchUpdate and BatchDelete.
+	 */
+	public static ResponseMessage makeBatchResponse(List<Status> statuses, List<Concert> concerts) {
+		ResponseMessage replyMessage = new ResponseMessage();
+		replyMessage._status = Status.Success;
+		replyMessage._statuses = statuses;
+		replyMessage._concerts = concerts;
+		
+		return replyMessage;
+	}
+	
+	public static ResponseMessage makeStatsResponse(ServerStats stats) {
+		ResponseMessage replyMessage = new ResponseMessage();
+		replyMessage._status = Status.Success;
+		replyMessage._stats = stats;
+		
+		return replyMessage;
+	}
+	
+	/**
+	 * Makes an event pushed to a subscribed session for a Created, Updated,
+	 * Deleted or Cleared change.
+	 * 
+	 * @param concert the Concert as created or updated, or null.
+	 * @param id the id of the deleted Concert, or null.
+	 */
+	public static ResponseMessage makeChangeEvent(Change change, long sequence, Concert concert, Long id) throws IllegalArgumentException {
+		if(change == Change.Snapshot) {
+			throw new IllegalArgumentException("Snapshot events are made by makeSnapshotEvent()");
+		}
+		ResponseMessage replyMessage = new ResponseMessage();
+		replyMessage._status = Status.Success;
+		replyMessage._change = change;
+		replyMessage._sequence = sequence;
+		replyMessage._concert = concert;
+		replyMessage._id = id;
+		replyMessage._partial = true;
+		
+		return replyMessage;
+	}
+	
+	/**
+	 * Makes an event pushed to a subscribed session that holds all Concerts
+	 * as of the snapshot's version, in the change feed with the given epoch.
+	 */
+	public static ResponseMessage makeSnapshotEvent(long epoch, ConcertSnapshot snapshot) {
+		ResponseMessage replyMessage = makeListResponse(snapshot);
+		replyMessage._change = Change.Snapshot;
+		replyMessage._sequence = snapshot.getVersion();
+		replyMessage._epoch = epoch;
+		replyMessage._partial = true;
+		
+		return replyMessage;
+	}
+	
+	/**
+	 * Makes the response to a request whose change couldn't be recorded
+	 * durably by the server.
+	 */
+	public static ResponseMessage makeStorageFailureResponse() {
+		ResponseMessage replyMessage = new ResponseMessage();
+		replyMessage._status = Status.Failure;
+		replyMessage._failureMessage = "Unable to record the change durably";
+		
+		return replyMessage;
+	}
+	
+	/**
+	 * Makes the response to a request for a change that's sent to a Follower,
+	 * which only accepts changes from its primary.
+	 */
+	public static ResponseMessage makeReadOnlyResponse() {
+		ResponseMessage replyMessage = new ResponseMessage();
+		replyMessage._status = Status.Failure;
+		replyMessage._failureMessage = "Read-only follower; send changes to the primary";
+		
+		return replyMessage;
+	}
+	
+	/**
+	 * Makes the response to a request that the server is too busy to take.
+	 * 
+	 * @param reason which of the server's limits was reached.
+	 */
+	public static ResponseMessage makeOverloadedResponse(String reason) {
+		ResponseMessage replyMessage = new ResponseMessage();
+		replyMessage._status = Status.Overloaded;
+		replyMessage._failureMessage = reason;
+		
+		return replyMessage;
+	}
+	
 	public static ResponseMessage makeProtocolErrorResponse() {
 		ResponseMessage replyMessage = new ResponseMessage();
 		replyMessage._status = Status.Failure;
@@ -107,7 +329,237 @@ public class ResponseMessage implements Serializable {
 		return _concerts;
 	}
 	
+	/**
+	 * Returns the status of each item of a batch request.
+	 */
+	public List<Status> getStatuses() {
+		return _statuses;
+	}
+	
+	/**
+	 * Returns the cursor of the next page of a paged List response, or null
+	 * if there are no more pages.
+	 */
+	public String getCursor() {
+		return _cursor;
+	}
+	
+	/**
+	 * Returns true if this is a chunk of a streamed response, and further
+	 * chunks follow it.
+	 */
+	public boolean isPartial() {
+		return _partial;
+	}
+	
+	/**
+	 * Returns the server's statistics, in reply to a Stats request.
+	 */
+	public ServerStats getStats() {
+		return _stats;
+	}
+	
+	/**
+	 * Returns the kind of change of an event pushed to a subscribed session,
+	 * or null if this isn't such an event.
+	 */
+	public Change getChange() {
+		return _change;
+	}
+	
+	/**
+	 * Returns the sequence number of a pushed event's change. A client
+	 * resumes its subscription after the last sequence number it received.
+	 */
+	public Long getSequence() {
+		return _sequence;
+	}
+	
+	/**
+	 * Returns the epoch of the change feed that a Snapshot event's sequence
+	 * number belongs to. Sequence numbers from different epochs (e.g. from
+	 * before the server restarted) aren't comparable.
+	 */
+	public Long getEpoch() {
+		return _epoch;
+	}
+	
 	public String getFailureMessage() {
 		return _failureMessage;
 	}
+	
+	/**
+	 * Returns the WireFormat accepted by the server in reply to a Hello
+	 * message.
+	 */
+	public WireFormat getWireFormat() {
+		return _wireFormat == null ? WireFormat.Serialization : _wireFormat;
+	}
+	
+	/**
+	 * Returns the features accepted by the server in reply to a Hello
+	 * message.
+	 */
+	public Set<SessionFeature> getFeatures() {
+		return _features == null ? EnumSet.noneOf(SessionFeature.class) : EnumSet.copyOf(_features);
+	}
+	
+	/**
+	 * Returns the correlation id of the request that this message responds
+	 * to, or null if the request didn't have one.
+	 */
+	public Long getCorrelationId() {
+		return _correlationId;
+	}
+	
+	public void setCorrelationId(Long correlationId) {
+		_correlationId = correlationId;
+	}
+	
+	/**
+	 * Writes this message in the binary form used by BinaryCodec.
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		int fields = 0;
+		if (_failureMessage != null) {
+			fields |= FIELD_FAILURE_MESSAGE;
+		}
+		if (_id != null) {
+			fields |= FIELD_ID;
+		}
+		if (_concert != null) {
+			fields |= FIELD_CONCERT;
+		}
+		if (_concerts != null) {
+			fields |= FIELD_CONCERTS;
+		}
+		if (_wireFormat != null) {
+			fields |= FIELD_WIRE_FORMAT;
+		}
+		if (_features != null) {
+			fields |= FIELD_FEATURES;
+		}
+		if (_correlationId != null) {
+			fields |= FIELD_CORRELATION_ID;
+		}
+		if (_statuses != null) {
+			fields |= FIELD_STATUSES;
+		}
+		if (_cursor != null) {
+			fields |= FIELD_CURSOR;
+		}
+		if (_partial) {
+			fields |= FIELD_PARTIAL;
+		}
+		if (_stats != null) {
+			fields |= FIELD_STATS;
+		}
+		if (_change != null) {
+			fields |= FIELD_CHANGE;
+		}
+		if (_sequence != null) {
+			fields |= FIELD_SEQUENCE;
+		}
+		if (_epoch != null) {
+			fields |= FIELD_EPOCH;
+		}
+		
+		out.writeByte(_status.ordinal());
+		BinaryCodec.writeVarLong(out, fields);
+		if (_failureMessage != null) {
+			BinaryCodec.writeString(out, _failureMessage);
+		}
+		if (_id != null) {
+			BinaryCodec.writeSignedVarLong(out, _id);
+		}
+		if (_concert != null) {
+			BinaryCodec.writeConcert(out, _concert);
+		}
+		if (_snapshot != null) {
+			out.write(_snapshot.getEncoded());
+		} else if (_concerts != null) {
+			BinaryCodec.writeConcerts(out, _concerts);
+		}
+		if (_wireFormat != null) {
+			out.writeByte(_wireFormat.ordinal());
+		}
+		if (_features != null) {
+			BinaryCodec.writeFeatures(out, _features);
+		}
+		if (_correlationId != null) {
+			BinaryCodec.writeVarLong(out, _correlationId);
+		}
+		if (_statuses != null) {
+			BinaryCodec.writeVarLong(out, _statuses.size());
+			for (Status status : _statuses) {
+				out.writeByte(status.ordinal());
+			}
+		}
+		if (_cursor != null) {
+			BinaryCodec.writeString(out, _cursor);
+		}
+		if (_stats != null) {
+			_stats.writeTo(out);
+		}
+		if (_change != null) {
+			out.writeByte(_change.ordinal());
+		}
+		if (_sequence != null) {
+			BinaryCodec.writeVarLong(out, _sequence);
+		}
+		if (_epoch != null) {
+			out.writeLong(_epoch);
+		}
+	}
+	
+	/**
+	 * Reads a message written by writeTo().
+	 */
+	static ResponseMessage readFrom(DataInput in) throws IOException {
+		ResponseMessage replyMessage = new ResponseMessage();
+		replyMessage._status = BinaryCodec.readTag(in, STATUSES);
+		long fields = BinaryCodec.readVarLong(in);
+		
+		if ((fields & FIELD_FAILURE_MESSAGE) != 0) {
+			replyMessage._failureMessage = BinaryCodec.readString(in);
+		}
+		if ((fields & FIELD_ID) != 0) {
+			replyMessage._id = BinaryCodec.readSignedVarLong(in);
+		}
+		if ((fields & FIELD_CONCERT) != 0) {
+			replyMessage._concert = BinaryCodec.readConcert(in);
+		}
+		if ((fields & FIELD_CONCERTS) != 0) {
+			replyMessage._concerts = BinaryCodec.readConcerts(in);
+		}
+		if ((fields & FIELD_WIRE_FORMAT) != 0) {
+			replyMessage._wireFormat = BinaryCodec.readTag(in, WireFormat.values());
+		}
+		if ((fields & FIELD_FEATURES) != 0) {
+			replyMessage._features = BinaryCodec.readFeatures(in);
+		}
+		if ((fields & FIELD_CORRELATION_ID) != 0) {
+			replyMessage._correlationId = BinaryCodec.readVarLong(in);
+		}
+		if ((fields & FIELD_STATUSES) != 0) {
+			replyMessage._statuses = BinaryCodec.readTags(in, STATUSES);
+		}
+		if ((fields & FIELD_CURSOR) != 0) {
+			replyMessage._cursor = BinaryCodec.readString(in);
+		}
+		replyMessage._partial = (fields & FIELD_PARTIAL) != 0;
+		if ((fields & FIELD_STATS) != 0) {
+			replyMessage._stats = ServerStats.readFrom(in);
+		}
+		if ((fields & FIELD_CHANGE) != 0) {
+			replyMessage._change = BinaryCodec.readTag(in, CHANGES);
+		}
+		if ((fields & FIELD_SEQUENCE) != 0) {
+			replyMessage._sequence = BinaryCodec.readVarLong(in);
+		}
+		if ((fields & FIELD_EPOCH) != 0) {
+			replyMessage._epoch = in.readLong();
+		}
+		return replyMessage;
+	}
 }
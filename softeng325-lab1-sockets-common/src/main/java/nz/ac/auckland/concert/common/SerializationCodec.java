@@ -0,0 +1,108 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.function.LongConsumer;
+
+/**
+ * MessageCodec that uses Java serialisation. This is the format that every
+ * session starts with.
+ *
+ * If the output stream is a TrackingObjectOutputStream, it's reset between
+ * messages whenever the codec's ResetPolicy says so, which bounds the objects
+ * kept reachable by both ends of the session (see ResetPolicy). Otherwise the
+ * stream is never reset.
+ *
+ */
+public class SerializationCodec extends MessageCodec {
+	private final ObjectInputStream _in;
+	private final ObjectOutputStream _out;
+	private final ResetPolicy _resetPolicy;
+
+	// Messages written since the stream was last reset.
+	private int _messagesSinceReset;
+
+	// Told the size of the handle table cleared by each reset, if not null.
+	private LongConsumer _resetListener;
+
+	public SerializationCodec(ObjectInputStream in, ObjectOutputStream out) {
+		this(in, out, ResetPolicy.NEVER);
+	}
+
+	public SerializationCodec(ObjectInputStream in, ObjectOutputStream out, ResetPolicy resetPolicy) {
+		_in = in;
+		_out = out;
+		_resetPolicy = resetPolicy;
+	}
+
+	@Override
+	public WireFormat getWireFormat() {
+		return WireFormat.Serialization;
+	}
+
+	public ResetPolicy getResetPolicy() {
+		return _resetPolicy;
+	}
+
+	/**
+	 * Sets a listener that's called, on the writing thread, with the number
+	 * of objects in the handle table each time the stream is reset.
+	 */
+	public void setResetListener(LongConsumer listener) {
+		_resetListener = listener;
+	}
+
+	@Override
+	public void writeRequest(RequestMessage request) throws IOException {
+		resetIfDue(_resetPolicy.isResetBeforeConcerts()
+				&& (request.getConcert() != null || request.getConcerts() != null));
+		_out.writeObject(request);
+		_out.flush();
+		_messagesSinceReset++;
+	}
+
+	@Override
+	public RequestMessage readRequest() throws IOException, ClassNotFoundException {
+		return (RequestMessage) _in.readObject();
+	}
+
+	@Override
+	public void writeResponse(ResponseMessage response) throws IOException {
+		resetIfDue(false);
+		_out.writeObject(response);
+		_out.flush();
+		_messagesSinceReset++;
+	}
+
+	@Override
+	public ResponseMessage readResponse() throws IOException, ClassNotFoundException {
+		return (ResponseMessage) _in.readObject();
+	}
+
+	/**
+	 * Resets the stream before a message, if the messages written since the
+	 * last reset have reached the policy's limits. The reset marker is sent
+	 * at the start of the message rather than after the previous one, so
+	 * that it's always consumed by the reader's next readObject() - even
+	 * when the session switches to another WireFormat after a Hello message.
+	 * Each end therefore holds on to at most one message's objects beyond
+	 * the limits.
+	 *
+	 * @param force whether to reset regardless of the limits.
+	 */
+	private void resetIfDue(boolean force) throws IOException {
+		if (!(_out instanceof TrackingObjectOutputStream)) {
+			return;
+		}
+		TrackingObjectOutputStream out = (TrackingObjectOutputStream) _out;
+		if (force || _resetPolicy.shouldReset(_messagesSinceReset, out.getBytesSinceReset())) {
+			int handles = out.getHandleCount();
+			out.reset();
+			_messagesSinceReset = 0;
+			if (_resetListener != null) {
+				_resetListener.accept(handles);
+			}
+		}
+	}
+}
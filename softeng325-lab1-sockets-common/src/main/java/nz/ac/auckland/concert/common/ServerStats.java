@@ -0,0 +1,311 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import nz.ac.auckland.concert.common.RequestMessage.MessageType;
+
+/**
+ * Snapshot of a server's activity, returned in response to a Stats request:
+ * how many requests of each MessageType have been processed, and how long
+ * they took, as well as the traffic and load on the server as a whole.
+ *
+ * Latencies are in nanoseconds, measured by the server from when it began
+ * processing a request until its response was ready to send.
+ *
+ */
+public class ServerStats implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private long _uptime;
+	private long _bytesIn;
+	private long _bytesOut;
+	private int _activeSessions;
+	private int _queueDepth;
+	private long _streamResets;
+	private long _maxHandles;
+	private long _shed;
+
+	// Version of the server's Concerts, i.e. the number of changes made to
+	// them. On a Follower, the number of its primary's changes that it's yet
+	// to apply, and for how long (ms) it has been that far behind - both -1
+	// on a primary.
+	private long _version;
+	private long _replicationLag = -1;
+	private long _replicationDelay = -1;
+	private List<TypeStats> _types = new ArrayList<TypeStats>();
+
+	/**
+	 * Counts and latency percentiles for the requests of one MessageType.
+	 */
+	public static class TypeStats implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final MessageType _type;
+		private final long _count;
+		private final long _failures;
+		private final long _mean;
+		private final long _p50;
+		private final long _p99;
+		private final long _p999;
+		private final long _max;
+
+		/**
+		 * @param failures the number of requests answered with a Failure
+		 * status.
+		 */
+		public TypeStats(MessageType type, long failures, LatencyHistogram latency) {
+			this(type, latency.getCount(), failures, (long) latency.getMean(),
+					latency.getValueAtPercentile(50), latency.getValueAtPercentile(99),
+					latency.getValueAtPercentile(99.9), latency.getMax());
+		}
+
+		private TypeStats(MessageType type, long count, long failures, long mean,
+				long p50, long p99, long p999, long max) {
+			_type = type;
+			_count = count;
+			_failures = failures;
+			_mean = mean;
+			_p50 = p50;
+			_p99 = p99;
+			_p999 = p999;
+			_max = max;
+		}
+
+		public MessageType getType() {
+			return _type;
+		}
+
+		public long getCount() {
+			return _count;
+		}
+
+		public long getFailures() {
+			return _failures;
+		}
+
+		public long getMean() {
+			return _mean;
+		}
+
+		public long getP50() {
+			return _p50;
+		}
+
+		public long getP99() {
+			return _p99;
+		}
+
+		public long getP999() {
+			return _p999;
+		}
+
+		public long getMax() {
+			return _max;
+		}
+	}
+
+	/**
+	 * @param uptime milliseconds since the server started.
+	 * @param activeSessions the number of connected sessions.
+	 * @param queueDepth the number of sessions or requests waiting for a
+	 * thread to serve them.
+	 */
+	public ServerStats(long uptime, long bytesIn, long bytesOut, int activeSessions, int queueDepth) {
+		_uptime = uptime;
+		_bytesIn = bytesIn;
+		_bytesOut = bytesOut;
+		_activeSessions = activeSessions;
+		_queueDepth = queueDepth;
+	}
+
+	/**
+	 * Sets the number of times that sessions' serialisation streams have been
+	 * reset, and the largest number of objects that a reset released.
+	 */
+	public void setStreamResets(long streamResets, long maxHandles) {
+		_streamResets = streamResets;
+		_maxHandles = maxHandles;
+	}
+
+	/**
+	 * Sets the number of sessions and requests that were turned away with an
+	 * Overloaded response.
+	 */
+	public void setShed(long shed) {
+		_shed = shed;
+	}
+
+	public void setVersion(long version) {
+		_version = version;
+	}
+
+	/**
+	 * Sets how far a Follower is behind its primary.
+	 *
+	 * @param changes the number of the primary's changes yet to be applied.
+	 * @param millis how long the oldest of those changes has been waiting.
+	 */
+	public void setReplicationLag(long changes, long millis) {
+		_replicationLag = changes;
+		_replicationDelay = millis;
+	}
+
+	public void addType(TypeStats stats) {
+		_types.add(stats);
+	}
+
+	public long getUptime() {
+		return _uptime;
+	}
+
+	public long getBytesIn() {
+		return _bytesIn;
+	}
+
+	public long getBytesOut() {
+		return _bytesOut;
+	}
+
+	public int getActiveSessions() {
+		return _activeSessions;
+	}
+
+	public int getQueueDepth() {
+		return _queueDepth;
+	}
+
+	public long getStreamResets() {
+		return _streamResets;
+	}
+
+	public long getMaxHandles() {
+		return _maxHandles;
+	}
+
+	public long getShed() {
+		return _shed;
+	}
+
+	public long getVersion() {
+		return _version;
+	}
+
+	/**
+	 * Returns the number of its primary's changes that a Follower is yet to
+	 * apply, or -1 if the server isn't a Follower.
+	 */
+	public long getReplicationLag() {
+		return _replicationLag;
+	}
+
+	/**
+	 * Returns how long (ms) a Follower's oldest unapplied change has been
+	 * waiting, or -1 if the server isn't a Follower.
+	 */
+	public long getReplicationDelay() {
+		return _replicationDelay;
+	}
+
+	/**
+	 * Returns the statistics of each MessageType that the server has
+	 * processed, in MessageType order.
+	 */
+	public List<TypeStats> getTypes() {
+		return Collections.unmodifiableList(_types);
+	}
+
+	/**
+	 * Returns the statistics of type, or null if no requests of that type
+	 * have been processed.
+	 */
+	public TypeStats getType(MessageType type) {
+		for (TypeStats stats : _types) {
+			if (stats.getType() == type) {
+				return stats;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Formats the statistics as a table, with latencies in microseconds.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder(String.format(Locale.ROOT,
+				"Up %ds, %d sessions, %d queued, %d shed, %d bytes in, %d bytes out, %d stream resets"
+				+ " (largest handle table %d)%n", _uptime / 1000, _activeSessions, _queueDepth, _shed,
+				_bytesIn, _bytesOut, _streamResets, _maxHandles));
+		text.append(String.format(Locale.ROOT, "Version %d", _version));
+		if (_replicationLag >= 0) {
+			text.append(String.format(Locale.ROOT, ", replication lag %d changes (%dms)",
+					_replicationLag, _replicationDelay));
+		}
+		text.append(String.format(Locale.ROOT, "%n"));
+		text.append(String.format(Locale.ROOT, "%-20s %10s %8s %10s %10s %10s %10s %10s%n",
+				"Type", "Count", "Failed", "Mean(us)", "p50(us)", "p99(us)", "p99.9(us)", "Max(us)"));
+		for (TypeStats stats : _types) {
+			text.append(String.format(Locale.ROOT, "%-20s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+					stats._type, stats._count, stats._failures, stats._mean / 1000.0,
+					stats._p50 / 1000.0, stats._p99 / 1000.0, stats._p999 / 1000.0, stats._max / 1000.0));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Writes these statistics in the binary form used by BinaryCodec.
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		BinaryCodec.writeVarLong(out, _uptime);
+		BinaryCodec.writeVarLong(out, _bytesIn);
+		BinaryCodec.writeVarLong(out, _bytesOut);
+		BinaryCodec.writeVarLong(out, _activeSessions);
+		BinaryCodec.writeVarLong(out, _queueDepth);
+		BinaryCodec.writeVarLong(out, _streamResets);
+		BinaryCodec.writeVarLong(out, _maxHandles);
+		BinaryCodec.writeVarLong(out, _shed);
+		BinaryCodec.writeVarLong(out, _version);
+		BinaryCodec.writeSignedVarLong(out, _replicationLag);
+		BinaryCodec.writeSignedVarLong(out, _replicationDelay);
+		BinaryCodec.writeVarLong(out, _types.size());
+		for (TypeStats stats : _types) {
+			out.writeByte(stats._type.ordinal());
+			BinaryCodec.writeVarLong(out, stats._count);
+			BinaryCodec.writeVarLong(out, stats._failures);
+			BinaryCodec.writeVarLong(out, stats._mean);
+			BinaryCodec.writeVarLong(out, stats._p50);
+			BinaryCodec.writeVarLong(out, stats._p99);
+			BinaryCodec.writeVarLong(out, stats._p999);
+			BinaryCodec.writeVarLong(out, stats._max);
+		}
+	}
+
+	/**
+	 * Reads statistics written by writeTo().
+	 */
+	static ServerStats readFrom(DataInput in) throws IOException {
+		ServerStats stats = new ServerStats(BinaryCodec.readVarLong(in), BinaryCodec.readVarLong(in),
+				BinaryCodec.readVarLong(in), BinaryCodec.readLength(in), BinaryCodec.readLength(in));
+		stats.setStreamResets(BinaryCodec.readVarLong(in), BinaryCodec.readVarLong(in));
+		stats.setShed(BinaryCodec.readVarLong(in));
+		stats.setVersion(BinaryCodec.readVarLong(in));
+		stats.setReplicationLag(BinaryCodec.readSignedVarLong(in), BinaryCodec.readSignedVarLong(in));
+		int size = BinaryCodec.readLength(in);
+		MessageType[] types = MessageType.values();
+		for (int i = 0; i < size; i++) {
+			stats._types.add(new TypeStats(BinaryCodec.readTag(in, types), BinaryCodec.readVarLong(in),
+					BinaryCodec.readVarLong(in), BinaryCodec.readVarLong(in), BinaryCodec.readVarLong(in),
+					BinaryCodec.readVarLong(in), BinaryCodec.readVarLong(in), BinaryCodec.readVarLong(in)));
+		}
+		return stats;
+	}
+}
@@ -0,0 +1,24 @@
+package nz.ac.auckland.concert.common;
+
+/**
+ * Optional protocol features that a client can ask for in its Hello message.
+ * 
+ * The server's reply to the Hello message lists the features it has
+ * accepted; features that weren't accepted must not be used by the client.
+ *
+ */
+public enum SessionFeature {
+	// The server may send responses in a different order to the requests, as
+	// they complete. Clients match responses to requests using correlation
+	// ids.
+	OutOfOrderResponses,
+
+	// Binary frames of at least FrameCompression.DEFAULT_THRESHOLD bytes may
+	// be compressed by Deflate, in both directions. Ignored for sessions that
+	// use Java serialisation.
+	DeflateCompression,
+
+	// As DeflateCompression, but using the faster LzCompression. If both are
+	// asked for, the server accepts only DeflateCompression.
+	LzCompression
+}
@@ -0,0 +1,88 @@
+package nz.ac.auckland.concert.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * ObjectOutputStream that keeps track of how much state it holds: the number
+ * of objects in its handle table, and the bytes written, since it was last
+ * reset. SerializationCodec uses these to apply its ResetPolicy.
+ *
+ * Objects are counted as they're first written, which is when the stream
+ * assigns them a handle. Class descriptors, which also take handles, aren't
+ * counted.
+ *
+ */
+public class TrackingObjectOutputStream extends ObjectOutputStream {
+	private final ByteCounter _counter;
+	private long _bytesAtReset;
+	private int _handles;
+
+	public TrackingObjectOutputStream(OutputStream out) throws IOException {
+		this(new ByteCounter(out));
+	}
+
+	private TrackingObjectOutputStream(ByteCounter counter) throws IOException {
+		super(counter);
+		_counter = counter;
+		enableReplaceObject(true);
+	}
+
+	/**
+	 * Returns the number of objects written since the stream was last reset,
+	 * each of which the stream (and its reader) keeps reachable.
+	 */
+	public int getHandleCount() {
+		return _handles;
+	}
+
+	/**
+	 * Returns the number of bytes written since the stream was last reset.
+	 * Bytes still held in the stream's block buffer aren't included until
+	 * it's flushed.
+	 */
+	public long getBytesSinceReset() {
+		return _counter._count - _bytesAtReset;
+	}
+
+	@Override
+	public void reset() throws IOException {
+		super.reset();
+		_handles = 0;
+		_bytesAtReset = _counter._count;
+	}
+
+	/**
+	 * Called for each object that's about to be assigned a handle.
+	 */
+	@Override
+	protected Object replaceObject(Object obj) throws IOException {
+		_handles++;
+		return obj;
+	}
+
+	/**
+	 * Counts the bytes written to the underlying stream.
+	 */
+	private static class ByteCounter extends FilterOutputStream {
+		private long _count;
+
+		ByteCounter(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			_count++;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			_count += length;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package nz.ac.auckland.concert.common;
+
+/**
+ * Encodings in which RequestMessages and ResponseMessages can be exchanged.
+ * 
+ * Every session starts with Java serialisation. A client can ask for another
+ * format in its Hello message; the server states which format it accepted in
+ * its reply to the Hello message, and both sides then switch to that format
+ * for the remainder of the session. Clients that don't ask for a format keep
+ * using Java serialisation.
+ *
+ */
+public enum WireFormat {
+	// Java serialisation (ObjectOutputStream/ObjectInputStream).
+	Serialization,
+	
+	// Length-prefixed binary frames, see BinaryCodec.
+	Binary
+}
@@ -0,0 +1,69 @@
+package nz.ac.auckland.concert.common;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Checks that a BinaryCodec rejects counts that the rest of a frame couldn't
+ * hold, instead of allocating for them.
+ *
+ */
+public class BinaryCodecTest {
+
+	@Test(expected = StreamCorruptedException.class)
+	public void idCountLargerThanFrameIsRejected() throws IOException {
+		BinaryCodec.readIds(frame(BinaryCodec.MAX_FRAME_LENGTH, 1, 2, 3));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void concertCountLargerThanFrameIsRejected() throws IOException {
+		// The count of Concerts follows an empty table of zones.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		BinaryCodec.writeVarLong(out, 0);
+		BinaryCodec.writeVarLong(out, BinaryCodec.MAX_FRAME_LENGTH);
+		out.writeByte(0);
+		BinaryCodec.readConcerts(new ByteBufferInput(ByteBuffer.wrap(bytes.toByteArray())));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void stringLengthLargerThanFrameIsRejected() throws IOException {
+		BinaryCodec.readString(frame(1000, 'a', 'b'));
+	}
+
+	@Test
+	public void idsFromAStreamAreReadWhateverTheirCount() throws IOException {
+		long[] ids = new long[10000];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = 3 * i;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryCodec.writeIds(new DataOutputStream(bytes), ids);
+
+		assertArrayEquals(ids, BinaryCodec.readIds(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()))));
+		assertArrayEquals(ids, BinaryCodec.readIds(new ByteBufferInput(ByteBuffer.wrap(bytes.toByteArray()))));
+	}
+
+	/**
+	 * Returns a frame holding a varint count, followed by the given bytes.
+	 */
+	private static ByteBufferInput frame(long count, int... rest) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		BinaryCodec.writeVarLong(out, count);
+		for (int b : rest) {
+			out.writeByte(b);
+		}
+		return new ByteBufferInput(ByteBuffer.wrap(bytes.toByteArray()));
+	}
+}
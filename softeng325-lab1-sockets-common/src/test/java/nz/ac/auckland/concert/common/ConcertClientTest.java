@@ -0,0 +1,235 @@
+package nz.ac.auckland.concert.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a ConcertClient spreads requests over its connections, and
+ * carries on through a connection failing, against a minimal in-process
+ * server.
+ *
+ */
+public class ConcertClientTest {
+	private FakeServer _server;
+
+	@Before
+	public void startServer() throws IOException {
+		_server = new FakeServer();
+	}
+
+	@After
+	public void stopServer() throws IOException {
+		_server.close();
+	}
+
+	@Test
+	public void requestsAreSpreadOverConnections() throws Exception {
+		ConcertClient client = open(4);
+		try {
+			List<CompletableFuture<Concert>> retrieved = new ArrayList<CompletableFuture<Concert>>();
+			for (long id = 1; id <= 100; id++) {
+				retrieved.add(client.retrieve(id));
+			}
+			for (int i = 0; i < retrieved.size(); i++) {
+				assertEquals(i + 1, retrieved.get(i).get(10, TimeUnit.SECONDS).getId().longValue());
+			}
+			assertEquals(4, _server._sessions.get());
+			assertEquals(4, _server._sessionsServed.size());
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void resultsReflectResponseStatus() throws Exception {
+		ConcertClient client = open(1);
+		try {
+			Concert created = client.create(new Concert("Concert", new DateTime(0))).get(10, TimeUnit.SECONDS);
+			assertEquals(FakeServer.CREATED_ID, created.getId().longValue());
+			assertNull(client.retrieve(FakeServer.MISSING_ID).get(10, TimeUnit.SECONDS));
+			assertTrue(client.update(created).get(10, TimeUnit.SECONDS));
+			assertFalse(client.delete(FakeServer.MISSING_ID).get(10, TimeUnit.SECONDS));
+			try {
+				client.retrieve(FakeServer.OVERLOADED_ID).get(10, TimeUnit.SECONDS);
+				fail("Overloaded retrieve succeeded");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof OverloadedException);
+			}
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void failedConnectionsAreReopened() throws Exception {
+		ConcertClient client = open(2);
+		try {
+			assertEquals(2, client.getOpenCount());
+			_server.dropSessions();
+
+			// Retrieves are repeated on a reopened connection if theirs fails.
+			assertEquals(7L, client.retrieve(7).get(10, TimeUnit.SECONDS).getId().longValue());
+			assertEquals(8L, client.retrieve(8).get(10, TimeUnit.SECONDS).getId().longValue());
+			assertTrue(_server._sessions.get() > 2);
+		} finally {
+			client.close();
+		}
+	}
+
+	private ConcertClient open(int connections) throws IOException {
+		return ConcertClient.open(InetAddress.getLoopbackAddress(), _server.getPort(),
+				connections, WireFormat.Binary);
+	}
+
+	/**
+	 * Server that answers each Retrieve with a made-up Concert, and turns
+	 * particular ids away.
+	 */
+	private static class FakeServer implements Runnable {
+		static final long CREATED_ID = 42;
+		static final long MISSING_ID = -1;
+		static final long OVERLOADED_ID = -2;
+
+		private final ServerSocket _socket;
+		private final Set<Socket> _connections = ConcurrentHashMap.newKeySet();
+
+		// Sessions started, and those that have served a request.
+		final AtomicInteger _sessions = new AtomicInteger();
+		final Set<Thread> _sessionsServed = ConcurrentHashMap.newKeySet();
+
+		FakeServer() throws IOException {
+			_socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			Thread acceptor = new Thread(this, "fake-server");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		int getPort() {
+			return _socket.getLocalPort();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Socket connection = _socket.accept();
+					_connections.add(connection);
+					Thread session = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							serve(connection);
+						}
+					});
+					session.setDaemon(true);
+					session.start();
+				}
+			} catch (IOException e) {
+				// Closed.
+			}
+		}
+
+		private void serve(Socket connection) {
+			try {
+				InputStream input = new BufferedInputStream(connection.getInputStream());
+				OutputStream output = new BufferedOutputStream(connection.getOutputStream());
+				ObjectOutputStream out = new ObjectOutputStream(output);
+				out.flush();
+				MessageCodec codec = new SerializationCodec(new ObjectInputStream(input), out, ResetPolicy.NEVER);
+
+				RequestMessage hello = codec.readRequest();
+				ResponseMessage response = ResponseMessage.makeSuccessfulHelloResponse(hello.getWireFormat(),
+						EnumSet.of(SessionFeature.OutOfOrderResponses));
+				response.setCorrelationId(hello.getCorrelationId());
+				codec.writeResponse(response);
+				if (hello.getWireFormat() == WireFormat.Binary) {
+					codec = new BinaryCodec(input, output);
+				}
+				_sessions.incrementAndGet();
+
+				while (true) {
+					RequestMessage request = codec.readRequest();
+					_sessionsServed.add(Thread.currentThread());
+					response = respond(request);
+					response.setCorrelationId(request.getCorrelationId());
+					codec.writeResponse(response);
+					if (request.getType() == RequestMessage.MessageType.Goodbye) {
+						break;
+					}
+				}
+			} catch (IOException | ClassNotFoundException e) {
+				// Dropped.
+			} finally {
+				try {
+					connection.close();
+				} catch (IOException e) {
+					// Already closed.
+				}
+				_connections.remove(connection);
+			}
+		}
+
+		private static ResponseMessage respond(RequestMessage request) {
+			switch (request.getType()) {
+			case Create: {
+				Concert concert = request.getConcert();
+				return ResponseMessage.makeSuccessfulCreateResponse(
+						new Concert(CREATED_ID, concert.getTitle(), concert.getDate()));
+			}
+			case Retrieve:
+			case Delete: {
+				if (request.getId() == OVERLOADED_ID) {
+					return ResponseMessage.makeOverloadedResponse("test");
+				} else if (request.getId() == MISSING_ID) {
+					return ResponseMessage.makeUnsuccessfulRetrieveResponse();
+				}
+				return ResponseMessage.makeSuccessfulRetrieveResponse(
+						new Concert(request.getId(), "Concert " + request.getId(), new DateTime(0)));
+			}
+			default:
+				return ResponseMessage.makeSuccessfulResponse();
+			}
+		}
+
+		/**
+		 * Closes every open session's connection.
+		 */
+		void dropSessions() throws IOException {
+			for (Socket connection : _connections) {
+				connection.close();
+			}
+		}
+
+		void close() throws IOException {
+			_socket.close();
+			dropSessions();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package nz.ac.auckland.concert.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+/**
+ * Checks that each FrameCompression reproduces what it compresses, and that
+ * a BinaryCodec only compresses frames that are large enough to benefit.
+ *
+ */
+public class FrameCompressionTest {
+
+	@Test
+	public void deflateRoundTrips() throws IOException {
+		checkRoundTrips(FrameCompression.DEFLATE);
+	}
+
+	@Test
+	public void lzRoundTrips() throws IOException {
+		checkRoundTrips(FrameCompression.LZ);
+	}
+
+	@Test
+	public void largeListIsSentCompressed() throws IOException {
+		List<Concert> concerts = new ArrayList<Concert>();
+		for (int i = 0; i < 1000; i++) {
+			concerts.add(new Concert((long) i, "Concert number " + i,
+					new DateTime(1500000000000L + i * 3600000L, DateTimeZone.forID("Pacific/Auckland"))));
+		}
+		ResponseMessage response = ResponseMessage.makeListResponse(concerts);
+		response.setCorrelationId(1L);
+
+		int uncompressed = encode(response, null).length;
+		for (FrameCompression compression : Arrays.asList(FrameCompression.DEFLATE, FrameCompression.LZ)) {
+			byte[] bytes = encode(response, compression);
+			assertTrue(compression.getFeature() + " sent " + bytes.length + " bytes",
+					bytes.length < uncompressed / 2);
+			assertEquals(concerts, decode(bytes, compression).getConcerts());
+		}
+	}
+
+	@Test
+	public void smallFrameIsSentUnchanged() throws IOException {
+		ResponseMessage response = ResponseMessage.makeSuccessfulRetrieveResponse(
+				new Concert(1L, "Concert", new DateTime(0)));
+		response.setCorrelationId(1L);
+
+		byte[] bytes = encode(response, FrameCompression.LZ);
+		assertArrayEquals(encode(response, null), bytes);
+		assertEquals(response.getConcert(), decode(bytes, FrameCompression.LZ).getConcert());
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void truncatedLzBlockIsRejected() throws IOException {
+		byte[] input = repetitive(4096);
+		byte[] compressed = new byte[input.length];
+		int length = FrameCompression.LZ.compress(input, input.length, compressed);
+		FrameCompression.LZ.decompress(ByteBuffer.wrap(compressed, 0, length / 2),
+				new byte[input.length], input.length);
+	}
+
+	private static void checkRoundTrips(FrameCompression compression) throws IOException {
+		Random random = new Random(42);
+		for (int size : new int[] { 0, 1, 16, 1000, 70000 }) {
+			byte[] noise = new byte[size];
+			random.nextBytes(noise);
+			for (byte[] input : Arrays.asList(noise, repetitive(size))) {
+				byte[] compressed = new byte[input.length + 1024];
+				int length = compression.compress(input, input.length, compressed);
+				assertTrue(length >= 0);
+
+				byte[] output = new byte[input.length];
+				compression.decompress(ByteBuffer.wrap(compressed, 0, length), output, output.length);
+				assertArrayEquals(input, output);
+			}
+		}
+	}
+
+	private static byte[] repetitive(int size) {
+		byte[] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) "Concert title ".charAt(i % 14);
+		}
+		return bytes;
+	}
+
+	private static byte[] encode(ResponseMessage response, FrameCompression compression) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryCodec codec = new BinaryCodec(new ByteArrayInputStream(new byte[0]), bytes);
+		if (compression != null) {
+			codec.setCompression(compression, FrameCompression.DEFAULT_THRESHOLD);
+		}
+		codec.writeResponse(response);
+		return bytes.toByteArray();
+	}
+
+	private static ResponseMessage decode(byte[] bytes, FrameCompression compression) throws IOException {
+		BinaryCodec codec = new BinaryCodec(new ByteArrayInputStream(bytes), new ByteArrayOutputStream());
+		codec.setCompression(compression, FrameCompression.DEFAULT_THRESHOLD);
+		return codec.readResponse();
+	}
+}
@@ -0,0 +1,97 @@
+package nz.ac.auckland.concert.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks LatencyHistogram's bucketing and percentiles.
+ *
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void bucketsCoverEveryValueWithinTheirPrecision() {
+		int previous = -1;
+		for (long value : new long[] {0, 1, 127, 128, 129, 255, 256, 1000, 123456789,
+				Long.MAX_VALUE / 3, Long.MAX_VALUE}) {
+			int index = LatencyHistogram.bucketIndex(value);
+			assertTrue(index >= previous);
+			long highest = LatencyHistogram.highestValueIn(index);
+			assertTrue(value <= highest);
+			assertTrue(highest - value <= value / 64);
+			if (index > 0) {
+				assertTrue(LatencyHistogram.highestValueIn(index - 1) < value);
+			}
+			previous = index;
+		}
+	}
+
+	@Test
+	public void percentilesAreExactForSmallValues() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long value = 1; value <= 100; value++) {
+			histogram.record(value);
+		}
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(50, histogram.getValueAtPercentile(50));
+		assertEquals(99, histogram.getValueAtPercentile(99));
+		assertEquals(100, histogram.getValueAtPercentile(100));
+		assertEquals(1, histogram.getMin());
+		assertEquals(50.5, histogram.getMean(), 0);
+	}
+
+	@Test
+	public void percentilesAreWithinPrecisionAfterMerging() {
+		Random random = new Random(325);
+		LatencyHistogram first = new LatencyHistogram();
+		LatencyHistogram second = new LatencyHistogram();
+		long[] values = new long[10000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (long) (Math.exp(random.nextDouble() * 20));
+			(i % 2 == 0 ? first : second).record(values[i]);
+		}
+		first.add(second);
+		Arrays.sort(values);
+
+		assertEquals(values.length, first.getCount());
+		assertEquals(values[values.length - 1], first.getMax());
+		for (double percentile : new double[] {50, 90, 99, 99.9}) {
+			long expected = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+			long actual = first.getValueAtPercentile(percentile);
+			assertTrue(actual >= expected);
+			assertTrue(actual - expected <= expected / 64);
+		}
+	}
+
+	@Test
+	public void concurrentRecordingLosesNoValues() throws InterruptedException {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final long offset = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (long value = 0; value < 100000; value++) {
+						histogram.record(value % 1000 + offset);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(400000, histogram.getCount());
+		assertEquals(0, histogram.getMin());
+		assertEquals(1002, histogram.getMax());
+		assertEquals(1002, histogram.getValueAtPercentile(100));
+	}
+}
@@ -0,0 +1,65 @@
+package nz.ac.auckland.concert.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that a Partitioner spreads ids evenly, and that adding a partition
+ * only moves ids to the new partition.
+ *
+ */
+public class PartitionerTest {
+	private static final int IDS = 100000;
+
+	@Test
+	public void idsAreSpreadEvenly() {
+		for (int partitions : new int[] { 1, 2, 3, 7, 16 }) {
+			Partitioner partitioner = new Partitioner(partitions);
+			int[] counts = new int[partitions];
+			for (long id = 1; id <= IDS; id++) {
+				counts[partitioner.partitionOf(id)]++;
+			}
+			int expected = IDS / partitions;
+			for (int count : counts) {
+				assertTrue(partitions + " partitions: " + count + " ids",
+						Math.abs(count - expected) < expected / 20);
+			}
+		}
+	}
+
+	@Test
+	public void addingAPartitionOnlyMovesIdsToIt() {
+		for (int partitions = 1; partitions < 10; partitions++) {
+			Partitioner before = new Partitioner(partitions);
+			Partitioner after = new Partitioner(partitions + 1);
+			int moved = 0;
+			for (long id = 1; id <= IDS; id++) {
+				int partition = after.partitionOf(id);
+				if (partition != before.partitionOf(id)) {
+					assertEquals(partitions, partition);
+					moved++;
+				}
+			}
+			int expected = IDS / (partitions + 1);
+			assertTrue(moved + " of " + IDS + " ids moved", Math.abs(moved - expected) < expected / 20);
+		}
+	}
+
+	@Test
+	public void nextIdIsInThePartition() {
+		Partitioner partitioner = new Partitioner(5);
+		for (int partition = 0; partition < 5; partition++) {
+			long previous = 0;
+			for (int i = 0; i < 1000; i++) {
+				long id = partitioner.nextId(previous + 1, partition);
+				assertEquals(partition, partitioner.partitionOf(id));
+				for (long skipped = previous + 1; skipped < id; skipped++) {
+					assertTrue(partitioner.partitionOf(skipped) != partition);
+				}
+				previous = id;
+			}
+		}
+	}
+}
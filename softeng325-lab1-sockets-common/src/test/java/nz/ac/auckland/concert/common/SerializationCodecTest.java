@@ -0,0 +1,107 @@
+package nz.ac.auckland.concert.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+/**
+ * Checks that SerializationCodec resets its stream as its ResetPolicy says,
+ * and what that means for the objects received.
+ *
+ */
+public class SerializationCodecTest {
+
+	@Test
+	public void changedConcertIsReceivedStaleWithoutReset() throws Exception {
+		assertEquals(new DateTime(0).getMillis(),
+				sendUpdatedTwice(ResetPolicy.NEVER).getDate().getMillis());
+	}
+
+	@Test
+	public void changedConcertIsReceivedCurrentAfterReset() throws Exception {
+		assertEquals(new DateTime(1000).getMillis(),
+				sendUpdatedTwice(ResetPolicy.EVERY_MESSAGE).getDate().getMillis());
+	}
+
+	@Test
+	public void changedConcertIsReceivedCurrentWithClientPolicy() throws Exception {
+		assertEquals(new DateTime(1000).getMillis(),
+				sendUpdatedTwice(ResetPolicy.CLIENT).getDate().getMillis());
+	}
+
+	@Test
+	public void handleTableIsBoundedByMessagesAndBytes() throws IOException {
+		List<Concert> concerts = new ArrayList<Concert>();
+		for (int i = 0; i < 100; i++) {
+			concerts.add(new Concert((long) i, "Concert " + i, new DateTime(i)));
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TrackingObjectOutputStream out = new TrackingObjectOutputStream(bytes);
+		SerializationCodec codec = new SerializationCodec(null, out, new ResetPolicy(10, 0));
+		final AtomicLong resets = new AtomicLong();
+		codec.setResetListener(new LongConsumer() {
+			@Override
+			public void accept(long handles) {
+				resets.incrementAndGet();
+			}
+		});
+
+		int afterTen = 0;
+		for (int i = 0; i < 50; i++) {
+			// Fresh lists of the same Concerts, as a server sends them.
+			codec.writeResponse(ResponseMessage.makeListResponse(new ArrayList<Concert>(concerts)));
+			if (i == 9) {
+				afterTen = out.getHandleCount();
+			}
+		}
+		// Resets precede the 11th, 21st, 31st and 41st messages, so the table
+		// ends up holding the last ten messages' objects, just as it did after
+		// the first ten.
+		assertEquals(4, resets.get());
+		assertTrue(afterTen > 100);
+		assertEquals(afterTen, out.getHandleCount());
+
+		// A byte limit resets a stream after one large message.
+		out = new TrackingObjectOutputStream(new ByteArrayOutputStream());
+		codec = new SerializationCodec(null, out, new ResetPolicy(0, 1024));
+		codec.writeResponse(ResponseMessage.makeListResponse(concerts));
+		int afterList = out.getHandleCount();
+		assertTrue(out.getBytesSinceReset() >= 1024);
+		codec.writeResponse(ResponseMessage.makeSuccessfulResponse());
+		assertTrue(out.getBytesSinceReset() < 1024);
+		assertTrue(out.getHandleCount() < 10 && afterList > 100);
+	}
+
+	/**
+	 * Sends an Update of a Concert, changes the Concert's date and sends it
+	 * again, returning the Concert received by the second request.
+	 */
+	private static Concert sendUpdatedTwice(ResetPolicy policy) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TrackingObjectOutputStream out = new TrackingObjectOutputStream(bytes);
+		out.flush();
+		SerializationCodec writer = new SerializationCodec(null, out, policy);
+
+		Concert concert = new Concert(1L, "The Beatles", new DateTime(0));
+		writer.writeRequest(RequestMessage.makeUpdate(concert));
+		concert.setDate(new DateTime(1000));
+		writer.writeRequest(RequestMessage.makeUpdate(concert));
+
+		SerializationCodec reader = new SerializationCodec(new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())), null);
+		reader.readRequest();
+		return reader.readRequest().getConcert();
+	}
+}
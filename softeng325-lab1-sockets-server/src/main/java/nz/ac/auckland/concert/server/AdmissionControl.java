@@ -0,0 +1,119 @@
+package nz.ac.auckland.concert.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nz.ac.auckland.concert.common.ResponseMessage;
+
+/**
+ * Limits on the work that the server takes on, so that under overload it
+ * turns clients away quickly instead of letting every request's latency
+ * grow without bound.
+ *
+ * - maxSessions bounds the number of concurrent sessions. A session beyond
+ *   the limit has its Hello message answered with an Overloaded response,
+ *   and is then closed.
+ * - maxInFlight bounds the number of requests that a session may have
+ *   received but not yet processed - waiting to be decoded, or being
+ *   processed (concurrently, if the session has enabled
+ *   SessionFeature.OutOfOrderResponses).
+ * - maxQueued bounds the number of sessions or requests waiting for one of
+ *   the engine's threads. While the queue is at its limit, new sessions and
+ *   requests are turned away.
+ *
+ * Requests that are turned away are answered with an Overloaded response
+ * straight away, without being processed, so the client can back off and
+ * retry. A limit of 0 disables that limit.
+ *
+ */
+public class AdmissionControl {
+	public static final int DEFAULT_MAX_SESSIONS = 10000;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4096;
+	public static final int DEFAULT_MAX_QUEUED = 16384;
+
+	private final int _maxSessions;
+	private final int _maxInFlight;
+	private final int _maxQueued;
+	private final ServerMetrics _metrics;
+
+	// Number of sessions that have been admitted and haven't yet ended.
+	private final AtomicInteger _sessions = new AtomicInteger();
+
+	public AdmissionControl(int maxSessions, int maxInFlight, int maxQueued,
+			ServerMetrics metrics) throws IllegalArgumentException {
+		if(maxSessions < 0 || maxInFlight < 0 || maxQueued < 0) {
+			throw new IllegalArgumentException("Limits must not be negative");
+		}
+		_maxSessions = maxSessions;
+		_maxInFlight = maxInFlight;
+		_maxQueued = maxQueued;
+		_metrics = metrics;
+	}
+
+	/**
+	 * Admits a new session, unless the server already has maxSessions
+	 * sessions or its queue is full. An admitted session must be ended with
+	 * sessionEnded().
+	 *
+	 * @return an Overloaded response to send the client, or null if the
+	 * session has been admitted.
+	 */
+	public ResponseMessage admitSession() {
+		if (_maxQueued > 0 && _metrics.getQueueDepth() >= _maxQueued) {
+			_metrics.recordShed();
+			return ResponseMessage.makeOverloadedResponse("Too many queued requests");
+		}
+		int sessions;
+		do {
+			sessions = _sessions.get();
+			if (_maxSessions > 0 && sessions >= _maxSessions) {
+				_metrics.recordShed();
+				return ResponseMessage.makeOverloadedResponse("Too many sessions");
+			}
+		} while (!_sessions.compareAndSet(sessions, sessions + 1));
+		return null;
+	}
+
+	public void sessionEnded() {
+		_sessions.decrementAndGet();
+	}
+
+	/**
+	 * Decides whether a session's request should be processed.
+	 *
+	 * @param pending the number of the session's other requests that have
+	 * been received but not yet processed.
+	 * @return an Overloaded response to send instead of processing the
+	 * request, or null if the request should be processed.
+	 */
+	public ResponseMessage admitRequest(int pending) {
+		if (_maxInFlight > 0 && pending >= _maxInFlight) {
+			_metrics.recordShed();
+			return ResponseMessage.makeOverloadedResponse("Too many requests in flight");
+		}
+		if (_maxQueued > 0 && _metrics.getQueueDepth() >= _maxQueued) {
+			_metrics.recordShed();
+			return ResponseMessage.makeOverloadedResponse("Too many queued requests");
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of sessions that have been admitted and haven't yet
+	 * ended.
+	 */
+	public int getSessionCount() {
+		return _sessions.get();
+	}
+
+	public int getMaxSessions() {
+		return _maxSessions;
+	}
+
+	public int getMaxInFlight() {
+		return _maxInFlight;
+	}
+
+	public int getMaxQueued() {
+		return _maxQueued;
+	}
+}
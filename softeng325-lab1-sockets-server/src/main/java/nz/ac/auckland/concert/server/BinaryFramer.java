@@ -0,0 +1,70 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+import nz.ac.auckland.concert.common.BinaryCodec;
+
+/**
+ * MessageFramer for the Binary WireFormat, in which each message is a frame
+ * made up of a four byte length and then that many bytes. The framer reads
+ * each length prefix as it arrives, and then skips over the frame.
+ *
+ */
+public class BinaryFramer implements MessageFramer {
+	private static final int PREFIX_LENGTH = 4;
+
+	// The top bit of a frame's length marks it as compressed.
+	private static final int LENGTH_MASK = 0x7FFFFFFF;
+
+	// Bytes of the current frame's length prefix received so far, and their
+	// value.
+	private int _prefixBytes;
+	private int _prefix;
+
+	// Bytes of the current frame that are yet to be received, once its
+	// prefix is complete, and the bytes that have been.
+	private int _remaining;
+	private int _received;
+
+	// Number of frames completed.
+	private long _messages;
+
+	@Override
+	public int frame(ByteBuffer received) throws IOException {
+		int framed = 0;
+		while (received.hasRemaining()) {
+			if (_prefixBytes < PREFIX_LENGTH) {
+				_prefix = (_prefix << 8) | (received.get() & 0xFF);
+				_prefixBytes++;
+				_received++;
+				if (_prefixBytes == PREFIX_LENGTH) {
+					_remaining = _prefix & LENGTH_MASK;
+					if (_remaining > BinaryCodec.MAX_FRAME_LENGTH) {
+						throw new StreamCorruptedException("Invalid frame length: " + _remaining);
+					}
+				}
+			} else {
+				int count = Math.min(_remaining, received.remaining());
+				received.position(received.position() + count);
+				_remaining -= count;
+				_received += count;
+			}
+
+			if (_prefixBytes == PREFIX_LENGTH && _remaining == 0) {
+				framed += _received;
+				_messages++;
+				_received = 0;
+				_prefixBytes = 0;
+				_prefix = 0;
+			}
+		}
+		return framed;
+	}
+
+	@Override
+	public long getMessageCount() {
+		return _messages;
+	}
+}
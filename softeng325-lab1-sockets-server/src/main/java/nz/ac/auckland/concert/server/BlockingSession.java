@@ -0,0 +1,203 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nz.ac.auckland.concert.common.BinaryCodec;
+import nz.ac.auckland.concert.common.FrameCompression;
+import nz.ac.auckland.concert.common.MessageCodec;
+import nz.ac.auckland.concert.common.RequestMessage;
+import nz.ac.auckland.concert.common.ResetPolicy;
+import nz.ac.auckland.concert.common.ResponseMessage;
+import nz.ac.auckland.concert.common.SerializationCodec;
+import nz.ac.auckland.concert.common.SessionFeature;
+import nz.ac.auckland.concert.common.TrackingObjectOutputStream;
+import nz.ac.auckland.concert.common.WireFormat;
+
+/**
+ * A client session served by a dedicated thread using blocking I/O.
+ *
+ * The session expects a Hello message first, and then processes requests
+ * until the client sends a Goodbye message or the connection is closed. If
+ * the Hello message asks for a different WireFormat, the session switches to
+ * that format once the Hello message has been acknowledged.
+ *
+ * The session is admitted by an AdmissionControl when its Hello message
+ * arrives; if the server is overloaded, the Hello message is answered with an
+ * Overloaded response and the connection is closed. Requests are processed
+ * one at a time, so the session's requests aren't limited further.
+ *
+ * Once the session has sent a Subscribe request, events are pushed to it
+ * by its Subscription from another thread, interleaved with the responses
+ * to its other requests; writes are serialised by a ReentrantLock, rather
+ * than a monitor, so that a virtual thread blocked writing doesn't pin its
+ * carrier thread.
+ *
+ */
+public class BlockingSession implements Runnable {
+	private final Socket _clientConnection;
+	private final RequestProcessor _processor;
+	private final ResetPolicy _resetPolicy;
+	private final AdmissionControl _admission;
+
+	private MessageCodec _codec;
+
+	// Sends streamed responses and pushed events. Writes block while the
+	// socket's send buffer is full, which bounds the data buffered for the
+	// client.
+	private final ResponseSink _sink = new ResponseSink() {
+		@Override
+		public void send(ResponseMessage response) throws IOException {
+			_writeLock.lock();
+			try {
+				_codec.writeResponse(response);
+			} finally {
+				_writeLock.unlock();
+			}
+		}
+	};
+	private final ReentrantLock _writeLock = new ReentrantLock();
+
+	// The session's subscription to changes, if it has sent a Subscribe
+	// request.
+	private Subscription _subscription;
+
+	public BlockingSession(Socket clientConnection, RequestProcessor processor,
+			ResetPolicy resetPolicy, AdmissionControl admission) {
+		_clientConnection = clientConnection;
+		_processor = processor;
+		_resetPolicy = resetPolicy;
+		_admission = admission;
+	}
+
+	@Override
+	public void run() {
+		ServerMetrics metrics = _processor.getMetrics();
+		metrics.sessionOpened();
+		boolean admitted = false;
+		try {
+			// The buffered streams are shared by both WireFormats, so that no
+			// buffered input is lost when switching formats.
+			InputStream input = new BufferedInputStream(metrics.countBytesIn(
+					_clientConnection.getInputStream()));
+			OutputStream output = new BufferedOutputStream(metrics.countBytesOut(
+					_clientConnection.getOutputStream()));
+			ObjectOutputStream out = new TrackingObjectOutputStream(output);
+			out.flush();
+			ObjectInputStream in = new ObjectInputStream(input);
+			SerializationCodec codec = new SerializationCodec(in, out, _resetPolicy);
+			codec.setResetListener(metrics.getResetListener());
+			_codec = codec;
+
+			RequestMessage request = _codec.readRequest();
+			ResponseMessage response = null;
+
+			if(request.getType() != RequestMessage.MessageType.Hello) {
+				// Accepted a new connection, but the first message isn't
+				// a Hello message - so terminate the connection.
+				response = ResponseMessage.makeProtocolErrorResponse();
+				_codec.writeResponse(response);
+			} else if ((response = _admission.admitSession()) != null) {
+				// Overloaded - turn the client away.
+				response.setCorrelationId(request.getCorrelationId());
+				_codec.writeResponse(response);
+			} else {
+				admitted = true;
+
+				// Accepted a new connection and received the initial
+				// Hello message.
+				WireFormat wireFormat = request.getWireFormat();
+				// Requests are processed in order, so out of order responses
+				// aren't supported.
+				Set<SessionFeature> features = EnumSet.noneOf(SessionFeature.class);
+				FrameCompression compression = wireFormat == WireFormat.Binary
+						? FrameCompression.choose(request.getFeatures()) : null;
+				if (compression != null) {
+					features.add(compression.getFeature());
+				}
+				response = ResponseMessage.makeSuccessfulHelloResponse(wireFormat, features);
+				response.setCorrelationId(request.getCorrelationId());
+				_codec.writeResponse(response);
+				if (wireFormat == WireFormat.Binary) {
+					BinaryCodec binary = new BinaryCodec(input, output);
+					if (compression != null) {
+						binary.setCompression(compression, FrameCompression.DEFAULT_THRESHOLD);
+					}
+					_codec = binary;
+				}
+				manageSession();
+			}
+		} catch(IOException e) {
+			// Connection closed by the client, or by shutdown().
+		} catch(ClassNotFoundException e) {
+			// Server attempted to deserialise an object without having
+			// access to the corresponding class.
+			e.printStackTrace();
+		} finally {
+			if (_subscription != null) {
+				_subscription.cancel();
+			}
+			if (admitted) {
+				_admission.sessionEnded();
+			}
+			metrics.sessionClosed();
+			close();
+		}
+	}
+
+	/**
+	 * Closes the connection, causing any blocked IO methods to abort with an
+	 * IOException.
+	 */
+	public void close() {
+		try {
+			_clientConnection.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Processes incoming messages, generating and sending a response back to
+	 * the client.
+	 */
+	private void manageSession() throws IOException, ClassNotFoundException {
+		boolean sessionEnded = false;
+
+		while(!sessionEnded && !Thread.currentThread().isInterrupted()) {
+			// Read next request.
+			RequestMessage request = _codec.readRequest();
+
+			if (request.getType() == RequestMessage.MessageType.StreamedList) {
+				_processor.streamList(request, _sink);
+				continue;
+			}
+			if (request.getType() == RequestMessage.MessageType.Subscribe
+					&& _subscription == null) {
+				_subscription = _processor.subscribe(request, _sink);
+				continue;
+			}
+
+			ResponseMessage response = _processor.process(request);
+			if (request.getType() == RequestMessage.MessageType.Goodbye) {
+				sessionEnded = true;
+				if (_subscription != null) {
+					_subscription.end();
+					_subscription = null;
+				}
+			}
+
+			// Send response back to the client.
+			_sink.send(response);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package nz.ac.auckland.concert.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.common.ResponseMessage;
+import nz.ac.auckland.concert.common.ResponseMessage.Change;
+
+/**
+ * Sequence-numbered log of the most recent changes made to a ConcertStore,
+ * from which Subscriptions push events to their sessions.
+ *
+ * Each change's sequence number is the store version that it produced. The
+ * log is a ring of the last capacity changes: a change is published to its
+ * slot by the thread that made it, while holding the stripe lock, so
+ * changes to different stripes are published without contending for a
+ * lock, but not necessarily in sequence order. Readers take changes in
+ * sequence order, waiting at the first that hasn't been published yet. A
+ * reader that falls more than capacity changes behind finds its next change
+ * overwritten, and has to start again from a snapshot.
+ *
+ * Publishing a change doesn't wake the subscriptions itself, as that would
+ * take time in proportion to their number while the stripe lock is held.
+ * Instead it flags the feed's notifier thread, which wakes every
+ * subscription once for however many changes were published since its last
+ * pass. Subscriptions send their events on a fixed number of threads; each
+ * has at most one task queued, so the queue is bounded by the number of
+ * subscriptions.
+ *
+ * The feed's epoch is chosen at random when it's created, so that sequence
+ * numbers from an earlier run of the server aren't mistaken for current
+ * ones.
+ *
+ */
+public class ChangeFeed {
+	// Default number of changes kept.
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	// Number of threads that send subscriptions' events, and the time (s)
+	// for which an idle one is kept.
+	public static final int DELIVERY_THREADS = 16;
+	private static final long DELIVERY_THREAD_KEEP_ALIVE = 60;
+
+	// Returned by get() for a change that has been overwritten.
+	static final Event MISSING = new Event(-1, null, null, 0);
+
+	private final long _epoch = ThreadLocalRandom.current().nextLong();
+	private final AtomicReferenceArray<Event> _events;
+	private final int _mask;
+
+	private final Set<Subscription> _subscriptions = ConcurrentHashMap.newKeySet();
+
+	// Runs subscriptions' deliveries, which may block while a slow client
+	// reads its events.
+	private final ThreadPoolExecutor _executor;
+
+	// Wakes the subscriptions after changes are published; started when the
+	// first subscription is added. _changed is set by each publish, and
+	// cleared by the notifier before each pass over the subscriptions.
+	private Thread _notifier;
+	private final AtomicBoolean _changed = new AtomicBoolean();
+
+	// Set by close(), after which no notifier is started.
+	private boolean _closed;
+
+	/**
+	 * A change, as recorded in the feed.
+	 */
+	static final class Event {
+		final long _sequence;
+		final Change _change;
+		final Concert _concert;
+		final long _id;
+
+		Event(long sequence, Change change, Concert concert, long id) {
+			_sequence = sequence;
+			_change = change;
+			_concert = concert;
+			_id = id;
+		}
+
+		ResponseMessage toResponse() {
+			return ResponseMessage.makeChangeEvent(_change, _sequence,
+					_concert, _change == Change.Deleted ? _id : null);
+		}
+	}
+
+	public ChangeFeed() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a feed that keeps at least capacity changes (rounded up to a
+	 * power of two).
+	 */
+	public ChangeFeed(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		int slots = Integer.highestOneBit(capacity);
+		if (slots < capacity) {
+			slots <<= 1;
+		}
+		_events = new AtomicReferenceArray<Event>(slots);
+		_mask = slots - 1;
+
+		_executor = new ThreadPoolExecutor(DELIVERY_THREADS, DELIVERY_THREADS,
+				DELIVERY_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				SelectorEngine.namedThreadFactory("concert-feed-"));
+		_executor.allowCoreThreadTimeOut(true);
+	}
+
+	public long getEpoch() {
+		return _epoch;
+	}
+
+	/**
+	 * Returns the number of sessions subscribed to the feed.
+	 */
+	public int getSubscriberCount() {
+		return _subscriptions.size();
+	}
+
+	/**
+	 * Records a change, and flags the notifier to wake up the subscriptions.
+	 * Called by ConcertStore while holding the lock of the change's stripe.
+	 */
+	void publish(long sequence, Change change, Concert concert, long id) {
+		_events.set((int) sequence & _mask, new Event(sequence, change, concert, id));
+		if (_changed.compareAndSet(false, true)) {
+			Thread notifier = _notifier;
+			if (notifier != null) {
+				LockSupport.unpark(notifier);
+			}
+		}
+	}
+
+	/**
+	 * Returns the change with the given sequence number, null if it hasn't
+	 * been published yet, or MISSING if it's no longer kept.
+	 */
+	Event get(long sequence) {
+		Event event = _events.get((int) sequence & _mask);
+		if (event == null || event._sequence < sequence) {
+			return null;
+		}
+		return event._sequence == sequence ? event : MISSING;
+	}
+
+	void add(Subscription subscription) {
+		_subscriptions.add(subscription);
+		synchronized (this) {
+			if (_notifier == null && !_closed) {
+				Thread notifier = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						notifySubscriptions();
+					}
+				}, "concert-feed-notifier");
+				notifier.setDaemon(true);
+				notifier.start();
+				_notifier = notifier;
+			}
+		}
+	}
+
+	void remove(Subscription subscription) {
+		_subscriptions.remove(subscription);
+	}
+
+	Executor getExecutor() {
+		return _executor;
+	}
+
+	/**
+	 * Stops the notifier and the delivery threads, interrupting any delivery
+	 * in progress. Subscriptions that are woken from now on are cancelled.
+	 */
+	public void close() {
+		synchronized (this) {
+			_closed = true;
+			if (_notifier != null) {
+				_notifier.interrupt();
+			}
+		}
+		_executor.shutdownNow();
+	}
+
+	/**
+	 * Wakes every subscription each time changes have been published, until
+	 * the feed is closed. Runs on the notifier thread.
+	 */
+	private void notifySubscriptions() {
+		while (!Thread.currentThread().isInterrupted()) {
+			if (!_changed.getAndSet(false)) {
+				LockSupport.park(this);
+				continue;
+			}
+			for (Subscription subscription : _subscriptions) {
+				subscription.wake();
+			}
+		}
+	}
+}
@@ -0,0 +1,1121 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.common.ConcertQuery;
+import nz.ac.auckland.concert.common.ConcertSnapshot;
+import nz.ac.auckland.concert.common.Partitioner;
+import nz.ac.auckland.concert.common.ResponseMessage.Change;
+import nz.ac.auckland.concert.common.ConcertQuery.SortKey;
+
+/**
+ * Thread-safe store of Concerts, shared by all sessions.
+ *
+ * Ids are allocated from an AtomicLong, so creating a Concert never waits on
+ * a lock to get its id. Concerts are spread over a power-of-two number of
+ * stripes by id, each guarded by its own lock, so operations on different
+ * Concerts rarely contend. Each stripe indexes its Concerts with a
+ * LongConcertMap, so ids aren't boxed to look Concerts up, and keeps their
+ * ids in a sorted array, so that scan() can merge the stripes' Concerts in
+ * id order without a boxed index over all of them. Every operation
+ * on a single Concert - including the conditional update() and delete(),
+ * which only succeed if the Concert exists - is atomic. So is each batch:
+ * createAll(), updateAll() and deleteAll() hold the locks of every stripe
+ * that the batch changes, taken in stripe order, until all its changes have
+ * been made. clear() holds every stripe's lock at once. Whenever more than
+ * one stripe is locked, they're locked in order, so that they can't
+ * deadlock.
+ *
+ * Ids are allocated in increasing order starting at 1, and are never reused,
+ * so every stored Concert has an id below getNextId().
+ *
+ * A store that holds one partition of a cluster's Concerts (see
+ * setPartition()) only allocates ids that belong to its partition, skipping
+ * the others, so ids are still allocated in increasing order without a
+ * lock, but are spread out.
+ *
+ * Concerts are also indexed by date, in a skip list, and by the words of
+ * their titles, in a TitleIndex. Both are updated while the stripe lock is
+ * held. rangeByDate() and searchTitles() read them without locking, so they
+ * don't block changes, but a Concert whose date or title is being changed
+ * concurrently may be missed.
+ *
+ * Every change increments the store's version while the stripe lock is
+ * held. list() and snapshot() return a consistent ConcertSnapshot without
+ * holding more than one stripe's lock at a time: they copy the stripes one
+ * after another, and retry if the version changed in the meantime. Each
+ * stripe keeps its sorted copy until it next changes, so a retry, or a
+ * snapshot after a few changes, only copies the stripes that changed. The
+ * latest snapshot is kept until the next change, so repeated Lists between
+ * changes share one snapshot (and its cached encoding). If changes keep
+ * racing a snapshot, it's finally taken holding every stripe's lock, as
+ * clear() does.
+ *
+ * Each change is also published to the store's ChangeFeed, under its
+ * version, so that subscribed sessions are sent the changes as they happen.
+ *
+ * If the store has a WriteAheadLog, each change is appended to the log while
+ * the stripe lock is held, and committed after it's released. A change that
+ * can't be logged is reported by throwing UncheckedIOException. If appending
+ * fails, the change isn't made. If committing fails, the change has already
+ * been made in memory.
+ *
+ */
+public class ConcertStore {
+	// Default number of stripes.
+	public static final int DEFAULT_STRIPES = 64;
+
+	// Number of times that snapshot() copies the stripes without locking
+	// them all, before giving up on doing so.
+	private static final int SNAPSHOT_ATTEMPTS = 4;
+
+	// Least number of Concerts that scan() copies from a stripe at a time.
+	private static final int SCAN_BATCH = 16;
+
+	private static final Comparator<Concert> ID_ORDER = new Comparator<Concert>() {
+		@Override
+		public int compare(Concert first, Concert second) {
+			return first.getId().compareTo(second.getId());
+		}
+	};
+
+	// Order of the date index, for Concerts that have dates.
+	private static final Comparator<Concert> DATE_ORDER = new Comparator<Concert>() {
+		@Override
+		public int compare(Concert first, Concert second) {
+			int result = Long.compare(first.getDate().getMillis(), second.getDate().getMillis());
+			return result != 0 ? result : first.getId().compareTo(second.getId());
+		}
+	};
+
+	// Unique id of the next concert to create, or where the search for it
+	// starts if the store is partitioned.
+	private final AtomicLong _nextId = new AtomicLong(1);
+
+	// How ids are partitioned, and the store's partition - or null if the
+	// store holds every partition.
+	private Partitioner _partitioner;
+	private int _partition;
+
+	// Number of changes made to the store, and the latest snapshot taken.
+	private final AtomicLong _version = new AtomicLong();
+	private volatile ConcertSnapshot _snapshot;
+
+	// Recent changes, for sessions that subscribe to them.
+	private final ChangeFeed _feed = new ChangeFeed();
+
+	private final Stripe[] _stripes;
+	private final int _mask;
+
+	// Concerts with dates, ordered by date and then id.
+	private final ConcurrentSkipListMap<DateKey, Concert> _byDate =
+			new ConcurrentSkipListMap<DateKey, Concert>();
+
+	private final TitleIndex _byTitle = new TitleIndex();
+
+	// Log of changes, or null if they aren't logged.
+	private final WriteAheadLog _log;
+
+	public ConcertStore() {
+		this(DEFAULT_STRIPES, null);
+	}
+
+	public ConcertStore(int stripes) {
+		this(stripes, null);
+	}
+
+	/**
+	 * Creates a store with at least the given number of stripes (rounded up
+	 * to a power of two), which logs its changes to log (if it's not null).
+	 */
+	public ConcertStore(int stripes, WriteAheadLog log) {
+		if (stripes < 1) {
+			throw new IllegalArgumentException("At least one stripe is required");
+		}
+		int count = Integer.highestOneBit(stripes);
+		if (count < stripes) {
+			count <<= 1;
+		}
+		_stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			_stripes[i] = new Stripe();
+		}
+		_mask = count - 1;
+		_log = log;
+	}
+
+	/**
+	 * Stores a new Concert with the given Concert's title and date, and
+	 * returns it with its newly allocated id.
+	 */
+	public Concert create(Concert concert) {
+		long id = allocateId();
+		Concert newConcert = new Concert(id, concert.getTitle(), concert.getDate());
+		commit(insert(id, newConcert));
+		return newConcert;
+	}
+
+	/**
+	 * Stores a new Concert for each of the given Concerts, allocating a
+	 * contiguous range of ids with a single atomic operation (or, if the
+	 * store is partitioned, one id at a time). The new Concerts are returned
+	 * in the same order, and are all stored at once.
+	 */
+	public List<Concert> createAll(List<Concert> concerts) {
+		long[] ids = new long[concerts.size()];
+		long firstId = _partitioner == null ? _nextId.getAndAdd(ids.length) : 0;
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = _partitioner == null ? firstId + i : allocateId();
+		}
+
+		List<Concert> created = new ArrayList<Concert>(ids.length);
+		long sequence = 0;
+		Stripe[] locked = lockStripes(ids);
+		try {
+			for (int i = 0; i < ids.length; i++) {
+				Concert concert = concerts.get(i);
+				Concert newConcert = new Concert(ids[i], concert.getTitle(),
+						concert.getDate());
+				sequence = insert(ids[i], newConcert);
+				created.add(newConcert);
+			}
+		} finally {
+			unlock(locked);
+		}
+		commit(sequence);
+		return created;
+	}
+
+	/**
+	 * Returns the Concert with the given id, or null if there isn't one.
+	 */
+	public Concert get(long id) {
+		Stripe stripe = stripeFor(id);
+		stripe.lock();
+		try {
+			return stripe._concerts.get(id);
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	/**
+	 * Replaces the stored Concert that has the same id as concert. Returns
+	 * false, leaving the store unchanged, if there isn't one.
+	 */
+	public boolean update(Concert concert) {
+		long sequence = replace(concert);
+		commit(sequence);
+		return sequence != 0;
+	}
+
+	/**
+	 * Updates each of the given Concerts, as update() does, and returns
+	 * whether each was updated. The updates are made at once, and committed
+	 * to the log together.
+	 */
+	public boolean[] updateAll(List<Concert> concerts) {
+		boolean[] updated = new boolean[concerts.size()];
+		long[] ids = new long[updated.length];
+		int count = 0;
+		for (Concert concert : concerts) {
+			if (concert.getId() != null) {
+				ids[count++] = concert.getId();
+			}
+		}
+
+		long last = 0;
+		Stripe[] locked = lockStripes(Arrays.copyOf(ids, count));
+		try {
+			for (int i = 0; i < updated.length; i++) {
+				long sequence = replace(concerts.get(i));
+				updated[i] = sequence != 0;
+				last = Math.max(last, sequence);
+			}
+		} finally {
+			unlock(locked);
+		}
+		commit(last);
+		return updated;
+	}
+
+	/**
+	 * Removes the Concert with the given id. Returns false if there isn't
+	 * one, so of several concurrent deletes of the same Concert exactly one
+	 * succeeds.
+	 */
+	public boolean delete(long id) {
+		long sequence = remove(id);
+		commit(sequence);
+		return sequence != 0;
+	}
+
+	/**
+	 * Deletes each of the Concerts with the given ids, as delete() does, and
+	 * returns whether each was deleted. The deletions are made at once, and
+	 * committed to the log together.
+	 */
+	public boolean[] deleteAll(long[] ids) {
+		boolean[] deleted = new boolean[ids.length];
+		long last = 0;
+		Stripe[] locked = lockStripes(ids);
+		try {
+			for (int i = 0; i < ids.length; i++) {
+				long sequence = remove(ids[i]);
+				deleted[i] = sequence != 0;
+				last = Math.max(last, sequence);
+			}
+		} finally {
+			unlock(locked);
+		}
+		commit(last);
+		return deleted;
+	}
+
+	/**
+	 * Removes all Concerts. Ids aren't reused after clearing.
+	 */
+	public void clear() {
+		for (Stripe stripe : _stripes) {
+			stripe.lock();
+		}
+		long sequence = -1;
+		try {
+			sequence = _log == null ? -1 : _log.appendClear();
+			for (Stripe stripe : _stripes) {
+				stripe.clear();
+			}
+			_byDate.clear();
+			_byTitle.clear();
+			changed(null, Change.Cleared, null, 0);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			for (Stripe stripe : _stripes) {
+				stripe.unlock();
+			}
+		}
+		commit(sequence);
+	}
+
+	/**
+	 * Returns all Concerts in id order, as an unmodifiable list that isn't
+	 * affected by later changes.
+	 */
+	public List<Concert> list() {
+		return snapshot().getConcerts();
+	}
+
+	/**
+	 * Returns a snapshot of all Concerts as of the current version.
+	 */
+	public ConcertSnapshot snapshot() {
+		ConcertSnapshot snapshot = _snapshot;
+		if (snapshot != null && snapshot.getVersion() == _version.get()) {
+			return snapshot;
+		}
+
+		List<List<Concert>> stripes = new ArrayList<List<Concert>>(_stripes.length);
+		long version = 0;
+		boolean consistent = false;
+		for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS && !consistent; attempt++) {
+			stripes.clear();
+			version = _version.get();
+			for (Stripe stripe : _stripes) {
+				stripe.lock();
+				try {
+					stripes.add(stripe.sorted());
+				} finally {
+					stripe.unlock();
+				}
+			}
+			// Each change increments the version while holding its stripe's
+			// lock, so if the version is unchanged then no change was made
+			// to a stripe after it had been copied.
+			consistent = _version.get() == version;
+		}
+		if (!consistent) {
+			stripes.clear();
+			for (Stripe stripe : _stripes) {
+				stripe.lock();
+			}
+			try {
+				version = _version.get();
+				for (Stripe stripe : _stripes) {
+					stripes.add(stripe.sorted());
+				}
+			} finally {
+				for (Stripe stripe : _stripes) {
+					stripe.unlock();
+				}
+			}
+		}
+
+		int size = 0;
+		for (List<Concert> stripe : stripes) {
+			size += stripe.size();
+		}
+		List<Concert> concerts = new ArrayList<Concert>(size);
+		for (List<Concert> stripe : stripes) {
+			concerts.addAll(stripe);
+		}
+		// The stripes are sorted runs, which the sort merges.
+		Collections.sort(concerts, ID_ORDER);
+		snapshot = new ConcertSnapshot(version, concerts);
+
+		// A slower, racing snapshot may replace a newer one; the next call
+		// then takes another.
+		_snapshot = snapshot;
+		return snapshot;
+	}
+
+	/**
+	 * Returns the number of changes that have been made to the store. Every
+	 * change, including one restored from the log, increments the version.
+	 */
+	public long getVersion() {
+		return _version.get();
+	}
+
+	/**
+	 * Returns up to limit Concerts whose ids are greater than afterId, in id
+	 * order. Each stripe's Concerts following afterId are copied a batch at a
+	 * time, holding its lock, and the batches are merged - so deleted ids
+	 * aren't visited, and the cost grows with limit and the number of
+	 * stripes rather than with the number of Concerts. Changes made during
+	 * the scan may or may not be seen.
+	 */
+	public List<Concert> scan(long afterId, int limit) {
+		List<Concert> concerts = new ArrayList<Concert>(Math.min(limit, 1024));
+		if (limit < 1) {
+			return concerts;
+		}
+		// Ids are spread evenly over the stripes, so each usually contributes
+		// about its share of the Concerts.
+		int batch = Math.max(limit / _stripes.length + 1, SCAN_BATCH);
+
+		// The head of the queue is the stripe with the lowest next id.
+		PriorityQueue<ScanCursor> cursors = new PriorityQueue<ScanCursor>(_stripes.length);
+		for (Stripe stripe : _stripes) {
+			ScanCursor cursor = new ScanCursor(stripe, batch);
+			if (cursor.fill(afterId)) {
+				cursors.add(cursor);
+			}
+		}
+		while (concerts.size() < limit && !cursors.isEmpty()) {
+			ScanCursor cursor = cursors.poll();
+			Concert concert = cursor.next();
+			concerts.add(concert);
+			if (cursor.hasNext() || cursor.fill(concert.getId())) {
+				cursors.add(cursor);
+			}
+		}
+		return concerts;
+	}
+
+	/**
+	 * Returns up to limit Concerts whose dates are at or after from and
+	 * before to (both in epoch milliseconds), in date order. The cost grows
+	 * with the logarithm of the number of Concerts, plus the number returned.
+	 */
+	public List<Concert> rangeByDate(long from, long to, int limit) {
+		List<Concert> concerts = new ArrayList<Concert>(Math.min(limit, 1024));
+		if (from >= to) {
+			return concerts;
+		}
+		for (Concert concert : _byDate.subMap(new DateKey(from, Long.MIN_VALUE),
+				new DateKey(to, Long.MIN_VALUE)).values()) {
+			if (concerts.size() >= limit) {
+				break;
+			}
+			concerts.add(concert);
+		}
+		return concerts;
+	}
+
+	/**
+	 * Returns the Concerts that match query, sorted and limited as it
+	 * specifies.
+	 *
+	 * A query for a date range in date order reads the date index from the
+	 * start of the range, and stops once it has enough matches. Other queries
+	 * visit every Concert, keeping the best matches so far in a heap of at
+	 * most limit Concerts, so the cost is O(n log limit) and only the result
+	 * is held in memory.
+	 */
+	public List<Concert> query(ConcertQuery query) {
+		int limit = Math.max(query.getLimit(), 1);
+		List<Concert> concerts = new ArrayList<Concert>(Math.min(limit, 1024));
+
+		if (query.getSortKey() == SortKey.Date
+				&& (query.getFrom() != null || query.getTo() != null)) {
+			NavigableMap<DateKey, Concert> range = _byDate;
+			if (query.getFrom() != null) {
+				range = range.tailMap(new DateKey(query.getFrom(), Long.MIN_VALUE), true);
+			}
+			if (query.getTo() != null) {
+				range = range.headMap(new DateKey(query.getTo(), Long.MIN_VALUE), false);
+			}
+			if (query.isDescending()) {
+				range = range.descendingMap();
+			}
+			for (Concert concert : range.values()) {
+				if (concerts.size() >= limit) {
+					break;
+				}
+				if (query.matches(concert)) {
+					concerts.add(concert);
+				}
+			}
+			return concerts;
+		}
+
+		// The head of the heap is the worst of the best matches so far.
+		Comparator<Concert> order = query.getComparator();
+		PriorityQueue<Concert> best = new PriorityQueue<Concert>(
+				Math.min(limit, 1024) + 1, Collections.reverseOrder(order));
+		List<Concert> stripeConcerts = new ArrayList<Concert>();
+		for (Stripe stripe : _stripes) {
+			stripeConcerts.clear();
+			stripe.lock();
+			try {
+				stripe._concerts.addValuesTo(stripeConcerts);
+			} finally {
+				stripe.unlock();
+			}
+			for (Concert concert : stripeConcerts) {
+				if (!query.matches(concert)) {
+					continue;
+				}
+				if (best.size() < limit) {
+					best.add(concert);
+				} else if (order.compare(concert, best.peek()) < 0) {
+					best.poll();
+					best.add(concert);
+				}
+			}
+		}
+		concerts.addAll(best);
+		Collections.sort(concerts, order);
+		return concerts;
+	}
+
+	/**
+	 * Returns up to limit Concerts with a word in their title that starts
+	 * with prefix, ranked as described by TitleIndex.
+	 */
+	public List<Concert> searchTitles(String prefix, int limit) {
+		return _byTitle.search(prefix, limit);
+	}
+
+	/**
+	 * Returns the number of stored Concerts.
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : _stripes) {
+			stripe.lock();
+			try {
+				size += stripe._concerts.size();
+			} finally {
+				stripe.unlock();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the id that the next Concert to be created will get or, if
+	 * the store is partitioned, the id from which its id will be allocated.
+	 */
+	public long getNextId() {
+		return _nextId.get();
+	}
+
+	/**
+	 * Stores a Concert read from the log, without logging it again.
+	 */
+	void restore(Concert concert) {
+		long id = concert.getId();
+		Stripe stripe = stripeFor(id);
+		stripe.lock();
+		try {
+			Concert old = stripe.put(id, concert);
+			reindex(old, concert);
+			changed(stripe, old == null ? Change.Created : Change.Updated, concert, id);
+		} finally {
+			stripe.unlock();
+		}
+
+		// Don't reuse the ids of restored Concerts.
+		advanceNextId(id + 1);
+	}
+
+	/**
+	 * Stores Concerts read from a snapshot, without logging them or
+	 * publishing them to the change feed. Must be called on an unchanged
+	 * store, before it's shared. Rather than restoring the Concerts one at a
+	 * time, it takes the stripe locks once, fills the stripes, sorts each
+	 * stripe's ids once, and adds the date and title indexes' entries in
+	 * sorted order.
+	 * The version is advanced by the number of Concerts, as restore() would.
+	 */
+	void load(List<Concert> concerts) {
+		for (Stripe stripe : _stripes) {
+			stripe.lock();
+		}
+		try {
+			if (_version.get() != 0) {
+				throw new IllegalStateException("The store has already been changed");
+			}
+			long nextId = 0;
+			for (Concert concert : concerts) {
+				long id = concert.getId();
+				stripeFor(id).append(id, concert);
+				nextId = Math.max(nextId, id + 1);
+			}
+			for (Stripe stripe : _stripes) {
+				stripe.sortIds();
+			}
+
+			List<Concert> dated = new ArrayList<Concert>(concerts.size());
+			for (Concert concert : concerts) {
+				if (concert.getDate() != null) {
+					dated.add(concert);
+				}
+			}
+			// Adding an entry at the end of a skip list is faster than at a
+			// random position, by more than sorting the entries costs.
+			Collections.sort(dated, DATE_ORDER);
+			for (Concert concert : dated) {
+				_byDate.put(new DateKey(concert.getDate().getMillis(), concert.getId()), concert);
+			}
+			_byTitle.addAll(concerts);
+
+			_version.addAndGet(concerts.size());
+			advanceNextId(nextId);
+		} finally {
+			for (Stripe stripe : _stripes) {
+				stripe.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Stores a Concert replicated from a primary server, keeping the id that
+	 * the primary gave it, whether or not the store already has a Concert
+	 * with that id.
+	 */
+	void put(Concert concert) {
+		long id = concert.getId();
+		Stripe stripe = stripeFor(id);
+		long sequence;
+		stripe.lock();
+		try {
+			Concert old = stripe._concerts.get(id);
+			if (_log == null) {
+				sequence = -1;
+			} else {
+				sequence = old == null ? _log.appendCreate(concert) : _log.appendUpdate(concert);
+			}
+			stripe.put(id, concert);
+			reindex(old, concert);
+			changed(stripe, old == null ? Change.Created : Change.Updated, concert, id);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			stripe.unlock();
+		}
+		advanceNextId(id + 1);
+		commit(sequence);
+	}
+
+	/**
+	 * Replaces all Concerts with a primary server's snapshot of its Concerts,
+	 * holding every stripe's lock so that no reader sees part of the change.
+	 */
+	void replaceAll(List<Concert> concerts) {
+		for (Stripe stripe : _stripes) {
+			stripe.lock();
+		}
+		long sequence = -1;
+		long nextId = 0;
+		try {
+			if (_log != null) {
+				sequence = _log.appendClear();
+				for (Concert concert : concerts) {
+					sequence = _log.appendCreate(concert);
+				}
+			}
+			for (Stripe stripe : _stripes) {
+				stripe.clear();
+			}
+			_byDate.clear();
+			_byTitle.clear();
+			changed(null, Change.Cleared, null, 0);
+			for (Concert concert : concerts) {
+				long id = concert.getId();
+				Stripe stripe = stripeFor(id);
+				stripe.put(id, concert);
+				reindex(null, concert);
+				changed(stripe, Change.Created, concert, id);
+				nextId = Math.max(nextId, id + 1);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			for (Stripe stripe : _stripes) {
+				stripe.unlock();
+			}
+		}
+		advanceNextId(nextId);
+		commit(sequence);
+	}
+
+	/**
+	 * Makes the store hold one partition of a cluster's Concerts, so that
+	 * the ids it allocates all belong to that partition. Must be called
+	 * before the store is shared.
+	 */
+	void setPartition(Partitioner partitioner, int partition) {
+		if (partition < 0 || partition >= partitioner.getPartitionCount()) {
+			throw new IllegalArgumentException("No partition " + partition + " of "
+					+ partitioner.getPartitionCount());
+		}
+		_partitioner = partitioner.getPartitionCount() == 1 ? null : partitioner;
+		_partition = partition;
+	}
+
+	/**
+	 * Ensures that ids allocated from now on are at least nextId.
+	 */
+	void advanceNextId(long nextId) {
+		long current;
+		while ((current = _nextId.get()) < nextId) {
+			_nextId.compareAndSet(current, nextId);
+		}
+	}
+
+	ChangeFeed getFeed() {
+		return _feed;
+	}
+
+	/**
+	 * Stops the threads of the store's ChangeFeed. The store can still be
+	 * used, but subscriptions to it are no longer sent changes.
+	 */
+	public void close() {
+		_feed.close();
+	}
+
+	int getStripeCount() {
+		return _stripes.length;
+	}
+
+	/**
+	 * Returns the Concerts in a stripe, in no particular order, for writing a
+	 * snapshot.
+	 */
+	List<Concert> copyStripe(int index) {
+		Stripe stripe = _stripes[index];
+		stripe.lock();
+		try {
+			List<Concert> concerts = new ArrayList<Concert>(stripe._concerts.size());
+			stripe._concerts.addValuesTo(concerts);
+			return concerts;
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	/**
+	 * Removes a Concert deleted by a change read from the log.
+	 */
+	void forget(long id) {
+		Stripe stripe = stripeFor(id);
+		stripe.lock();
+		try {
+			reindex(stripe.remove(id), null);
+			changed(stripe, Change.Deleted, null, id);
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	/**
+	 * Removes all Concerts, as a Clear read from the log does.
+	 */
+	void forgetAll() {
+		for (Stripe stripe : _stripes) {
+			stripe.lock();
+		}
+		try {
+			for (Stripe stripe : _stripes) {
+				stripe.clear();
+			}
+			_byDate.clear();
+			_byTitle.clear();
+			changed(null, Change.Cleared, null, 0);
+		} finally {
+			for (Stripe stripe : _stripes) {
+				stripe.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Allocates the id of a new Concert.
+	 */
+	private long allocateId() {
+		if (_partitioner == null) {
+			return _nextId.getAndIncrement();
+		}
+		while (true) {
+			long current = _nextId.get();
+			long id = _partitioner.nextId(current, _partition);
+			if (_nextId.compareAndSet(current, id + 1)) {
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * The following methods make a change while holding the stripe lock, and
+	 * return the sequence number of its log record. The number is -1 if the
+	 * change isn't logged, and 0 if the change couldn't be made.
+	 */
+	private long insert(long id, Concert concert) {
+		Stripe stripe = stripeFor(id);
+		stripe.lock();
+		try {
+			long sequence = _log == null ? -1 : _log.appendCreate(concert);
+			stripe.put(id, concert);
+			reindex(null, concert);
+			changed(stripe, Change.Created, concert, id);
+			return sequence;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	private long replace(Concert concert) {
+		if (concert.getId() == null) {
+			return 0;
+		}
+		long id = concert.getId();
+		Stripe stripe = stripeFor(id);
+		stripe.lock();
+		try {
+			Concert old = stripe._concerts.get(id);
+			if (old == null) {
+				return 0;
+			}
+			long sequence = _log == null ? -1 : _log.appendUpdate(concert);
+			stripe._concerts.replace(id, concert);
+			reindex(old, concert);
+			changed(stripe, Change.Updated, concert, id);
+			return sequence;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	private long remove(long id) {
+		Stripe stripe = stripeFor(id);
+		stripe.lock();
+		try {
+			if (!stripe._concerts.containsKey(id)) {
+				return 0;
+			}
+			long sequence = _log == null ? -1 : _log.appendDelete(id);
+			reindex(stripe.remove(id), null);
+			changed(stripe, Change.Deleted, null, id);
+			return sequence;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the log record with the given sequence number to be
+	 * committed, if it's logged.
+	 */
+	private void commit(long sequence) {
+		if (sequence > 0) {
+			try {
+				_log.commit(sequence);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Replaces old (if it's not null) with concert (if it's not null) in the
+	 * date and title indexes. Called while holding the lock of their stripe.
+	 */
+	private void reindex(Concert old, Concert concert) {
+		if (old != null) {
+			if (old.getDate() != null) {
+				_byDate.remove(new DateKey(old.getDate().getMillis(), old.getId()));
+			}
+			// Entries for an unchanged title are replaced by add().
+			if (concert == null || !Objects.equals(old.getTitle(), concert.getTitle())) {
+				_byTitle.remove(old);
+			}
+		}
+		if (concert != null) {
+			if (concert.getDate() != null) {
+				_byDate.put(new DateKey(concert.getDate().getMillis(), concert.getId()), concert);
+			}
+			_byTitle.add(concert);
+		}
+	}
+
+	/**
+	 * Records a change to a stripe's Concerts (or, if stripe is null, to
+	 * every stripe's), giving it the next version, and publishes it to the
+	 * change feed. Called while holding the stripe's lock.
+	 */
+	private void changed(Stripe stripe, Change change, Concert concert, long id) {
+		if (stripe != null) {
+			stripe._sorted = null;
+		}
+		_feed.publish(_version.incrementAndGet(), change, concert, id);
+	}
+
+	private Stripe stripeFor(long id) {
+		return _stripes[stripeIndex(id)];
+	}
+
+	private int stripeIndex(long id) {
+		// Consecutive ids fall in different stripes.
+		return (int) (id ^ (id >>> 32)) & _mask;
+	}
+
+	/**
+	 * Locks the stripes of the given ids, in stripe order, and returns them
+	 * for unlock().
+	 */
+	private Stripe[] lockStripes(long[] ids) {
+		boolean[] used = new boolean[_stripes.length];
+		int count = 0;
+		for (long id : ids) {
+			int index = stripeIndex(id);
+			if (!used[index]) {
+				used[index] = true;
+				count++;
+			}
+		}
+		Stripe[] locked = new Stripe[count];
+		count = 0;
+		for (int i = 0; i < used.length; i++) {
+			if (used[i]) {
+				_stripes[i].lock();
+				locked[count++] = _stripes[i];
+			}
+		}
+		return locked;
+	}
+
+	private static void unlock(Stripe[] locked) {
+		for (Stripe stripe : locked) {
+			stripe.unlock();
+		}
+	}
+
+	/**
+	 * A lock and the Concerts that it guards.
+	 */
+	private static class Stripe extends ReentrantLock {
+		private static final long serialVersionUID = 1L;
+
+		private final LongConcertMap _concerts = new LongConcertMap();
+
+		// The ids of the Concerts in ascending order, in the first _idCount
+		// elements. Ids are allocated in increasing order, so most new ids
+		// are appended.
+		private long[] _ids = new long[LongConcertMap.DEFAULT_CAPACITY];
+		private int _idCount;
+
+		// The Concerts in id order, or null if they've changed since they
+		// were last listed. The list is never modified, so it can be shared
+		// by snapshots.
+		private List<Concert> _sorted;
+
+		/**
+		 * Stores concert with id, returning the Concert it replaces (or
+		 * null). This and the following methods are called while holding
+		 * the lock.
+		 */
+		Concert put(long id, Concert concert) {
+			Concert old = _concerts.put(id, concert);
+			if (old == null) {
+				int index = _idCount;
+				if (index > 0 && _ids[index - 1] > id) {
+					index = -Arrays.binarySearch(_ids, 0, _idCount, id) - 1;
+				}
+				if (_idCount == _ids.length) {
+					_ids = Arrays.copyOf(_ids, _ids.length * 2);
+				}
+				System.arraycopy(_ids, index, _ids, index + 1, _idCount - index);
+				_ids[index] = id;
+				_idCount++;
+			}
+			return old;
+		}
+
+		/**
+		 * Stores a Concert whose id isn't stored yet, leaving the ids out of
+		 * order until sortIds() is called.
+		 */
+		void append(long id, Concert concert) {
+			if (_concerts.put(id, concert) != null) {
+				throw new IllegalArgumentException("Concert " + id + " is stored twice");
+			}
+			if (_idCount == _ids.length) {
+				_ids = Arrays.copyOf(_ids, _ids.length * 2);
+			}
+			_ids[_idCount++] = id;
+		}
+
+		void sortIds() {
+			Arrays.sort(_ids, 0, _idCount);
+			_sorted = null;
+		}
+
+		/**
+		 * Removes the Concert with id, returning it (or null).
+		 */
+		Concert remove(long id) {
+			Concert old = _concerts.remove(id);
+			if (old != null) {
+				int index = Arrays.binarySearch(_ids, 0, _idCount, id);
+				System.arraycopy(_ids, index + 1, _ids, index, _idCount - index - 1);
+				_idCount--;
+			}
+			return old;
+		}
+
+		void clear() {
+			_concerts.clear();
+			_ids = new long[LongConcertMap.DEFAULT_CAPACITY];
+			_idCount = 0;
+			_sorted = null;
+		}
+
+		/**
+		 * Adds up to max Concerts whose ids are greater than afterId to
+		 * concerts, in id order.
+		 */
+		void scan(long afterId, int max, List<Concert> concerts) {
+			int index = Arrays.binarySearch(_ids, 0, _idCount, afterId);
+			index = index >= 0 ? index + 1 : -index - 1;
+			int end = (int) Math.min((long) index + max, _idCount);
+			for (; index < end; index++) {
+				concerts.add(_concerts.get(_ids[index]));
+			}
+		}
+
+		/**
+		 * Returns the Concerts in id order.
+		 */
+		List<Concert> sorted() {
+			if (_sorted == null) {
+				List<Concert> concerts = new ArrayList<Concert>(_idCount);
+				scan(Long.MIN_VALUE, _idCount, concerts);
+				_sorted = concerts;
+			}
+			return _sorted;
+		}
+	}
+
+	/**
+	 * A scan()'s position in one stripe: the batch of Concerts last copied
+	 * from it, and the next of them to be returned.
+	 */
+	private static final class ScanCursor implements Comparable<ScanCursor> {
+		private final Stripe _stripe;
+		private final int _batch;
+		private final List<Concert> _concerts;
+		private int _next;
+
+		ScanCursor(Stripe stripe, int batch) {
+			_stripe = stripe;
+			_batch = batch;
+			_concerts = new ArrayList<Concert>(Math.min(batch, 1024));
+		}
+
+		/**
+		 * Copies the next batch of Concerts whose ids are greater than
+		 * afterId, unless the last batch held all that were left, and
+		 * returns whether there are any.
+		 */
+		boolean fill(long afterId) {
+			if (_next > 0 && _concerts.size() < _batch) {
+				return false;
+			}
+			_concerts.clear();
+			_next = 0;
+			_stripe.lock();
+			try {
+				_stripe.scan(afterId, _batch, _concerts);
+			} finally {
+				_stripe.unlock();
+			}
+			return !_concerts.isEmpty();
+		}
+
+		boolean hasNext() {
+			return _next < _concerts.size();
+		}
+
+		Concert next() {
+			return _concerts.get(_next++);
+		}
+
+		@Override
+		public int compareTo(ScanCursor other) {
+			return Long.compare(_concerts.get(_next).getId(),
+					other._concerts.get(other._next).getId());
+		}
+	}
+
+	/**
+	 * Key of the date index. Concerts on the same date are ordered by id.
+	 */
+	private static final class DateKey implements Comparable<DateKey> {
+		private final long _millis;
+		private final long _id;
+
+		DateKey(long millis, long id) {
+			_millis = millis;
+			_id = id;
+		}
+
+		@Override
+		public int compareTo(DateKey other) {
+			int result = Long.compare(_millis, other._millis);
+			return result != 0 ? result : Long.compare(_id, other._id);
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import nz.ac.auckland.concert.common.BinaryCodec;
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.server.WriteAheadLog.FsyncPolicy;
+
+/**
+ * Keeps a ConcertStore's Concerts in a directory, as a snapshot and the
+ * segments of a WriteAheadLog holding the changes made since.
+ *
+ * A snapshot is taken periodically (if there have been changes) on a
+ * background thread, while requests continue to be processed:
+ * 1. The log is rotated to a new segment, so that every change in earlier
+ *    segments has already been made to the store.
+ * 2. Each stripe of the store is copied and written to a temporary file,
+ *    which is forced to disk and renamed over the previous snapshot.
+ * 3. The segments before the new one are deleted.
+ * The snapshot may include some of the changes made after the rotation.
+ * That's harmless, as every log record sets a Concert's whole state, so
+ * replaying the new segment over the snapshot gives the same result.
+ *
+ * The snapshot file holds a header (the first segment to replay, and the
+ * next id to allocate) followed by chunks of Concerts in the BinaryCodec list
+ * encoding, each framed by its length and a CRC32 checksum. It's read
+ * through a MappedByteBuffer, so loading doesn't copy it onto the heap.
+ *
+ */
+public class DataDirectory implements Closeable {
+	// Default time (ms) between snapshots.
+	public static final long DEFAULT_SNAPSHOT_INTERVAL = 60000;
+
+	public static final String SNAPSHOT_FILE = "concerts.snapshot";
+	private static final String SEGMENT_PREFIX = "concerts-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	private static final int MAGIC = 0x434F4E43;
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 24;
+
+	// Maximum number of Concerts in a snapshot chunk.
+	private static final int CHUNK_SIZE = 8192;
+
+	// Largest region of the snapshot that's mapped at once.
+	private static final long MAPPING_SIZE = 1 << 30;
+
+	private final File _dir;
+	private final FsyncPolicy _fsyncPolicy;
+	private final long _fsyncInterval;
+	private final long _snapshotInterval;
+
+	private ConcertStore _store;
+	private WriteAheadLog _log;
+
+	// Number of the segment being appended to, and the log's sequence number
+	// when the last snapshot was started. Guarded by _snapshotLock.
+	private final Object _snapshotLock = new Object();
+	private long _segment;
+	private long _appendedAtSnapshot;
+
+	private ScheduledExecutorService _snapshotter;
+
+	/**
+	 * @param snapshotInterval time (ms) between snapshots, or 0 for none.
+	 */
+	public DataDirectory(File dir, FsyncPolicy fsyncPolicy, long fsyncInterval,
+			long snapshotInterval) {
+		_dir = dir;
+		_fsyncPolicy = fsyncPolicy;
+		_fsyncInterval = fsyncInterval;
+		_snapshotInterval = snapshotInterval;
+	}
+
+	/**
+	 * Restores the Concerts from the latest snapshot and the log segments
+	 * that follow it, and returns a store that logs further changes.
+	 */
+	public ConcertStore load() throws IOException {
+		long start = System.currentTimeMillis();
+		_dir.mkdirs();
+
+		File snapshotFile = new File(_dir, SNAPSHOT_FILE);
+		FileChannel snapshot = null;
+		long firstSegment = 1;
+		long nextId = 1;
+		if (snapshotFile.exists()) {
+			snapshot = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ);
+			if (snapshot.size() < HEADER_LENGTH) {
+				snapshot.close();
+				throw new IOException(snapshotFile + " is truncated");
+			}
+			ByteBuffer header = snapshot.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				snapshot.close();
+				throw new IOException(snapshotFile + " isn't a concert snapshot");
+			}
+			firstSegment = header.getLong();
+			nextId = header.getLong();
+		}
+
+		// Segments older than the snapshot are left over from a snapshot that
+		// was interrupted before it deleted them.
+		List<Long> segments = new ArrayList<Long>();
+		for (long segment : listSegments()) {
+			if (segment < firstSegment) {
+				segmentFile(segment).delete();
+			} else {
+				segments.add(segment);
+			}
+		}
+		_segment = segments.isEmpty() ? firstSegment : segments.get(segments.size() - 1);
+
+		_log = WriteAheadLog.open(segmentFile(_segment), _fsyncPolicy, _fsyncInterval);
+		_store = new ConcertStore(ConcertStore.DEFAULT_STRIPES, _log);
+
+		long restored = 0;
+		if (snapshot != null) {
+			try {
+				restored = loadSnapshot(snapshot, _store);
+			} finally {
+				snapshot.close();
+			}
+			_store.advanceNextId(nextId);
+		}
+
+		long records = 0;
+		for (long segment : segments) {
+			if (segment != _segment) {
+				records += WriteAheadLog.replay(segmentFile(segment), _store);
+			}
+		}
+		records += _log.replay(_store);
+		_appendedAtSnapshot = _log.getAppended();
+
+		System.out.println("Restored " + _store.size() + " concerts ("
+				+ restored + " from the snapshot, then " + records
+				+ " log records) in " + (System.currentTimeMillis() - start) + "ms");
+
+		if (_snapshotInterval > 0) {
+			_snapshotter = Executors.newSingleThreadScheduledExecutor(
+					SelectorEngine.namedThreadFactory("concert-snapshot-"));
+			_snapshotter.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (_log.getAppended() > _appendedAtSnapshot) {
+							snapshot();
+						}
+					} catch (IOException e) {
+						System.out.println("Unable to write snapshot: " + e.getMessage());
+					}
+				}
+			}, _snapshotInterval, _snapshotInterval, TimeUnit.MILLISECONDS);
+		}
+		return _store;
+	}
+
+	/**
+	 * Writes a snapshot of the store, and deletes the log segments that it
+	 * makes redundant. Requests continue to be processed meanwhile.
+	 */
+	public void snapshot() throws IOException {
+		synchronized (_snapshotLock) {
+			long start = System.currentTimeMillis();
+			long appended = _log.getAppended();
+			long segment = _segment + 1;
+			_log.rotate(segmentFile(segment));
+			_segment = segment;
+			long nextId = _store.getNextId();
+
+			File snapshotFile = new File(_dir, SNAPSHOT_FILE);
+			File tempFile = new File(_dir, SNAPSHOT_FILE + ".tmp");
+			long count = 0;
+			FileOutputStream file = new FileOutputStream(tempFile);
+			try {
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(file, 65536));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(segment);
+				out.writeLong(nextId);
+
+				ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+				DataOutputStream chunkOut = new DataOutputStream(chunk);
+				CRC32 crc = new CRC32();
+				for (int i = 0; i < _store.getStripeCount(); i++) {
+					List<Concert> concerts = _store.copyStripe(i);
+					for (int from = 0; from < concerts.size(); from += CHUNK_SIZE) {
+						List<Concert> part = concerts.subList(from,
+								Math.min(from + CHUNK_SIZE, concerts.size()));
+						chunk.reset();
+						BinaryCodec.writeConcerts(chunkOut, part);
+						byte[] bytes = chunk.toByteArray();
+						crc.reset();
+						crc.update(bytes);
+						out.writeInt(bytes.length);
+						out.writeInt((int) crc.getValue());
+						out.write(bytes);
+						count += part.size();
+					}
+				}
+				// An empty chunk marks the end.
+				out.writeInt(0);
+				out.writeInt(0);
+				out.flush();
+				file.getChannel().force(true);
+			} finally {
+				file.close();
+			}
+			Files.move(tempFile.toPath(), snapshotFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			forceDirectory();
+
+			for (long old : listSegments()) {
+				if (old < segment) {
+					segmentFile(old).delete();
+				}
+			}
+			_appendedAtSnapshot = appended;
+
+			System.out.println("Wrote a snapshot of " + count + " concerts in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		}
+	}
+
+	/**
+	 * Stops taking snapshots, and closes the log.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (_snapshotter != null) {
+			_snapshotter.shutdown();
+			try {
+				_snapshotter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (_log != null) {
+			_log.close();
+		}
+	}
+
+	/**
+	 * Reads the chunks of a snapshot into store, and returns the number of
+	 * Concerts read. The file is mapped in regions of up to MAPPING_SIZE
+	 * bytes, each starting at a chunk. Every chunk is checked before any
+	 * Concert is stored, and then they're loaded into the store at once.
+	 */
+	private static long loadSnapshot(FileChannel snapshot, ConcertStore store) throws IOException {
+		long size = snapshot.size();
+		long position = HEADER_LENGTH;
+		List<Concert> concerts = new ArrayList<Concert>();
+		MappedByteBuffer region = null;
+		long regionStart = 0;
+		CRC32 crc = new CRC32();
+
+		while (true) {
+			if (position + 8 > size) {
+				throw new IOException("Snapshot is truncated");
+			}
+			if (region == null || position + 8 > regionStart + region.capacity()) {
+				regionStart = position;
+				region = snapshot.map(FileChannel.MapMode.READ_ONLY, regionStart,
+						Math.min(MAPPING_SIZE, size - regionStart));
+			}
+			region.position((int) (position - regionStart));
+			int length = region.getInt();
+			int checksum = region.getInt();
+			if (length == 0) {
+				store.load(concerts);
+				return concerts.size();
+			}
+			if (position + 8 + length > regionStart + region.capacity()) {
+				if (position + 8 + length > size) {
+					throw new IOException("Snapshot is truncated");
+				}
+				region = null;
+				continue;
+			}
+
+			ByteBuffer chunk = region.slice();
+			chunk.limit(length);
+			crc.reset();
+			crc.update(chunk.duplicate());
+			if ((int) crc.getValue() != checksum) {
+				throw new IOException("Snapshot is corrupt at offset " + position);
+			}
+			concerts.addAll(BinaryCodec.readConcerts(
+					new DataInputStream(new ByteBufferInputStream(chunk))));
+			position += 8 + length;
+		}
+	}
+
+	private List<Long> listSegments() {
+		List<Long> segments = new ArrayList<Long>();
+		String[] names = _dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+								name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						// Not a segment.
+					}
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private File segmentFile(long segment) {
+		return new File(_dir, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Makes the snapshot's rename durable. Not every platform supports
+	 * forcing a directory, in which case this does nothing.
+	 */
+	private void forceDirectory() {
+		try {
+			FileChannel dir = FileChannel.open(_dir.toPath(), StandardOpenOption.READ);
+			try {
+				dir.force(true);
+			} finally {
+				dir.close();
+			}
+		} catch (IOException e) {
+			// Unsupported.
+		}
+	}
+
+	/**
+	 * InputStream over the remaining bytes of a ByteBuffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer _buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			_buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return _buffer.hasRemaining() ? _buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!_buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(length, _buffer.remaining());
+			_buffer.get(bytes, offset, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return _buffer.remaining();
+		}
+	}
+}
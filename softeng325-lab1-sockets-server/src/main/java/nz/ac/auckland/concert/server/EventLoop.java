@@ -0,0 +1,195 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single-threaded event loop that multiplexes many client sessions over one
+ * Selector.
+ *
+ * All channel and SelectionKey operations for the sessions registered with
+ * an EventLoop take place on the loop's own thread. Other threads hand work
+ * to the loop via execute(), which queues a task and wakes up the Selector.
+ *
+ */
+public class EventLoop implements Runnable {
+	// Interval (ms) at which sessions are checked on, e.g. for having
+	// stalled part way through sending a message.
+	private static final long TICK_INTERVAL = 1000;
+
+	private final SelectorEngine _engine;
+	private final Selector _selector;
+
+	// Tasks submitted by other threads, run by the loop between selects.
+	private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private volatile boolean _running = true;
+
+	// Time (ms) at which sessions were last checked on.
+	private long _lastTick;
+
+	public EventLoop(SelectorEngine engine) throws IOException {
+		_engine = engine;
+		_selector = Selector.open();
+	}
+
+	/**
+	 * Queues a task to be run on this loop's thread.
+	 */
+	public void execute(Runnable task) {
+		_tasks.add(task);
+		_selector.wakeup();
+	}
+
+	/**
+	 * Registers a listening channel with this loop, so that it accepts new
+	 * connections on behalf of the engine.
+	 */
+	public void registerAcceptor(final ServerSocketChannel acceptor) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					acceptor.register(_selector, SelectionKey.OP_ACCEPT);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Registers a newly accepted connection with this loop, creating a
+	 * session for it.
+	 */
+	public void register(final SocketChannel channel) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.configureBlocking(false);
+					SelectionKey key = channel.register(_selector,
+							SelectionKey.OP_READ);
+					NioSession session = new NioSession(_engine,
+							EventLoop.this, channel, key);
+					key.attach(session);
+					session.open();
+				} catch (IOException e) {
+					closeQuietly(channel);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops the loop, closing all of its sessions.
+	 */
+	public void shutdown() {
+		_running = false;
+		_selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (_running) {
+				_selector.select(TICK_INTERVAL);
+				runTasks();
+
+				Iterator<SelectionKey> keys = _selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+				tick();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (ClosedSelectorException e) {
+			// Loop has been shut down.
+		} finally {
+			closeAll();
+		}
+	}
+
+	private void handle(SelectionKey key) {
+		if (!key.isValid()) {
+			return;
+		}
+		if (key.isAcceptable()) {
+			accept((ServerSocketChannel) key.channel());
+			return;
+		}
+
+		NioSession session = (NioSession) key.attachment();
+		if (key.isReadable()) {
+			session.onReadable();
+		}
+		if (key.isValid() && key.isWritable()) {
+			session.flush();
+		}
+	}
+
+	private void accept(ServerSocketChannel acceptor) {
+		try {
+			SocketChannel channel;
+			while ((channel = acceptor.accept()) != null) {
+				_engine.accepted(channel);
+			}
+		} catch (IOException e) {
+			// The acceptor has been closed as part of shutting down.
+		}
+	}
+
+	private void tick() {
+		long now = System.currentTimeMillis();
+		if (now - _lastTick < TICK_INTERVAL) {
+			return;
+		}
+		_lastTick = now;
+		for (SelectionKey key : _selector.keys()) {
+			Object attachment = key.attachment();
+			if (attachment instanceof NioSession) {
+				((NioSession) attachment).onTick(now);
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = _tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private void closeAll() {
+		for (SelectionKey key : _selector.keys()) {
+			Object attachment = key.attachment();
+			if (attachment instanceof NioSession) {
+				((NioSession) attachment).close();
+			}
+		}
+		try {
+			_selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing more can be done with the channel.
+		}
+	}
+}
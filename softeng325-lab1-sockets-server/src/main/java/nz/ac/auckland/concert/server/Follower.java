@@ -0,0 +1,253 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import nz.ac.auckland.concert.common.Connection;
+import nz.ac.auckland.concert.common.RequestMessage;
+import nz.ac.auckland.concert.common.ResponseMessage;
+import nz.ac.auckland.concert.common.ServerStats;
+import nz.ac.auckland.concert.common.SessionFeature;
+import nz.ac.auckland.concert.common.WireFormat;
+
+/**
+ * Keeps a server's ConcertStore a copy of a primary server's, so that the
+ * server can serve reads as a replica.
+ *
+ * The follower subscribes to the primary's changes (see Subscription), and
+ * applies each change event to the store in the primary's order: a snapshot
+ * replaces all Concerts, and later changes are applied one by one, keeping
+ * the primary's ids. Changes are applied asynchronously, so reads from the
+ * follower may briefly miss changes that the primary has made. If the
+ * connection to the primary fails, the follower reconnects and resumes from
+ * the last change it applied, backing off while the primary can't be
+ * reached.
+ *
+ * Once a second, the follower also asks the primary for its version, to
+ * measure how far behind it is: the number of changes yet to be applied, and
+ * how long the oldest of them has been waiting (to within the polling
+ * interval).
+ *
+ * A follower is promoted, e.g. when its primary has failed, by stopping it;
+ * the server then accepts changes itself.
+ *
+ */
+public class Follower implements Runnable {
+	// Interval (ms) between polls of the primary's version.
+	private static final long POLL_INTERVAL = 1000;
+
+	// Delays (ms) before reconnecting to the primary.
+	private static final long MIN_RETRY_DELAY = 100;
+	private static final long MAX_RETRY_DELAY = 5000;
+
+	private final ConcertStore _store;
+	private final String _primaryHost;
+	private final int _primaryPort;
+
+	// Position, in the primary's changes, of the last change applied - or
+	// null before the first snapshot.
+	private volatile Long _epoch;
+	private volatile long _sequence;
+
+	// The primary's version as of the last poll, and a version that the
+	// follower is catching up to, with when that version was seen.
+	private volatile long _primaryVersion;
+	private volatile long _target;
+	private volatile long _targetSeen;
+
+	private volatile boolean _stopped;
+	private volatile Connection _connection;
+	private Thread _thread;
+
+	public Follower(ConcertStore store, String primaryHost, int primaryPort) {
+		_store = store;
+		_primaryHost = primaryHost;
+		_primaryPort = primaryPort;
+	}
+
+	/**
+	 * Starts following the primary, on a thread of the follower's own.
+	 */
+	public void start() {
+		_thread = new Thread(this, "concert-follower");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Stops following the primary. Once this returns, no further changes
+	 * are applied.
+	 */
+	public void stop() {
+		synchronized (this) {
+			_stopped = true;
+		}
+		closeConnection();
+		if (_thread != null) {
+			_thread.interrupt();
+		}
+	}
+
+	public boolean isStopped() {
+		return _stopped;
+	}
+
+	/**
+	 * Returns the sequence number, in the primary's changes, of the last
+	 * change applied.
+	 */
+	public long getSequence() {
+		return _sequence;
+	}
+
+	/**
+	 * Returns the number of the primary's changes that are yet to be
+	 * applied, as of the last poll.
+	 */
+	public long getLag() {
+		return Math.max(_primaryVersion - _sequence, 0);
+	}
+
+	/**
+	 * Returns how long (ms) the oldest change known to be unapplied has been
+	 * waiting, or 0 if the follower has caught up.
+	 */
+	public long getDelay() {
+		return _sequence >= _target ? 0 : System.currentTimeMillis() - _targetSeen;
+	}
+
+	@Override
+	public void run() {
+		long retryDelay = MIN_RETRY_DELAY;
+		while (!_stopped) {
+			try {
+				follow();
+				retryDelay = MIN_RETRY_DELAY;
+			} catch (IOException e) {
+				if (!_stopped) {
+					System.out.println("Lost primary " + _primaryHost + ":" + _primaryPort
+							+ " (" + e + "), reconnecting");
+				}
+			} finally {
+				closeConnection();
+			}
+
+			try {
+				Thread.sleep(retryDelay);
+			} catch (InterruptedException e) {
+				// Stopped.
+			}
+			retryDelay = Math.min(2 * retryDelay, MAX_RETRY_DELAY);
+		}
+	}
+
+	/**
+	 * Connects to the primary and applies its changes, polling its version,
+	 * until the connection fails or the follower is stopped.
+	 */
+	private void follow() throws IOException {
+		Connection connection = Connection.open(InetAddress.getByName(_primaryHost), _primaryPort,
+				WireFormat.Binary, SessionFeature.OutOfOrderResponses, SessionFeature.LzCompression);
+		_connection = connection;
+		if (_stopped) {
+			return;
+		}
+
+		Long epoch = _epoch;
+		RequestMessage subscribe = epoch == null ? RequestMessage.makeSubscribe()
+				: RequestMessage.makeSubscribe(epoch, _sequence);
+		CompletableFuture<ResponseMessage> subscription = connection.submit(subscribe,
+				new Consumer<ResponseMessage>() {
+					@Override
+					public void accept(ResponseMessage event) {
+						apply(event);
+					}
+				});
+
+		while (!_stopped) {
+			poll(connection);
+			try {
+				ResponseMessage response = subscription.get(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				throw new IOException("Subscription ended: " + response.getFailureMessage());
+			} catch (TimeoutException e) {
+				// Still following.
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+						: new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				// Stopped.
+			}
+		}
+	}
+
+	/**
+	 * Asks the primary for its version, and updates the measures of lag.
+	 */
+	private void poll(Connection connection) throws IOException {
+		ResponseMessage response = connection.send(RequestMessage.makeStats());
+		ServerStats stats = response.getStats();
+		if (stats == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		_primaryVersion = stats.getVersion();
+		if (_sequence >= _target) {
+			// Caught up to the last target, so measure against the new one.
+			_target = _primaryVersion;
+			_targetSeen = now;
+		}
+	}
+
+	/**
+	 * Applies a change event to the store. Called on the connection's reader
+	 * thread, so events are applied one at a time, in order.
+	 *
+	 * @throws UncheckedIOException if the change can't be logged, which ends
+	 * the subscription.
+	 */
+	private synchronized void apply(ResponseMessage event) throws UncheckedIOException {
+		if (_stopped || event.getChange() == null) {
+			return;
+		}
+
+		switch (event.getChange()) {
+		case Snapshot: {
+			_store.replaceAll(event.getConcerts());
+			_epoch = event.getEpoch();
+			break;
+		}
+		case Created:
+		case Updated: {
+			_store.put(event.getConcert());
+			break;
+		}
+		case Deleted: {
+			_store.delete(event.getId());
+			_store.advanceNextId(event.getId() + 1);
+			break;
+		}
+		case Cleared: {
+			_store.clear();
+			break;
+		}
+		}
+		_sequence = event.getSequence();
+	}
+
+	private void closeConnection() {
+		Connection connection = _connection;
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// Already failed.
+			}
+		}
+	}
+}
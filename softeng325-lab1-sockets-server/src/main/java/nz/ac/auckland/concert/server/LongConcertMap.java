@@ -0,0 +1,208 @@
+package nz.ac.auckland.concert.server;
+
+import java.util.Collection;
+
+import nz.ac.auckland.concert.common.Concert;
+
+/**
+ * Hash map from primitive long keys to Concerts, used by ConcertStore as its
+ * primary index.
+ *
+ * Keys and values are held in parallel arrays and collisions are resolved by
+ * linear probing, so an entry costs one long and one reference rather than a
+ * boxed Long and a HashMap node, and lookups don't allocate. A slot is empty
+ * when its value is null, so every key (including 0) can be stored. Removal
+ * shifts later entries of the probe sequence back, rather than leaving
+ * tombstones, so lookups don't slow down as Concerts are deleted.
+ *
+ * The map isn't thread-safe; ConcertStore guards each one with a lock.
+ *
+ */
+public class LongConcertMap {
+	// Default number of slots, and the fraction that may be used before the
+	// arrays are doubled.
+	public static final int DEFAULT_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.75f;
+
+	// Multiplier for Fibonacci hashing, which spreads sequential ids.
+	private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+	private final int _initialCapacity;
+
+	private long[] _keys;
+	private Concert[] _values;
+	private int _mask;
+	private int _shift;
+	private int _size;
+	private int _resizeAt;
+
+	public LongConcertMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a map that can hold expectedSize Concerts before it grows.
+	 */
+	public LongConcertMap(int expectedSize) {
+		_initialCapacity = capacityFor(expectedSize);
+		allocate(_initialCapacity);
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	public boolean isEmpty() {
+		return _size == 0;
+	}
+
+	/**
+	 * Returns the Concert stored with key, or null if there isn't one.
+	 */
+	public Concert get(long key) {
+		int slot = find(key);
+		return slot < 0 ? null : _values[slot];
+	}
+
+	public boolean containsKey(long key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Stores value with key, returning the Concert it replaces (or null).
+	 */
+	public Concert put(long key, Concert value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Values can't be null");
+		}
+		int slot = slotFor(key);
+		while (_values[slot] != null) {
+			if (_keys[slot] == key) {
+				Concert previous = _values[slot];
+				_values[slot] = value;
+				return previous;
+			}
+			slot = (slot + 1) & _mask;
+		}
+		_keys[slot] = key;
+		_values[slot] = value;
+		if (++_size > _resizeAt) {
+			allocate(_keys.length << 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces the Concert stored with key, in a single probe. Returns false,
+	 * leaving the map unchanged, if there isn't one.
+	 */
+	public boolean replace(long key, Concert value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Values can't be null");
+		}
+		int slot = find(key);
+		if (slot < 0) {
+			return false;
+		}
+		_values[slot] = value;
+		return true;
+	}
+
+	/**
+	 * Removes the Concert stored with key, and returns it (or null).
+	 */
+	public Concert remove(long key) {
+		int slot = find(key);
+		if (slot < 0) {
+			return null;
+		}
+		Concert removed = _values[slot];
+		_size--;
+
+		// Move later entries of the probe sequence into the gap, unless that
+		// would place them before their home slot.
+		int gap = slot;
+		int next = (gap + 1) & _mask;
+		while (_values[next] != null) {
+			int home = slotFor(_keys[next]);
+			if (((next - home) & _mask) >= ((next - gap) & _mask)) {
+				_keys[gap] = _keys[next];
+				_values[gap] = _values[next];
+				gap = next;
+			}
+			next = (next + 1) & _mask;
+		}
+		_values[gap] = null;
+		return removed;
+	}
+
+	/**
+	 * Removes all Concerts, and releases the space they used.
+	 */
+	public void clear() {
+		_size = 0;
+		allocate(_initialCapacity);
+	}
+
+	/**
+	 * Adds every stored Concert to values, in no particular order.
+	 */
+	public void addValuesTo(Collection<? super Concert> values) {
+		for (Concert value : _values) {
+			if (value != null) {
+				values.add(value);
+			}
+		}
+	}
+
+	private int find(long key) {
+		int slot = slotFor(key);
+		while (_values[slot] != null) {
+			if (_keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & _mask;
+		}
+		return -1;
+	}
+
+	private int slotFor(long key) {
+		return (int) ((key * GOLDEN_RATIO) >>> _shift);
+	}
+
+	/**
+	 * Replaces the arrays with ones of the given (power of two) capacity,
+	 * and reinserts the stored Concerts.
+	 */
+	private void allocate(int capacity) {
+		long[] keys = _keys;
+		Concert[] values = _values;
+
+		_keys = new long[capacity];
+		_values = new Concert[capacity];
+		_mask = capacity - 1;
+		_shift = 64 - Integer.numberOfTrailingZeros(capacity);
+		_resizeAt = (int) (capacity * LOAD_FACTOR);
+
+		if (values != null && _size > 0) {
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != null) {
+					int slot = slotFor(keys[i]);
+					while (_values[slot] != null) {
+						slot = (slot + 1) & _mask;
+					}
+					_keys[slot] = keys[i];
+					_values[slot] = values[i];
+				}
+			}
+		}
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity * LOAD_FACTOR < expectedSize && capacity < (1 << 30)) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+}
@@ -0,0 +1,33 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Finds where the messages in a session's stream of bytes end, so that the
+ * session is only handed to a worker once a whole message has been received,
+ * and decoding it never waits for the network.
+ *
+ * A framer is run by the session's EventLoop on each run of bytes as it's
+ * received. Each WireFormat has its own framer: BinaryFramer reads the
+ * length prefix of each frame, and SerializationFramer follows the grammar of
+ * an object stream.
+ *
+ */
+public interface MessageFramer {
+
+	/**
+	 * Scans received bytes, which follow the bytes given to earlier calls,
+	 * and returns the number of bytes - counting from the end of the last
+	 * message already framed - that now make up complete messages. received
+	 * is left positioned at its limit.
+	 *
+	 * @throws IOException if the bytes can't be part of a valid message.
+	 */
+	int frame(ByteBuffer received) throws IOException;
+
+	/**
+	 * Returns the number of messages that have been framed so far.
+	 */
+	long getMessageCount();
+}
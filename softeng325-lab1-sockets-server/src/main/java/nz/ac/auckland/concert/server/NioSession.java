@@ -0,0 +1,743 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nz.ac.auckland.concert.common.BinaryCodec;
+import nz.ac.auckland.concert.common.FrameCompression;
+import nz.ac.auckland.concert.common.BufferPool;
+import nz.ac.auckland.concert.common.MessageCodec;
+import nz.ac.auckland.concert.common.RequestMessage;
+import nz.ac.auckland.concert.common.ResponseMessage;
+import nz.ac.auckland.concert.common.SerializationCodec;
+import nz.ac.auckland.concert.common.SessionFeature;
+import nz.ac.auckland.concert.common.TrackingObjectOutputStream;
+import nz.ac.auckland.concert.common.WireFormat;
+
+/**
+ * A client session served by the SelectorEngine.
+ *
+ * Bytes are read from the channel by the session's EventLoop into a
+ * SessionInputBuffer, which frames them as they arrive (see MessageFramer).
+ * Whenever a complete message is pending, the session is scheduled on one of
+ * the engine's worker threads, which decodes and processes requests until
+ * no complete message is left. At most one worker serves a session at a
+ * time, so requests are processed in order and the session's object streams
+ * are never shared between threads. A worker never waits for the rest of a
+ * message, and an idle session doesn't occupy any thread.
+ *
+ * Responses are encoded by the worker into a SessionOutputBuffer, from
+ * which the EventLoop takes them to write to the channel. Both buffers are
+ * made up of pooled direct ByteBuffers, so once the engine's BufferPool has
+ * warmed up, no buffers are allocated for a request or its response. The
+ * EventLoop writes all of a session's pending buffers with one gathering
+ * write, so a burst of small responses costs a single system call. Sessions
+ * start out using Java serialisation, and switch WireFormat if the client
+ * asks for it in its Hello message.
+ * 
+ * If the client enables SessionFeature.OutOfOrderResponses, each decoded
+ * request is processed as a separate worker task and its response is sent as
+ * soon as it's ready, so a slow request doesn't hold up the ones behind it.
+ * A Goodbye message is only acknowledged once all earlier requests have
+ * completed.
+ * 
+ * Events for a session that has sent a Subscribe request are sent by its
+ * Subscription from the ChangeFeed's threads, through the same send() as
+ * responses.
+ * 
+ * The session is subject to the engine's AdmissionControl: its Hello message
+ * is answered with an Overloaded response if the server has too many
+ * sessions, and so is any request that's handled while the session has too
+ * many other requests waiting to be decoded or being processed, or while the
+ * workers' queue is full - including an out-of-order request that the queue
+ * refuses. If the queue refuses to schedule the session itself, its
+ * EventLoop tries again on its next tick.
+ * 
+ * The EventLoop stops reading from a session that has more than
+ * READ_HIGH_WATER_MARK bytes of complete messages waiting to be decoded, or
+ * as many requests waiting or being processed as the AdmissionControl allows,
+ * and starts again once a worker has caught up. So a client that sends
+ * faster than its requests are processed is held back by TCP flow control,
+ * rather than making the session buffer without bound.
+ * 
+ * A worker that sends a response while more than WRITE_HIGH_WATER_MARK bytes
+ * are waiting to be written blocks until the backlog has drained, so that a
+ * client that reads slowly can't make the session buffer without bound.
+ *
+ */
+public class NioSession {
+	// Limit (in bytes) on the complete messages waiting to be decoded, above
+	// which the EventLoop stops reading.
+	public static final int READ_HIGH_WATER_MARK = 1024 * 1024;
+
+	// Limits (in bytes) on the backlog of responses waiting to be written. A
+	// worker that finds the backlog above the high-water mark waits until it
+	// falls below the low-water mark.
+	public static final long WRITE_HIGH_WATER_MARK = 1024 * 1024;
+	public static final long WRITE_LOW_WATER_MARK = 256 * 1024;
+
+	// Maximum number of buffers passed to a single gathering write.
+	private static final int MAX_GATHERED_BUFFERS = 16;
+
+	private final SelectorEngine _engine;
+	private final EventLoop _loop;
+	private final SocketChannel _channel;
+	private final SelectionKey _key;
+	private final ServerMetrics _metrics;
+	private final BufferPool _pool;
+
+	// Incoming bytes, which are framed by the EventLoop and decoded by a
+	// worker.
+	private final SessionInputBuffer _input;
+
+	// Encoded responses that have yet to be taken by the EventLoop, and the
+	// stream used to serialise ResponseMessages into them. Workers encode
+	// responses while holding _outputLock.
+	private final SessionOutputBuffer _output;
+	private final ReentrantLock _outputLock = new ReentrantLock();
+	private ObjectOutputStream _out;
+
+	// Codec used to read requests and write responses. Created by a worker,
+	// as the ObjectInputStream constructor reads the client's stream header,
+	// which is framed with its Hello message.
+	private MessageCodec _codec;
+
+	// Buffers taken from _output, waiting to be written to the channel, and
+	// an array to gather them into. Only accessed by the EventLoop.
+	private final Deque<ByteBuffer> _pendingWrites = new ArrayDeque<ByteBuffer>();
+	private final ByteBuffer[] _gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
+
+	// Total size of the responses that have been encoded but not yet
+	// written. Workers wait on _writeSpace for the backlog to drain.
+	private final AtomicLong _pendingBytes = new AtomicLong();
+	private final Object _writeSpace = new Object();
+
+	// Time (ms) at which bytes were last received. Only accessed by the
+	// EventLoop.
+	private long _lastReceived = System.currentTimeMillis();
+
+	// Whether a worker has been scheduled to process pending requests.
+	private final AtomicBoolean _scheduled = new AtomicBoolean();
+
+	// Number of messages decoded by workers. The rest of the messages that
+	// have been framed are waiting to be decoded.
+	private final AtomicLong _decoded = new AtomicLong();
+
+	// Whether the EventLoop has stopped reading until a worker catches up,
+	// and whether a worker has asked it to start again.
+	private volatile boolean _readPaused;
+	private final AtomicBoolean _resumeScheduled = new AtomicBoolean();
+
+	// Whether the EventLoop has been asked to flush, and has yet to start.
+	// Responses sent in the meantime are written by the same flush.
+	private final AtomicBoolean _flushScheduled = new AtomicBoolean();
+
+	// Whether the session's Hello message has been received.
+	private boolean _helloReceived;
+
+	// Whether the session was admitted by the AdmissionControl, and so must
+	// be ended with it.
+	private volatile boolean _admitted;
+
+	// Whether requests may be processed concurrently and answered out of
+	// order.
+	private boolean _outOfOrder;
+
+	// Number of requests being processed (in either mode), and the session's
+	// Goodbye message once it has been received. The Goodbye message is acknowledged by
+	// whichever thread first sees that it has been received and no requests
+	// are in flight.
+	private final AtomicInteger _inFlight = new AtomicInteger();
+	private volatile RequestMessage _goodbye;
+	private final AtomicBoolean _goodbyeAcknowledged = new AtomicBoolean();
+
+	// Set when no further requests should be decoded.
+	private volatile boolean _ending;
+
+	// The session's subscription to changes, if it has sent a Subscribe
+	// request.
+	private final AtomicReference<Subscription> _subscription =
+			new AtomicReference<Subscription>();
+
+	// Set when the session should be closed once pending writes are done.
+	private volatile boolean _closeAfterFlush;
+
+	// Set by the EventLoop thread.
+	private volatile boolean _closed;
+
+	private final Runnable _flushTask = new Runnable() {
+		@Override
+		public void run() {
+			_flushScheduled.set(false);
+			flush();
+		}
+	};
+
+	private final Runnable _closeTask = new Runnable() {
+		@Override
+		public void run() {
+			close();
+		}
+	};
+
+	private final ResponseSink _sink = new ResponseSink() {
+		@Override
+		public void send(ResponseMessage response) throws IOException {
+			NioSession.this.send(response, false);
+		}
+	};
+
+	private final Runnable _processTask = new Runnable() {
+		@Override
+		public void run() {
+			processRequests();
+		}
+	};
+
+	private final Runnable _resumeTask = new Runnable() {
+		@Override
+		public void run() {
+			_resumeScheduled.set(false);
+			resumeReading();
+		}
+	};
+
+	public NioSession(SelectorEngine engine, EventLoop loop,
+			SocketChannel channel, SelectionKey key) {
+		_engine = engine;
+		_loop = loop;
+		_channel = channel;
+		_key = key;
+		_metrics = engine.getProcessor().getMetrics();
+		_pool = engine.getBufferPool();
+		_input = new SessionInputBuffer(_pool, new SerializationFramer());
+		_output = new SessionOutputBuffer(_pool);
+	}
+
+	/**
+	 * Starts the session by sending the ObjectOutputStream header, which the
+	 * client waits for before sending its Hello message.
+	 */
+	public void open() throws IOException {
+		_metrics.sessionOpened();
+		_out = new TrackingObjectOutputStream(_output);
+		_out.flush();
+		_pendingBytes.addAndGet(_output.getCount());
+		flush();
+	}
+
+	/**
+	 * Reads whatever is available from the channel. Called by the EventLoop.
+	 */
+	public void onReadable() {
+		try {
+			int count = _input.readFrom(_channel);
+			if (count < 0) {
+				close();
+				return;
+			}
+			if (count > 0) {
+				_lastReceived = System.currentTimeMillis();
+				_metrics.addBytesIn(count);
+				if (_input.framed() > 0) {
+					schedule();
+				}
+				if (inputFull()) {
+					pauseReading();
+				}
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Stops reading from the channel until a worker has caught up with the
+	 * session's requests. Called by the EventLoop.
+	 */
+	private void pauseReading() {
+		_readPaused = true;
+		_key.interestOps(_key.interestOps() & ~SelectionKey.OP_READ);
+		// A worker may have caught up before the flag was set, in which case
+		// it won't ask for reading to resume.
+		resumeReading();
+	}
+
+	/**
+	 * Starts reading from the channel again, if it was paused and the
+	 * session's requests have been caught up with. Called by the EventLoop.
+	 */
+	private void resumeReading() {
+		if (_readPaused && !_closed && !inputFull()) {
+			_readPaused = false;
+			// The client wasn't to know it had to wait.
+			_lastReceived = System.currentTimeMillis();
+			_key.interestOps(_key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Asks the EventLoop to start reading again, if it was paused and the
+	 * session's requests have been caught up with. Called by workers as they
+	 * process requests.
+	 */
+	private void caughtUp() {
+		if (_readPaused && !inputFull() && _resumeScheduled.compareAndSet(false, true)) {
+			_loop.execute(_resumeTask);
+		}
+	}
+
+	/**
+	 * Returns whether the session has as much input waiting as it may
+	 * buffer.
+	 */
+	private boolean inputFull() {
+		int maxInFlight = _engine.getAdmissionControl().getMaxInFlight();
+		return _input.framed() > READ_HIGH_WATER_MARK
+				|| (maxInFlight > 0 && pendingRequests() >= maxInFlight);
+	}
+
+	/**
+	 * Returns the number of the session's requests that have been received,
+	 * but not yet processed: those waiting to be decoded and those being
+	 * processed.
+	 */
+	private int pendingRequests() {
+		return (int) (_input.getMessageCount() - _decoded.get()) + _inFlight.get();
+	}
+
+	/**
+	 * Closes the session if it has sent part of a message, but nothing more
+	 * for SelectorEngine.PARTIAL_MESSAGE_TIMEOUT, and otherwise schedules any
+	 * complete messages that a worker was refused for. Also resumes reading
+	 * if no worker has asked it to. Called by the EventLoop about once a
+	 * second.
+	 */
+	public void onTick(long now) {
+		resumeReading();
+		if (!_readPaused && now - _lastReceived > SelectorEngine.PARTIAL_MESSAGE_TIMEOUT
+				&& _input.available() > _input.framed()) {
+			close();
+		} else if (_input.framed() > 0 && !_ending) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Writes as much pending data as the channel accepts. If the channel
+	 * can't take it all, the loop is asked to signal when it becomes
+	 * writable. Called by the EventLoop.
+	 */
+	public void flush() {
+		if (_closed) {
+			return;
+		}
+		try {
+			// Whether every response encoded so far has been written, and
+			// the last of them was the session's final response.
+			boolean finished = false;
+			while (true) {
+				if (_pendingWrites.isEmpty()) {
+					// Take whatever has been encoded since the last flush -
+					// unless a worker is encoding a response, in which case
+					// it will ask for another flush once it's done.
+					if (!_outputLock.tryLock()) {
+						break;
+					}
+					try {
+						_output.drainTo(_pendingWrites);
+						finished = _pendingWrites.isEmpty() && _closeAfterFlush;
+					} finally {
+						_outputLock.unlock();
+					}
+					if (_pendingWrites.isEmpty()) {
+						break;
+					}
+				}
+
+				int count = 0;
+				for (ByteBuffer buffer : _pendingWrites) {
+					_gathered[count++] = buffer;
+					if (count == _gathered.length) {
+						break;
+					}
+				}
+				long written = _channel.write(_gathered, 0, count);
+				_metrics.addBytesOut(written);
+				while (!_pendingWrites.isEmpty() && !_pendingWrites.peekFirst().hasRemaining()) {
+					_pool.release(_pendingWrites.pollFirst());
+				}
+				if (_pendingBytes.addAndGet(-written) < WRITE_LOW_WATER_MARK) {
+					signalWriteSpace();
+				}
+				if (!_pendingWrites.isEmpty() && _pendingWrites.peekFirst().hasRemaining()) {
+					_key.interestOps(_key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			_key.interestOps(_key.interestOps() & ~SelectionKey.OP_WRITE);
+
+			if (finished) {
+				close();
+			}
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Closes the connection. Called by the EventLoop.
+	 */
+	public void close() {
+		if (_closed) {
+			return;
+		}
+		_closed = true;
+		_metrics.sessionClosed();
+		if (_admitted) {
+			_engine.getAdmissionControl().sessionEnded();
+		}
+		Subscription subscription = _subscription.getAndSet(null);
+		if (subscription != null) {
+			subscription.cancel();
+		}
+		_key.cancel();
+		EventLoop.closeQuietly(_channel);
+
+		ByteBuffer buffer;
+		while ((buffer = _pendingWrites.pollFirst()) != null) {
+			_pool.release(buffer);
+		}
+		releaseOutput();
+
+		// Wake up a worker that's waiting for the backlog of responses to
+		// drain.
+		_input.close();
+		signalWriteSpace();
+	}
+
+	/**
+	 * Returns the output buffer's chunks to the pool once the session has
+	 * closed - unless a worker is encoding a response, in which case the
+	 * worker does so once it's finished.
+	 */
+	private void releaseOutput() {
+		if (_outputLock.tryLock()) {
+			try {
+				_output.release();
+			} finally {
+				_outputLock.unlock();
+			}
+		}
+	}
+
+	private void signalWriteSpace() {
+		synchronized (_writeSpace) {
+			_writeSpace.notifyAll();
+		}
+	}
+
+	/**
+	 * Blocks a worker while the backlog of responses is above the high-water
+	 * mark.
+	 */
+	private void awaitWriteSpace() throws IOException {
+		if (_pendingBytes.get() <= WRITE_HIGH_WATER_MARK) {
+			return;
+		}
+		synchronized (_writeSpace) {
+			while (_pendingBytes.get() >= WRITE_LOW_WATER_MARK) {
+				if (_closed) {
+					throw new IOException("Session closed");
+				}
+				try {
+					_writeSpace.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while sending");
+				}
+			}
+		}
+	}
+
+	private void schedule() {
+		if (_scheduled.compareAndSet(false, true) && !_engine.dispatch(_processTask)) {
+			// The workers' queue is full; try again on the next tick.
+			_scheduled.set(false);
+		}
+	}
+
+	/**
+	 * Decodes and processes requests until no complete message is pending.
+	 * Runs on a worker thread.
+	 */
+	private void processRequests() {
+		try {
+			do {
+				while (_input.framed() > 0 && !_ending) {
+					if (_codec == null) {
+						SerializationCodec codec = new SerializationCodec(
+								new ObjectInputStream(_input), _out, _engine.getResetPolicy());
+						codec.setResetListener(_metrics.getResetListener());
+						_codec = codec;
+						continue;
+					}
+					RequestMessage request = _codec.readRequest();
+					_decoded.incrementAndGet();
+					handle(request);
+					caughtUp();
+				}
+				// Don't leave a frame's chunk lent out while no worker is
+				// reading, in case the session closes.
+				_input.stopReading();
+				_scheduled.set(false);
+
+				// A message may have arrived after the last check, but before
+				// the flag was cleared - in which case no other worker has been
+				// scheduled to process it.
+			} while (_input.framed() > 0 && !_ending
+					&& _scheduled.compareAndSet(false, true));
+		} catch (IOException e) {
+			failed();
+		} catch (ClassNotFoundException e) {
+			// Server attempted to deserialise an object without having
+			// access to the corresponding class.
+			e.printStackTrace();
+			failed();
+		} catch (RuntimeException e) {
+			// A request that couldn't be decoded, or a response that couldn't
+			// be encoded, leaves the streams in an unknown state.
+			System.out.println("Closing session after " + e);
+			failed();
+		}
+	}
+
+	/**
+	 * Ends a session whose requests can no longer be processed. The session
+	 * is closed, so no other worker is scheduled for it.
+	 */
+	private void failed() {
+		_ending = true;
+		_input.stopReading();
+		_scheduled.set(false);
+		_loop.execute(_closeTask);
+	}
+
+	private void handle(final RequestMessage request) throws IOException {
+		if (!_helloReceived) {
+			if (request.getType() != RequestMessage.MessageType.Hello) {
+				// The first message isn't a Hello message - so terminate
+				// the connection.
+				_ending = true;
+				send(ResponseMessage.makeProtocolErrorResponse(), true);
+			} else {
+				ResponseMessage rejection = _engine.getAdmissionControl().admitSession();
+				if (rejection != null) {
+					_ending = true;
+					rejection.setCorrelationId(request.getCorrelationId());
+					send(rejection, true);
+					return;
+				}
+				_admitted = true;
+
+				WireFormat wireFormat = request.getWireFormat();
+				Set<SessionFeature> features = EnumSet.noneOf(SessionFeature.class);
+				if (request.getFeatures().contains(SessionFeature.OutOfOrderResponses)) {
+					features.add(SessionFeature.OutOfOrderResponses);
+					_outOfOrder = true;
+				}
+				FrameCompression compression = wireFormat == WireFormat.Binary
+						? FrameCompression.choose(request.getFeatures()) : null;
+				if (compression != null) {
+					features.add(compression.getFeature());
+				}
+
+				ResponseMessage response = ResponseMessage
+						.makeSuccessfulHelloResponse(wireFormat, features);
+				response.setCorrelationId(request.getCorrelationId());
+				_helloReceived = true;
+				// The messages that follow are Binary frames.
+				if (wireFormat == WireFormat.Binary) {
+					_input.setFramer(new BinaryFramer());
+				}
+				send(response, false);
+				if (wireFormat == WireFormat.Binary) {
+					BinaryCodec codec = new BinaryCodec(_input, _output);
+					if (compression != null) {
+						codec.setCompression(compression, FrameCompression.DEFAULT_THRESHOLD);
+					}
+					_codec = codec;
+				}
+			}
+			return;
+		}
+
+		if (request.getType() == RequestMessage.MessageType.Goodbye) {
+			_ending = true;
+			_goodbye = request;
+			if (_inFlight.get() == 0) {
+				acknowledgeGoodbye();
+			}
+			return;
+		}
+
+		ResponseMessage rejection = _engine.getAdmissionControl()
+				.admitRequest(pendingRequests());
+		if (rejection != null) {
+			rejection.setCorrelationId(request.getCorrelationId());
+			send(rejection, false);
+		} else if (_outOfOrder) {
+			_inFlight.incrementAndGet();
+			boolean dispatched = _engine.dispatch(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						process(request);
+					} catch (IOException | RuntimeException e) {
+						_loop.execute(_closeTask);
+					} finally {
+						try {
+							completed();
+						} catch (IOException | RuntimeException e) {
+							_loop.execute(_closeTask);
+						}
+					}
+				}
+			});
+			if (!dispatched) {
+				// The Goodbye message is yet to be decoded, so there's no need
+				// to check whether to acknowledge it.
+				_inFlight.decrementAndGet();
+				_metrics.recordShed();
+				ResponseMessage overloaded = ResponseMessage
+						.makeOverloadedResponse("Too many queued requests");
+				overloaded.setCorrelationId(request.getCorrelationId());
+				send(overloaded, false);
+			}
+		} else {
+			// The Goodbye message is yet to be decoded, so there's no need to
+			// check whether to acknowledge it.
+			_inFlight.incrementAndGet();
+			try {
+				process(request);
+			} finally {
+				_inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	private void process(RequestMessage request) throws IOException {
+		RequestProcessor processor = _engine.getProcessor();
+		ResponseMessage response;
+		try {
+			if (request.getType() == RequestMessage.MessageType.StreamedList) {
+				processor.streamList(request, _sink);
+				return;
+			} else if (request.getType() == RequestMessage.MessageType.Subscribe) {
+				subscribe(request);
+				return;
+			}
+			response = processor.process(request);
+		} catch (RuntimeException e) {
+			// The request was malformed, or processing it went wrong; either
+			// way the client is still owed a response.
+			System.out.println("Unable to process " + request.getType() + ": " + e);
+			response = ResponseMessage.makeProtocolErrorResponse();
+			response.setCorrelationId(request.getCorrelationId());
+		}
+		send(response, false);
+	}
+
+	/**
+	 * Subscribes the session to changes, unless it's already subscribed.
+	 */
+	private void subscribe(RequestMessage request) throws IOException {
+		if (_subscription.get() == null && !_closed) {
+			Subscription subscription = _engine.getProcessor().subscribe(request, _sink);
+			if (_subscription.compareAndSet(null, subscription)) {
+				return;
+			}
+			subscription.cancel();
+		}
+		ResponseMessage response = ResponseMessage.makeProtocolErrorResponse();
+		response.setCorrelationId(request.getCorrelationId());
+		send(response, false);
+	}
+
+	/**
+	 * Called when an out-of-order request has been processed. Acknowledges
+	 * the Goodbye message if it was waiting for the request.
+	 */
+	private void completed() throws IOException {
+		if (_inFlight.decrementAndGet() == 0 && _goodbye != null) {
+			acknowledgeGoodbye();
+		}
+		caughtUp();
+	}
+
+	/**
+	 * Acknowledges the Goodbye message, ending the session's subscription
+	 * first, unless another thread already has.
+	 */
+	private void acknowledgeGoodbye() throws IOException {
+		if (_goodbyeAcknowledged.compareAndSet(false, true)) {
+			Subscription subscription = _subscription.getAndSet(null);
+			if (subscription != null) {
+				subscription.end();
+			}
+			send(_engine.getProcessor().process(_goodbye), true);
+		}
+	}
+
+	/**
+	 * Encodes a response and asks the EventLoop to write it. If last is
+	 * true, the session is closed once the response has been written.
+	 */
+	private void send(ResponseMessage response, boolean last) throws IOException {
+		// The lock isn't held while waiting, as the EventLoop needs it to
+		// take the responses that have already been encoded.
+		awaitWriteSpace();
+		_outputLock.lock();
+		try {
+			if (_closed) {
+				throw new IOException("Session closed");
+			}
+			long count = _output.getCount();
+			try {
+				_codec.writeResponse(response);
+			} catch (RuntimeException e) {
+				// Part of the response may have been written, so the session
+				// can't continue.
+				throw new IOException("Unable to encode response", e);
+			}
+			_pendingBytes.addAndGet(_output.getCount() - count);
+			if (last) {
+				_closeAfterFlush = true;
+			}
+		} finally {
+			_outputLock.unlock();
+			// The session may have closed while the lock was held, leaving
+			// the output buffer for this worker to release.
+			if (_closed) {
+				releaseOutput();
+			}
+		}
+		if (_flushScheduled.compareAndSet(false, true)) {
+			_loop.execute(_flushTask);
+		}
+	}
+}
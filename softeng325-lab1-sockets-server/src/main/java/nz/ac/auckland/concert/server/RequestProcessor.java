@@ -0,0 +1,395 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.common.RequestMessage;
+import nz.ac.auckland.concert.common.RequestMessage.MessageType;
+import nz.ac.auckland.concert.common.ResponseMessage;
+import nz.ac.auckland.concert.common.ResponseMessage.Status;
+import nz.ac.auckland.concert.common.ServerStats;
+
+/**
+ * Maintains the server's collection of Concerts and generates a response for
+ * each RequestMessage received by a session.
+ *
+ * A single RequestProcessor is shared by all sessions, regardless of how the
+ * server multiplexes them, so that every client sees the same Concerts.
+ * Session-level concerns (the initial Hello message and closing the
+ * connection after Goodbye) are the responsibility of the caller. Responses
+ * carry the correlation id of the request they respond to.
+ *
+ * Concerts are kept in a ConcertStore, so requests from different sessions
+ * are processed concurrently.
+ *
+ * The time taken to process each request is recorded in the processor's
+ * ServerMetrics, which a Stats request returns.
+ *
+ * While the server follows a primary server (see Follower), its Concerts
+ * are read-only: requests that would change them are refused, until a
+ * Promote request stops the Follower and makes the server a primary.
+ *
+ */
+public class RequestProcessor {
+	private final ConcertStore _concerts;
+	private final ServerMetrics _metrics = new ServerMetrics();
+	private volatile Follower _follower;
+
+	public RequestProcessor() {
+		this(new ConcertStore());
+	}
+
+	public RequestProcessor(ConcertStore concerts) {
+		_concerts = concerts;
+	}
+
+	public ServerMetrics getMetrics() {
+		return _metrics;
+	}
+
+	/**
+	 * Makes the server's Concerts read-only, while follower replicates a
+	 * primary server's Concerts to them.
+	 */
+	public void setFollower(Follower follower) {
+		_follower = follower;
+	}
+
+	/**
+	 * Returns the server's statistics, including the store's version and, on
+	 * a follower, how far it lags behind its primary.
+	 */
+	public ServerStats getStats() {
+		ServerStats stats = _metrics.getStats();
+		stats.setVersion(_concerts.getVersion());
+		Follower follower = _follower;
+		if (follower != null) {
+			stats.setReplicationLag(follower.getLag(), follower.getDelay());
+		}
+		return stats;
+	}
+
+	/**
+	 * Processes a request received after a session's Hello message, and
+	 * returns the response to send back to the client.
+	 *
+	 * Each operation on a single Concert is atomic, and so is each batch
+	 * request: a concurrent request sees all of a batch's changes or none of
+	 * them (though subscribers are sent them as separate events). If a change
+	 * can't be logged durably, a failure response is returned.
+	 */
+	public ResponseMessage process(RequestMessage request) {
+		long start = System.nanoTime();
+		ResponseMessage response;
+		try {
+			response = respond(request);
+		} catch (UncheckedIOException e) {
+			System.out.println("Unable to log " + request.getType() + ": " + e.getMessage());
+			response = ResponseMessage.makeStorageFailureResponse();
+		}
+		response.setCorrelationId(request.getCorrelationId());
+		_metrics.recordRequest(request.getType(), System.nanoTime() - start,
+				response.getStatus() == Status.Failure);
+		return response;
+	}
+
+	private ResponseMessage respond(RequestMessage request) {
+		ResponseMessage response = null;
+
+		if (!checkRequest(request)) {
+			return ResponseMessage.makeProtocolErrorResponse();
+		}
+		if (_follower != null && isChange(request.getType())) {
+			return ResponseMessage.makeReadOnlyResponse();
+		}
+
+		switch (request.getType()) {
+		case Hello: {
+			response = ResponseMessage.makeProtocolErrorResponse();
+			break;
+		}
+		case Goodbye: {
+			// Acknowledge the client's intention to close the session.
+			response = ResponseMessage.makeSuccessfulResponse();
+			break;
+		}
+		case Create: {
+			// Store the new Concert.
+			Concert newConcert = _concerts.create(request.getConcert());
+
+			response = ResponseMessage
+					.makeSuccessfulCreateResponse(newConcert);
+			break;
+		}
+		case Retrieve: {
+			Concert concert = _concerts.get(request.getId());
+			if (concert == null) {
+				response = ResponseMessage
+						.makeUnsuccessfulRetrieveResponse();
+			} else {
+				response = ResponseMessage
+						.makeSuccessfulRetrieveResponse(concert);
+			}
+			break;
+		}
+		case Update: {
+			if (!_concerts.update(request.getConcert())) {
+				response = ResponseMessage
+						.makeUnsuccessfulUpdateResponse();
+			} else {
+				response = ResponseMessage
+						.makeSuccessfulResponse();
+			}
+			break;
+		}
+		case Delete: {
+			if (!_concerts.delete(request.getId())) {
+				response = ResponseMessage
+						.makeUnsuccessfulDeleteResponse();
+			} else {
+				response = ResponseMessage
+						.makeSuccessfulResponse();
+			}
+			break;
+		}
+		case List: {
+			if (request.getQuery() != null) {
+				response = ResponseMessage.makeListResponse(_concerts.query(request.getQuery()));
+				break;
+			}
+			if (request.getPageSize() != null) {
+				response = listPage(request.getCursor(), request.getPageSize());
+				break;
+			}
+			response = ResponseMessage.makeListResponse(_concerts.snapshot());
+			break;
+		}
+		case StreamedList:
+		case Subscribe: {
+			// Streamed responses are sent using streamList(), and pushed
+			// events by a Subscription.
+			response = ResponseMessage.makeProtocolErrorResponse();
+			break;
+		}
+		case RangeByDate: {
+			response = ResponseMessage.makeListResponse(_concerts.rangeByDate(
+					request.getFrom(), request.getTo(), request.getLimit()));
+			break;
+		}
+		case SearchByTitlePrefix: {
+			response = ResponseMessage.makeListResponse(_concerts.searchTitles(
+					request.getPrefix(), request.getLimit()));
+			break;
+		}
+		case Stats: {
+			response = ResponseMessage.makeStatsResponse(getStats());
+			break;
+		}
+		case Promote: {
+			// Stop following the primary, if the server still is.
+			Follower follower = _follower;
+			if (follower != null) {
+				follower.stop();
+				_follower = null;
+				System.out.println("Promoted to primary at version " + _concerts.getVersion());
+			}
+			response = ResponseMessage.makeSuccessfulResponse();
+			break;
+		}
+		case Clear: {
+			_concerts.clear();
+			response = ResponseMessage.makeSuccessfulResponse();
+			break;
+		}
+		case BatchCreate: {
+			List<Concert> created = _concerts.createAll(request.getConcerts());
+			List<Status> statuses = new ArrayList<Status>(created.size());
+			for (int i = 0; i < created.size(); i++) {
+				statuses.add(Status.Success);
+			}
+			response = ResponseMessage.makeBatchResponse(statuses, created);
+			break;
+		}
+		case BatchRetrieve: {
+			long[] ids = request.getIds();
+			List<Status> statuses = new ArrayList<Status>(ids.length);
+			List<Concert> found = new ArrayList<Concert>(ids.length);
+			for (long id : ids) {
+				Concert concert = _concerts.get(id);
+				if (concert == null) {
+					statuses.add(Status.Failure);
+				} else {
+					statuses.add(Status.Success);
+					found.add(concert);
+				}
+			}
+			response = ResponseMessage.makeBatchResponse(statuses, found);
+			break;
+		}
+		case BatchUpdate: {
+			response = ResponseMessage.makeBatchResponse(
+					toStatuses(_concerts.updateAll(request.getConcerts())), null);
+			break;
+		}
+		case BatchDelete: {
+			response = ResponseMessage.makeBatchResponse(
+					toStatuses(_concerts.deleteAll(request.getIds())), null);
+			break;
+		}
+		}
+		return response;
+	}
+
+	private static boolean isChange(MessageType type) {
+		switch (type) {
+		case Create:
+		case Update:
+		case Delete:
+		case Clear:
+		case BatchCreate:
+		case BatchUpdate:
+		case BatchDelete:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns whether a request has the values that the RequestMessage
+	 * factory for its type requires. Decoded requests haven't been made by
+	 * the factories, so they're checked before they're processed.
+	 */
+	static boolean checkRequest(RequestMessage request) {
+		switch (request.getType()) {
+		case Create:
+			return request.getConcert() != null && request.getConcert().getId() == null;
+		case Update:
+			return request.getConcert() != null && request.getConcert().getId() != null;
+		case Retrieve:
+		case Delete:
+			return request.getId() != null;
+		case List:
+			return request.getPageSize() == null || request.getPageSize() > 0;
+		case StreamedList:
+			return request.getPageSize() != null && request.getPageSize() > 0;
+		case RangeByDate:
+			return request.getFrom() != null && request.getTo() != null
+					&& isPositive(request.getLimit());
+		case SearchByTitlePrefix:
+			return request.getPrefix() != null && isPositive(request.getLimit());
+		case BatchCreate:
+			return checkConcerts(request.getConcerts(), false);
+		case BatchUpdate:
+			return checkConcerts(request.getConcerts(), true);
+		case BatchRetrieve:
+		case BatchDelete:
+			return request.getIds() != null && request.getIds().length > 0;
+		default:
+			return true;
+		}
+	}
+
+	// True if concerts isn't empty, and each of its Concerts has an id if
+	// (and only if) withIds is true.
+	private static boolean checkConcerts(List<Concert> concerts, boolean withIds) {
+		if (concerts == null || concerts.isEmpty()) {
+			return false;
+		}
+		for (Concert concert : concerts) {
+			if (concert == null || (concert.getId() != null) != withIds) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isPositive(Integer value) {
+		return value != null && value > 0;
+	}
+
+	private static List<Status> toStatuses(boolean[] succeeded) {
+		List<Status> statuses = new ArrayList<Status>(succeeded.length);
+		for (boolean success : succeeded) {
+			statuses.add(success ? Status.Success : Status.Failure);
+		}
+		return statuses;
+	}
+
+	/**
+	 * Sends all Concerts as a series of chunks, as requested by a 
+	 * StreamedList message. Other requests can be processed while chunks are
+	 * being sent - and a Concert that's created, updated or
+	 * deleted during streaming may or may not be reflected in the chunks.
+	 * At most one chunk is held in memory at a time.
+	 */
+	public void streamList(RequestMessage request, ResponseSink sink) throws IOException {
+		long start = System.nanoTime();
+		if (!checkRequest(request)) {
+			ResponseMessage error = ResponseMessage.makeProtocolErrorResponse();
+			error.setCorrelationId(request.getCorrelationId());
+			sink.send(error);
+			_metrics.recordRequest(request.getType(), System.nanoTime() - start, true);
+			return;
+		}
+		String cursor = null;
+		
+		do {
+			ResponseMessage page = listPage(cursor, request.getPageSize());
+			cursor = page.getCursor();
+			
+			ResponseMessage chunk = ResponseMessage.makeListChunkResponse(
+					page.getConcerts(), cursor != null);
+			chunk.setCorrelationId(request.getCorrelationId());
+			sink.send(chunk);
+		} while (cursor != null);
+		
+		// Includes the time spent waiting for the client to read each chunk.
+		_metrics.recordRequest(request.getType(), System.nanoTime() - start, false);
+	}
+	
+	/**
+	 * Subscribes a session to the changes made to the Concerts, as requested
+	 * by a Subscribe message. Events are sent to sink, from another thread,
+	 * until the session ends or cancels the returned Subscription.
+	 */
+	public Subscription subscribe(RequestMessage request, ResponseSink sink) {
+		long start = System.nanoTime();
+		Subscription subscription = new Subscription(_concerts, request, sink);
+		subscription.start();
+		_metrics.recordRequest(request.getType(), System.nanoTime() - start, false);
+		return subscription;
+	}
+
+	/**
+	 * Returns up to pageSize Concerts, in id order, following the position
+	 * identified by cursor (or from the start if cursor is null). The cursor
+	 * is the hexadecimal id of the last Concert of the previous page, but
+	 * clients should treat it as opaque.
+	 */
+	private ResponseMessage listPage(String cursor, int pageSize) {
+		long afterId = 0;
+		if (cursor != null) {
+			try {
+				afterId = Long.parseUnsignedLong(cursor, 16);
+			} catch (NumberFormatException e) {
+				return ResponseMessage.makeInvalidCursorResponse();
+			}
+		}
+
+		// Leave room to look one Concert ahead.
+		pageSize = Math.min(pageSize, Integer.MAX_VALUE - 1);
+
+		// Look one Concert ahead to find out whether there's another page.
+		List<Concert> page = _concerts.scan(afterId, pageSize + 1);
+		String nextCursor = null;
+		if (page.size() > pageSize) {
+			page.remove(pageSize);
+			nextCursor = Long.toHexString(page.get(pageSize - 1).getId());
+		}
+		return ResponseMessage.makeListPageResponse(page, nextCursor);
+	}
+}
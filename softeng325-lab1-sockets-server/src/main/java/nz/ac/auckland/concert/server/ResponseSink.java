@@ -0,0 +1,20 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.IOException;
+
+import nz.ac.auckland.concert.common.ResponseMessage;
+
+/**
+ * Destination for the responses of a request that is answered with more than
+ * one ResponseMessage, such as StreamedList. Implemented by sessions.
+ *
+ */
+public interface ResponseSink {
+
+	/**
+	 * Sends a response to the client. May block while earlier responses are
+	 * being written, so that a slow client can't make the server buffer an
+	 * unbounded amount of data.
+	 */
+	void send(ResponseMessage response) throws IOException;
+}
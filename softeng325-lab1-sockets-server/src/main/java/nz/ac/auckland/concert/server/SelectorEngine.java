@@ -0,0 +1,203 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nz.ac.auckland.concert.common.BufferPool;
+import nz.ac.auckland.concert.common.ResetPolicy;
+
+/**
+ * Non-blocking server engine that multiplexes many concurrent sessions over a
+ * small, fixed number of threads.
+ *
+ * A single listening channel is registered with the first EventLoop, which
+ * acts as the shared acceptor: accepted connections are handed out to the
+ * EventLoops in round-robin order. Each EventLoop owns a Selector and performs
+ * all I/O for its sessions. Decoding and processing of requests is done by a
+ * pool of worker threads, so that a slow request doesn't stall a loop's other
+ * sessions. The workers' queue holds at most the AdmissionControl's
+ * maxQueued tasks (unless that limit is disabled); a task that doesn't fit
+ * is refused, rather than queued.
+ *
+ */
+public class SelectorEngine {
+	// Time (ms) a session may go without sending any more of a partially
+	// received message before it's disconnected.
+	public static final long PARTIAL_MESSAGE_TIMEOUT = 30000;
+
+	// Size of the direct buffers that sessions read and write through, and
+	// the number of them that are kept for reuse (16MB in all).
+	public static final int BUFFER_SIZE = 16 * 1024;
+	public static final int MAX_POOLED_BUFFERS = 1024;
+
+	private final RequestProcessor _processor;
+	private final int _port;
+	private final int _eventLoopCount;
+	private final int _workerCount;
+	private final ResetPolicy _resetPolicy;
+	private final AdmissionControl _admission;
+	private final BufferPool _bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+	private ServerSocketChannel _acceptor;
+	private EventLoop[] _loops;
+	private Thread[] _loopThreads;
+	private ThreadPoolExecutor _workers;
+
+	// Index of the loop to receive the next accepted connection. Only
+	// accessed by the acceptor's loop thread.
+	private int _nextLoop;
+
+	public SelectorEngine(RequestProcessor processor, int port, int eventLoopCount,
+			int workerCount, ResetPolicy resetPolicy, AdmissionControl admission) {
+		if (eventLoopCount < 1 || workerCount < 1) {
+			throw new IllegalArgumentException(
+					"At least one event loop and one worker are required");
+		}
+		_processor = processor;
+		_port = port;
+		_eventLoopCount = eventLoopCount;
+		_workerCount = workerCount;
+		_resetPolicy = resetPolicy;
+		_admission = admission;
+	}
+
+	/**
+	 * Starts the engine, blocking until it's shut down.
+	 */
+	public void start() throws IOException {
+		_acceptor = ServerSocketChannel.open();
+		_acceptor.socket().setReuseAddress(true);
+		_acceptor.bind(new InetSocketAddress(_port));
+		_acceptor.configureBlocking(false);
+
+		InetAddress serverHost = InetAddress.getLocalHost();
+		System.out.println("Server destination: " + serverHost.getHostAddress()
+				+ ", " + _acceptor.socket().getLocalPort() + " ("
+				+ _eventLoopCount + " event loops, " + _workerCount
+				+ " workers)");
+
+		int maxQueued = _admission.getMaxQueued();
+		BlockingQueue<Runnable> queue = maxQueued > 0
+				? new ArrayBlockingQueue<Runnable>(maxQueued)
+				: new LinkedBlockingQueue<Runnable>();
+		_workers = new ThreadPoolExecutor(_workerCount, _workerCount, 0,
+				TimeUnit.MILLISECONDS, queue, namedThreadFactory("concert-worker-"));
+		_processor.getMetrics().monitorQueue(_workers);
+
+		_loops = new EventLoop[_eventLoopCount];
+		_loopThreads = new Thread[_eventLoopCount];
+		for (int i = 0; i < _eventLoopCount; i++) {
+			_loops[i] = new EventLoop(this);
+			_loopThreads[i] = new Thread(_loops[i], "concert-event-loop-" + i);
+		}
+		_loops[0].registerAcceptor(_acceptor);
+		for (Thread thread : _loopThreads) {
+			thread.start();
+		}
+
+		try {
+			for (Thread thread : _loopThreads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops the engine. Closing the listening channel stops new connections
+	 * from being accepted, and stopping the EventLoops closes all sessions.
+	 */
+	public void shutdown() {
+		try {
+			if (_acceptor != null) {
+				_acceptor.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (_loops != null) {
+			for (EventLoop loop : _loops) {
+				loop.shutdown();
+			}
+		}
+		if (_workers != null) {
+			_workers.shutdownNow();
+		}
+	}
+
+	public RequestProcessor getProcessor() {
+		return _processor;
+	}
+
+	/**
+	 * Returns when sessions using Java serialisation reset their streams.
+	 */
+	public ResetPolicy getResetPolicy() {
+		return _resetPolicy;
+	}
+
+	/**
+	 * Returns the limits that sessions and their requests are admitted
+	 * under.
+	 */
+	public AdmissionControl getAdmissionControl() {
+		return _admission;
+	}
+
+	/**
+	 * Returns the pool of buffers shared by the engine's sessions.
+	 */
+	public BufferPool getBufferPool() {
+		return _bufferPool;
+	}
+
+	/**
+	 * Hands a newly accepted connection to the next EventLoop.
+	 */
+	void accepted(SocketChannel channel) throws IOException {
+		channel.socket().setTcpNoDelay(true);
+		EventLoop loop = _loops[_nextLoop];
+		_nextLoop = (_nextLoop + 1) % _loops.length;
+		loop.register(channel);
+	}
+
+	/**
+	 * Runs a session's request processing on a worker thread. Returns false
+	 * if the task was refused, because the workers' queue is full or the
+	 * engine is shutting down.
+	 */
+	boolean dispatch(Runnable task) {
+		try {
+			_workers.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	static ThreadFactory namedThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger _count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, prefix
+						+ _count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
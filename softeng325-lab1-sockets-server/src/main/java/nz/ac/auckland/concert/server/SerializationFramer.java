@@ -0,0 +1,691 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nz.ac.auckland.concert.common.BinaryCodec;
+
+/**
+ * MessageFramer for the Serialization WireFormat, in which each message is an
+ * object written to an ObjectOutputStream. Such messages don't say how long
+ * they are, so the framer follows the grammar of the object stream (see the
+ * Java Object Serialization Specification) far enough to find where each
+ * object ends. Nothing is deserialised, and no classes are loaded.
+ *
+ * The grammar is followed by a state machine rather than by recursion, so
+ * that a scan can stop wherever the received bytes run out, and carry on
+ * where it left off when more arrive. Each byte is scanned once, straight
+ * from the buffer it was received into: the framer keeps no copy of the
+ * stream, only a stack of the elements being scanned, the few bytes of a
+ * number that's split between runs, and how many bytes (of a string, say)
+ * are still to be skipped. The stream header is framed with the first
+ * message, and a reset is framed with the message that follows it, as
+ * ObjectInputStream.readObject() reads them.
+ *
+ * Class descriptors are given handles in the same order as by the
+ * ObjectInputStream, so that later messages' references to them can be
+ * followed. Whatever a class writes in its own writeObject() or
+ * writeExternal() method is scanned as an annotation, so it must use the
+ * block data protocol that ObjectOutputStream has used by default since Java
+ * 1.2, and a writeObject() method must write the class's fields first (with
+ * defaultWriteObject() or writeFields()), as the specification recommends.
+ * The JDK's classes and the ones sent in messages all do.
+ *
+ */
+public class SerializationFramer implements MessageFramer {
+	// Deepest nesting of objects that's scanned, so that a malicious stream
+	// can't make the stack grow without bound.
+	private static final int MAX_DEPTH = 1000;
+
+	private static final int STREAM_HEADER_LENGTH = 4;
+
+	// Kinds of element on the stack.
+	private static final int MESSAGE = 0;
+	private static final int OBJECT = 1;
+	private static final int CLASS_DESC = 2;
+	private static final int ANNOTATION = 3;
+
+	// Elements being scanned, from the message at the bottom to the
+	// innermost at _stack[_depth - 1]. Elements are reused as the stack
+	// shrinks and grows.
+	private Element[] _stack = new Element[16];
+	private int _depth;
+
+	// Class descriptor scanned by the last CLASS_DESC element to finish, for
+	// the element that contains it.
+	private ClassDesc _result;
+
+	// Bytes of a number or type code, which may be split between runs.
+	private final ByteBuffer _token = ByteBuffer.allocate(8);
+
+	// Number of bytes to skip before scanning any further.
+	private long _skip;
+
+	// Number of bytes of the current message scanned so far, and the number
+	// of bytes of messages completed by the current call to frame().
+	private long _scanned;
+	private long _completed;
+
+	// Number of messages completed.
+	private long _messages;
+
+	// Objects that have been assigned handles, in order: the ClassDesc of
+	// each class descriptor, or null for any other object.
+	private final List<ClassDesc> _handles = new ArrayList<ClassDesc>();
+
+	/**
+	 * What the framer needs to know of a class descriptor.
+	 */
+	private static class ClassDesc {
+		// Type code of an array class's elements, or 0 if it isn't an array
+		// class.
+		private final byte _elementType;
+
+		private byte _flags;
+		private int _primitiveBytes;
+		private int _objectFields;
+		private ClassDesc _super;
+
+		ClassDesc(byte elementType) {
+			_elementType = elementType;
+		}
+	}
+
+	/**
+	 * A partly scanned element of the stream.
+	 */
+	private static class Element {
+		private int _kind;
+
+		// Position within the element's grammar. Step 0 reads its type code,
+		// unless the code has already been read by the enclosing element.
+		private int _step;
+		private byte _code;
+
+		// Class descriptor being scanned, or the class of the object or array
+		// being scanned.
+		private ClassDesc _desc;
+
+		// Number of fields, elements or interfaces still to be scanned.
+		private int _remaining;
+
+		// For an object, its classes from the most distant superclass
+		// onwards, and the index of the class whose data is being scanned.
+		private List<ClassDesc> _classes;
+		private int _class;
+	}
+
+	public SerializationFramer() {
+		// A new element is a message whose stream header is yet to be read.
+		_stack[0] = new Element();
+		_depth = 1;
+	}
+
+	@Override
+	public int frame(ByteBuffer received) throws IOException {
+		_completed = 0;
+		while (true) {
+			if (_skip > 0) {
+				int count = (int) Math.min(_skip, received.remaining());
+				received.position(received.position() + count);
+				_skip -= count;
+				_scanned += count;
+				if (_skip > 0) {
+					break;
+				}
+			}
+			Element element = _stack[_depth - 1];
+			boolean scanned;
+			switch (element._kind) {
+			case MESSAGE:
+				scanned = scanMessage(element, received);
+				break;
+			case OBJECT:
+				scanned = scanObject(element, received);
+				break;
+			case CLASS_DESC:
+				scanned = scanClassDesc(element, received);
+				break;
+			default:
+				scanned = scanAnnotation(element, received);
+			}
+			if (!scanned) {
+				break;
+			}
+		}
+		return (int) _completed;
+	}
+
+	@Override
+	public long getMessageCount() {
+		return _messages;
+	}
+
+	/**
+	 * The following methods take the next step in scanning the element at
+	 * the top of the stack. Each returns false if it needs more bytes than
+	 * have been received, in which case it can be called again with the
+	 * bytes that follow.
+	 */
+	private boolean scanMessage(Element message, ByteBuffer received)
+			throws StreamCorruptedException {
+		switch (message._step) {
+		case 0:
+			if (!take(received, STREAM_HEADER_LENGTH)) {
+				return false;
+			}
+			if (tokenShort() != (ObjectStreamConstants.STREAM_MAGIC & 0xFFFF)
+					|| tokenShort() != ObjectStreamConstants.STREAM_VERSION) {
+				throw new StreamCorruptedException("Invalid stream header");
+			}
+			message._step = 1;
+			return true;
+		case 1:
+			if (!take(received, 1)) {
+				return false;
+			}
+			byte code = tokenByte();
+			if (code == ObjectStreamConstants.TC_RESET) {
+				_handles.clear();
+			} else {
+				message._step = 2;
+				push(OBJECT, code);
+			}
+			return true;
+		default:
+			_completed += _scanned;
+			_scanned = 0;
+			_messages++;
+			message._step = 1;
+			return true;
+		}
+	}
+
+	private boolean scanObject(Element object, ByteBuffer received)
+			throws StreamCorruptedException {
+		if (object._step == 0) {
+			if (object._code == 0) {
+				if (!take(received, 1)) {
+					return false;
+				}
+				object._code = tokenByte();
+			}
+			object._step = 1;
+			switch (object._code) {
+			case ObjectStreamConstants.TC_NULL:
+				pop();
+				break;
+			case ObjectStreamConstants.TC_REFERENCE:
+				break;
+			case ObjectStreamConstants.TC_STRING:
+			case ObjectStreamConstants.TC_LONGSTRING:
+				_handles.add(null);
+				break;
+			case ObjectStreamConstants.TC_CLASSDESC:
+			case ObjectStreamConstants.TC_PROXYCLASSDESC:
+				// The code starts a class descriptor.
+				object._kind = CLASS_DESC;
+				object._step = 0;
+				break;
+			case ObjectStreamConstants.TC_CLASS:
+			case ObjectStreamConstants.TC_ENUM:
+			case ObjectStreamConstants.TC_ARRAY:
+			case ObjectStreamConstants.TC_OBJECT:
+				push(CLASS_DESC, (byte) 0);
+				break;
+			default:
+				throw new StreamCorruptedException(String.format("Invalid type code: %02X",
+						object._code & 0xFF));
+			}
+			return true;
+		}
+
+		switch (object._code) {
+		case ObjectStreamConstants.TC_REFERENCE:
+			if (!take(received, 4)) {
+				return false;
+			}
+			lookup(tokenInt());
+			pop();
+			return true;
+		case ObjectStreamConstants.TC_STRING:
+			if (!take(received, 2)) {
+				return false;
+			}
+			skip(tokenShort());
+			pop();
+			return true;
+		case ObjectStreamConstants.TC_LONGSTRING:
+			if (!take(received, 8)) {
+				return false;
+			}
+			skip(tokenLong());
+			pop();
+			return true;
+		case ObjectStreamConstants.TC_CLASS:
+			_handles.add(null);
+			pop();
+			return true;
+		case ObjectStreamConstants.TC_ENUM:
+			if (object._step == 1) {
+				_handles.add(null);
+				object._step = 2;
+				// The constant's name.
+				push(OBJECT, (byte) 0);
+			} else {
+				pop();
+			}
+			return true;
+		case ObjectStreamConstants.TC_ARRAY:
+			return scanArray(object, received);
+		default:
+			return scanObjectData(object);
+		}
+	}
+
+	private boolean scanArray(Element array, ByteBuffer received)
+			throws StreamCorruptedException {
+		switch (array._step) {
+		case 1:
+			array._desc = _result;
+			if (array._desc == null || array._desc._elementType == 0) {
+				throw new StreamCorruptedException("Array without an array class");
+			}
+			_handles.add(null);
+			array._step = 2;
+			return true;
+		case 2: {
+			if (!take(received, 4)) {
+				return false;
+			}
+			int size = tokenInt();
+			if (size < 0) {
+				throw new StreamCorruptedException("Invalid array size: " + size);
+			}
+			byte elementType = array._desc._elementType;
+			if (elementType == '[' || elementType == 'L') {
+				array._remaining = size;
+				array._step = 3;
+			} else {
+				skip((long) size * sizeOf(elementType));
+				pop();
+			}
+			return true;
+		}
+		default:
+			if (array._remaining == 0) {
+				pop();
+			} else {
+				array._remaining--;
+				push(OBJECT, (byte) 0);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Scans an object's fields, and whatever its classes wrote themselves,
+	 * starting with those of its most distant superclass.
+	 */
+	private boolean scanObjectData(Element object) throws StreamCorruptedException {
+		switch (object._step) {
+		case 1: {
+			ClassDesc desc = _result;
+			if (desc == null) {
+				throw new StreamCorruptedException("Object without a class");
+			}
+			_handles.add(null);
+			if ((desc._flags & ObjectStreamConstants.SC_EXTERNALIZABLE) != 0) {
+				if ((desc._flags & ObjectStreamConstants.SC_BLOCK_DATA) == 0) {
+					throw new StreamCorruptedException("Externalizable data without block data");
+				}
+				// The object ends with the annotation.
+				object._kind = ANNOTATION;
+				object._step = 0;
+				return true;
+			}
+			List<ClassDesc> classes = new ArrayList<ClassDesc>();
+			for (ClassDesc current = desc; current != null; current = current._super) {
+				if (classes.size() == MAX_DEPTH) {
+					throw new StreamCorruptedException("Class hierarchy is too deep");
+				}
+				classes.add(current);
+			}
+			object._classes = classes;
+			object._class = classes.size();
+			object._step = 2;
+			return true;
+		}
+		case 2: {
+			// Move on to the next class's data.
+			ClassDesc current;
+			do {
+				if (--object._class < 0) {
+					pop();
+					return true;
+				}
+				current = object._classes.get(object._class);
+			} while ((current._flags & ObjectStreamConstants.SC_SERIALIZABLE) == 0);
+			skip(current._primitiveBytes);
+			object._remaining = current._objectFields;
+			object._step = 3;
+			return true;
+		}
+		default:
+			if (object._remaining > 0) {
+				object._remaining--;
+				push(OBJECT, (byte) 0);
+				return true;
+			}
+			object._step = 2;
+			if ((object._classes.get(object._class)._flags
+					& ObjectStreamConstants.SC_WRITE_METHOD) != 0) {
+				push(ANNOTATION, (byte) 0);
+			}
+			return true;
+		}
+	}
+
+	private boolean scanClassDesc(Element element, ByteBuffer received)
+			throws StreamCorruptedException {
+		switch (element._step) {
+		case 0:
+			if (element._code == 0) {
+				if (!take(received, 1)) {
+					return false;
+				}
+				element._code = tokenByte();
+			}
+			switch (element._code) {
+			case ObjectStreamConstants.TC_NULL:
+				_result = null;
+				pop();
+				break;
+			case ObjectStreamConstants.TC_REFERENCE:
+				element._step = 1;
+				break;
+			case ObjectStreamConstants.TC_CLASSDESC:
+				element._step = 2;
+				break;
+			case ObjectStreamConstants.TC_PROXYCLASSDESC:
+				element._desc = new ClassDesc((byte) 0);
+				element._desc._flags = ObjectStreamConstants.SC_SERIALIZABLE;
+				_handles.add(element._desc);
+				element._step = 8;
+				break;
+			default:
+				throw new StreamCorruptedException(String.format("Invalid class descriptor: %02X",
+						element._code & 0xFF));
+			}
+			return true;
+		case 1: {
+			if (!take(received, 4)) {
+				return false;
+			}
+			ClassDesc desc = lookup(tokenInt());
+			if (desc == null) {
+				throw new StreamCorruptedException("Reference to an object instead of a class");
+			}
+			_result = desc;
+			pop();
+			return true;
+		}
+		case 2:
+			if (!take(received, 2)) {
+				return false;
+			}
+			element._remaining = tokenShort();
+			element._step = 3;
+			return true;
+		case 3: {
+			// An array class's name starts with '[', followed by the type
+			// code of its elements. The name is followed by the
+			// serialVersionUID.
+			byte elementType = 0;
+			int nameLength = element._remaining;
+			if (nameLength > 1) {
+				if (!take(received, 2)) {
+					return false;
+				}
+				byte first = tokenByte();
+				byte second = tokenByte();
+				elementType = first == '[' ? second : 0;
+				nameLength -= 2;
+			}
+			skip(nameLength + 8);
+			element._desc = new ClassDesc(elementType);
+			_handles.add(element._desc);
+			element._step = 4;
+			return true;
+		}
+		case 4:
+			if (!take(received, 3)) {
+				return false;
+			}
+			element._desc._flags = tokenByte();
+			element._remaining = tokenShort();
+			element._step = 5;
+			return true;
+		case 5: {
+			if (element._remaining == 0) {
+				element._step = 6;
+				push(ANNOTATION, (byte) 0);
+				return true;
+			}
+			// A field's type code and the length of its name.
+			if (!take(received, 3)) {
+				return false;
+			}
+			byte type = tokenByte();
+			skip(tokenShort());
+			element._remaining--;
+			if (type == '[' || type == 'L') {
+				element._desc._objectFields++;
+				// The field's class name.
+				push(OBJECT, (byte) 0);
+			} else {
+				element._desc._primitiveBytes += sizeOf(type);
+			}
+			return true;
+		}
+		case 6:
+			element._step = 7;
+			push(CLASS_DESC, (byte) 0);
+			return true;
+		case 7:
+			element._desc._super = _result;
+			_result = element._desc;
+			pop();
+			return true;
+		case 8:
+			if (!take(received, 4)) {
+				return false;
+			}
+			element._remaining = tokenInt();
+			element._step = 9;
+			return true;
+		default:
+			if (element._remaining <= 0) {
+				element._step = 6;
+				push(ANNOTATION, (byte) 0);
+				return true;
+			}
+			// An interface's name.
+			if (!take(received, 2)) {
+				return false;
+			}
+			skip(tokenShort());
+			element._remaining--;
+			return true;
+		}
+	}
+
+	/**
+	 * Scans objects and block data up to the end of an annotation.
+	 */
+	private boolean scanAnnotation(Element annotation, ByteBuffer received)
+			throws StreamCorruptedException {
+		switch (annotation._step) {
+		case 0:
+			if (!take(received, 1)) {
+				return false;
+			}
+			byte code = tokenByte();
+			switch (code) {
+			case ObjectStreamConstants.TC_ENDBLOCKDATA:
+				pop();
+				break;
+			case ObjectStreamConstants.TC_BLOCKDATA:
+				annotation._step = 1;
+				break;
+			case ObjectStreamConstants.TC_BLOCKDATALONG:
+				annotation._step = 2;
+				break;
+			default:
+				push(OBJECT, code);
+			}
+			return true;
+		case 1:
+			if (!take(received, 1)) {
+				return false;
+			}
+			skip(tokenByte() & 0xFF);
+			annotation._step = 0;
+			return true;
+		default: {
+			if (!take(received, 4)) {
+				return false;
+			}
+			int length = tokenInt();
+			if (length < 0) {
+				throw new StreamCorruptedException("Invalid block length: " + length);
+			}
+			skip(length);
+			annotation._step = 0;
+			return true;
+		}
+		}
+	}
+
+	private void push(int kind, byte code) throws StreamCorruptedException {
+		if (_depth > MAX_DEPTH) {
+			throw new StreamCorruptedException("Objects are nested too deeply");
+		}
+		if (_depth == _stack.length) {
+			_stack = Arrays.copyOf(_stack, 2 * _stack.length);
+		}
+		Element element = _stack[_depth];
+		if (element == null) {
+			element = new Element();
+			_stack[_depth] = element;
+		}
+		_depth++;
+		element._kind = kind;
+		element._step = 0;
+		element._code = code;
+		element._desc = null;
+		element._classes = null;
+	}
+
+	private void pop() {
+		_depth--;
+	}
+
+	private ClassDesc lookup(int handle) throws StreamCorruptedException {
+		int index = handle - ObjectStreamConstants.baseWireHandle;
+		if (index < 0 || index >= _handles.size()) {
+			throw new StreamCorruptedException("Invalid handle: " + Integer.toHexString(handle));
+		}
+		return _handles.get(index);
+	}
+
+	private static int sizeOf(byte type) throws StreamCorruptedException {
+		switch (type) {
+		case 'B':
+		case 'Z':
+			return 1;
+		case 'C':
+		case 'S':
+			return 2;
+		case 'I':
+		case 'F':
+			return 4;
+		case 'J':
+		case 'D':
+			return 8;
+		default:
+			throw new StreamCorruptedException("Invalid field type: " + (char) type);
+		}
+	}
+
+	/**
+	 * Skips count bytes, once the current step is done.
+	 */
+	private void skip(long count) throws StreamCorruptedException {
+		if (count < 0) {
+			throw new StreamCorruptedException("Invalid length: " + count);
+		}
+		checkLength(_scanned + count);
+		_skip = count;
+	}
+
+	/**
+	 * Collects count bytes in the token, taking as many as it still needs
+	 * from received. Returns false if received runs out first, in which case
+	 * the bytes taken so far are kept for the next call. The token's bytes
+	 * are then read with the token methods, the last of which clears it.
+	 */
+	private boolean take(ByteBuffer received, int count) throws StreamCorruptedException {
+		while (_token.position() < count) {
+			if (!received.hasRemaining()) {
+				return false;
+			}
+			_token.put(received.get());
+			checkLength(++_scanned);
+		}
+		_token.flip();
+		return true;
+	}
+
+	private byte tokenByte() {
+		byte value = _token.get();
+		clearIfRead();
+		return value;
+	}
+
+	// Reads an unsigned short, as a length or a count.
+	private int tokenShort() {
+		int value = _token.getShort() & 0xFFFF;
+		clearIfRead();
+		return value;
+	}
+
+	private int tokenInt() {
+		int value = _token.getInt();
+		clearIfRead();
+		return value;
+	}
+
+	private long tokenLong() {
+		long value = _token.getLong();
+		clearIfRead();
+		return value;
+	}
+
+	private void clearIfRead() {
+		if (!_token.hasRemaining()) {
+			_token.clear();
+		}
+	}
+
+	private static void checkLength(long length) throws StreamCorruptedException {
+		if (length > BinaryCodec.MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Message is too long");
+		}
+	}
+}
@@ -1,21 +1,16 @@
 package nz.ac.auckland.concert.server;
 
 import java.io.Console;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import nz.ac.auckland.concert.common.Concert;
-import nz.ac.auckland.concert.common.Config;
-import nz.ac.auckland.concert.common.RequestMessage;
-import nz.ac.auckland.concert.common.ResponseMessage;
+import nz.ac.auckland.concert.common.Partitioner;
 
 /**
  * Simple server that maintains a collection of Concerts, and which implements
@@ -26,33 +21,116 @@ import nz.ac.auckland.concert.common.ResponseMessage;
  * send further messages, as defined by class RequestMessage. At the end of a
  * communication session, clients should send a Goodbye message, informing the
  * server that no further messages will be sent.
+ * 
+ * The server can run in one of the following modes:
+ * - Blocking: connections are accepted and served one at a time.
+ * - Selector: sessions are multiplexed over a few event-loop threads using
+ *   non-blocking I/O, allowing many clients to be served concurrently (see
+ *   SelectorEngine).
+ * - ThreadPerSession: each session runs on its own (virtual or pooled
+ *   platform) thread using blocking I/O (see ThreadPerSessionEngine).
+ *
+ * If a data directory is configured, the Concerts are kept there as a
+ * snapshot and a WriteAheadLog of later changes (see DataDirectory), from
+ * which they're restored when the server starts.
+ *
+ * In the Selector and ThreadPerSession modes, an AdmissionControl turns
+ * sessions and requests away with an Overloaded response once the server
+ * reaches its configured limits. In Blocking mode, only the one session being
+ * served is ever admitted.
+ *
+ * In every mode, the server keeps ServerMetrics, which clients can fetch
+ * with a Stats request and which can also be printed periodically.
+ *
+ * A server started with --follow=HOST[:PORT] is a read-only replica of the
+ * primary server at that address, which should run in Selector or
+ * ThreadPerSession mode so that the Follower's session doesn't keep other
+ * clients out. A Promote request makes a follower a primary. Followers can
+ * themselves be followed, since the changes they apply are published to
+ * their own subscribers.
+ *
+ * A server started with --partition=I/N holds only the Concerts whose ids
+ * belong to partition I of N (see Partitioner), and allocates new ids from
+ * that partition, so that N servers can share a catalogue that's too large,
+ * or changes too often, for one. Clients route requests to the server that
+ * holds each Concert (see PartitionedClient). A partition's server can have
+ * followers of its own.
  *
  */
 public class Server {
-	// List of Concerts.
-	private Map<Long, Concert> _concerts;
+	// Ways in which the server can serve its clients.
+	public enum Mode {Blocking, Selector, ThreadPerSession}
+	
+	// The collection of Concerts, and the processor of requests against it.
+	private ConcertStore _store;
+	private RequestProcessor _processor;
+
+	// Where the Concerts are kept, or null if they're only kept in memory.
+	private DataDirectory _dataDirectory;
+	
+	// Replicates the primary's Concerts, if the server follows one.
+	private Follower _follower;
+
+	// Prints statistics periodically, if configured to.
+	private ScheduledExecutorService _statsPrinter;
+	
+	private ServerOptions _options;
 	
-	// Unique id of the next concert to create.
-	private long _nextId;
+	// Engines used in Selector and ThreadPerSession modes.
+	private SelectorEngine _selectorEngine;
+	private ThreadPerSessionEngine _threadEngine;
 	
-	// Network connection objects.
+	// Network connection objects used in Blocking mode.
 	private ServerSocket _socket;
-	private Socket _clientConnection;
-	private ObjectOutputStream _out;
-	private ObjectInputStream _in;
+	private volatile BlockingSession _session;
 
 	public Server() {
-		_concerts = new HashMap<Long, Concert>();
-		_nextId = 1;
+		this(new ServerOptions());
+	}
+	
+	public Server(ServerOptions options) {
+		_options = options;
 	}
 
 	/**
-	 * Starts the server, causing it to block while waiting for a connection 
-	 * request. Once a connection has been accepted, the server processes 
+	 * Starts the server, causing it to block while waiting for connection 
+	 * requests. Once a connection has been accepted, the server processes 
 	 * incoming messages coming over the connection.
 	 */
 	public void start() throws IOException {
-		_socket = new ServerSocket(Config.SERVER_PORT);
+		ConcertStore store = openStore();
+		_store = store;
+		if (_options.getPartitions() > 1) {
+			store.setPartition(new Partitioner(_options.getPartitions()), _options.getPartition());
+			System.out.println("Holding partition " + _options.getPartition()
+					+ " of " + _options.getPartitions());
+		}
+		_processor = new RequestProcessor(store);
+		AdmissionControl admission = new AdmissionControl(
+				_options.getMaxSessions(), _options.getMaxInFlight(),
+				_options.getMaxQueued(), _processor.getMetrics());
+		startFollower(store);
+		startStatsPrinter();
+
+		switch (_options.getMode()) {
+		case Selector: {
+			_selectorEngine = new SelectorEngine(_processor, _options.getPort(),
+					_options.getEventLoops(), _options.getWorkers(),
+					_options.getResetPolicy(), admission);
+			_selectorEngine.start();
+			return;
+		}
+		case ThreadPerSession: {
+			_threadEngine = new ThreadPerSessionEngine(_processor, _options.getPort(),
+					_options.getThreadKind(), _options.getMaxThreads(),
+					_options.getResetPolicy(), admission);
+			_threadEngine.start();
+			return;
+		}
+		case Blocking:
+		}
+		
+		_socket = new ServerSocket(_options.getPort());
 
 		InetAddress serverHost = InetAddress.getLocalHost();
 		System.out.println("Server destination: " + serverHost.getHostAddress()
@@ -63,43 +141,97 @@ public class Server {
 
 		while (!quit) {
 			try {
-				_clientConnection = _socket.accept();
-				_out = new ObjectOutputStream(
-						_clientConnection.getOutputStream());
-				_out.flush();
-				_in = new ObjectInputStream(
-						_clientConnection.getInputStream());
-
-				RequestMessage request = (RequestMessage) _in.readObject();
-				ResponseMessage response = null;
-
-				if(request.getType() != RequestMessage.MessageType.Hello) {
-					// Accepted a new connection, but the first message isn't
-					// a Hello message - so terminate the connection.
-					response = ResponseMessage.makeProtocolErrorResponse();
-					_out.writeObject(response);
-					_clientConnection.close();
-				} else {
-					// Accepted a new connection and received the initial 
-					// Hello message.
-					response = ResponseMessage.makeSuccessfulResponse();
-					_out.writeObject(response);
-					manageSession();
-				}
+				Socket clientConnection = _socket.accept();
+				clientConnection.setTcpNoDelay(true);
+				_session = new BlockingSession(clientConnection, _processor,
+						_options.getResetPolicy(), admission);
+				_session.run();
+				_session = null;
 			} catch(IOException e) {
 				quit = true;
-			} catch(ClassNotFoundException e) {
-				// Server attempted to deserialise an object without having 
-				// access to the corresponding class.
-				e.printStackTrace();
 			}
 		}
 	}
 	
+	/**
+	 * Creates the store of Concerts, restoring them from the data directory
+	 * if there is one.
+	 */
+	private ConcertStore openStore() throws IOException {
+		File dataDir = _options.getDataDir();
+		if (dataDir == null) {
+			return new ConcertStore();
+		}
+
+		_dataDirectory = new DataDirectory(dataDir, _options.getFsyncPolicy(),
+				_options.getFsyncInterval(), _options.getSnapshotInterval());
+		return _dataDirectory.load();
+	}
+
+	private void startFollower(ConcertStore store) {
+		if (_options.getPrimaryHost() == null) {
+			return;
+		}
+		_follower = new Follower(store, _options.getPrimaryHost(),
+				_options.getPrimaryPort());
+		_processor.setFollower(_follower);
+		_follower.start();
+		System.out.println("Following " + _options.getPrimaryHost() + ":" + _options.getPrimaryPort());
+	}
+
+	private void startStatsPrinter() {
+		long interval = _options.getStatsInterval();
+		if (interval <= 0) {
+			return;
+		}
+		_statsPrinter = Executors.newSingleThreadScheduledExecutor(
+				SelectorEngine.namedThreadFactory("concert-stats-"));
+		_statsPrinter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				System.out.print(_processor.getStats());
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
 	/**
 	 * Stops the server.
 	 */
 	public void shutdown() {
+		switch (_options.getMode()) {
+		case Selector: {
+			_selectorEngine.shutdown();
+			break;
+		}
+		case ThreadPerSession: {
+			_threadEngine.shutdown();
+			break;
+		}
+		case Blocking: {
+			shutdownBlocking();
+			break;
+		}
+		}
+
+		if (_follower != null) {
+			_follower.stop();
+		}
+		if (_statsPrinter != null) {
+			_statsPrinter.shutdownNow();
+		}
+		if (_dataDirectory != null) {
+			try {
+				_dataDirectory.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (_store != null) {
+			_store.close();
+		}
+	}
+
+	private void shutdownBlocking() {
 		try {
 			// Closing the ServerSocket will cause any accept() call on it to 
 			// abort and throw an IOException.
@@ -107,115 +239,21 @@ public class Server {
 			
 			// Closing the Socket connection to the client will cause any IO
 			// methods to abort with an IOException.
-			_clientConnection.close();
+			BlockingSession session = _session;
+			if (session != null) {
+				session.close();
+			}
 		} catch(IOException e) {
 			e.printStackTrace();
 		}
 	}	
-	
+
 	/**
-	 * Processes incoming messages, generating and sending a response back to 
-	 * the client.
+	 * Starts the server. See ServerOptions for the supported arguments.
 	 */
-	private void manageSession() {
-		boolean sessionEnded = false;
-		ResponseMessage response = null;
-		
-		try {
-			while(!sessionEnded) {
-				// Read next request.
-				RequestMessage request = (RequestMessage) _in.readObject();
-				System.out.println("Received a new message: " + request.getType());
-				
-				switch (request.getType()) {
-				case Hello: {
-					response = ResponseMessage.makeProtocolErrorResponse();
-					break;
-				}
-				case Goodbye: {
-					// Acknowledge the client's intention to close the session.
-					response = ResponseMessage.makeSuccessfulResponse();
-					sessionEnded = true;
-					break;
-				}
-				case Create: {
-					Concert concert = request.getConcert();
-
-					// Store the new Concert.
-					Long uid = new Long(_nextId++);
-					Concert newConcert = new Concert(uid, concert.getTitle(),
-							concert.getDate());
-					_concerts.put(uid, newConcert);
-
-					response = ResponseMessage
-							.makeSuccessfulCreateResponse(newConcert);
-					break;
-				}
-				case Retrieve: {
-					Long uid = request.getId();
-					Concert concert = _concerts.get(uid);
-					if (concert == null) {
-						response = ResponseMessage
-								.makeUnsuccessfulRetrieveResponse();
-					} else {
-						response = ResponseMessage
-								.makeSuccessfulRetrieveResponse(concert);
-					}
-					break;
-				}
-				case Update: {
-					Concert concert = request.getConcert();
-					if (!_concerts.containsKey(concert.getId())) {
-						response = ResponseMessage
-								.makeUnsuccessfulUpdateResponse();
-					} else {
-						_concerts.put(concert.getId(), concert);
-						response = ResponseMessage
-								.makeSuccessfulResponse();
-					}
-					break;
-				}
-				case Delete: {
-					Long uid = request.getId();
-
-					Concert concert = _concerts.get(uid);
-					if (concert == null) {
-						response = ResponseMessage
-								.makeUnsuccessfulDeleteResponse();
-					} else {
-						_concerts.remove(uid);
-						response = ResponseMessage
-								.makeSuccessfulResponse();
-					}
-					break;
-				}
-				case List: {
-					List<Concert> concertList = new ArrayList<Concert>(
-							_concerts.values());
-					response = ResponseMessage.makeListResponse(concertList);
-					break;
-				}
-				case Clear: {
-					_concerts.clear();
-					response = ResponseMessage.makeSuccessfulResponse();
-				}
-				}
-
-				// Send response back to the client.
-				_out.writeObject(response);
-			}
-			
-			// Close the socket connection with the client.
-			_clientConnection.close();
-		} catch (IOException e) {
-			sessionEnded = true;
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace(); 
-		} 
-	}
-
 	public static void main(String[] args) {
-		final Server server = new Server();
+		ServerOptions options = ServerOptions.parse(args);
+		final Server server = new Server(options);
 
 		Thread serviceThread = new Thread(new Runnable() {
 			@Override
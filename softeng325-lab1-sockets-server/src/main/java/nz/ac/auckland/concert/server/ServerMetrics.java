@@ -0,0 +1,198 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+import nz.ac.auckland.concert.common.LatencyHistogram;
+import nz.ac.auckland.concert.common.RequestMessage.MessageType;
+import nz.ac.auckland.concert.common.ServerStats;
+
+/**
+ * Counters and latency histograms describing the server's activity. They are
+ * updated by the RequestProcessor, for each request, and by the sessions of
+ * whichever engine is running, for traffic and connections.
+ *
+ * Every update is lock-free (LongAdders, and a LatencyHistogram per
+ * MessageType), so recording costs a few atomic increments on the request
+ * path and threads serving different sessions don't contend.
+ *
+ */
+public class ServerMetrics {
+	private final long _started = System.currentTimeMillis();
+
+	// Indexed by MessageType ordinal.
+	private final LatencyHistogram[] _latencies;
+	private final LongAdder[] _failures;
+
+	private final LongAdder _bytesIn = new LongAdder();
+	private final LongAdder _bytesOut = new LongAdder();
+	private final AtomicInteger _activeSessions = new AtomicInteger();
+
+	// Sessions and requests turned away with an Overloaded response.
+	private final LongAdder _shed = new LongAdder();
+
+	// Resets of sessions' serialisation streams, and the largest handle
+	// table that a reset has cleared.
+	private final LongAdder _streamResets = new LongAdder();
+	private final AtomicLong _maxHandles = new AtomicLong();
+
+	private final LongConsumer _resetListener = new LongConsumer() {
+		@Override
+		public void accept(long handles) {
+			_streamResets.increment();
+			long max;
+			while (handles > (max = _maxHandles.get()) && !_maxHandles.compareAndSet(max, handles)) {
+			}
+		}
+	};
+
+	// Executor whose queue holds work waiting for a thread, or null.
+	private volatile ThreadPoolExecutor _executor;
+
+	public ServerMetrics() {
+		int types = MessageType.values().length;
+		_latencies = new LatencyHistogram[types];
+		_failures = new LongAdder[types];
+		for (int i = 0; i < types; i++) {
+			_latencies[i] = new LatencyHistogram();
+			_failures[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a processed request.
+	 *
+	 * @param nanos the time taken to process the request.
+	 * @param failed whether the request was answered with a Failure status.
+	 */
+	public void recordRequest(MessageType type, long nanos, boolean failed) {
+		_latencies[type.ordinal()].record(Math.max(nanos, 0));
+		if (failed) {
+			_failures[type.ordinal()].increment();
+		}
+	}
+
+	public void addBytesIn(long count) {
+		_bytesIn.add(count);
+	}
+
+	public void addBytesOut(long count) {
+		_bytesOut.add(count);
+	}
+
+	public void sessionOpened() {
+		_activeSessions.incrementAndGet();
+	}
+
+	public void sessionClosed() {
+		_activeSessions.decrementAndGet();
+	}
+
+	/**
+	 * Records a session or request that was answered with an Overloaded
+	 * response.
+	 */
+	public void recordShed() {
+		_shed.increment();
+	}
+
+	/**
+	 * Returns a listener for SerializationCodecs to report their stream
+	 * resets to.
+	 */
+	public LongConsumer getResetListener() {
+		return _resetListener;
+	}
+
+	/**
+	 * Reports the length of executor's queue as the server's queue depth. Has
+	 * no effect unless executor is a ThreadPoolExecutor.
+	 */
+	public void monitorQueue(ExecutorService executor) {
+		_executor = executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor : null;
+	}
+
+	/**
+	 * Returns the number of sessions or requests waiting for a thread to
+	 * serve them, or 0 if no queue is being monitored.
+	 */
+	public int getQueueDepth() {
+		ThreadPoolExecutor executor = _executor;
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+
+	/**
+	 * Returns a stream that counts the bytes read from in as incoming
+	 * traffic.
+	 */
+	public InputStream countBytesIn(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					_bytesIn.increment();
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] bytes, int offset, int length) throws IOException {
+				int count = super.read(bytes, offset, length);
+				if (count > 0) {
+					_bytesIn.add(count);
+				}
+				return count;
+			}
+		};
+	}
+
+	/**
+	 * Returns a stream that counts the bytes written to out as outgoing
+	 * traffic.
+	 */
+	public OutputStream countBytesOut(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				_bytesOut.increment();
+			}
+
+			@Override
+			public void write(byte[] bytes, int offset, int length) throws IOException {
+				// FilterOutputStream would write the bytes one at a time.
+				out.write(bytes, offset, length);
+				_bytesOut.add(length);
+			}
+		};
+	}
+
+	/**
+	 * Returns the current statistics, including every MessageType that has
+	 * been processed.
+	 */
+	public ServerStats getStats() {
+		ServerStats stats = new ServerStats(System.currentTimeMillis() - _started,
+				_bytesIn.sum(), _bytesOut.sum(), _activeSessions.get(), getQueueDepth());
+		stats.setStreamResets(_streamResets.sum(), _maxHandles.get());
+		stats.setShed(_shed.sum());
+		for (MessageType type : MessageType.values()) {
+			LatencyHistogram latency = _latencies[type.ordinal()];
+			if (latency.getCount() > 0) {
+				stats.addType(new ServerStats.TypeStats(type,
+						_failures[type.ordinal()].sum(), latency));
+			}
+		}
+		return stats;
+	}
+}
@@ -0,0 +1,329 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.File;
+
+import nz.ac.auckland.concert.common.Config;
+import nz.ac.auckland.concert.common.ResetPolicy;
+import nz.ac.auckland.concert.server.Server.Mode;
+import nz.ac.auckland.concert.server.ThreadPerSessionEngine.ThreadKind;
+import nz.ac.auckland.concert.server.WriteAheadLog.FsyncPolicy;
+
+/**
+ * Startup settings for the Server, typically parsed from the command line.
+ *
+ * Each option is written as --name=value, e.g. --mode=selector.
+ *
+ */
+public class ServerOptions {
+	private Mode _mode = Mode.Blocking;
+	private int _port = Config.SERVER_PORT;
+
+	// Selector mode settings.
+	private int _eventLoops = Runtime.getRuntime().availableProcessors();
+	private int _workers = 2 * Runtime.getRuntime().availableProcessors();
+
+	// ThreadPerSession mode settings.
+	private ThreadKind _threadKind = ThreadKind.Virtual;
+	private int _maxThreads = 200;
+
+	// Durability settings. Concerts are only kept in memory unless a data
+	// directory is given.
+	private File _dataDir;
+	private FsyncPolicy _fsyncPolicy = FsyncPolicy.Always;
+	private long _fsyncInterval = WriteAheadLog.DEFAULT_FSYNC_INTERVAL;
+	private long _snapshotInterval = DataDirectory.DEFAULT_SNAPSHOT_INTERVAL;
+
+	// Interval (ms) at which statistics are printed, or 0 for never.
+	private long _statsInterval;
+
+	// When sessions using Java serialisation reset their output streams.
+	private ResetPolicy _resetPolicy = DEFAULT_RESET_POLICY;
+
+	public static final ResetPolicy DEFAULT_RESET_POLICY = ResetPolicy.DEFAULT;
+
+	// Admission control limits (Selector and ThreadPerSession modes), each
+	// 0 for no limit.
+	private int _maxSessions = AdmissionControl.DEFAULT_MAX_SESSIONS;
+	private int _maxInFlight = AdmissionControl.DEFAULT_MAX_IN_FLIGHT;
+	private int _maxQueued = AdmissionControl.DEFAULT_MAX_QUEUED;
+
+	// Primary server to replicate, or null if this server is a primary.
+	private String _primaryHost;
+	private int _primaryPort = Config.SERVER_PORT;
+
+	// The partition of a cluster's Concerts that this server holds, of how
+	// many partitions.
+	private int _partition = 0;
+	private int _partitions = 1;
+
+	/**
+	 * Parses command line arguments, where recognised options are:
+	 *   --mode=blocking|selector|thread-per-session
+	 *   --port=N         (default Config.SERVER_PORT)
+	 *   --event-loops=N  (Selector mode; defaults to the number of cores)
+	 *   --workers=N      (Selector mode; defaults to twice the number of cores)
+	 *   --threads=virtual|platform  (ThreadPerSession mode; default virtual)
+	 *   --max-threads=N  (bound on platform threads; default 200)
+	 *   --data-dir=PATH  (directory for snapshots and the log; default none)
+	 *   --fsync=always|interval|never  (when the log is forced; default always)
+	 *   --fsync-interval=MS  (Interval policy; default 10)
+	 *   --snapshot-interval=MS  (0 for no snapshots; default 60000)
+	 *   --stats-interval=MS  (period of printing statistics; default 0, never)
+	 *   --reset-messages=N  (reset serialisation streams after N responses,
+	 *                        0 for no limit; default 1000)
+	 *   --reset-bytes=N  (... or after N bytes, 0 for no limit; default 1MB)
+	 *   --max-sessions=N  (concurrent sessions, 0 for no limit; default 10000)
+	 *   --max-in-flight=N  (requests received but not yet processed per
+	 *                       session, 0 for no limit; default 4096)
+	 *   --max-queued=N  (sessions or requests waiting for a thread, 0 for no
+	 *                    limit; default 16384)
+	 *   --follow=HOST[:PORT]  (run as a read-only Follower of the primary
+	 *                          server at HOST; default none)
+	 *   --partition=I/N  (hold partition I, from 0, of a cluster of N
+	 *                     servers; default 0/1, every Concert)
+	 */
+	public static ServerOptions parse(String[] args) {
+		ServerOptions options = new ServerOptions();
+
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (!arg.startsWith("--") || separator < 0) {
+				System.out.println("Ignoring unrecognised argument: " + arg);
+				continue;
+			}
+			String name = arg.substring(2, separator);
+			String value = arg.substring(separator + 1);
+
+			if (name.equals("mode")) {
+				options.setMode(parseMode(value));
+			} else if (name.equals("port")) {
+				options.setPort(Integer.parseInt(value));
+			} else if (name.equals("event-loops")) {
+				options.setEventLoops(Integer.parseInt(value));
+			} else if (name.equals("workers")) {
+				options.setWorkers(Integer.parseInt(value));
+			} else if (name.equals("threads")) {
+				options.setThreadKind(value.equalsIgnoreCase("platform")
+						? ThreadKind.Platform : ThreadKind.Virtual);
+			} else if (name.equals("max-threads")) {
+				options.setMaxThreads(Integer.parseInt(value));
+			} else if (name.equals("data-dir")) {
+				options.setDataDir(new File(value));
+			} else if (name.equals("fsync")) {
+				options.setFsyncPolicy(parseFsyncPolicy(value));
+			} else if (name.equals("fsync-interval")) {
+				options.setFsyncInterval(Long.parseLong(value));
+			} else if (name.equals("snapshot-interval")) {
+				options.setSnapshotInterval(Long.parseLong(value));
+			} else if (name.equals("stats-interval")) {
+				options.setStatsInterval(Long.parseLong(value));
+			} else if (name.equals("reset-messages")) {
+				options.setResetPolicy(new ResetPolicy(Integer.parseInt(value),
+						options.getResetPolicy().getMaxBytes()));
+			} else if (name.equals("reset-bytes")) {
+				options.setResetPolicy(new ResetPolicy(options.getResetPolicy().getMaxMessages(),
+						Long.parseLong(value)));
+			} else if (name.equals("max-sessions")) {
+				options.setMaxSessions(Integer.parseInt(value));
+			} else if (name.equals("max-in-flight")) {
+				options.setMaxInFlight(Integer.parseInt(value));
+			} else if (name.equals("max-queued")) {
+				options.setMaxQueued(Integer.parseInt(value));
+			} else if (name.equals("follow")) {
+				int colon = value.lastIndexOf(':');
+				if (colon < 0) {
+					options.setPrimary(value, Config.SERVER_PORT);
+				} else {
+					options.setPrimary(value.substring(0, colon),
+							Integer.parseInt(value.substring(colon + 1)));
+				}
+			} else if (name.equals("partition")) {
+				int slash = value.indexOf('/');
+				if (slash < 0) {
+					System.out.println("Ignoring unrecognised argument: " + arg);
+				} else {
+					options.setPartition(Integer.parseInt(value.substring(0, slash)),
+							Integer.parseInt(value.substring(slash + 1)));
+				}
+			} else {
+				System.out.println("Ignoring unrecognised argument: " + arg);
+			}
+		}
+		return options;
+	}
+
+	private static Mode parseMode(String value) {
+		if (value.equalsIgnoreCase("selector")) {
+			return Mode.Selector;
+		} else if (value.equalsIgnoreCase("thread-per-session")) {
+			return Mode.ThreadPerSession;
+		}
+		return Mode.Blocking;
+	}
+
+	private static FsyncPolicy parseFsyncPolicy(String value) {
+		if (value.equalsIgnoreCase("interval")) {
+			return FsyncPolicy.Interval;
+		} else if (value.equalsIgnoreCase("never")) {
+			return FsyncPolicy.Never;
+		}
+		return FsyncPolicy.Always;
+	}
+
+	public Mode getMode() {
+		return _mode;
+	}
+
+	public void setMode(Mode mode) {
+		_mode = mode;
+	}
+
+	public int getPort() {
+		return _port;
+	}
+
+	public void setPort(int port) {
+		_port = port;
+	}
+
+	public int getEventLoops() {
+		return _eventLoops;
+	}
+
+	public void setEventLoops(int eventLoops) {
+		_eventLoops = eventLoops;
+	}
+
+	public int getWorkers() {
+		return _workers;
+	}
+
+	public void setWorkers(int workers) {
+		_workers = workers;
+	}
+
+	public ThreadKind getThreadKind() {
+		return _threadKind;
+	}
+
+	public void setThreadKind(ThreadKind threadKind) {
+		_threadKind = threadKind;
+	}
+
+	public int getMaxThreads() {
+		return _maxThreads;
+	}
+
+	public void setMaxThreads(int maxThreads) {
+		_maxThreads = maxThreads;
+	}
+
+	public File getDataDir() {
+		return _dataDir;
+	}
+
+	public void setDataDir(File dataDir) {
+		_dataDir = dataDir;
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return _fsyncPolicy;
+	}
+
+	public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+		_fsyncPolicy = fsyncPolicy;
+	}
+
+	public long getFsyncInterval() {
+		return _fsyncInterval;
+	}
+
+	public void setFsyncInterval(long fsyncInterval) {
+		_fsyncInterval = fsyncInterval;
+	}
+
+	public long getSnapshotInterval() {
+		return _snapshotInterval;
+	}
+
+	public void setSnapshotInterval(long snapshotInterval) {
+		_snapshotInterval = snapshotInterval;
+	}
+
+	public long getStatsInterval() {
+		return _statsInterval;
+	}
+
+	public void setStatsInterval(long statsInterval) {
+		_statsInterval = statsInterval;
+	}
+
+	public ResetPolicy getResetPolicy() {
+		return _resetPolicy;
+	}
+
+	public void setResetPolicy(ResetPolicy resetPolicy) {
+		_resetPolicy = resetPolicy;
+	}
+
+	public int getMaxSessions() {
+		return _maxSessions;
+	}
+
+	public void setMaxSessions(int maxSessions) {
+		_maxSessions = maxSessions;
+	}
+
+	public int getMaxInFlight() {
+		return _maxInFlight;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		_maxInFlight = maxInFlight;
+	}
+
+	public int getMaxQueued() {
+		return _maxQueued;
+	}
+
+	public void setMaxQueued(int maxQueued) {
+		_maxQueued = maxQueued;
+	}
+
+	/**
+	 * Returns the host of the primary server that this server follows, or
+	 * null if it's a primary.
+	 */
+	public String getPrimaryHost() {
+		return _primaryHost;
+	}
+
+	public int getPrimaryPort() {
+		return _primaryPort;
+	}
+
+	/**
+	 * Makes the server a Follower of the primary server at host and port.
+	 */
+	public void setPrimary(String host, int port) {
+		_primaryHost = host;
+		_primaryPort = port;
+	}
+
+	public int getPartition() {
+		return _partition;
+	}
+
+	public int getPartitions() {
+		return _partitions;
+	}
+
+	/**
+	 * Makes the server hold one partition of a cluster's Concerts (see
+	 * Partitioner).
+	 */
+	public void setPartition(int partition, int partitions) {
+		_partition = partition;
+		_partitions = partitions;
+	}
+}
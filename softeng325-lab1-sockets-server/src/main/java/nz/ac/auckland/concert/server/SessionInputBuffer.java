@@ -0,0 +1,363 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import nz.ac.auckland.concert.common.BufferPool;
+import nz.ac.auckland.concert.common.FrameSource;
+
+/**
+ * InputStream that bridges a non-blocking channel and the blocking decoders
+ * used to read RequestMessages.
+ *
+ * An EventLoop reads from a client's channel straight into the buffer, which
+ * is made up of chunks taken from a BufferPool, and a worker thread consumes
+ * them. The EventLoop passes the bytes it reads to a MessageFramer, and only
+ * the bytes of complete messages can be read, so a worker never waits for
+ * the network: reading past the end of the complete messages fails with a
+ * StreamCorruptedException.
+ *
+ * Bytes are never copied on their way to a BinaryCodec, unless a frame spans
+ * two chunks: readFrame() hands out the chunk that a frame was received into.
+ * Each chunk goes back to the pool once it has been consumed, or once the
+ * buffer is closed, so neither an idle session nor a closed one holds on to
+ * any buffers.
+ *
+ */
+public class SessionInputBuffer extends InputStream implements FrameSource {
+	private final BufferPool _pool;
+
+	// Chunks of received, but not yet consumed, bytes. Each chunk's buffer
+	// is positioned at its first unconsumed byte.
+	private final Deque<Chunk> _chunks = new ArrayDeque<Chunk>();
+
+	// Total number of unconsumed bytes, and the number of them that make up
+	// complete messages.
+	private int _available;
+	private int _framed;
+
+	// Number of messages framed, by this framer and any it replaced.
+	private long _messages;
+
+	private boolean _closed;
+
+	// Finds the ends of the messages in the received bytes.
+	private MessageFramer _framer;
+
+	// The chunk that the EventLoop reads into, and the EventLoop's own view
+	// of its buffer. _fill is only accessed by the EventLoop.
+	private Chunk _fillChunk;
+	private ByteBuffer _fill;
+
+	// Whether the EventLoop is reading into _fillChunk, in which case the
+	// chunk mustn't be released even if it has been consumed.
+	private boolean _filling;
+
+	// Chunk holding the frame last returned by readFrame(), and the end of
+	// the frame. The chunk is reclaimed by the next read.
+	private Chunk _lent;
+	private int _lentEnd;
+
+	// Frames that span chunks are copied into this buffer; grown as needed.
+	private ByteBuffer _scratch = ByteBuffer.allocate(256);
+
+	/**
+	 * A buffer taken from the pool, and the number of bytes that have been
+	 * read into it.
+	 */
+	private static class Chunk {
+		private final ByteBuffer _buffer;
+		private int _end;
+		private boolean _queued;
+		private boolean _released;
+
+		Chunk(ByteBuffer buffer) {
+			_buffer = buffer;
+		}
+
+		/**
+		 * Returns the chunk's buffer, limited to the bytes received.
+		 */
+		ByteBuffer readable() {
+			_buffer.limit(_end);
+			return _buffer;
+		}
+	}
+
+	public SessionInputBuffer(BufferPool pool, MessageFramer framer) {
+		_pool = pool;
+		_framer = framer;
+	}
+
+	/**
+	 * Replaces the framer, when the session switches WireFormat. Any bytes
+	 * that haven't been framed are framed again by the new framer. Called by
+	 * the worker that has read the last message in the old format.
+	 */
+	public synchronized void setFramer(MessageFramer framer) throws IOException {
+		reclaim();
+		_framer = framer;
+		int skip = _framed;
+		for (Chunk chunk : _chunks) {
+			ByteBuffer bytes = chunk._buffer.duplicate();
+			bytes.limit(chunk._end);
+			int count = Math.min(skip, bytes.remaining());
+			bytes.position(bytes.position() + count);
+			skip -= count;
+			frame(bytes);
+		}
+	}
+
+	/**
+	 * Reads whatever is available from channel into the buffer, and frames
+	 * it, returning the number of bytes read, or -1 at end of stream. Called
+	 * by the EventLoop that owns the channel.
+	 *
+	 * @throws IOException if reading fails, or the bytes read can't be
+	 * framed.
+	 */
+	public int readFrom(ReadableByteChannel channel) throws IOException {
+		synchronized (this) {
+			if (_closed) {
+				return -1;
+			}
+			if (_fillChunk == null || _fillChunk._released || !_fill.hasRemaining()) {
+				ByteBuffer buffer = _pool.acquire();
+				_fillChunk = new Chunk(buffer);
+				_fill = buffer.duplicate();
+			}
+			_filling = true;
+		}
+
+		int count = -1;
+		try {
+			count = channel.read(_fill);
+			return count;
+		} finally {
+			synchronized (this) {
+				_filling = false;
+				if (_closed) {
+					// close() left the chunk for this thread to release, unless
+					// a worker is still decoding a frame from it.
+					if (!_fillChunk._released && _fillChunk != _lent) {
+						release(_fillChunk);
+					}
+				} else if (count > 0) {
+					if (!_fillChunk._queued) {
+						_fillChunk._queued = true;
+						_chunks.addLast(_fillChunk);
+					}
+					ByteBuffer received = _fillChunk._buffer.duplicate();
+					received.limit(_fillChunk._end + count);
+					received.position(_fillChunk._end);
+					_fillChunk._end += count;
+					_available += count;
+					frame(received);
+				} else if (!_fillChunk._queued) {
+					release(_fillChunk);
+				} else if (_fillChunk == _chunks.peekFirst() && _fillChunk != _lent) {
+					// The worker may have consumed the chunk while it was
+					// being read into.
+					finished(_fillChunk);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks the end of the stream, discarding any bytes that haven't been
+	 * consumed, and returns the chunks to the pool. A chunk that a worker is
+	 * decoding a frame from, or that the EventLoop is reading into, is
+	 * released by reclaim() or readFrom() once they're done with it.
+	 */
+	@Override
+	public synchronized void close() {
+		if (_closed) {
+			return;
+		}
+		_closed = true;
+		_available = 0;
+		_framed = 0;
+		for (Chunk chunk : _chunks) {
+			if (chunk != _lent && !(_filling && chunk == _fillChunk)) {
+				release(chunk);
+			}
+		}
+		_chunks.clear();
+		if (_fillChunk != null && !_fillChunk._released && !_filling && _fillChunk != _lent) {
+			release(_fillChunk);
+		}
+	}
+
+	/**
+	 * Finishes with the frame last returned by readFrame(), as the next read
+	 * would. Called by a worker when it stops reading, so that the frame's
+	 * chunk isn't left lent out if the buffer is closed meanwhile.
+	 */
+	public synchronized void stopReading() {
+		reclaim();
+	}
+
+	@Override
+	public synchronized int available() {
+		return _available;
+	}
+
+	/**
+	 * Returns the number of unconsumed bytes that make up complete messages.
+	 */
+	public synchronized int framed() {
+		return _framed;
+	}
+
+	/**
+	 * Returns the number of complete messages that have been received,
+	 * whether or not they've been consumed.
+	 */
+	public synchronized long getMessageCount() {
+		return _messages;
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		reclaim();
+		if (!checkData(1)) {
+			return -1;
+		}
+		Chunk head = _chunks.peekFirst();
+		int value = head.readable().get() & 0xFF;
+		consumed(head, 1);
+		return value;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		reclaim();
+		if (len == 0) {
+			return 0;
+		}
+		if (!checkData(1)) {
+			return -1;
+		}
+
+		int count = 0;
+		while (count < len && _framed > 0) {
+			Chunk head = _chunks.peekFirst();
+			ByteBuffer buffer = head.readable();
+			int n = Math.min(len - count, buffer.remaining());
+			buffer.get(b, off + count, n);
+			count += n;
+			consumed(head, n);
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the next frame in the chunk it was received into, if it's
+	 * contained by one chunk, or else a copy.
+	 */
+	@Override
+	public synchronized ByteBuffer readFrame(int length) throws IOException {
+		reclaim();
+		if (!checkData(length)) {
+			throw new EOFException();
+		}
+
+		Chunk head = _chunks.peekFirst();
+		ByteBuffer buffer = head.readable();
+		if (buffer.remaining() >= length) {
+			_lent = head;
+			_lentEnd = buffer.position() + length;
+			_available -= length;
+			_framed -= length;
+			buffer.limit(_lentEnd);
+			return buffer;
+		}
+
+		if (length > _scratch.capacity()) {
+			_scratch = ByteBuffer.allocate(Math.max(length, 2 * _scratch.capacity()));
+		}
+		_scratch.clear();
+		_scratch.limit(length);
+		while (_scratch.hasRemaining()) {
+			head = _chunks.peekFirst();
+			buffer = head.readable();
+			int n = Math.min(_scratch.remaining(), buffer.remaining());
+			buffer.limit(buffer.position() + n);
+			_scratch.put(buffer);
+			consumed(head, n);
+		}
+		_scratch.flip();
+		return _scratch;
+	}
+
+	/**
+	 * Skips to the end of the frame last returned by readFrame(), however
+	 * much of it was decoded. If the buffer has been closed meanwhile, the
+	 * frame's chunk is released instead.
+	 */
+	private void reclaim() {
+		if (_lent != null) {
+			Chunk chunk = _lent;
+			_lent = null;
+			if (_closed) {
+				if (!chunk._released && !(_filling && chunk == _fillChunk)) {
+					release(chunk);
+				}
+				return;
+			}
+			chunk.readable().position(_lentEnd);
+			finished(chunk);
+		}
+	}
+
+	private void consumed(Chunk head, int n) {
+		_available -= n;
+		_framed -= n;
+		finished(head);
+	}
+
+	/**
+	 * Releases the chunk at the head of the buffer if all of its bytes have
+	 * been consumed, and the EventLoop isn't reading into it.
+	 */
+	private void finished(Chunk head) {
+		if (head._buffer.position() == head._end && !(_filling && head == _fillChunk)) {
+			_chunks.removeFirst();
+			release(head);
+		}
+	}
+
+	private void frame(ByteBuffer received) throws IOException {
+		long messages = _framer.getMessageCount();
+		_framed += _framer.frame(received);
+		_messages += _framer.getMessageCount() - messages;
+	}
+
+	private void release(Chunk chunk) {
+		chunk._released = true;
+		_pool.release(chunk._buffer);
+	}
+
+	/**
+	 * Checks that count bytes of complete messages are available. Returns
+	 * false if the stream has ended before them.
+	 *
+	 * @throws StreamCorruptedException if the bytes haven't all been
+	 * received - i.e. a message was read past its end.
+	 */
+	private boolean checkData(int count) throws IOException {
+		if (_framed >= count) {
+			return true;
+		} else if (_closed) {
+			return false;
+		}
+		throw new StreamCorruptedException("Read past the end of a message");
+	}
+}
@@ -0,0 +1,101 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+
+import nz.ac.auckland.concert.common.BufferPool;
+
+/**
+ * OutputStream that a session's responses are encoded into, made up of
+ * buffers taken from a BufferPool. The filled buffers are handed over, as
+ * they are, to be written to the session's channel, and go back to the pool
+ * once they have been written.
+ *
+ * A SessionOutputBuffer isn't thread-safe: NioSession guards it with a lock.
+ *
+ */
+public class SessionOutputBuffer extends OutputStream {
+	private final BufferPool _pool;
+
+	// Buffers that have been filled, and the buffer being filled.
+	private final Deque<ByteBuffer> _filled = new ArrayDeque<ByteBuffer>();
+	private ByteBuffer _current;
+
+	// Total number of bytes ever written.
+	private long _count;
+
+	public SessionOutputBuffer(BufferPool pool) {
+		_pool = pool;
+	}
+
+	@Override
+	public void write(int b) {
+		if (_current == null || !_current.hasRemaining()) {
+			next();
+		}
+		_current.put((byte) b);
+		_count++;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		_count += length;
+		while (length > 0) {
+			if (_current == null || !_current.hasRemaining()) {
+				next();
+			}
+			int n = Math.min(length, _current.remaining());
+			_current.put(bytes, offset, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Returns the total number of bytes written to the stream.
+	 */
+	public long getCount() {
+		return _count;
+	}
+
+	/**
+	 * Moves everything written since the last call to the end of queue, as
+	 * buffers that are ready to be written to a channel.
+	 */
+	public void drainTo(Queue<ByteBuffer> queue) {
+		ByteBuffer buffer;
+		while ((buffer = _filled.pollFirst()) != null) {
+			buffer.flip();
+			queue.add(buffer);
+		}
+		if (_current != null && _current.position() > 0) {
+			_current.flip();
+			queue.add(_current);
+			_current = null;
+		}
+	}
+
+	/**
+	 * Returns the stream's buffers to the pool, discarding their contents.
+	 */
+	public void release() {
+		ByteBuffer buffer;
+		while ((buffer = _filled.pollFirst()) != null) {
+			_pool.release(buffer);
+		}
+		if (_current != null) {
+			_pool.release(_current);
+			_current = null;
+		}
+	}
+
+	private void next() {
+		if (_current != null) {
+			_filled.addLast(_current);
+		}
+		_current = _pool.acquire();
+	}
+}
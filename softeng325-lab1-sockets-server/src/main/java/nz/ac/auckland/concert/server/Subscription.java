@@ -0,0 +1,164 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import nz.ac.auckland.concert.common.ConcertSnapshot;
+import nz.ac.auckland.concert.common.RequestMessage;
+import nz.ac.auckland.concert.common.ResponseMessage;
+
+/**
+ * A session's subscription to a ConcertStore's ChangeFeed, started by a
+ * Subscribe request.
+ *
+ * The subscription sends a Snapshot event, unless it resumes from a change
+ * that the feed still holds, and then an event for each change in sequence
+ * order. Events are sent through the session's ResponseSink by a task on
+ * the feed's executor, which is scheduled whenever a change is published and
+ * sends every change that's available - so a burst of changes is sent by one
+ * task, and at most one task runs for a subscription at a time. If the
+ * subscription falls so far behind that its next change has been
+ * overwritten, it starts again from a new snapshot.
+ *
+ * The session ends the subscription when it receives a Goodbye message,
+ * which sends the Subscribe request's final response, or cancels it when the
+ * connection is closed.
+ *
+ */
+public class Subscription implements Runnable {
+	private final ConcertStore _store;
+	private final ChangeFeed _feed;
+	private final ResponseSink _sink;
+	private final Long _correlationId;
+
+	// Sequence number of the next change to send, and whether a snapshot
+	// must be sent first. Only changed while holding the subscription's
+	// lock.
+	private volatile long _next;
+	private volatile boolean _snapshotDue;
+
+	private final AtomicBoolean _scheduled = new AtomicBoolean();
+	private volatile boolean _cancelled;
+
+	Subscription(ConcertStore store, RequestMessage request, ResponseSink sink) {
+		_store = store;
+		_feed = store.getFeed();
+		_sink = sink;
+		_correlationId = request.getCorrelationId();
+
+		// A position from this run of the server, that's not ahead of the
+		// store, can be resumed from - if the feed no longer holds the next
+		// change, sendAvailable() falls back to a snapshot.
+		Long epoch = request.getEpoch();
+		Long sequence = request.getSequence();
+		if (epoch != null && epoch == _feed.getEpoch() && sequence != null
+				&& sequence >= 0 && sequence <= store.getVersion()) {
+			_next = sequence + 1;
+		} else {
+			_snapshotDue = true;
+		}
+	}
+
+	/**
+	 * Starts sending events.
+	 */
+	void start() {
+		_feed.add(this);
+		wake();
+	}
+
+	/**
+	 * Schedules a task to send the changes that are available, unless one
+	 * is already scheduled.
+	 */
+	void wake() {
+		if (!_cancelled && _scheduled.compareAndSet(false, true)) {
+			try {
+				_feed.getExecutor().execute(this);
+			} catch (RejectedExecutionException e) {
+				cancel();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		do {
+			synchronized (this) {
+				sendAvailable();
+			}
+			_scheduled.set(false);
+
+			// A change may have been published after the last check, but
+			// before the flag was cleared - in which case no other task has
+			// been scheduled to send it.
+		} while (!_cancelled && isAvailable() && _scheduled.compareAndSet(false, true));
+	}
+
+	/**
+	 * Ends the subscription, and sends the final response to the Subscribe
+	 * request once any event being sent has been sent.
+	 */
+	public void end() throws IOException {
+		cancel();
+		synchronized (this) {
+			ResponseMessage response = ResponseMessage.makeSuccessfulResponse();
+			response.setCorrelationId(_correlationId);
+			_sink.send(response);
+		}
+	}
+
+	/**
+	 * Stops sending events, without a final response.
+	 */
+	public void cancel() {
+		_cancelled = true;
+		_feed.remove(this);
+	}
+
+	/**
+	 * Returns the sequence number of the last change sent.
+	 */
+	public long getSequence() {
+		return _next - 1;
+	}
+
+	private boolean isAvailable() {
+		return _snapshotDue || _feed.get(_next) != null;
+	}
+
+	/**
+	 * Sends changes until one isn't available. Called while holding the
+	 * subscription's lock.
+	 */
+	private void sendAvailable() {
+		try {
+			while (!_cancelled) {
+				ResponseMessage response;
+				if (_snapshotDue) {
+					ConcertSnapshot snapshot = _store.snapshot();
+					response = ResponseMessage.makeSnapshotEvent(_feed.getEpoch(), snapshot);
+					_next = snapshot.getVersion() + 1;
+					_snapshotDue = false;
+				} else {
+					ChangeFeed.Event event = _feed.get(_next);
+					if (event == null) {
+						return;
+					}
+					if (event == ChangeFeed.MISSING) {
+						_snapshotDue = true;
+						continue;
+					}
+					response = event.toResponse();
+					_next++;
+				}
+				response.setCorrelationId(_correlationId);
+				_sink.send(response);
+			}
+		} catch (IOException e) {
+			// The session has been closed.
+			cancel();
+		}
+	}
+}
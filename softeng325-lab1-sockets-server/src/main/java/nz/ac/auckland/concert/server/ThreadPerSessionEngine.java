@@ -0,0 +1,188 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import nz.ac.auckland.concert.common.ResetPolicy;
+
+/**
+ * Server engine that runs each accepted connection as a BlockingSession on
+ * its own thread.
+ *
+ * Sessions can either run on virtual threads, which are cheap enough to hold
+ * tens of thousands of idle sessions, or on a bounded pool of platform
+ * threads - in which case connections accepted while all threads are busy
+ * wait for a session to end. On a JVM without virtual threads, sessions run
+ * on the bounded pool of platform threads instead, as a thread per session
+ * would let enough clients exhaust the OS's threads.
+ *
+ * Sessions are admitted by an AdmissionControl once they start running. A
+ * session that has waited for a thread while the queue of waiting sessions
+ * is at its limit is therefore turned away quickly, freeing its thread for
+ * the sessions behind it.
+ *
+ */
+public class ThreadPerSessionEngine {
+	// Kinds of thread that sessions can run on.
+	public enum ThreadKind {Virtual, Platform}
+
+	// Time (ms) that shutdown() waits for live sessions to finish.
+	public static final long SHUTDOWN_TIMEOUT = 5000;
+
+	private final RequestProcessor _processor;
+	private final int _port;
+	private final ThreadKind _threadKind;
+	private final int _maxThreads;
+	private final ResetPolicy _resetPolicy;
+	private final AdmissionControl _admission;
+
+	private ServerSocket _socket;
+	private ExecutorService _executor;
+
+	// Sessions that have been accepted and haven't yet ended.
+	private final Set<BlockingSession> _sessions = ConcurrentHashMap
+			.newKeySet();
+
+	/**
+	 * Creates an engine. maxThreads bounds the number of platform threads,
+	 * which are also used if the JVM doesn't provide virtual threads.
+	 */
+	public ThreadPerSessionEngine(RequestProcessor processor, int port,
+			ThreadKind threadKind, int maxThreads, ResetPolicy resetPolicy,
+			AdmissionControl admission) {
+		if (maxThreads < 1) {
+			throw new IllegalArgumentException(
+					"At least one platform thread is required");
+		}
+		_processor = processor;
+		_port = port;
+		_threadKind = threadKind;
+		_maxThreads = maxThreads;
+		_resetPolicy = resetPolicy;
+		_admission = admission;
+	}
+
+	/**
+	 * Starts the engine, blocking while accepting connections until it's shut
+	 * down.
+	 */
+	public void start() throws IOException {
+		_executor = createExecutor();
+		_processor.getMetrics().monitorQueue(_executor);
+		_socket = new ServerSocket(_port);
+
+		InetAddress serverHost = InetAddress.getLocalHost();
+		System.out.println("Server destination: " + serverHost.getHostAddress()
+				+ ", " + _socket.getLocalPort());
+
+		try {
+			while (true) {
+				Socket clientConnection = _socket.accept();
+				clientConnection.setTcpNoDelay(true);
+
+				final BlockingSession session = new BlockingSession(
+						clientConnection, _processor, _resetPolicy, _admission);
+				_sessions.add(session);
+				try {
+					_executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								session.run();
+							} finally {
+								_sessions.remove(session);
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// Shutting down.
+					_sessions.remove(session);
+					session.close();
+				}
+			}
+		} catch (IOException e) {
+			// Closing the ServerSocket causes accept() to throw.
+		}
+	}
+
+	/**
+	 * Stops the engine: no further connections are accepted, all live
+	 * sessions are closed and their threads interrupted, and the call waits
+	 * for the sessions to finish.
+	 */
+	public void shutdown() {
+		try {
+			if (_socket != null) {
+				_socket.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		for (BlockingSession session : _sessions) {
+			session.close();
+		}
+
+		if (_executor != null) {
+			_executor.shutdownNow();
+			try {
+				if (!_executor.awaitTermination(SHUTDOWN_TIMEOUT,
+						TimeUnit.MILLISECONDS)) {
+					System.out.println(_sessions.size()
+							+ " sessions did not finish before shutdown");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of sessions currently accepted.
+	 */
+	public int getSessionCount() {
+		return _sessions.size();
+	}
+
+	private ExecutorService createExecutor() {
+		if (_threadKind == ThreadKind.Platform) {
+			return Executors.newFixedThreadPool(_maxThreads,
+					SelectorEngine.namedThreadFactory("concert-session-"));
+		}
+
+		ExecutorService executor = newVirtualThreadPerTaskExecutor();
+		if (executor == null) {
+			System.out.println("WARNING: virtual threads are not supported by this JVM;"
+					+ " sessions will run on at most " + _maxThreads + " platform threads,"
+					+ " and further connections will wait for one");
+			executor = Executors.newFixedThreadPool(_maxThreads,
+					SelectorEngine.namedThreadFactory("concert-session-"));
+		}
+		return executor;
+	}
+
+	/**
+	 * Creates an executor that starts a virtual thread per task, or returns
+	 * null if the running JVM doesn't provide virtual threads. The executor is
+	 * looked up reflectively so that the server still builds for, and runs
+	 * on, older JVMs.
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package nz.ac.auckland.concert.server;
+
+import java.text.Normalizer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import nz.ac.auckland.concert.common.Concert;
+
+/**
+ * Index of Concerts by the words of their titles, used by ConcertStore to
+ * answer type-ahead searches.
+ *
+ * Titles are normalised by removing accents, lower-casing them and turning
+ * punctuation into spaces. Each Concert has an entry for every word of its
+ * normalised title, keyed by the rest of the title from that word onwards, so
+ * "the" and "beat" both find "The Beatles". Keys refer to the normalised title
+ * and an offset into it rather than copying each suffix. Entries are held in
+ * a ConcurrentSkipListMap, so a search finds its first match in O(log n) time
+ * and reads the following matches in order, without locking.
+ *
+ * Matches are ranked in alphabetical order of the title from the matching
+ * word onwards (so an exact match comes first), and then by id.
+ *
+ */
+public class TitleIndex {
+	private static final Comparator<Map.Entry<Key, Concert>> ENTRY_ORDER =
+			new Comparator<Map.Entry<Key, Concert>>() {
+		@Override
+		public int compare(Map.Entry<Key, Concert> first, Map.Entry<Key, Concert> second) {
+			return first.getKey().compareTo(second.getKey());
+		}
+	};
+
+	private final ConcurrentSkipListMap<Key, Concert> _entries =
+			new ConcurrentSkipListMap<Key, Concert>();
+
+	/**
+	 * Adds entries for a Concert. A Concert without a title isn't indexed.
+	 */
+	public void add(Concert concert) {
+		if (concert.getTitle() == null) {
+			return;
+		}
+		String title = normalise(concert.getTitle());
+		for (int offset : wordStarts(title)) {
+			_entries.put(new Key(title, offset, concert.getId()), concert);
+		}
+	}
+
+	/**
+	 * Removes the entries that add() made for a Concert.
+	 */
+	public void remove(Concert concert) {
+		if (concert.getTitle() == null) {
+			return;
+		}
+		String title = normalise(concert.getTitle());
+		for (int offset : wordStarts(title)) {
+			_entries.remove(new Key(title, offset, concert.getId()));
+		}
+	}
+
+	/**
+	 * Adds entries for each of the given Concerts, as add() does, but sorts
+	 * the entries first, so that each is added at the end of the skip list
+	 * rather than at a random position. Used when Concerts are loaded in
+	 * bulk.
+	 */
+	public void addAll(Collection<Concert> concerts) {
+		List<Map.Entry<Key, Concert>> entries = new ArrayList<Map.Entry<Key, Concert>>(
+				concerts.size() * 2);
+		for (Concert concert : concerts) {
+			if (concert.getTitle() == null) {
+				continue;
+			}
+			String title = normalise(concert.getTitle());
+			for (int offset : wordStarts(title)) {
+				entries.add(new AbstractMap.SimpleImmutableEntry<Key, Concert>(
+						new Key(title, offset, concert.getId()), concert));
+			}
+		}
+		Collections.sort(entries, ENTRY_ORDER);
+		for (Map.Entry<Key, Concert> entry : entries) {
+			_entries.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public void clear() {
+		_entries.clear();
+	}
+
+	/**
+	 * Returns up to limit Concerts with a word in their title that starts
+	 * with prefix, best match first. Each Concert is returned once, even if
+	 * several of its words match.
+	 */
+	public List<Concert> search(String prefix, int limit) {
+		String normalised = normalise(prefix);
+		List<Concert> matches = new ArrayList<Concert>(Math.min(limit, 64));
+		Set<Long> ids = new HashSet<Long>();
+		for (Map.Entry<Key, Concert> entry : _entries.tailMap(
+				new Key(normalised, 0, Long.MIN_VALUE)).entrySet()) {
+			Key key = entry.getKey();
+			if (matches.size() >= limit || !key._title.startsWith(normalised, key._offset)) {
+				break;
+			}
+			if (ids.add(key._id)) {
+				matches.add(entry.getValue());
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Returns title without accents, in lower case, with runs of characters
+	 * other than letters and digits replaced by single spaces.
+	 */
+	static String normalise(String title) {
+		String decomposed = Normalizer.normalize(title, Normalizer.Form.NFD);
+		StringBuilder normalised = new StringBuilder(decomposed.length());
+		boolean space = false;
+		for (int i = 0; i < decomposed.length(); i++) {
+			char c = decomposed.charAt(i);
+			if (Character.getType(c) == Character.NON_SPACING_MARK) {
+				continue;
+			}
+			if (Character.isLetterOrDigit(c)) {
+				if (space && normalised.length() > 0) {
+					normalised.append(' ');
+				}
+				normalised.append(c);
+				space = false;
+			} else {
+				space = true;
+			}
+		}
+		return normalised.toString().toLowerCase(Locale.ROOT);
+	}
+
+	private static List<Integer> wordStarts(String title) {
+		List<Integer> starts = new ArrayList<Integer>();
+		starts.add(0);
+		for (int i = title.indexOf(' '); i >= 0; i = title.indexOf(' ', i + 1)) {
+			starts.add(i + 1);
+		}
+		return starts;
+	}
+
+	/**
+	 * The part of a normalised title from offset onwards, and the id of its
+	 * Concert. Keys are ordered by that text and then by id.
+	 */
+	private static final class Key implements Comparable<Key> {
+		private final String _title;
+		private final int _offset;
+		private final long _id;
+
+		Key(String title, int offset, long id) {
+			_title = title;
+			_offset = offset;
+			_id = id;
+		}
+
+		@Override
+		public int compareTo(Key other) {
+			int length = _title.length() - _offset;
+			int otherLength = other._title.length() - other._offset;
+			int common = Math.min(length, otherLength);
+			for (int i = 0; i < common; i++) {
+				char c = _title.charAt(_offset + i);
+				char otherC = other._title.charAt(other._offset + i);
+				if (c != otherC) {
+					return c - otherC;
+				}
+			}
+			if (length != otherLength) {
+				return length - otherLength;
+			}
+			return Long.compare(_id, other._id);
+		}
+	}
+}
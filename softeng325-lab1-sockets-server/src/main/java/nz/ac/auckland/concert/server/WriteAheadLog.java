@@ -0,0 +1,567 @@
+package nz.ac.auckland.concert.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import nz.ac.auckland.concert.common.BinaryCodec;
+import nz.ac.auckland.concert.common.Concert;
+
+/**
+ * Append-only log of the changes made to a ConcertStore, which is replayed
+ * when the server restarts.
+ *
+ * Each record is framed by its length and a CRC32 checksum, followed by a
+ * type byte and the record's fields in the BinaryCodec encoding. A record
+ * that was only partly written when the server stopped is detected by
+ * replay(), and truncated. Only the end of the log can be torn like that: if
+ * a damaged record is followed by a valid one, the log has been corrupted,
+ * and replay() throws rather than discard the changes after the damage.
+ *
+ * Records are appended to an in-memory buffer, which is cheap enough to do
+ * while ConcertStore holds a stripe lock - so the log records changes to each
+ * Concert in the order they were made. commit() then waits, without holding
+ * any lock, for the record to be written. Writing uses group commit: a
+ * dedicated writer thread writes every record appended so far and calls
+ * force() once, while the threads that commit in the meantime wait for its
+ * next batch. Only the writer thread uses the FileChannel, because
+ * interrupting a thread that's using the channel closes it.
+ *
+ * The FsyncPolicy determines what commit() waits for:
+ * - Always: the record is on disk.
+ * - Interval: nothing. Records are written and forced to disk by the
+ *   writer thread every fsync interval, so a crash can lose the changes
+ *   made in the last interval.
+ * - Never: the record has been written to the file, but force() isn't
+ *   called. Changes survive the server crashing, but not the machine.
+ *
+ * Once writing fails, the log stops accepting records, and every append()
+ * and commit() throws.
+ *
+ * The log can be rotate()d to a new file, so that older files can be deleted
+ * once a snapshot includes their changes (see DataDirectory).
+ *
+ */
+public class WriteAheadLog implements Closeable {
+	// When commit() waits for records to reach the disk.
+	public enum FsyncPolicy {Always, Interval, Never}
+
+	// Default time (ms) between forces in Interval mode.
+	public static final long DEFAULT_FSYNC_INTERVAL = 10;
+
+	// Record types.
+	private static final byte CREATE = 1;
+	private static final byte UPDATE = 2;
+	private static final byte DELETE = 3;
+	private static final byte CLEAR = 4;
+
+	// Size of the length and checksum that precede each record.
+	private static final int HEADER_LENGTH = 8;
+
+	// The file being appended to. Only used by the writer thread once the log
+	// has been replayed.
+	private File _file;
+	private FileChannel _channel;
+	private final FsyncPolicy _policy;
+	private final long _fsyncInterval;
+
+	// Records appended but not yet written, and the buffer that's swapped in
+	// when they're written. Guarded by _appendLock.
+	private final Object _appendLock = new Object();
+	private RecordBuffer _pending = new RecordBuffer();
+	private RecordBuffer _spare = new RecordBuffer();
+	private final DataOutputStream _pendingOut = new DataOutputStream(new ForwardingStream());
+	private long _appended;
+
+	// Monitor used by committing threads to request writes from the writer
+	// thread, and to wait for them. Guards the fields below.
+	private final Object _writeLock = new Object();
+
+	// Sequence numbers of the last record that a commit is waiting for, and
+	// of the last record written.
+	private long _requested;
+	private long _written;
+	private boolean _closing;
+
+	// File that rotate() is waiting for the writer thread to switch to, and
+	// the sequence number of the last record written to the previous file.
+	private File _nextFile;
+	private FileChannel _nextChannel;
+	private long _rotatedAfter;
+
+	private volatile long _forceCount;
+	private volatile IOException _failure;
+
+	private final Thread _writer;
+
+	private WriteAheadLog(File file, FileChannel channel, FsyncPolicy policy,
+			long fsyncInterval) {
+		_file = file;
+		_channel = channel;
+		_policy = policy;
+		_fsyncInterval = fsyncInterval;
+		_writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeRecords();
+			}
+		}, "concert-log-writer");
+		_writer.setDaemon(true);
+	}
+
+	/**
+	 * Opens the log in file, creating it if necessary. The log must be
+	 * replayed before any records are appended.
+	 *
+	 * @param fsyncInterval time (ms) between forces if policy is Interval.
+	 */
+	public static WriteAheadLog open(File file, FsyncPolicy policy, long fsyncInterval) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		WriteAheadLog log = new WriteAheadLog(file, channel, policy, fsyncInterval);
+		log._writer.start();
+		return log;
+	}
+
+	/**
+	 * Applies the logged changes to store, and returns the number of records
+	 * replayed. A partly written record at the end of the log is removed.
+	 *
+	 * @throws IOException if a damaged record is followed by a valid one.
+	 */
+	public long replay(ConcertStore store) throws IOException {
+		long[] count = new long[1];
+		long end = replay(_file, _channel, store, count);
+		if (end < _channel.size()) {
+			System.out.println("Truncating incomplete record at offset "
+					+ end + " of " + _file);
+			_channel.truncate(end);
+		}
+		_channel.position(end);
+		return count[0];
+	}
+
+	/**
+	 * Applies the changes logged in a file that's no longer appended to, and
+	 * returns the number of records replayed.
+	 */
+	public static long replay(File file, ConcertStore store) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			long[] count = new long[1];
+			replay(file, channel, store, count);
+			return count[0];
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Applies the records in channel up to the first incomplete or damaged
+	 * one, and returns the position at which they end. Throws if a valid
+	 * record follows the damaged one.
+	 */
+	private static long replay(File file, FileChannel channel, ConcertStore store,
+			long[] count) throws IOException {
+		long size = channel.size();
+		long position = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		CRC32 crc = new CRC32();
+
+		byte[] record;
+		while ((record = readRecord(channel, position, size, header, crc)) != null) {
+			apply(file, store, record);
+			position += HEADER_LENGTH + record.length;
+			count[0]++;
+		}
+
+		// The record at position may be damaged rather than torn, in which
+		// case there's a valid record somewhere after it.
+		if (position < size) {
+			long next = findRecord(channel, position + 1, size);
+			if (next >= 0) {
+				throw new IOException("Damaged record at offset " + position + " of " + file
+						+ " is followed by a valid record at offset " + next);
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Returns the position of the first valid record that starts at or after
+	 * from, or -1 if there isn't one. Every position is tried, so the part of
+	 * the file that's searched is mapped rather than read a header at a time.
+	 */
+	private static long findRecord(FileChannel channel, long from, long size) throws IOException {
+		if (from + HEADER_LENGTH >= size) {
+			return -1;
+		}
+		MappedByteBuffer bytes = channel.map(MapMode.READ_ONLY, from,
+				Math.min(size - from, Integer.MAX_VALUE));
+		CRC32 crc = new CRC32();
+		for (int offset = 0; offset + HEADER_LENGTH < bytes.limit(); offset++) {
+			int length = bytes.getInt(offset);
+			if (length < 1 || length > BinaryCodec.MAX_FRAME_LENGTH
+					|| length > bytes.limit() - offset - HEADER_LENGTH) {
+				continue;
+			}
+			ByteBuffer record = bytes.duplicate();
+			record.limit(offset + HEADER_LENGTH + length);
+			record.position(offset + HEADER_LENGTH);
+			crc.reset();
+			crc.update(record);
+			if ((int) crc.getValue() == bytes.getInt(offset + 4)) {
+				return from + offset;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the body of the record at position, or null if it's incomplete
+	 * or its checksum doesn't match.
+	 */
+	private static byte[] readRecord(FileChannel channel, long position, long size,
+			ByteBuffer header, CRC32 crc) throws IOException {
+		if (position + HEADER_LENGTH > size) {
+			return null;
+		}
+		header.clear();
+		readFully(channel, header, position);
+		header.flip();
+		int length = header.getInt();
+		int checksum = header.getInt();
+		if (length < 1 || length > BinaryCodec.MAX_FRAME_LENGTH
+				|| position + HEADER_LENGTH + length > size) {
+			return null;
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(length);
+		readFully(channel, record, position + HEADER_LENGTH);
+		crc.reset();
+		crc.update(record.array(), 0, length);
+		return (int) crc.getValue() == checksum ? record.array() : null;
+	}
+
+	public long appendCreate(Concert concert) throws IOException {
+		synchronized (_appendLock) {
+			int start = beginRecord(CREATE);
+			BinaryCodec.writeConcert(_pendingOut, concert);
+			return endRecord(start);
+		}
+	}
+
+	public long appendUpdate(Concert concert) throws IOException {
+		synchronized (_appendLock) {
+			int start = beginRecord(UPDATE);
+			BinaryCodec.writeConcert(_pendingOut, concert);
+			return endRecord(start);
+		}
+	}
+
+	public long appendDelete(long id) throws IOException {
+		synchronized (_appendLock) {
+			int start = beginRecord(DELETE);
+			BinaryCodec.writeSignedVarLong(_pendingOut, id);
+			return endRecord(start);
+		}
+	}
+
+	public long appendClear() throws IOException {
+		synchronized (_appendLock) {
+			int start = beginRecord(CLEAR);
+			return endRecord(start);
+		}
+	}
+
+	/**
+	 * Waits, as required by the FsyncPolicy, for the record with the given
+	 * sequence number (and all records before it) to be written.
+	 */
+	public void commit(long sequence) throws IOException {
+		if (_policy == FsyncPolicy.Interval) {
+			checkFailure();
+			return;
+		}
+
+		synchronized (_writeLock) {
+			if (sequence > _requested) {
+				_requested = sequence;
+				_writeLock.notifyAll();
+			}
+			while (_written < sequence) {
+				checkFailure();
+				if (_closing) {
+					throw new IOException("Log " + _file + " is closed");
+				}
+				try {
+					_writeLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while committing");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Switches to appending to next, and returns the sequence number of the
+	 * last record written to the previous file. Every record appended before
+	 * rotate() was called is in the previous file (or an earlier one), and
+	 * the previous file has been forced to disk.
+	 */
+	public long rotate(File next) throws IOException {
+		FileChannel channel = FileChannel.open(next.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		synchronized (_writeLock) {
+			if (_nextChannel != null) {
+				channel.close();
+				throw new IllegalStateException("Log is already being rotated");
+			}
+			_nextFile = next;
+			_nextChannel = channel;
+			_writeLock.notifyAll();
+			while (_nextChannel != null) {
+				checkFailure();
+				if (_closing) {
+					throw new IOException("Log " + _file + " is closed");
+				}
+				try {
+					_writeLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while rotating");
+				}
+			}
+			return _rotatedAfter;
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the last record appended.
+	 */
+	public long getAppended() {
+		synchronized (_appendLock) {
+			return _appended;
+		}
+	}
+
+	/**
+	 * Returns the number of times the log has been forced to disk.
+	 */
+	public long getForceCount() {
+		return _forceCount;
+	}
+
+	public FsyncPolicy getPolicy() {
+		return _policy;
+	}
+
+	/**
+	 * Writes any outstanding records (forcing them to disk unless the policy
+	 * is Never), and closes the log.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (_writeLock) {
+			_closing = true;
+			_writeLock.notifyAll();
+		}
+		try {
+			_writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		_channel.close();
+		if (_nextChannel != null) {
+			_nextChannel.close();
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Run by the writer thread: repeatedly waits until records need writing,
+	 * and then writes every record appended so far. In Interval mode, it
+	 * writes every fsync interval instead. Rotation happens between batches.
+	 */
+	private void writeRecords() {
+		try {
+			boolean closing = false;
+			while (!closing) {
+				FileChannel next;
+				synchronized (_writeLock) {
+					if (_policy == FsyncPolicy.Interval) {
+						if (!_closing && _nextChannel == null) {
+							_writeLock.wait(_fsyncInterval);
+						}
+					} else {
+						while (!_closing && _requested <= _written
+								&& _nextChannel == null) {
+							_writeLock.wait();
+						}
+					}
+					closing = _closing;
+					next = _nextChannel;
+				}
+
+				long last = writeBatch(_policy != FsyncPolicy.Never);
+				if (next != null) {
+					_channel.force(false);
+					_channel.close();
+				}
+				synchronized (_writeLock) {
+					_written = last;
+					if (next != null) {
+						_file = _nextFile;
+						_channel = next;
+						_rotatedAfter = last;
+						_nextFile = null;
+						_nextChannel = null;
+					}
+					_writeLock.notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			_failure = new InterruptedIOException("Log writer interrupted");
+		} catch (IOException e) {
+			_failure = e;
+		}
+
+		synchronized (_writeLock) {
+			_writeLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Writes the records appended since the last batch, and returns the
+	 * sequence number of the last one.
+	 */
+	private long writeBatch(boolean force) throws IOException {
+		RecordBuffer batch;
+		long last;
+		synchronized (_appendLock) {
+			batch = _pending;
+			_pending = _spare;
+			_spare = batch;
+			last = _appended;
+		}
+		if (batch.size() == 0) {
+			return last;
+		}
+
+		batch.writeTo(_channel);
+		batch.reset();
+		if (force) {
+			_channel.force(false);
+			_forceCount++;
+		}
+		return last;
+	}
+
+	private void checkFailure() throws IOException {
+		IOException failure = _failure;
+		if (failure != null) {
+			throw new IOException("Log " + _file + " has failed", failure);
+		}
+	}
+
+	private int beginRecord(byte type) throws IOException {
+		checkFailure();
+		int start = _pending.size();
+		// Placeholders for the length and checksum.
+		_pendingOut.writeLong(0);
+		_pendingOut.writeByte(type);
+		return start;
+	}
+
+	private long endRecord(int start) {
+		_pending.sealRecord(start);
+		return ++_appended;
+	}
+
+	private static void apply(File file, ConcertStore store, byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				record, 1, record.length - 1));
+		switch (record[0]) {
+		case CREATE:
+		case UPDATE:
+			store.restore(BinaryCodec.readConcert(in));
+			break;
+		case DELETE:
+			store.forget(BinaryCodec.readSignedVarLong(in));
+			break;
+		case CLEAR:
+			store.forgetAll();
+			break;
+		default:
+			throw new IOException("Unknown record type " + record[0] + " in " + file);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of log");
+			}
+		}
+	}
+
+	/**
+	 * Buffer of encoded records, which exposes its array so that records can
+	 * be sealed in place and written without copying.
+	 */
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		private final CRC32 _crc = new CRC32();
+
+		RecordBuffer() {
+			super(8192);
+		}
+
+		/**
+		 * Fills in the length and checksum of the record starting at start.
+		 */
+		void sealRecord(int start) {
+			int length = count - start - HEADER_LENGTH;
+			_crc.reset();
+			_crc.update(buf, start + HEADER_LENGTH, length);
+			ByteBuffer header = ByteBuffer.wrap(buf, start, HEADER_LENGTH);
+			header.putInt(length);
+			header.putInt((int) _crc.getValue());
+		}
+
+		void writeTo(FileChannel channel) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(buf, 0, count);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Forwards writes to whichever buffer is currently pending, so that
+	 * _pendingOut survives the buffers being swapped.
+	 */
+	private class ForwardingStream extends OutputStream {
+		@Override
+		public void write(int b) {
+			_pending.write(b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			_pending.write(bytes, offset, length);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package nz.ac.auckland.concert.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import nz.ac.auckland.concert.common.ResponseMessage;
+
+/**
+ * Checks that AdmissionControl turns away sessions and requests beyond its
+ * limits with Overloaded responses, and counts them as shed.
+ *
+ */
+public class AdmissionControlTest {
+
+	@Test
+	public void sessionsBeyondTheLimitAreTurnedAway() {
+		ServerMetrics metrics = new ServerMetrics();
+		AdmissionControl admission = new AdmissionControl(2, 0, 0, metrics);
+
+		assertNull(admission.admitSession());
+		assertNull(admission.admitSession());
+		ResponseMessage rejection = admission.admitSession();
+		assertNotNull(rejection);
+		assertEquals(ResponseMessage.Status.Overloaded, rejection.getStatus());
+
+		admission.sessionEnded();
+		assertNull(admission.admitSession());
+		assertEquals(2, admission.getSessionCount());
+		assertEquals(1, metrics.getStats().getShed());
+	}
+
+	@Test
+	public void requestsBeyondTheInFlightLimitAreTurnedAway() {
+		ServerMetrics metrics = new ServerMetrics();
+		AdmissionControl admission = new AdmissionControl(0, 4, 0, metrics);
+
+		assertNull(admission.admitRequest(3));
+		assertEquals(ResponseMessage.Status.Overloaded, admission.admitRequest(4).getStatus());
+		assertEquals(1, metrics.getStats().getShed());
+	}
+
+	@Test
+	public void workIsTurnedAwayWhileTheQueueIsFull() throws InterruptedException {
+		ServerMetrics metrics = new ServerMetrics();
+		AdmissionControl admission = new AdmissionControl(0, 0, 2, metrics);
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		metrics.monitorQueue(executor);
+
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable blocked = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		try {
+			// One task occupies the thread, and the rest wait in the queue.
+			executor.execute(blocked);
+			executor.execute(blocked);
+			assertNull(admission.admitRequest(0));
+			executor.execute(blocked);
+
+			assertNotNull(admission.admitRequest(0));
+			assertNotNull(admission.admitSession());
+			assertEquals(0, admission.getSessionCount());
+			assertEquals(2, metrics.getStats().getShed());
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeLimitsAreRejected() {
+		new AdmissionControl(-1, 0, 0, new ServerMetrics());
+	}
+}
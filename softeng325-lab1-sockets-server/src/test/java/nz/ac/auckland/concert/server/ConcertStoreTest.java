@@ -0,0 +1,507 @@
+package nz.ac.auckland.concert.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.common.ConcertQuery;
+import nz.ac.auckland.concert.common.ConcertQuery.SortKey;
+import nz.ac.auckland.concert.common.ConcertSnapshot;
+import nz.ac.auckland.concert.common.Partitioner;
+
+/**
+ * Stress tests for ConcertStore, which run many threads against a single
+ * store and check that no ids are lost or duplicated.
+ *
+ */
+public class ConcertStoreTest {
+	private static final int THREADS = 8;
+	private static final int OPERATIONS = 20000;
+
+	private ConcertStore _store;
+	private ExecutorService _executor;
+
+	@Before
+	public void createStore() {
+		// Few stripes, so that threads contend for them.
+		_store = new ConcertStore(4);
+		_executor = Executors.newFixedThreadPool(THREADS);
+	}
+
+	@After
+	public void stopThreads() throws InterruptedException {
+		_executor.shutdownNow();
+		_executor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void concurrentCreatesAllocateUniqueIds() throws Exception {
+		List<Future<List<Long>>> results = runConcurrently(new Callable<List<Long>>() {
+			@Override
+			public List<Long> call() {
+				List<Long> ids = new ArrayList<Long>();
+				for (int i = 0; i < OPERATIONS; i++) {
+					if (i % 10 == 0) {
+						// Mix in batches, which allocate a range of ids at once.
+						List<Concert> batch = new ArrayList<Concert>();
+						for (int j = 0; j < 5; j++) {
+							batch.add(new Concert("Batch " + i, new DateTime()));
+						}
+						for (Concert concert : _store.createAll(batch)) {
+							ids.add(concert.getId());
+						}
+					} else {
+						ids.add(_store.create(new Concert("Concert " + i,
+								new DateTime())).getId());
+					}
+				}
+				return ids;
+			}
+		});
+
+		List<Long> ids = new ArrayList<Long>();
+		for (Future<List<Long>> result : results) {
+			ids.addAll(result.get());
+		}
+		Collections.sort(ids);
+
+		// Every id from 1 upwards was handed out exactly once.
+		for (int i = 0; i < ids.size(); i++) {
+			assertEquals(i + 1, ids.get(i).longValue());
+		}
+		assertEquals(ids.size(), _store.size());
+		assertEquals(ids.size() + 1, _store.getNextId());
+		assertEquals(ids.size(), _store.list().size());
+	}
+
+	@Test
+	public void concurrentDeletesSucceedOnce() throws Exception {
+		for (int i = 0; i < OPERATIONS; i++) {
+			_store.create(new Concert("Concert " + i, new DateTime()));
+		}
+		final AtomicIntegerArray deletes = new AtomicIntegerArray(OPERATIONS + 1);
+
+		List<Future<Void>> results = runConcurrently(new Callable<Void>() {
+			@Override
+			public Void call() {
+				for (int id = 1; id <= OPERATIONS; id++) {
+					// Updates racing with the deletes mustn't resurrect a
+					// deleted Concert.
+					_store.update(new Concert((long) id, "Updated", new DateTime()));
+					if (_store.delete(id)) {
+						deletes.incrementAndGet(id);
+					}
+				}
+				return null;
+			}
+		});
+		for (Future<Void> result : results) {
+			result.get();
+		}
+
+		for (int id = 1; id <= OPERATIONS; id++) {
+			assertEquals(1, deletes.get(id));
+			assertNull(_store.get(id));
+		}
+		assertEquals(0, _store.size());
+	}
+
+	@Test
+	public void scanReturnsConcertsInIdOrderWhileCreating() throws Exception {
+		List<Future<Void>> results = runConcurrently(new Callable<Void>() {
+			@Override
+			public Void call() {
+				for (int i = 0; i < OPERATIONS / 10; i++) {
+					Concert concert = _store.create(new Concert("Concert " + i,
+							new DateTime()));
+					if (i % 2 == 0) {
+						_store.delete(concert.getId());
+					}
+
+					long lastId = 0;
+					for (Concert scanned : _store.scan(0, 50)) {
+						assertTrue(scanned.getId() > lastId);
+						lastId = scanned.getId();
+					}
+				}
+				return null;
+			}
+		});
+		for (Future<Void> result : results) {
+			result.get();
+		}
+
+		// Page through the survivors, and check that none are missed.
+		int count = 0;
+		long afterId = 0;
+		List<Concert> page;
+		while (!(page = _store.scan(afterId, 7)).isEmpty()) {
+			count += page.size();
+			afterId = page.get(page.size() - 1).getId();
+		}
+		assertEquals(THREADS * OPERATIONS / 20, count);
+		assertEquals(count, _store.size());
+	}
+
+	@Test
+	public void snapshotsAreConsistentWhileCreating() throws Exception {
+		Future<Void> writer = _executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				for (int i = 0; i < OPERATIONS; i++) {
+					_store.create(new Concert("Concert " + i, new DateTime()));
+				}
+				return null;
+			}
+		});
+
+		// Concerts are created one at a time, so the snapshot of version v
+		// holds exactly the Concerts with ids 1 to v.
+		int snapshots = 0;
+		while (!writer.isDone()) {
+			ConcertSnapshot snapshot = _store.snapshot();
+			List<Concert> concerts = snapshot.getConcerts();
+			assertEquals(snapshot.getVersion(), concerts.size());
+			for (int i = 0; i < concerts.size(); i++) {
+				assertEquals(i + 1, concerts.get(i).getId().longValue());
+			}
+			snapshots++;
+		}
+		writer.get();
+		assertTrue(snapshots > 0);
+		assertEquals(OPERATIONS, _store.list().size());
+	}
+
+	@Test
+	public void batchesAreSeenWholeOrNotAtAll() throws Exception {
+		final int batchSize = 10;
+		final CountDownLatch done = new CountDownLatch(THREADS - 1);
+		for (int i = 0; i < THREADS - 1; i++) {
+			_executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					try {
+						for (int j = 0; j < OPERATIONS / 100; j++) {
+							List<Concert> created = _store.createAll(Collections.nCopies(batchSize,
+									new Concert("Created", new DateTime())));
+							List<Concert> updates = new ArrayList<Concert>();
+							long[] ids = new long[batchSize];
+							for (int k = 0; k < batchSize; k++) {
+								Concert concert = created.get(k);
+								updates.add(new Concert(concert.getId(), "Updated", concert.getDate()));
+								ids[k] = concert.getId();
+							}
+							_store.updateAll(updates);
+							_store.deleteAll(ids);
+						}
+					} finally {
+						done.countDown();
+					}
+					return null;
+				}
+			});
+		}
+
+		// Every batch changes all its Concerts, so each title is held by a
+		// whole number of batches.
+		int snapshots = 0;
+		while (done.getCount() > 0) {
+			int created = 0;
+			int updated = 0;
+			for (Concert concert : _store.snapshot().getConcerts()) {
+				if (concert.getTitle().equals("Created")) {
+					created++;
+				} else {
+					updated++;
+				}
+			}
+			assertEquals(0, created % batchSize);
+			assertEquals(0, updated % batchSize);
+			snapshots++;
+		}
+		assertTrue(snapshots > 0);
+		assertEquals(0, _store.size());
+	}
+
+	@Test
+	public void snapshotIsSharedUntilTheStoreChanges() {
+		Concert concert = _store.create(new Concert("Concert", new DateTime()));
+		ConcertSnapshot snapshot = _store.snapshot();
+		assertSame(snapshot, _store.snapshot());
+
+		_store.update(new Concert(concert.getId(), "Renamed", concert.getDate()));
+		ConcertSnapshot changed = _store.snapshot();
+		assertTrue(changed.getVersion() > snapshot.getVersion());
+		assertEquals("Concert", snapshot.getConcerts().get(0).getTitle());
+		assertEquals("Renamed", changed.getConcerts().get(0).getTitle());
+	}
+
+	@Test
+	public void rangeByDateFollowsChanges() {
+		Random random = new Random(325);
+		for (int i = 0; i < OPERATIONS; i++) {
+			Concert concert = _store.create(new Concert("Concert " + i,
+					new DateTime(random.nextInt(1000))));
+			switch (random.nextInt(4)) {
+			case 0:
+				_store.delete(concert.getId());
+				break;
+			case 1:
+				_store.update(new Concert(concert.getId(), "Moved",
+						new DateTime(random.nextInt(1000))));
+				break;
+			case 2:
+				_store.update(new Concert(concert.getId(), "Undated", null));
+				break;
+			}
+		}
+
+		// Compare with filtering and sorting every Concert.
+		List<Concert> expected = new ArrayList<Concert>();
+		for (Concert concert : _store.list()) {
+			long millis = concert.getDate() == null ? -1 : concert.getDate().getMillis();
+			if (millis >= 250 && millis < 500) {
+				expected.add(concert);
+			}
+		}
+		Collections.sort(expected, new Comparator<Concert>() {
+			@Override
+			public int compare(Concert first, Concert second) {
+				int result = first.getDate().compareTo(second.getDate());
+				return result != 0 ? result : first.getId().compareTo(second.getId());
+			}
+		});
+		assertEquals(expected, _store.rangeByDate(250, 500, Integer.MAX_VALUE));
+		assertEquals(expected.subList(0, 10), _store.rangeByDate(250, 500, 10));
+		assertTrue(_store.rangeByDate(500, 250, 10).isEmpty());
+
+		_store.clear();
+		assertTrue(_store.rangeByDate(0, 1000, 10).isEmpty());
+	}
+
+	@Test
+	public void scanFollowsChanges() {
+		Random random = new Random(325);
+		for (int i = 0; i < OPERATIONS; i++) {
+			Concert concert = _store.create(new Concert("Concert " + i, new DateTime()));
+			switch (random.nextInt(3)) {
+			case 0:
+				_store.delete(concert.getId());
+				break;
+			case 1:
+				_store.update(new Concert(concert.getId(), "Renamed", new DateTime()));
+				break;
+			}
+		}
+
+		List<Concert> expected = _store.list();
+		assertEquals(expected, _store.scan(0, Integer.MAX_VALUE));
+		long afterId = expected.get(9).getId();
+		assertEquals(expected.subList(10, 20), _store.scan(afterId, 10));
+
+		_store.clear();
+		assertTrue(_store.scan(0, 10).isEmpty());
+	}
+
+	@Test
+	public void scanMergesIdsStoredOutOfOrder() {
+		// Replicated Concerts keep their ids, so arrive in any order.
+		List<Long> ids = new ArrayList<Long>();
+		for (long id = 1; id <= OPERATIONS; id++) {
+			ids.add(id * 3);
+		}
+		Collections.shuffle(ids, new Random(325));
+		for (long id : ids) {
+			_store.put(new Concert(id, "Concert " + id, new DateTime()));
+		}
+		for (long id : ids.subList(0, OPERATIONS / 2)) {
+			_store.delete(id);
+		}
+
+		List<Concert> expected = _store.list();
+		assertEquals(expected, _store.scan(Long.MIN_VALUE, Integer.MAX_VALUE));
+		for (int start : new int[] { 0, 1, 99, expected.size() - 5 }) {
+			for (int limit : new int[] { 1, 7, 100, 5000 }) {
+				long afterId = expected.get(start).getId();
+				int end = Math.min(start + 1 + limit, expected.size());
+				assertEquals(expected.subList(start + 1, end), _store.scan(afterId, limit));
+				// An id that isn't stored is a position too.
+				assertEquals(expected.subList(start + 1, end), _store.scan(afterId + 1, limit));
+			}
+		}
+	}
+
+	@Test
+	public void queryMatchesSortingEveryConcert() {
+		Random random = new Random(325);
+		String[] words = {"Jazz", "Rock", "Opera", "Blues"};
+		for (int i = 0; i < OPERATIONS; i++) {
+			DateTime date = random.nextInt(10) == 0 ? null : new DateTime(random.nextInt(1000));
+			String title = random.nextInt(10) == 0 ? null
+					: words[random.nextInt(4)] + " " + words[random.nextInt(4)];
+			_store.create(new Concert(title, date));
+		}
+
+		for (SortKey sortKey : SortKey.values()) {
+			for (boolean descending : new boolean[] {false, true}) {
+				for (int conditions = 0; conditions < 4; conditions++) {
+					ConcertQuery query = new ConcertQuery(25);
+					query.setSortKey(sortKey, descending);
+					if ((conditions & 1) != 0) {
+						query.setTitleContains("z ro");
+					}
+					if ((conditions & 2) != 0) {
+						query.setDateRange(new DateTime(100), new DateTime(900));
+					}
+
+					List<Concert> expected = new ArrayList<Concert>();
+					for (Concert concert : _store.list()) {
+						if (query.matches(concert)) {
+							expected.add(concert);
+						}
+					}
+					Collections.sort(expected, query.getComparator());
+					expected = expected.subList(0, Math.min(25, expected.size()));
+
+					List<Concert> actual = _store.query(query);
+					assertEquals(25, actual.size());
+					for (int i = 0; i < actual.size(); i++) {
+						assertSame(expected.get(i), actual.get(i));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void replicatedConcertsKeepTheirIds() {
+		_store.create(new Concert("Replaced", new DateTime(0)));
+		List<Concert> primary = new ArrayList<Concert>();
+		primary.add(new Concert(5L, "Five", new DateTime(5000)));
+		primary.add(new Concert(9L, "Nine", new DateTime(9000)));
+		_store.replaceAll(primary);
+
+		assertEquals(2, _store.size());
+		assertNull(_store.get(0));
+		assertSame(primary.get(1), _store.get(9));
+
+		Concert twelve = new Concert(12L, "Twelve", new DateTime(12000));
+		_store.put(twelve);
+		Concert nine = new Concert(9L, "Nine again", new DateTime(1000));
+		_store.put(nine);
+		assertSame(nine, _store.get(9));
+		assertSame(nine, _store.rangeByDate(0, 2000, 10).get(0));
+		assertEquals(3, _store.size());
+
+		// Ids allocated once promoted follow the primary's.
+		assertEquals(13L, _store.create(new Concert("New", new DateTime(0))).getId().longValue());
+	}
+
+	@Test
+	public void loadMatchesRestoringEachConcert() {
+		Random random = new Random(325);
+		String[] words = {"Jazz", "Rock", "Opera", "Blues"};
+		List<Concert> concerts = new ArrayList<Concert>();
+		for (long id = 1; id <= OPERATIONS; id++) {
+			DateTime date = random.nextInt(10) == 0 ? null : new DateTime(random.nextInt(1000));
+			String title = random.nextInt(10) == 0 ? null
+					: words[random.nextInt(4)] + " " + words[random.nextInt(4)];
+			concerts.add(new Concert(id * 2, title, date));
+		}
+		// A snapshot holds each stripe's Concerts in no particular order.
+		Collections.shuffle(concerts, random);
+
+		ConcertStore restored = new ConcertStore(4);
+		for (Concert concert : concerts) {
+			restored.restore(concert);
+		}
+		_store.load(concerts);
+
+		assertEquals(restored.list(), _store.list());
+		assertEquals(restored.getVersion(), _store.getVersion());
+		assertEquals(restored.getNextId(), _store.getNextId());
+		assertEquals(restored.scan(99, 500), _store.scan(99, 500));
+		assertEquals(restored.rangeByDate(100, 900, 5000), _store.rangeByDate(100, 900, 5000));
+		for (String prefix : new String[] {"jazz", "ro", "opera b", "x"}) {
+			assertEquals(restored.searchTitles(prefix, 5000), _store.searchTitles(prefix, 5000));
+		}
+
+		// The stripes and indexes still follow changes.
+		Concert created = _store.create(new Concert("Late Jazz", new DateTime(500)));
+		assertEquals(OPERATIONS * 2 + 1, created.getId().longValue());
+		assertTrue(_store.delete(2));
+		assertEquals(OPERATIONS, _store.size());
+		assertTrue(_store.searchTitles("late", 10).contains(created));
+		assertTrue(_store.rangeByDate(500, 501, 5000).contains(created));
+	}
+
+	@Test
+	public void partitionedStoreAllocatesIdsFromItsPartition() throws Exception {
+		final Partitioner partitioner = new Partitioner(3);
+		_store.setPartition(partitioner, 2);
+		List<Future<List<Long>>> results = runConcurrently(new Callable<List<Long>>() {
+			@Override
+			public List<Long> call() {
+				List<Long> ids = new ArrayList<Long>();
+				for (int i = 0; i < 500; i++) {
+					ids.add(_store.create(new Concert("Concert", new DateTime(i))).getId());
+				}
+				for (Concert concert : _store.createAll(Collections.nCopies(50,
+						new Concert("Batch", new DateTime(0))))) {
+					ids.add(concert.getId());
+				}
+				return ids;
+			}
+		});
+
+		Set<Long> allIds = new HashSet<Long>();
+		for (Future<List<Long>> result : results) {
+			for (long id : result.get()) {
+				assertEquals(2, partitioner.partitionOf(id));
+				assertTrue(allIds.add(id));
+			}
+		}
+		assertEquals(THREADS * 550, _store.size());
+	}
+
+	/**
+	 * Runs task on every thread, starting them all at the same time.
+	 */
+	private <T> List<Future<T>> runConcurrently(final Callable<T> task) {
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<T>> results = new ArrayList<Future<T>>();
+		for (int i = 0; i < THREADS; i++) {
+			results.add(_executor.submit(new Callable<T>() {
+				@Override
+				public T call() throws Exception {
+					start.await();
+					return task.call();
+				}
+			}));
+		}
+		start.countDown();
+		return results;
+	}
+}
@@ -0,0 +1,116 @@
+package nz.ac.auckland.concert.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.server.WriteAheadLog.FsyncPolicy;
+
+/**
+ * Checks that a ConcertStore can be rebuilt from the snapshot and log segments
+ * in a DataDirectory.
+ *
+ */
+public class DataDirectoryTest {
+	private static final DateTime DATE = new DateTime(2017, 3, 1, 20, 0,
+			DateTimeZone.forID("Pacific/Auckland"));
+
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+
+	@Test
+	public void snapshotAndLogRestoreStore() throws IOException {
+		File dir = _folder.newFolder();
+		DataDirectory data = open(dir);
+		ConcertStore store = data.load();
+
+		Concert updated = store.create(new Concert("Original", DATE));
+		Concert deleted = store.create(new Concert("Deleted", DATE));
+		for (int i = 0; i < 20000; i++) {
+			store.create(new Concert("Concert " + i, DATE));
+		}
+		data.snapshot();
+
+		// Changes after the snapshot are only in the log.
+		store.update(new Concert(updated.getId(), "Updated", DATE));
+		store.delete(deleted.getId());
+		Concert last = store.create(new Concert("Last", DATE));
+		store.delete(last.getId());
+		data.close();
+
+		// Only the segment started by the snapshot is kept.
+		assertEquals(Arrays.asList("concerts-2.log", "concerts.snapshot"), list(dir));
+
+		data = open(dir);
+		ConcertStore restored = data.load();
+		assertEquals(20001, restored.size());
+		assertEquals("Updated", restored.get(updated.getId()).getTitle());
+		assertEquals(DATE, restored.get(updated.getId()).getDate());
+		assertNull(restored.get(deleted.getId()));
+
+		// Ids aren't reused, even when the last one was deleted.
+		assertEquals(last.getId() + 1, restored.getNextId());
+		data.close();
+	}
+
+	@Test
+	public void snapshotWhileChangesAreMade() throws Exception {
+		File dir = _folder.newFolder();
+		DataDirectory data = open(dir);
+		final ConcertStore store = data.load();
+		final AtomicBoolean stop = new AtomicBoolean();
+
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int i = 0;
+				while (!stop.get()) {
+					Concert concert = store.create(new Concert("Concert " + i, DATE));
+					if (i++ % 3 == 0) {
+						store.delete(concert.getId());
+					} else {
+						store.update(new Concert(concert.getId(), "Updated " + i, DATE));
+					}
+				}
+			}
+		});
+		writer.start();
+		for (int i = 0; i < 5; i++) {
+			Thread.sleep(20);
+			data.snapshot();
+		}
+		stop.set(true);
+		writer.join();
+		data.close();
+
+		data = open(dir);
+		ConcertStore restored = data.load();
+		assertEquals(store.list(), restored.list());
+		assertEquals(store.getNextId(), restored.getNextId());
+		assertTrue(list(dir).contains("concerts-6.log"));
+		data.close();
+	}
+
+	private DataDirectory open(File dir) {
+		return new DataDirectory(dir, FsyncPolicy.Never, 0, 0);
+	}
+
+	private List<String> list(File dir) {
+		String[] names = dir.list();
+		Arrays.sort(names);
+		return Arrays.asList(names);
+	}
+}
@@ -0,0 +1,79 @@
+package nz.ac.auckland.concert.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import nz.ac.auckland.concert.common.Concert;
+
+/**
+ * Checks LongConcertMap against a HashMap, using a random mix of operations
+ * over a small key range so that probe sequences collide and wrap around.
+ *
+ */
+public class LongConcertMapTest {
+
+	@Test
+	public void behavesLikeHashMap() {
+		LongConcertMap map = new LongConcertMap();
+		Map<Long, Concert> expected = new HashMap<Long, Concert>();
+		Random random = new Random(325);
+
+		for (int i = 0; i < 200000; i++) {
+			long key = random.nextInt(2000) - 100;
+			Concert concert = new Concert(key, "Concert " + i, new DateTime(0));
+
+			switch (random.nextInt(5)) {
+			case 0:
+			case 1:
+				assertSame(expected.put(key, concert), map.put(key, concert));
+				break;
+			case 2:
+				assertSame(expected.remove(key), map.remove(key));
+				break;
+			case 3:
+				boolean present = expected.containsKey(key);
+				if (present) {
+					expected.put(key, concert);
+				}
+				assertEquals(present, map.replace(key, concert));
+				break;
+			default:
+				assertSame(expected.get(key), map.get(key));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+
+		for (long key = -100; key < 1900; key++) {
+			assertSame(expected.get(key), map.get(key));
+		}
+		List<Concert> values = new ArrayList<Concert>();
+		map.addValuesTo(values);
+		assertEquals(new HashSet<Concert>(expected.values()), new HashSet<Concert>(values));
+	}
+
+	@Test
+	public void clearEmptiesMap() {
+		LongConcertMap map = new LongConcertMap();
+		for (long key = 0; key < 10000; key++) {
+			map.put(key, new Concert(key, "Concert", new DateTime(0)));
+		}
+		map.clear();
+
+		assertTrue(map.isEmpty());
+		assertNull(map.get(0));
+		assertFalse(map.replace(1, new Concert(1L, "Concert", new DateTime(0))));
+	}
+}
@@ -0,0 +1,128 @@
+package nz.ac.auckland.concert.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.common.RequestMessage;
+import nz.ac.auckland.concert.common.ResetPolicy;
+import nz.ac.auckland.concert.common.ResponseMessage;
+
+/**
+ * Checks that a SelectorEngine holds a session to its AdmissionControl's
+ * limit on requests in flight when the session pipelines requests to be
+ * answered in order.
+ *
+ */
+public class SelectorEngineTest {
+	private static final int MAX_IN_FLIGHT = 4;
+
+	private SelectorEngine _engine;
+	private int _port;
+
+	@Before
+	public void startEngine() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		_port = socket.getLocalPort();
+		socket.close();
+
+		RequestProcessor processor = new RequestProcessor();
+		processor.process(RequestMessage.makeCreate(new Concert("Concert", new DateTime(0))));
+		AdmissionControl admission = new AdmissionControl(0, MAX_IN_FLIGHT, 0,
+				processor.getMetrics());
+		_engine = new SelectorEngine(processor, _port, 1, 1, ResetPolicy.NEVER, admission);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					_engine.start();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@After
+	public void stopEngine() {
+		_engine.shutdown();
+	}
+
+	@Test
+	public void pipelinedRequestsBeyondLimitAreShed() throws Exception {
+		final int count = 500;
+		Socket socket = connect();
+		try {
+			socket.setSoTimeout(10000);
+			ObjectOutputStream out = new ObjectOutputStream(
+					new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+			out.writeObject(RequestMessage.makeHello());
+			out.flush();
+			ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+			assertEquals(ResponseMessage.Status.Success,
+					((ResponseMessage) in.readObject()).getStatus());
+
+			// Send every request in one burst, so that the session has far
+			// more pending than its limit.
+			for (int i = 0; i < count; i++) {
+				out.writeObject(RequestMessage.makeRetrieve(1L));
+			}
+			out.flush();
+
+			int overloaded = 0;
+			for (int i = 0; i < count; i++) {
+				ResponseMessage response = (ResponseMessage) in.readObject();
+				if (response.getStatus() == ResponseMessage.Status.Overloaded) {
+					overloaded++;
+				} else {
+					assertEquals(ResponseMessage.Status.Success, response.getStatus());
+					assertEquals("Concert", response.getConcert().getTitle());
+				}
+			}
+			assertTrue(overloaded > 0);
+			assertTrue(overloaded <= count - MAX_IN_FLIGHT);
+
+			// Once the burst has been answered, the session is read from as
+			// before.
+			out.writeObject(RequestMessage.makeRetrieve(1L));
+			out.flush();
+			assertEquals(ResponseMessage.Status.Success,
+					((ResponseMessage) in.readObject()).getStatus());
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Connects to the engine, waiting for it to start listening.
+	 */
+	private Socket connect() throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (true) {
+			try {
+				return new Socket(InetAddress.getLoopbackAddress(), _port);
+			} catch (ConnectException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package nz.ac.auckland.concert.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.common.ConcertQuery;
+import nz.ac.auckland.concert.common.RequestMessage;
+import nz.ac.auckland.concert.common.ResetPolicy;
+import nz.ac.auckland.concert.common.SerializationCodec;
+import nz.ac.auckland.concert.common.SessionFeature;
+import nz.ac.auckland.concert.common.TrackingObjectOutputStream;
+import nz.ac.auckland.concert.common.WireFormat;
+
+/**
+ * Checks that a SerializationFramer finds the end of each message written by
+ * a client, however the bytes are split as they're received.
+ *
+ */
+public class SerializationFramerTest {
+
+	@Test
+	public void messagesAreFramedWhereTheyEnd() throws IOException {
+		List<Integer> ends = new ArrayList<Integer>();
+		byte[] bytes = encodeRequests(ends);
+
+		for (int size : new int[] { 1, 7, 100, bytes.length }) {
+			checkFraming(bytes, ends, size, new Random(325));
+		}
+	}
+
+	@Test
+	public void messagesAreFramedWhereverTheBytesAreSplit() throws IOException {
+		List<Integer> ends = new ArrayList<Integer>();
+		byte[] bytes = encodeRequests(ends);
+
+		for (int seed = 0; seed < 20; seed++) {
+			checkFraming(bytes, ends, 0, new Random(seed));
+		}
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void invalidTypeCodeIsRejected() throws IOException {
+		List<Integer> ends = new ArrayList<Integer>();
+		byte[] bytes = encodeRequests(ends);
+		bytes[ends.get(0)] = 0x10;
+
+		new SerializationFramer().frame(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Frames bytes in runs of the given size (or, if size is 0, of random
+	 * sizes), checking that after each run the bytes framed are those up to
+	 * the end of the last complete message.
+	 */
+	private static void checkFraming(byte[] bytes, List<Integer> ends, int size, Random random)
+			throws IOException {
+		SerializationFramer framer = new SerializationFramer();
+		int framed = 0;
+		int position = 0;
+		while (position < bytes.length) {
+			int count = Math.min(size == 0 ? 1 + random.nextInt(64) : size, bytes.length - position);
+			framed += framer.frame(ByteBuffer.wrap(bytes, position, count));
+			position += count;
+
+			int expected = 0;
+			for (int end : ends) {
+				if (end <= position) {
+					expected = end;
+				}
+			}
+			assertEquals("After " + position + " bytes", expected, framed);
+		}
+	}
+
+	/**
+	 * Returns a session's worth of requests, as a client would send them,
+	 * adding the offset at which each ends to ends.
+	 */
+	private static byte[] encodeRequests(List<Integer> ends) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TrackingObjectOutputStream out = new TrackingObjectOutputStream(bytes);
+		out.flush();
+		SerializationCodec codec = new SerializationCodec(
+				new ObjectInputStream(new ByteArrayInputStream(streamHeader())), out, ResetPolicy.CLIENT);
+
+		List<Concert> concerts = new ArrayList<Concert>();
+		for (int i = 0; i < 50; i++) {
+			concerts.add(new Concert("Concert " + i, new DateTime(2018, 1, 1, 0, 0).plusDays(i)));
+		}
+		ConcertQuery query = new ConcertQuery(10);
+		query.setTitleContains("Concert");
+		query.setSortKey(ConcertQuery.SortKey.Date, true);
+
+		for (RequestMessage request : Arrays.asList(
+				RequestMessage.makeHello(WireFormat.Serialization, SessionFeature.OutOfOrderResponses),
+				RequestMessage.makeCreate(concerts.get(0)),
+				RequestMessage.makeCreate(concerts.get(1)),
+				RequestMessage.makeRetrieve(1L),
+				RequestMessage.makeUpdate(new Concert(1L, "Renamed", new DateTime(0))),
+				RequestMessage.makeBatchCreate(concerts),
+				RequestMessage.makeBatchDelete(new long[] { 1, 2, 3 }),
+				RequestMessage.makeList(query),
+				RequestMessage.makeList(20, "ff"),
+				RequestMessage.makeSearchByTitlePrefix(new String(new char[70000]).replace('\0', 'x'), 5),
+				RequestMessage.makeStats(),
+				RequestMessage.makeGoodbye())) {
+			codec.writeRequest(request);
+			ends.add(bytes.size());
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] streamHeader() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new TrackingObjectOutputStream(bytes).flush();
+		return bytes.toByteArray();
+	}
+}
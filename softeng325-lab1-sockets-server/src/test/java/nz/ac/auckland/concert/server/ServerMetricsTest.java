@@ -0,0 +1,62 @@
+package nz.ac.auckland.concert.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import nz.ac.auckland.concert.common.BinaryCodec;
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.common.RequestMessage;
+import nz.ac.auckland.concert.common.RequestMessage.MessageType;
+import nz.ac.auckland.concert.common.ResponseMessage;
+import nz.ac.auckland.concert.common.ServerStats;
+
+/**
+ * Checks that the RequestProcessor records its requests in ServerMetrics, and
+ * that the statistics survive a Stats response's binary encoding.
+ *
+ */
+public class ServerMetricsTest {
+
+	@Test
+	public void statsCountRequestsAndFailuresByType() throws IOException {
+		RequestProcessor processor = new RequestProcessor();
+		for (int i = 0; i < 3; i++) {
+			processor.process(RequestMessage.makeCreate(new Concert("Concert " + i, new DateTime(i))));
+		}
+		processor.process(RequestMessage.makeRetrieve(1L));
+		processor.process(RequestMessage.makeRetrieve(99L));
+		processor.getMetrics().addBytesIn(100);
+		processor.getMetrics().sessionOpened();
+
+		ResponseMessage response = roundTrip(processor.process(RequestMessage.makeStats()));
+		ServerStats stats = response.getStats();
+
+		assertEquals(3, stats.getType(MessageType.Create).getCount());
+		assertEquals(0, stats.getType(MessageType.Create).getFailures());
+		assertEquals(2, stats.getType(MessageType.Retrieve).getCount());
+		assertEquals(1, stats.getType(MessageType.Retrieve).getFailures());
+		assertNull(stats.getType(MessageType.Delete));
+		assertEquals(100, stats.getBytesIn());
+		assertEquals(1, stats.getActiveSessions());
+
+		ServerStats.TypeStats creates = stats.getType(MessageType.Create);
+		assertTrue(creates.getP50() <= creates.getP99());
+		assertTrue(creates.getP99() <= creates.getMax());
+		assertTrue(creates.getMax() > 0);
+	}
+
+	private static ResponseMessage roundTrip(ResponseMessage response) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new BinaryCodec(new ByteArrayInputStream(new byte[0]), bytes).writeResponse(response);
+		return new BinaryCodec(new ByteArrayInputStream(bytes.toByteArray()),
+				new ByteArrayOutputStream()).readResponse();
+	}
+}
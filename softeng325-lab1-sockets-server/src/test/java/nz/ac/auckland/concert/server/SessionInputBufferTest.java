@@ -0,0 +1,132 @@
+package nz.ac.auckland.concert.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import nz.ac.auckland.concert.common.BinaryCodec;
+import nz.ac.auckland.concert.common.BufferPool;
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.common.RequestMessage;
+
+/**
+ * Checks that only complete frames can be read from a SessionInputBuffer,
+ * that they are decoded correctly from its pooled chunks, and that the
+ * chunks go back to the pool - including when it's closed.
+ *
+ */
+public class SessionInputBufferTest {
+
+	@Test
+	public void framesSpanningChunksAreDecoded() throws IOException {
+		// Chunks smaller than most of the frames.
+		BufferPool pool = new BufferPool(16, 64);
+		SessionInputBuffer input = new SessionInputBuffer(pool, new BinaryFramer());
+		ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(encodeUpdates(20)));
+		while (input.readFrom(channel) >= 0) {
+		}
+
+		BinaryCodec codec = new BinaryCodec(input, new ByteArrayOutputStream());
+		for (int i = 0; i < 20; i++) {
+			RequestMessage request = codec.readRequest();
+			assertEquals(RequestMessage.MessageType.Update, request.getType());
+			assertEquals(title(i), request.getConcert().getTitle());
+		}
+		input.close();
+		assertEquals(-1, input.read());
+		assertEquals(pool.getAllocations(), pool.getPooled());
+	}
+
+	@Test
+	public void steadyTrafficReusesChunks() throws IOException {
+		BufferPool pool = new BufferPool(1024, 64);
+		SessionInputBuffer input = new SessionInputBuffer(pool, new BinaryFramer());
+		BinaryCodec codec = new BinaryCodec(input, new ByteArrayOutputStream());
+		byte[] update = encodeUpdates(1);
+
+		for (int i = 0; i < 1000; i++) {
+			ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(update));
+			while (input.readFrom(channel) >= 0) {
+			}
+			assertEquals(title(0), codec.readRequest().getConcert().getTitle());
+		}
+		// A chunk that fills up is released once it has been consumed, after
+		// the next chunk has been taken.
+		assertTrue(pool.getAllocations() <= 2);
+	}
+
+	@Test
+	public void partialFramesCantBeRead() throws IOException {
+		BufferPool pool = new BufferPool(1024, 64);
+		SessionInputBuffer input = new SessionInputBuffer(pool, new BinaryFramer());
+		byte[] update = encodeUpdates(1);
+
+		input.readFrom(Channels.newChannel(new ByteArrayInputStream(update, 0, update.length - 1)));
+		assertEquals(0, input.framed());
+		try {
+			input.read();
+			fail("Read part of a frame");
+		} catch (StreamCorruptedException e) {
+			// Expected.
+		}
+
+		input.readFrom(Channels.newChannel(new ByteArrayInputStream(update, update.length - 1, 1)));
+		assertEquals(update.length, input.framed());
+		BinaryCodec codec = new BinaryCodec(input, new ByteArrayOutputStream());
+		assertEquals(title(0), codec.readRequest().getConcert().getTitle());
+	}
+
+	@Test
+	public void closingReleasesUnconsumedChunks() throws IOException {
+		BufferPool pool = new BufferPool(256, 64);
+		SessionInputBuffer input = new SessionInputBuffer(pool, new BinaryFramer());
+		byte[] updates = encodeUpdates(20);
+		// Leave the last frame incomplete.
+		ReadableByteChannel channel = Channels.newChannel(
+				new ByteArrayInputStream(updates, 0, updates.length - 1));
+		while (input.readFrom(channel) >= 0) {
+		}
+
+		// Decode one frame, which is left lent out until the worker reads
+		// again or stops reading.
+		BinaryCodec codec = new BinaryCodec(input, new ByteArrayOutputStream());
+		assertEquals(title(0), codec.readRequest().getConcert().getTitle());
+		input.close();
+		assertTrue(pool.getPooled() < pool.getAllocations());
+		input.stopReading();
+		assertEquals(pool.getAllocations(), pool.getPooled());
+
+		// The unconsumed messages were discarded.
+		assertEquals(0, input.framed());
+		assertEquals(-1, input.read());
+		assertEquals(-1, input.readFrom(Channels.newChannel(new ByteArrayInputStream(updates))));
+		assertEquals(pool.getAllocations(), pool.getPooled());
+	}
+
+	private static byte[] encodeUpdates(int count) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryCodec codec = new BinaryCodec(new ByteArrayInputStream(new byte[0]), bytes);
+		for (int i = 0; i < count; i++) {
+			codec.writeRequest(RequestMessage.makeUpdate(new Concert((long) i, title(i), new DateTime(i))));
+		}
+		return bytes.toByteArray();
+	}
+
+	private static String title(int i) {
+		StringBuilder title = new StringBuilder("Concert");
+		for (int j = 0; j < i; j++) {
+			title.append(' ').append(j);
+		}
+		return title.toString();
+	}
+}
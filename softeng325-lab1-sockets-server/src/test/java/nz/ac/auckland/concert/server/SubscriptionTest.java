@@ -0,0 +1,208 @@
+package nz.ac.auckland.concert.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Test;
+
+import nz.ac.auckland.concert.common.BinaryCodec;
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.common.ConcertMirror;
+import nz.ac.auckland.concert.common.RequestMessage;
+import nz.ac.auckland.concert.common.ResponseMessage;
+import nz.ac.auckland.concert.common.ResponseMessage.Change;
+
+/**
+ * Checks that a Subscription pushes a snapshot and then every change, that
+ * a resumed subscription is sent only the changes it missed, that a
+ * ConcertMirror fed by the events matches the store, and that closing the
+ * store stops the feed's threads.
+ *
+ */
+public class SubscriptionTest {
+	private final ConcertStore _store = new ConcertStore(4);
+
+	@After
+	public void closeStore() {
+		_store.close();
+	}
+
+	@Test
+	public void snapshotIsFollowedByEachChange() throws Exception {
+		Concert first = _store.create(new Concert("First", new DateTime(1)));
+		Events events = new Events();
+		Subscription subscription = subscribe(RequestMessage.makeSubscribe(), events);
+
+		ResponseMessage snapshot = events.next();
+		assertEquals(Change.Snapshot, snapshot.getChange());
+		assertEquals(1, snapshot.getConcerts().size());
+		assertEquals(1, snapshot.getSequence().longValue());
+		assertTrue(snapshot.isPartial());
+
+		Concert second = _store.create(new Concert("Second", new DateTime(2)));
+		_store.update(new Concert(first.getId(), "Renamed", first.getDate()));
+		_store.delete(second.getId());
+		_store.clear();
+
+		assertEvent(events.next(), Change.Created, 2);
+		ResponseMessage updated = events.next();
+		assertEvent(updated, Change.Updated, 3);
+		assertEquals("Renamed", updated.getConcert().getTitle());
+		ResponseMessage deleted = events.next();
+		assertEvent(deleted, Change.Deleted, 4);
+		assertEquals(second.getId(), deleted.getId());
+		assertEvent(events.next(), Change.Cleared, 5);
+
+		subscription.end();
+		ResponseMessage last = events.next();
+		assertFalse(last.isPartial());
+		assertEquals(null, last.getChange());
+		assertEquals(7L, last.getCorrelationId().longValue());
+	}
+
+	@Test
+	public void resumedSubscriptionIsSentOnlyMissedChanges() throws Exception {
+		ConcertMirror mirror = new ConcertMirror();
+		Events events = new Events();
+		Subscription subscription = subscribe(mirror.makeSubscribe(), events);
+		events.applyTo(mirror, 1);
+		for (int i = 0; i < 10; i++) {
+			_store.create(new Concert("Concert " + i, new DateTime(i)));
+		}
+		events.applyTo(mirror, 10);
+		subscription.cancel();
+
+		// Changes made while disconnected.
+		_store.delete(3L);
+		_store.create(new Concert("Late", new DateTime(99)));
+
+		Events resumed = new Events();
+		subscribe(mirror.makeSubscribe(), resumed);
+		ResponseMessage deleted = resumed.next();
+		assertEquals(Change.Deleted, deleted.getChange());
+		mirror.accept(deleted);
+		ResponseMessage created = resumed.next();
+		assertEquals(Change.Created, created.getChange());
+		mirror.accept(created);
+
+		assertEquals(_store.list(), mirror.list());
+		assertEquals(_store.getVersion(), mirror.getSequence());
+	}
+
+	@Test
+	public void subscriptionThatFallsBehindIsSentASnapshot() throws Exception {
+		ConcertMirror mirror = new ConcertMirror();
+		Events events = new Events();
+		Subscription subscription = subscribe(mirror.makeSubscribe(), events);
+		events.applyTo(mirror, 1);
+		subscription.cancel();
+
+		// More changes than the feed holds.
+		for (int i = 0; i <= ChangeFeed.DEFAULT_CAPACITY; i++) {
+			_store.create(new Concert("Concert " + i, new DateTime(i)));
+		}
+
+		Events resumed = new Events();
+		subscribe(mirror.makeSubscribe(), resumed);
+		ResponseMessage snapshot = resumed.next();
+		assertEquals(Change.Snapshot, snapshot.getChange());
+		mirror.accept(snapshot);
+		assertEquals(_store.size(), mirror.size());
+		assertEquals(_store.getVersion(), mirror.getSequence());
+	}
+
+	@Test
+	public void closingStoreStopsFeedThreads() throws Exception {
+		Events events = new Events();
+		subscribe(RequestMessage.makeSubscribe(), events);
+		assertEquals(Change.Snapshot, events.next().getChange());
+
+		_store.close();
+		ExecutorService executor = (ExecutorService) _store.getFeed().getExecutor();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("concert-feed-notifier")) {
+				thread.join(10000);
+				assertFalse(thread.isAlive());
+			}
+		}
+
+		// The store can still be changed, but the subscription isn't told.
+		_store.create(new Concert("Concert", new DateTime(1)));
+		assertNull(events._queue.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void eventsSurviveBinaryEncoding() throws IOException {
+		Concert concert = new Concert(5L, "Concert", new DateTime(5));
+		ResponseMessage event = ResponseMessage.makeChangeEvent(Change.Updated, 42, concert, null);
+		event.setCorrelationId(3L);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new BinaryCodec(new ByteArrayInputStream(new byte[0]), bytes).writeResponse(event);
+		ResponseMessage decoded = new BinaryCodec(new ByteArrayInputStream(bytes.toByteArray()),
+				new ByteArrayOutputStream()).readResponse();
+
+		assertEquals(Change.Updated, decoded.getChange());
+		assertEquals(42, decoded.getSequence().longValue());
+		assertEquals(concert, decoded.getConcert());
+		assertTrue(decoded.isPartial());
+	}
+
+	private Subscription subscribe(RequestMessage request, Events events) {
+		request.setCorrelationId(7L);
+		Subscription subscription = new Subscription(_store, request, events);
+		subscription.start();
+		return subscription;
+	}
+
+	private static void assertEvent(ResponseMessage event, Change change, long sequence) {
+		assertEquals(change, event.getChange());
+		assertEquals(sequence, event.getSequence().longValue());
+		assertEquals(7L, event.getCorrelationId().longValue());
+	}
+
+	/**
+	 * Sink that queues the events it's sent.
+	 */
+	private static class Events implements ResponseSink {
+		private final BlockingQueue<ResponseMessage> _queue = new LinkedBlockingQueue<ResponseMessage>();
+
+		@Override
+		public void send(ResponseMessage response) {
+			_queue.add(response);
+		}
+
+		ResponseMessage next() throws InterruptedException {
+			ResponseMessage response = _queue.poll(10, TimeUnit.SECONDS);
+			if (response == null) {
+				throw new AssertionError("No event received");
+			}
+			return response;
+		}
+
+		void applyTo(ConcertMirror mirror, int count) throws InterruptedException {
+			List<ResponseMessage> received = new ArrayList<ResponseMessage>();
+			for (int i = 0; i < count; i++) {
+				received.add(next());
+			}
+			for (ResponseMessage event : received) {
+				mirror.accept(event);
+			}
+		}
+	}
+}
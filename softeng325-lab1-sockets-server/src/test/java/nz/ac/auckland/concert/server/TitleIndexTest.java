@@ -0,0 +1,77 @@
+package nz.ac.auckland.concert.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import nz.ac.auckland.concert.common.Concert;
+
+/**
+ * Checks the matching and ranking of TitleIndex searches.
+ *
+ */
+public class TitleIndexTest {
+
+	@Test
+	public void normaliseIgnoresCaseAccentsAndPunctuation() {
+		assertEquals("beyonce live 2017", TitleIndex.normalise("  Beyonc\u00e9 -- LIVE! (2017) "));
+		assertEquals("", TitleIndex.normalise("?!"));
+	}
+
+	@Test
+	public void searchMatchesWordsAndRanksResults() {
+		TitleIndex index = new TitleIndex();
+		Concert beatles = concert(1, "The Beatles");
+		Concert beat = concert(2, "Beat It");
+		Concert beatAgain = concert(3, "Beat It");
+		Concert beach = concert(4, "Beach Boys");
+		Concert repeat = concert(5, "Beat Beat Beat");
+		for (Concert concert : new Concert[] {beatles, beat, beatAgain, beach, repeat}) {
+			index.add(concert);
+		}
+
+		assertEquals(list(repeat, beat, beatAgain, beatles), index.search("BEAT", 10));
+		assertEquals(list(repeat, beat), index.search("beat", 2));
+		assertEquals(list(beach), index.search("Beach", 10));
+		assertEquals(list(beatles), index.search("the b", 10));
+		assertTrue(index.search("beats", 10).isEmpty());
+
+		index.remove(beat);
+		index.remove(repeat);
+		assertEquals(list(beatAgain, beatles), index.search("beat", 10));
+
+		index.clear();
+		assertTrue(index.search("", 10).isEmpty());
+	}
+
+	@Test
+	public void storeKeepsIndexInStep() {
+		ConcertStore store = new ConcertStore(4);
+		Concert concert = store.create(new Concert("Old Title", new DateTime(0)));
+		store.create(new Concert(null, new DateTime(0)));
+
+		store.update(new Concert(concert.getId(), "New Title", new DateTime(0)));
+		assertTrue(store.searchTitles("old", 10).isEmpty());
+		assertEquals("New Title", store.searchTitles("title", 10).get(0).getTitle());
+
+		store.delete(concert.getId());
+		assertTrue(store.searchTitles("title", 10).isEmpty());
+	}
+
+	private static Concert concert(long id, String title) {
+		return new Concert(id, title, new DateTime(0));
+	}
+
+	private static List<Concert> list(Concert... concerts) {
+		List<Concert> list = new ArrayList<Concert>();
+		for (Concert concert : concerts) {
+			list.add(concert);
+		}
+		return list;
+	}
+}
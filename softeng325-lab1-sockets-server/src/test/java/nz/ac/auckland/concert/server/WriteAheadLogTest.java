@@ -0,0 +1,160 @@
+package nz.ac.auckland.concert.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import nz.ac.auckland.concert.common.Concert;
+import nz.ac.auckland.concert.server.WriteAheadLog.FsyncPolicy;
+
+/**
+ * Checks that a ConcertStore can be rebuilt from its WriteAheadLog.
+ *
+ */
+public class WriteAheadLogTest {
+	private static final DateTime DATE = new DateTime(2017, 3, 1, 20, 0,
+			DateTimeZone.forID("Pacific/Auckland"));
+
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+
+	@Test
+	public void replayRestoresStore() throws IOException {
+		File file = _folder.newFile();
+		WriteAheadLog log = WriteAheadLog.open(file, FsyncPolicy.Never, 0);
+		log.replay(new ConcertStore());
+		ConcertStore store = new ConcertStore(4, log);
+
+		store.create(new Concert("Before clear", DATE));
+		store.clear();
+		Concert kept = store.create(new Concert("Kept", DATE));
+		Concert updated = store.create(new Concert("Original", DATE));
+		Concert deleted = store.create(new Concert("Deleted", DATE));
+		store.update(new Concert(updated.getId(), "Updated", DATE));
+		store.delete(deleted.getId());
+		log.close();
+
+		ConcertStore restored = replay(file);
+		assertEquals(2, restored.size());
+		assertEquals("Kept", restored.get(kept.getId()).getTitle());
+		assertEquals("Updated", restored.get(updated.getId()).getTitle());
+		assertEquals(DATE, restored.get(updated.getId()).getDate());
+		assertNull(restored.get(deleted.getId()));
+
+		// Ids aren't reused after a restart.
+		assertEquals(deleted.getId() + 1, restored.getNextId());
+	}
+
+	@Test
+	public void incompleteRecordIsTruncated() throws IOException {
+		File file = _folder.newFile();
+		WriteAheadLog log = WriteAheadLog.open(file, FsyncPolicy.Always, 0);
+		log.replay(new ConcertStore());
+		ConcertStore store = new ConcertStore(4, log);
+		store.create(new Concert("First", DATE));
+		store.create(new Concert("Second", DATE));
+		log.close();
+
+		// Simulate a crash part way through writing the second record.
+		long length = file.length();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(length - 3);
+		raf.close();
+
+		ConcertStore restored = replay(file);
+		assertEquals(1, restored.size());
+		assertEquals("First", restored.get(1).getTitle());
+		assertTrue(file.length() < length - 3);
+	}
+
+	@Test
+	public void damagedRecordBeforeValidOnesFailsReplay() throws IOException {
+		File file = _folder.newFile();
+		WriteAheadLog log = WriteAheadLog.open(file, FsyncPolicy.Always, 0);
+		log.replay(new ConcertStore());
+		ConcertStore store = new ConcertStore(4, log);
+		store.create(new Concert("First", DATE));
+		long end = file.length();
+		store.create(new Concert("Second", DATE));
+		store.create(new Concert("Third", DATE));
+		log.close();
+
+		// Damage the body of the second record.
+		long length = file.length();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(end + 10);
+		int b = raf.read();
+		raf.seek(end + 10);
+		raf.write(b ^ 0xFF);
+		raf.close();
+
+		WriteAheadLog damaged = WriteAheadLog.open(file, FsyncPolicy.Never, 0);
+		try {
+			damaged.replay(new ConcertStore());
+			fail("Replayed a log with a damaged record");
+		} catch (IOException e) {
+			// Expected.
+		} finally {
+			damaged.close();
+		}
+		assertEquals(length, file.length());
+	}
+
+	@Test
+	public void concurrentCommitsShareForces() throws Exception {
+		File file = _folder.newFile();
+		final WriteAheadLog log = WriteAheadLog.open(file, FsyncPolicy.Always, 0);
+		log.replay(new ConcertStore());
+		final ConcertStore store = new ConcertStore(16, log);
+		final int threads = 8;
+		final int creates = 200;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int i = 0; i < threads; i++) {
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int j = 0; j < creates; j++) {
+						store.create(new Concert("Concert " + j, DATE));
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> result : results) {
+			result.get();
+		}
+		executor.shutdown();
+
+		// Every create was committed, but commits were grouped.
+		assertTrue(log.getForceCount() <= threads * creates);
+		log.close();
+		assertEquals(threads * creates, replay(file).size());
+	}
+
+	private ConcertStore replay(File file) throws IOException {
+		WriteAheadLog log = WriteAheadLog.open(file, FsyncPolicy.Never, 0);
+		ConcertStore store = new ConcertStore(4, log);
+		log.replay(store);
+		log.close();
+		return store;
+	}
+}